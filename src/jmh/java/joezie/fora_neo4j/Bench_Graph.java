@@ -0,0 +1,106 @@
+package joezie.fora_neo4j;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class Bench_Graph { // graph & alpha shared by the benchmarks, built without a Neo4j database
+	/* graph is either "got", the GOT csv files under the directory of the
+	 * system property ppr.dataset (Default: "dataset/got"), or a generated
+	 * graph "<model>-<nodes>-<average out-degree>", where model is "er" for
+	 * uniformly random edges or "pl" for targets skewed towards low node ids,
+	 * which gives power-law-like in-degrees. Generated graphs use a fixed
+	 * seed, so every fork benchmarks the same graph.
+	 */
+
+	private static final long SEED = 20190101L;
+	private static final int SOURCE_AMOUNT = 1024; // query sources cycled through by the benchmarks
+
+	@Param({"got", "er-100000-10", "pl-100000-10"})
+	public String graph;
+
+	@Param({"0.15"})
+	public double alpha;
+
+	public CSR_Graph csr;
+	public long sources[]; // node ids in csr of random query sources
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		csr = graph.equals("got") ? loadGot(System.getProperty("ppr.dataset", "dataset/got")) : generate(graph);
+		Random random = new Random(SEED);
+		sources = new long[SOURCE_AMOUNT];
+		for (int i = 0; i < SOURCE_AMOUNT; i++)
+			sources[i] = csr.toOriginalNodeId(random.nextInt(csr.nodeCount()));
+	}
+
+	public Algo_Conf newConf() {
+		return new Algo_Conf(alpha, "name");
+	}
+
+	private static CSR_Graph loadGot(String dir) throws IOException {
+		HashMap<String, Integer> ids = new HashMap<>(); // (name, mapped node id)
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(dir + "/GOT_Nodes.csv"), StandardCharsets.UTF_8))) {
+			reader.readLine(); // header
+			for (String line; (line = reader.readLine()) != null; )
+				if (!line.isEmpty())
+					ids.put(line.split(",")[0], ids.size());
+		}
+
+		int edge_sources[] = new int[16], edge_targets[] = new int[16], edge_amount = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(dir + "/GOT_Rels.csv"), StandardCharsets.UTF_8))) {
+			reader.readLine(); // header
+			for (String line; (line = reader.readLine()) != null; ) {
+				String fields[] = line.split(",");
+				if (fields.length < 2 || !ids.containsKey(fields[0]) || !ids.containsKey(fields[1]))
+					continue;
+				if (edge_amount == edge_sources.length) {
+					edge_sources = Arrays.copyOf(edge_sources, edge_amount * 2);
+					edge_targets = Arrays.copyOf(edge_targets, edge_amount * 2);
+				}
+				edge_sources[edge_amount] = ids.get(fields[0]);
+				edge_targets[edge_amount++] = ids.get(fields[1]);
+			}
+		}
+		long original_ids[] = new long[ids.size()];
+		for (int nodeIdM = 0; nodeIdM < original_ids.length; nodeIdM++)
+			original_ids[nodeIdM] = nodeIdM;
+		return CSR_Graph.fromEdges(original_ids, Arrays.copyOf(edge_sources, edge_amount),
+				Arrays.copyOf(edge_targets, edge_amount));
+	}
+
+	private static CSR_Graph generate(String spec) {
+		String fields[] = spec.split("-");
+		if (fields.length != 3 || !(fields[0].equals("er") || fields[0].equals("pl")))
+			throw new IllegalArgumentException("Unknown graph " + spec);
+		int node_amount = Integer.parseInt(fields[1]);
+		int edge_amount = node_amount * Integer.parseInt(fields[2]);
+		boolean isSkewed = fields[0].equals("pl");
+
+		Random random = new Random(SEED);
+		int edge_sources[] = new int[edge_amount], edge_targets[] = new int[edge_amount];
+		for (int i = 0; i < edge_amount; i++) {
+			edge_sources[i] = random.nextInt(node_amount);
+			edge_targets[i] = isSkewed ? (int)(node_amount * Math.pow(random.nextDouble(), 3)) // P(id < x) = (x/n)^(1/3)
+					: random.nextInt(node_amount);
+		}
+		long original_ids[] = new long[node_amount];
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++)
+			original_ids[nodeIdM] = nodeIdM;
+		return CSR_Graph.fromEdges(original_ids, edge_sources, edge_targets);
+	}
+}
@@ -0,0 +1,20 @@
+package joezie.fora_neo4j;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class Benchmark_Runner { // main class of target/benchmarks.jar
+	/* Takes the usual JMH command line (e.g. "Push_Benchmark -p graph=got"),
+	 * and always adds the GC profiler, so that the allocation rate
+	 * (gc.alloc.rate.norm, bytes per query) is reported next to the throughput.
+	 */
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,48 @@
+package joezie.fora_neo4j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Fora_Topk_Benchmark { // FORA top-k queries, one random source per call
+	@Param({"1.0", "0.5"})
+	public double epsilon;
+
+	@Param({"10"})
+	public int k;
+
+	private Fora_Topk fora;
+	private int next_source;
+
+	@Setup(Level.Trial)
+	public void setup(Bench_Graph g) {
+		fora = g.newConf().set_conf_fora_topk(g.csr.nodeCount(), g.csr.relCount(), k, null, g.csr, "bench");
+	}
+
+	private Long nextSource(Bench_Graph g) {
+		return g.sources[next_source++ & (g.sources.length - 1)];
+	}
+
+	@Benchmark
+	public Object foraTopk(Bench_Graph g) {
+		fora.computeTopKPPR(nextSource(g), k, epsilon);
+		return fora.getTopKNodeIds(k);
+	}
+}
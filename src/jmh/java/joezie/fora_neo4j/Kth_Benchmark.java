@@ -0,0 +1,53 @@
+package joezie.fora_neo4j;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Kth_Benchmark { // kth largest ppr of whole-graph results, as used by the top-k stopping rules
+	private static final int VECTOR_AMOUNT = 16; // results of different sources cycled through
+	private static final double RMAX = 1e-6; // accuracy of the forward push giving the results
+
+	@Param({"10", "1000"})
+	public int k;
+
+	private Forward_Push fwdpush;
+	private Sparse_Vector pprs[];
+	private int next_vector;
+
+	@Setup(Level.Trial)
+	public void setup(Bench_Graph g) {
+		fwdpush = g.newConf().set_conf_fwdpush(g.csr.nodeCount(), g.csr.relCount(), null, g.csr, "bench");
+		pprs = new Sparse_Vector[VECTOR_AMOUNT];
+		for (int i = 0; i < VECTOR_AMOUNT; i++) {
+			fwdpush.computeWholeGraphPPR(g.sources[i], RMAX);
+			HashMap<Long, Double> result = fwdpush.getWholeGraphPPR();
+			pprs[i] = new Sparse_Vector(result.size());
+			for (HashMap.Entry<Long, Double> ppr : result.entrySet())
+				pprs[i].put(g.csr.toMappedNodeId(ppr.getKey()), ppr.getValue());
+		}
+	}
+
+	@Benchmark
+	public Double kthPPR() { // null if the result has less than k pprs
+		return fwdpush.kth_ppr(pprs[next_vector++ & (VECTOR_AMOUNT - 1)], k);
+	}
+}
@@ -0,0 +1,65 @@
+package joezie.fora_neo4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Push_Benchmark { // forward push & backward search queries, one random source per call
+	@Param({"1e-4", "1e-6"})
+	public double rmax;
+
+	private Forward_Push fwdpush;
+	private Backward_Search backward;
+	private Queue<Long> Q; // start queue of forward_push_topk
+	private int next_source;
+
+	@Setup(Level.Trial)
+	public void setup(Bench_Graph g) {
+		fwdpush = g.newConf().set_conf_fwdpush(g.csr.nodeCount(), g.csr.relCount(), null, g.csr, "bench");
+		backward = new Backward_Search(g.alpha, rmax, g.csr.nodeCount(), null, g.csr);
+		Q = new ConcurrentLinkedQueue<>();
+	}
+
+	private Long nextSource(Bench_Graph g) {
+		return g.sources[next_source++ & (g.sources.length - 1)];
+	}
+
+	@Benchmark
+	public double forwardPushWholeGraph(Bench_Graph g) { // the push only; the result stays in the engine
+		fwdpush.computeWholeGraphPPR(nextSource(g), rmax);
+		return fwdpush.getUpdatedRsum();
+	}
+
+	@Benchmark
+	public double forwardPushTopk(Bench_Graph g) { // the first round of a top-k query, keeping nodes down to rmax / 10
+		Long nodeId_start = nextSource(g);
+		Q.offer(nodeId_start);
+		fwdpush.forward_push_topk(nodeId_start, Q, rmax / 10, true, rmax);
+		return fwdpush.getUpdatedRsum();
+	}
+
+	@Benchmark
+	public Sparse_Vector backwardSearchWholeGraph(Bench_Graph g) {
+		backward.backward_search_whole_graph(nextSource(g));
+		return backward.getReserve();
+	}
+}
@@ -0,0 +1,40 @@
+package joezie.fora_neo4j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Walk_Benchmark { // single random walks from a random source, the inner loop of the Monte Carlo phases
+	private Monte_Carlo mc;
+	private int next_source;
+
+	@Setup(Level.Trial)
+	public void setup(Bench_Graph g) {
+		mc = g.newConf().set_conf_mc(g.csr.nodeCount(), g.csr.relCount(), null, g.csr, "bench");
+	}
+
+	private Long nextSource(Bench_Graph g) {
+		return g.sources[next_source++ & (g.sources.length - 1)];
+	}
+
+	@Benchmark
+	public Long randomWalk(Bench_Graph g) { // return the node where the walk stops
+		return mc.random_walk(nextSource(g));
+	}
+}
@@ -1,5 +1,7 @@
 package joezie.fora_neo4j;
 
+import java.util.concurrent.ForkJoinPool;
+
 import org.bouncycastle.jcajce.provider.symmetric.ARC4.Base;
 import org.neo4j.graphalgo.api.Graph;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -10,6 +12,8 @@ public class Algo_Conf { // configuration setting for each algorithm
     private Double delta; // threshold of pi that we care
     private Double pfail; // failure probability that the error bound can't be satisfied
     private Double rsum; // sum of all nodes' residues
+    private ForkJoinPool mc_pool; // pool for parallel Monte-Carlo walks, preprocessing & Power Method; null for serial mode
+    private Walk_Index walk_index; // precomputed walks for FORA; null if not used
     
     // tag::configuration parameters for fora-topk[]
     private int k;
@@ -21,63 +25,84 @@ public class Algo_Conf { // configuration setting for each algorithm
     	this.alpha = alpha;
     	this.node_property = node_property;
     }
+    
+    public Algo_Conf(Double alpha, String node_property, ForkJoinPool mc_pool, Walk_Index walk_index) {
+    	this(alpha, node_property);
+    	this.mc_pool = mc_pool;
+    	this.walk_index = walk_index;
+    }
 
-    public Power_Method set_conf_power_method(GraphDatabaseService graphDb, Graph adjM, String dir_db) {
-    	return new Power_Method(graphDb, alpha, adjM, node_property, dir_db);
+    public Power_Method set_conf_power_method(GraphDatabaseService graphDb, CSR_Graph csr, String dir_db) {
+    	Power_Method pm = new Power_Method(graphDb, alpha, csr, node_property, dir_db);
+    	pm.setPool(mc_pool);
+    	return pm;
     }
     
     public Monte_Carlo set_conf_mc(int node_amount, int rel_amount, GraphDatabaseService graphDb, 
-    		Graph adjM, String dir_db) {
+    		CSR_Graph csr, String dir_db) {
         delta = 1.0 / (double)node_amount;
         pfail = 1.0 / (double)node_amount;
         rsum = 1.0;
-        return new Monte_Carlo(alpha, node_amount, graphDb, pfail, delta, adjM, node_property, dir_db);
+        Monte_Carlo mc = new Monte_Carlo(alpha, node_amount, graphDb, pfail, delta, csr, node_property, dir_db);
+        mc.setPool(mc_pool);
+        return mc;
     }
     
     public Base_Whole_Graph set_conf_base_whole_graph(int node_amount, int rel_amount, 
-    		GraphDatabaseService graphDb, Graph adjM, String dir_db) {
+    		GraphDatabaseService graphDb, CSR_Graph csr, String dir_db) {
         delta = 1.0 / (double)node_amount;
         pfail = 1.0 / (double)node_amount;
         
-        return new Base_Whole_Graph(alpha, node_amount, graphDb, adjM, node_property, dir_db);
+        Base_Whole_Graph base = new Base_Whole_Graph(alpha, node_amount, graphDb, csr, node_property, dir_db);
+        base.setPool(mc_pool);
+        return base;
     }
     
     public Fora_Whole_Graph set_conf_fora_whole_graph(int node_amount, int rel_amount, 
-    		GraphDatabaseService graphDb, Graph adjM, String dir_db) {
+    		GraphDatabaseService graphDb, CSR_Graph csr, String dir_db) {
         delta = 1.0 / (double)node_amount;
         pfail = 1.0 / (double)node_amount;
         rsum = 1.0;
         
-        return new Fora_Whole_Graph(alpha, rsum, pfail, delta, node_amount, rel_amount, graphDb, 
-        		adjM, node_property, dir_db);
+        Fora_Whole_Graph fora = new Fora_Whole_Graph(alpha, rsum, pfail, delta, node_amount, rel_amount, graphDb, 
+        		csr, node_property, dir_db);
+        fora.setWalkIndex(walk_index);
+        fora.setPool(mc_pool);
+        return fora;
     }
     
     
     public Forward_Push set_conf_fwdpush(int node_amount, int rel_amount, GraphDatabaseService graphDb, 
-    		Graph adjM, String dir_db) {
+    		CSR_Graph csr, String dir_db) {
         delta = 1.0 / (double)node_amount;
         pfail = 1.0 / (double)node_amount;
         rsum = 1.0;
 
-        return new Forward_Push(alpha, rsum, node_amount, graphDb, adjM, node_property, dir_db);
+        Forward_Push fwdpush = new Forward_Push(alpha, rsum, node_amount, graphDb, csr, node_property, dir_db);
+        fwdpush.setPool(mc_pool);
+        return fwdpush;
     }
     
-    public Neo4j_Method set_conf_neo4j_method(GraphDatabaseService graphDb, Graph adjM, String label_type,
-    		String rel_type, int node_amount, String dir_db) {
-    	return new Neo4j_Method(graphDb, alpha, label_type, rel_type, adjM, node_amount, node_property
-    			, dir_db);
+    public Neo4j_Method set_conf_neo4j_method(GraphDatabaseService graphDb, Graph adjM, CSR_Graph csr, 
+    		String label_type, String rel_type, int node_amount, String dir_db) {
+    	Neo4j_Method neo4j_method = new Neo4j_Method(graphDb, alpha, label_type, rel_type, adjM, csr, node_amount, 
+    			node_property, dir_db);
+    	neo4j_method.setPool(mc_pool);
+    	return neo4j_method;
     }
     
     public Fora_Topk set_conf_fora_topk(int node_amount, int rel_amount, int k, 
-    		GraphDatabaseService graphDb, Graph adjM, String dir_db) {
+    		GraphDatabaseService graphDb, CSR_Graph csr, String dir_db) {
         min_delta = 1.0 / (double)node_amount; // min delta: 1/n
         this.k = k;
         delta = 1.0 / (double)k; // initial delta: 1/k
         pfail = 1.0 / (double)node_amount / (double)node_amount / Math.log(node_amount / k); // pfail' = pfail / n
         rsum = 1.0;
         
-        return new Fora_Topk(alpha, rsum, pfail, delta, node_amount, rel_amount, graphDb, 
-        		min_delta, k, adjM, node_property, dir_db);
+        Fora_Topk fora = new Fora_Topk(alpha, rsum, pfail, delta, node_amount, rel_amount, graphDb, 
+        		min_delta, k, csr, node_property, dir_db);
+        fora.setWalkIndex(walk_index);
+        return fora;
     }
     
 }
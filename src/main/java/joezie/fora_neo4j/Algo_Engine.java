@@ -0,0 +1,58 @@
+package joezie.fora_neo4j;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public final class Algo_Engine<T> { // shares one configured algorithm among threads through pooled query contexts
+	/* The graph (csr, walk index) and the configuration of an algo object are
+	 * read-only once it's set up; only its results (residue, reserve, top-k...)
+	 * change per query. So the engine keeps the configured object as a
+	 * prototype that never runs a query, and hands out contexts created from it
+	 * with newWorker(). A thread takes a context from the pool, runs its query,
+	 * reads what it needs from the context and gives it back, so contexts and
+	 * their scratch arrays are reused instead of being allocated per request.
+	 * Acquiring and releasing are lock-free.
+	 */
+
+	private final Supplier<T> factory; // creates a new context when the pool is empty
+	private final ConcurrentLinkedQueue<T> contexts; // idle contexts
+
+	private Algo_Engine(Supplier<T> factory) {
+		this.factory = factory;
+		contexts = new ConcurrentLinkedQueue<>();
+	}
+
+	public static Algo_Engine<Whole_Graph_Util_Interface> ofWholeGraph(Whole_Graph_Util_Interface prototype) {
+		return new Algo_Engine<>(prototype::newWorker);
+	}
+
+	public static Algo_Engine<Topk_Util_Interface> ofTopk(Topk_Util_Interface prototype) {
+		return new Algo_Engine<>(prototype::newWorker);
+	}
+
+	public T acquire() { // take an idle context, or create one if there's none
+		T context = contexts.poll();
+		return (context == null) ? factory.get() : context;
+	}
+
+	public void release(T context) { // give back a context; its results must not be read afterwards
+		contexts.offer(context);
+	}
+
+	public <R> R query(Function<T, R> query) {
+		// run query on a pooled context and return what it extracts from the context
+
+		T context = acquire();
+		try {
+			return query.apply(context);
+		}
+		finally {
+			release(context);
+		}
+	}
+
+	public int getIdleContextAmount() {
+		return contexts.size();
+	}
+}
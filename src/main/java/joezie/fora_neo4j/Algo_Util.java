@@ -1,9 +1,11 @@
 package joezie.fora_neo4j;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Vector;
-import java.util.concurrent.ThreadLocalRandom;
 
+import org.apache.commons.io.FileUtils;
 import org.neo4j.graphalgo.api.Graph;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -13,6 +15,7 @@ import org.neo4j.graphdb.Transaction;
 
 public class Algo_Util { // useful functions used by each algorithm
 	protected String node_property;
+	private double ppr_scratch[]; // scratch array of kth_ppr(Sparse_Vector, int)
 	
 	public Algo_Util(String node_property) {
 		this.node_property = node_property;
@@ -29,52 +32,60 @@ public class Algo_Util { // useful functions used by each algorithm
 		return nodeName;
 	}
 	
-	protected Double kth_ppr(Object pprs[], int k) {
-		/* Return the kth largest ppr value.
-		 */
-		
-		return find_kth_element(pprs, 0, pprs.length - 1, k);
-	}
-	
-	private Double find_kth_element(Object arr[], int left, int right, int k) {
-		/* Return the kth largest element in the array bounded by index
-		 * left and right.
-		 */
+	protected PPR_Index loadPPRIndex(String dirName, int node_amount) {
+		// map the ppr index in a preprocessing directory; return null if it can't be read
 		
-		if (k >= 0 && k <= right - left + 1) {
-			int pos = random_partition(arr, left, right), offset = pos - left;
-			if (offset == k - 1)
-				return (Double)arr[pos];
-			else if (offset > k - 1)
-				return find_kth_element(arr, left, pos - 1, k);
-			return find_kth_element(arr, pos + 1, right, k - pos + left - 1);
+		File file = new File(dirName, PPR_Index.FILE_NAME);
+		try {
+			return PPR_Index.load(file, node_amount);
+		}
+		catch (IOException e) {
+			System.out.println("Read from file " + file.getPath() + " failed!");
+			e.printStackTrace();
+			return null;
 		}
-		return null; // return null when k is invalid
 	}
 	
-	private int random_partition(Object arr[], int left, int right) { 
-		/* Return the index of the randomly selected pivot after partition.
-		 * After partition, the elements before pivot would be greater,
-		 * while the element after it would be smaller.
+	protected Prep_Manifest openPrepDir(String dirName, String params) throws IOException {
+		/* Prepare a preprocessing directory and open its manifest. The directory
+		 * is created if it doesn't exist, and cleared unless it holds an
+		 * interrupted preprocessing with the same params, which is then resumed.
 		 */
 		
-		int n = right - left + 1, i = left;
-		int pivot_index = ThreadLocalRandom.current().nextInt(n);
-		swap(arr, left + pivot_index, right); // randomly select a pivot and exchange it with the rightmost element
-		Object pivot = arr[right];
-		for (int j = left; j <= right - 1; j++) {
-			if (((Comparable)arr[j]).compareTo(pivot) > 0) {
-				swap(arr, i, j);
-				i++;
+		File dirPath = new File(dirName);
+		File manifestFile = new File(dirPath, Prep_Manifest.FILE_NAME);
+		if (!dirPath.exists()) { // create directory if not exists
+			dirPath.mkdirs();
+			System.out.println("\nCreated directory " + dirName);
+		}
+		else if (Prep_Manifest.isResumable(manifestFile, params))
+			System.out.println("\nResuming the interrupted preprocessing in directory " + dirName);
+		else { // if exists, clear it before preprocessing
+			try {
+				FileUtils.cleanDirectory(dirPath);
+			}
+			catch (IOException e) {
+				System.out.println("Clear directory " + dirName + " failed!");
+				e.printStackTrace();
 			}
+			System.out.println("\nDirectory " + dirName + " cleared");
 		}
-		swap(arr, i, right);
-		return i;
+		return Prep_Manifest.open(manifestFile, params);
 	}
 	
-	private void swap(Object arr[], int i1, int i2) {
-		Object tmp = arr[i1];
-		arr[i1] = arr[i2];
-		arr[i2] = tmp;
+	protected Double kth_ppr(Sparse_Vector pprs, int k) {
+		/* Return the kth largest ppr value in the vector, or null if
+		 * there are less than k values. The values are copied into a
+		 * scratch array that's reused by later calls.
+		 */
+		
+		int size = pprs.size();
+		if (k <= 0 || k > size)
+			return null;
+		if (ppr_scratch == null || ppr_scratch.length < size)
+			ppr_scratch = new double[Math.max(size, 2 * (ppr_scratch == null ? 0 : ppr_scratch.length))];
+		for (int i = 0; i < size; i++)
+			ppr_scratch[i] = pprs.valueAt(i);
+		return Topk_Selector.kthLargest(ppr_scratch, size, k);
 	}
 }
@@ -9,6 +9,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.util.AbstractMap;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
@@ -19,12 +20,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.neo4j.cypher.internal.compiler.v3_1.pipes.ProcedureCallRowProcessing;
 import org.neo4j.cypher.internal.frontend.v2_3.perty.recipe.formatErrors;
-import org.neo4j.graphalgo.api.Graph;
 import org.neo4j.graphdb.GraphDatabaseService;
 
 import io.netty.handler.codec.http2.StreamByteDistributor.Writer;
@@ -32,26 +35,63 @@ import io.netty.handler.codec.http2.StreamByteDistributor.Writer;
 public class Base_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Interface, Preprocessing_Interface, Topk_Util_Interface { 
 	// All-Pair-Backward-Search algorithm for All-Pair PPR (i.e preprocessing) computation
 	
+	private static final long DEFAULT_MEMORY_BUDGET = 256L << 20; // 256MB of buffered triples
+	private static final int MIN_BUFFER_TRIPLES = 1 << 16; // per thread, whatever the budget
+	private static final int TARGETS_PER_CLAIM = 64; // targets a thread takes at a time
+	
 	private GraphDatabaseService graphDb;
 	private String dir_db;
-	Graph adjM; // adjacency matrix of the graph 
-	private HashMap< Long, LinkedHashMap< Long, Double > > ppr_all_pairs; // (v, (t, pi(v, t)))
+	CSR_Graph csr; // CSR snapshot of the adjacency matrix
 	private LinkedHashMap< Long, Double > ppr_src; // ppr of all nodes in respect to src node (LinkedHashMap would keep entries' insertion order)
+	private boolean isResultBuilt; // whether ppr_src holds prep_records, the result of the last query
 	private int node_amount; // the total number of nodes in the graph
 	private Double alpha; // the probability stopped at each node during a random walk
 	private String preprocessing_dirName;
+	private PPR_Index ppr_index; // mapped preprocessed results; loaded on the first read
+	private PPR_Records prep_records; // records of a source read from ppr_index
+	private int prep_score_bits; // bits per stored ppr in preprocessing; 0 to store exact pprs
+	private Topk_Selector topk_selector; // top-k selection of the pprs, reused by every source
+	private ForkJoinPool pool; // pool running the backward searches of preprocessing; null for serial mode
+	private long prep_memory_budget; // bytes of (v, t, pi(v, t)) buffered in memory during preprocessing
 	
 	public Base_Whole_Graph(Double alpha, int node_amount, GraphDatabaseService graphDb,
-			Graph adjM, String node_property, String dir_db) {
+			CSR_Graph csr, String node_property, String dir_db) {
 		super(node_property);
 		this.graphDb = graphDb;
 		this.dir_db = dir_db;
-		this.adjM = adjM;
-		ppr_all_pairs = new HashMap<>();
+		this.csr = csr;
 		ppr_src = new LinkedHashMap<>();
+		isResultBuilt = true;
+		topk_selector = new Topk_Selector();
 		this.node_amount = node_amount;
 		this.alpha = alpha;
 		preprocessing_dirName = "BASE_ppr_results/" + dir_db;
+		prep_records = new PPR_Records();
+		prep_memory_budget = DEFAULT_MEMORY_BUDGET;
+	}
+	
+	@Override
+	public Base_Whole_Graph newWorker() { // same preprocessed results, own ppr_src
+		Base_Whole_Graph worker = new Base_Whole_Graph(alpha, node_amount, graphDb, csr, node_property, dir_db);
+		worker.preprocessing_dirName = preprocessing_dirName;
+		worker.ppr_index = ppr_index;
+		worker.prep_score_bits = prep_score_bits;
+		worker.setPool(pool);
+		worker.setMemoryBudget(prep_memory_budget);
+		return worker;
+	}
+	
+	public void setPool(ForkJoinPool pool) { // run the backward searches of preprocessing in pool, or serially if pool is null
+		this.pool = pool;
+	}
+	
+	public void setMemoryBudget(long bytes) {
+		/* Bound the memory of the (v, t, pi(v, t)) triples that preprocessing buffers
+		 * before spilling them to disk; a thread may go over its share by the
+		 * triples of one target. It doesn't cover the per-thread search state,
+		 * nor the 64KB read buffer of each run when they are merged.
+		 */
+		prep_memory_budget = bytes;
 	}
 	
 	@Override
@@ -63,130 +103,130 @@ public class Base_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 		
 		// customize preprocessing_dirName
 		preprocessing_dirName += ("/" + threshold + "_" + k);
+		ppr_index = null;
 		
 		System.out.println("\nBASE preprocessing starts...");
-		Backward_Search bws_t = new Backward_Search(alpha, threshold, node_amount, graphDb, adjM);
-		HashMap<Integer, Integer> prog_pct_map = new HashMap<>(); // (nodeId, progress percentage)
-		for (int i = 10; i < 100; i += 10) {
-			int nodeId_i = node_amount * i / 100;
-			prog_pct_map.put(nodeId_i, i);
-		}
-		prog_pct_map.put(node_amount - 1, 100);
-		
-		adjM.forEachNode(nodeIdM -> {
-			Long nodeId_target = adjM.toOriginalNodeId(nodeIdM);
-			bws_t.backward_search_whole_graph(nodeId_target); // run Backward Search on target node
-			HashMap<Long, Double> reserve = bws_t.getReserve(); // get reserve results (v, pi(v, t))
-			for (Map.Entry<Long, Double> reserve_t : reserve.entrySet()) { // store results in ppr
-				Long nodeId_v = reserve_t.getKey();
-				Double pi_v = reserve_t.getValue();
-				if (pi_v >= threshold) { // only insert reserve >= rmax
-					if (ppr_all_pairs.containsKey(nodeId_v) == false)
-						ppr_all_pairs.put(nodeId_v, new LinkedHashMap< Long, Double >());
-					ppr_all_pairs.get(nodeId_v).put(nodeId_target, pi_v); // (v, t, pi(v, t))
-				}
+		File indexFile = new File(preprocessing_dirName, PPR_Index.FILE_NAME);
+		String params = "Base_Whole_Graph alpha=" + alpha + " threshold=" + threshold + " k=" + k + " nodes=" + node_amount 
+				+ " rels=" + csr.relCount() + " graph=" + String.format("%08x", csr.getChecksum()) 
+				+ " score_bits=" + prep_score_bits;
+		try (Prep_Manifest manifest = openPrepDir(preprocessing_dirName, params)) {
+			PPR_Spill_Runs runs = new PPR_Spill_Runs(new File(preprocessing_dirName, "runs"), manifest);
+			// runs of an interrupted preprocessing are kept
+			searchAllTargets(threshold, runs);
+			
+			System.out.println("\nBASE preprocessing merging " + runs.getRunAmount() 
+					+ " runs into the ppr index (under directory " + preprocessing_dirName + ")...");
+			int k_t = (int)k;
+			try (PPR_Index_Writer writer = new PPR_Index_Writer(indexFile, node_amount, prep_score_bits)) {
+				runs.merge(prep_memory_budget, (nodeIdM_v, targets, pprs, size) -> { // (v, t, pi(v, t)) of each v, sorted by t
+					if (k_t < 0) { // preprocessing for whole-graph
+						for (int i = 0; i < size; i++)
+							writer.add(targets[i], pprs[i]);
+					}
+					else { // preprocessing for top-k, then we would only retrive the top-k results and sort
+						// 1. If there're less than k results, then all of them are selected
+						// 2. Otherwise, select the pprs not smaller than the kth ppr, so it's possible that
+						//    more than k results are selected;
+						topk_selector.begin(k_t);
+						for (int i = 0; i < size; i++)
+							topk_selector.offer(targets[i], pprs[i]);
+						topk_selector.finish();
+						for (int i = 0; i < topk_selector.size(); i++) // the selected nodes are already sorted by ppr
+							writer.add((int)topk_selector.idAt(i), topk_selector.pprAt(i));
+					}
+					writer.finishSource(nodeIdM_v);
+				});
+				writer.finish();
 			}
-			if (prog_pct_map.containsKey(nodeIdM))
-				System.out.println("Progress: " + prog_pct_map.get(nodeIdM) + "%");
-			return true;
-		});
-
-		File dirPath = new File(preprocessing_dirName);
-		if (!dirPath.exists()) { // create directory if not exists
-			dirPath.mkdirs();
-			System.out.println("\nCreated directory " + preprocessing_dirName);
+			runs.delete();
+			manifest.delete(); // nothing to resume
 		}
-		else { // if exists, clear it before preprocessing
-			try {
-				FileUtils.cleanDirectory(dirPath);
-			}
-			catch (IOException e) {
-				System.out.println("Clear directory " + preprocessing_dirName + " failed!");
-				e.printStackTrace();
-			}
-			System.out.println("\nDirectory " + preprocessing_dirName + " cleared");
+		catch (IOException e) {
+			System.out.println("Write to file " + indexFile.getPath() + " failed!");
+			e.printStackTrace();
 		}
+	}
+	
+	private void searchAllTargets(Double threshold, PPR_Spill_Runs runs) throws IOException {
+		/* Run Backward Search on every target node not done by an interrupted
+		 * preprocessing, spilling (v, t, pi(v, t)) with pi(v, t) >= threshold to
+		 * runs, with each target as a unit. Each thread has its own Backward_Search
+		 * and buffer, and claims TARGETS_PER_CLAIM targets at a time in ascending
+		 * order, as runs require. The buffers share prep_memory_budget.
+		 */
 		
-		System.out.println("\nBASE preprocessing storing results to files (under directory " + preprocessing_dirName + ")...");
-		// sort each map (if required), and store into files
-		for (Map.Entry< Long, LinkedHashMap< Long, Double > > ppr_t : ppr_all_pairs.entrySet()) {
-			Long nodeId_v = ppr_t.getKey(); // also as the name of output file
-			LinkedHashMap< Long, Double > ppr_to_targets = ppr_t.getValue();
-			ArrayList< SimpleEntry< Long, Double > > sorted_topk_res = new ArrayList< SimpleEntry< Long, Double > >();
-			
-			
-			String fileName_v = preprocessing_dirName + "/" + nodeId_v.toString() + ".txt";
-			
-			if ((int)k < 0) { // preprocessing for whole-graph
-				try {
-					FileWriter fw = new FileWriter(fileName_v, false);
-					for (Map.Entry< Long, Double > entry_t : ppr_to_targets.entrySet()) {
-						fw.write(entry_t.getKey().toString() + '\t' + entry_t.getValue().toString() + '\n');
+		int slot_amount = (pool == null) ? 1 : pool.getParallelism();
+		int capacity = (int)Math.min(Integer.MAX_VALUE, 
+				Math.max(MIN_BUFFER_TRIPLES, prep_memory_budget / slot_amount / PPR_Spill_Runs.TRIPLE_BYTES));
+		AtomicInteger next_target = new AtomicInteger();
+		Prep_Progress progress = new Prep_Progress("targets", node_amount, runs.getDoneUnitAmount());
+		Runnable search_slot = () -> {
+			Backward_Search bws_t = new Backward_Search(alpha, threshold, node_amount, graphDb, csr);
+			PPR_Spill_Runs.Run_Buffer buffer = runs.newBuffer(capacity);
+			try {
+				int begin;
+				while ((begin = next_target.getAndAdd(TARGETS_PER_CLAIM)) < node_amount) {
+					for (int nodeIdM = begin; nodeIdM < Math.min(begin + TARGETS_PER_CLAIM, node_amount); nodeIdM++) {
+						if (runs.isDone(nodeIdM))
+							continue;
+						bws_t.backward_search_whole_graph(csr.toOriginalNodeId(nodeIdM)); // run Backward Search on target node
+						Sparse_Vector reserve = bws_t.getReserve(); // get reserve results (v, pi(v, t))
+						for (int i = 0; i < reserve.size(); i++)
+							if (reserve.valueAt(i) >= threshold) // only insert reserve >= rmax
+								buffer.add(reserve.keyAt(i), nodeIdM, reserve.valueAt(i)); // (v, t, pi(v, t))
+						buffer.endUnit(nodeIdM);
+						progress.advance();
 					}
-					fw.close();
-				}
-				catch (IOException e) {
-					System.out.println("Write to file " + fileName_v + " failed!");
-					e.printStackTrace();
 				}
+				buffer.spill();
 			}
-			else { // preprocessing for top-k, then we would only retrive the top-k results and sort
-				Double kth_reserve = kth_ppr(ppr_to_targets.values().toArray(), (int)k); // find the kth ppr
-				
-				for (Map.Entry<Long, Double> reserve_t : ppr_to_targets.entrySet()) {
-					// 1. If there're less than k results, then we copy all of them to sorted_topk_res
-					// 2. Otherwise, find the pprs not smaller than the kth ppr, so it's possible that
-					//    the size of topk_res is greater than k;
-					if (kth_reserve == null || reserve_t.getValue() >= kth_reserve)
-						sorted_topk_res.add(new SimpleEntry<Long, Double>(reserve_t.getKey(), reserve_t.getValue()));
-				}
-				sorted_topk_res.sort( new Comparator< SimpleEntry< Long, Double > >() { // sort in descending order
-					public int compare(SimpleEntry< Long, Double > k1, SimpleEntry< Long, Double > k2) { 
-						// overload with k2.val > k1.val
-						return k2.getValue().compareTo(k1.getValue());
-					}
-				} );
-				
-				
-				try {
-					FileWriter fw = new FileWriter(fileName_v, false);
-					for (Map.Entry< Long, Double > entry_t : sorted_topk_res) {
-						fw.write(entry_t.getKey().toString() + '\t' + entry_t.getValue().toString() + '\n');
-					}
-					fw.close();
-				}
-				catch (IOException e) {
-					System.out.println("Write to file " + fileName_v + " failed!");
-					e.printStackTrace();
-				}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+		
+		try {
+			if (slot_amount == 1)
+				search_slot.run();
+			else {
+				List<ForkJoinTask<?>> tasks = new ArrayList<>(slot_amount);
+				for (int slot = 0; slot < slot_amount; slot++)
+					tasks.add(pool.submit(search_slot));
+				for (ForkJoinTask<?> task : tasks)
+					task.join();
 			}
 		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 	}
 	
 	@Override
-	public void computeWholeGraphPPR(Long nodeId_start, Object dummy) { // read pprs from file corresponding to src node
-		ppr_all_pairs.clear();
+	public void computeWholeGraphPPR(Long nodeId_start, Object dummy) { 
+		// read pprs of src node from the ppr index into prep_records, which ppr_src is built from on request
 		ppr_src.clear();
-		String fileName_v = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(fileName_v)));
-			String tmpStr = null;
-			while ((tmpStr = br.readLine()) != null) {
-				int space_idx = tmpStr.indexOf('\t');
-				Long nodeId_target = Long.parseLong(tmpStr.substring(0, space_idx));
-				Double ppr_target = Double.parseDouble(tmpStr.substring(space_idx + 1));
-				ppr_src.put(nodeId_target, ppr_target);
-			}
-			br.close();
-		}
-		catch (IOException e) {
-			System.out.println("Read from file " + fileName_v + " failed!");
-			e.printStackTrace();
+		isResultBuilt = false;
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null) {
+			prep_records.clear();
+			return;
 		}
+		
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		ppr_index.read(nodeIdM_start, prep_records);
+	}
+	
+	private void buildResult() {
+		if (isResultBuilt)
+			return;
+		isResultBuilt = true;
+		for (int i = 0; i < prep_records.size(); i++)
+			ppr_src.put(csr.toOriginalNodeId(prep_records.nodeAt(i)), prep_records.pprAt(i));
 	}
 
 	@Override
 	public void printWholeGraphResult() {
+		buildResult();
 		System.out.println("\nBase-Whole-Graph PPR:");
 		for (Map.Entry<Long, Double> reserve_t : ppr_src.entrySet()) 
 			System.out.println("@" + getNodeName(reserve_t.getKey(), graphDb) + '\t' + reserve_t.getValue());
@@ -194,6 +234,7 @@ public class Base_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 
 	@Override
 	public HashMap<Long, Double> getWholeGraphPPR() { // return LinkedHashMap ppr_src
+		buildResult();
 		return ppr_src;
 	}
 
@@ -205,8 +246,12 @@ public class Base_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 
 	@Override
 	public Vector<Long> getTopKNodeIds(int k) { 
-		// return the reference of topk_nodeIds sorted by ppr; might include more than k nodes
-		return new Vector<>(ppr_src.keySet());
+		// return top-k node ids sorted by ppr; might include more than k nodes
+		topk_selector.select(prep_records, csr::toOriginalNodeId, k); // records of a compressed index are sorted by node id rather than ppr
+		Vector<Long> topk_nodeIds = new Vector<>(topk_selector.size());
+		for (int i = 0; i < topk_selector.size(); i++)
+			topk_nodeIds.add(topk_selector.idAt(i));
+		return topk_nodeIds;
 	}
 	
 	@Override
@@ -218,21 +263,10 @@ public class Base_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 	
 	@Override
 	public void printTopKResult(int k) {
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(ppr_src.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		int count = 0;
+		topk_selector.select(prep_records, csr::toOriginalNodeId, k);
 		System.out.println("\nBASE-Top" + k + " PPR:");
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) {
-			if (count >= k) // we need to count since the size of topk_reserves might be greater than k
-				break;
-			count++;
-			System.out.println("@" + getNodeName(topk_res_list_t.getKey(), graphDb) + '\t' + topk_res_list_t.getValue());
-		}
+		for (int i = 0; i < topk_selector.size() && i < k; i++) // there might be more than k selected nodes
+			System.out.println("@" + getNodeName(topk_selector.idAt(i), graphDb) + '\t' + topk_selector.pprAt(i));
 	}
 	
 	@Override
@@ -240,6 +274,18 @@ public class Base_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 		return FileUtils.sizeOfDirectory(new File(preprocessing_dirName));
 	}
 	
+	@Override
+	public void setScoreBits(int score_bits) {
+		prep_score_bits = score_bits;
+	}
+	
+	@Override
+	public Double getPrepMaxError() {
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null)
+			return null;
+		return ppr_index.getMaxError();
+	}
+	
 	@Override
 	public void deletePrepDir() {
 		try {
@@ -0,0 +1,69 @@
+package joezie.fora_neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class Batch_Query { // runs the queries of many source nodes concurrently on an executor
+	/* An algo object keeps the state of its last query in member variables,
+	 * so the queries run on contexts pooled by an Algo_Engine; there are at
+	 * most as many contexts as concurrently running queries. Passing an algo
+	 * object uses a new engine for the batch, while passing a long-lived engine
+	 * also reuses its contexts between batches.
+	 */
+
+	private ExecutorService executor;
+
+	public Batch_Query(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public LinkedHashMap<Long, HashMap<Long, Double>> computeWholeGraphPPR(Whole_Graph_Util_Interface algo,
+			List<Long> nodeIds_start, Object param) throws InterruptedException, ExecutionException {
+		return computeWholeGraphPPR(Algo_Engine.ofWholeGraph(algo), nodeIds_start, param);
+	}
+
+	public LinkedHashMap<Long, HashMap<Long, Double>> computeWholeGraphPPR(Algo_Engine<Whole_Graph_Util_Interface> engine,
+			List<Long> nodeIds_start, Object param) throws InterruptedException, ExecutionException {
+		// return (src node id, whole-graph ppr of src) in the order of nodeIds_start
+
+		List<Future<HashMap<Long, Double>>> futures = new ArrayList<>(nodeIds_start.size());
+		for (Long nodeId_start : nodeIds_start)
+			futures.add(executor.submit(() -> engine.query(context -> {
+				context.computeWholeGraphPPR(nodeId_start, param);
+				return new HashMap<>(context.getWholeGraphPPR()); // the context overwrites it in its next query
+			})));
+
+		LinkedHashMap<Long, HashMap<Long, Double>> results = new LinkedHashMap<>();
+		for (int i = 0; i < nodeIds_start.size(); i++)
+			results.put(nodeIds_start.get(i), futures.get(i).get());
+		return results;
+	}
+
+	public LinkedHashMap<Long, Vector<Long>> computeTopKPPR(Topk_Util_Interface algo, List<Long> nodeIds_start,
+			int k, Object param) throws InterruptedException, ExecutionException {
+		return computeTopKPPR(Algo_Engine.ofTopk(algo), nodeIds_start, k, param);
+	}
+
+	public LinkedHashMap<Long, Vector<Long>> computeTopKPPR(Algo_Engine<Topk_Util_Interface> engine,
+			List<Long> nodeIds_start, int k, Object param) throws InterruptedException, ExecutionException {
+		// return (src node id, top-k node ids of src sorted by ppr) in the order of nodeIds_start
+
+		List<Future<Vector<Long>>> futures = new ArrayList<>(nodeIds_start.size());
+		for (Long nodeId_start : nodeIds_start)
+			futures.add(executor.submit(() -> engine.query(context -> {
+				context.computeTopKPPR(nodeId_start, k, param);
+				return new Vector<>(context.getTopKNodeIds(k)); // the context overwrites it in its next query
+			})));
+
+		LinkedHashMap<Long, Vector<Long>> results = new LinkedHashMap<>();
+		for (int i = 0; i < nodeIds_start.size(); i++)
+			results.put(nodeIds_start.get(i), futures.get(i).get());
+		return results;
+	}
+}
@@ -0,0 +1,533 @@
+package joezie.fora_neo4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.neo4j.graphalgo.api.Graph;
+import org.neo4j.graphdb.Direction;
+
+public abstract class CSR_Graph { // immutable Compressed Sparse Row snapshot of the adjacency matrix
+	/* Out-edges of mapped node v are out_targets[out_offsets[v] .. out_offsets[v + 1]),
+	 * in the same order as adjM.getTarget(v, i, OUTGOING); in-edges are stored
+	 * the same way in in_offsets / in_sources. Node ids are the mapped ids of adjM.
+	 * A graph built on the heap keeps plain arrays (Array_Graph), and only a graph
+	 * loaded from a Graph_Snapshot file reads its sections through memory-mapped
+	 * buffers (Mapped_Graph). Both are final, and Mapped_Graph is only loaded by
+	 * runs that load a snapshot, so in the other runs the accessors on the push
+	 * and walk hot paths have a single implementation and inline to array reads.
+	 */
+
+	private static final int CHECKSUM_CHUNK = 1 << 16; // values copied at a time to compute the checksum
+
+	protected final int node_amount;
+	private volatile long checksum = -1; // of the node ids & out-edges; -1 until computed
+
+	CSR_Graph(int node_amount) {
+		this.node_amount = node_amount;
+	}
+
+	public static CSR_Graph of(Graph adjM) { // build the snapshot from the loaded adjacency matrix
+		int node_amount = (int)adjM.nodeCount();
+		int out_offsets[] = new int[node_amount + 1];
+		int out_degrees[] = new int[node_amount];
+		int in_offsets[] = new int[node_amount + 1];
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++) {
+			out_degrees[nodeIdM] = adjM.degree(nodeIdM, Direction.OUTGOING);
+			out_offsets[nodeIdM + 1] = out_offsets[nodeIdM] + out_degrees[nodeIdM];
+			in_offsets[nodeIdM + 1] = in_offsets[nodeIdM] + adjM.degree(nodeIdM, Direction.INCOMING);
+		}
+
+		int out_targets[] = new int[out_offsets[node_amount]];
+		int in_sources[] = new int[in_offsets[node_amount]];
+		long dangling[] = new long[danglingLength(node_amount)];
+		long original_ids[] = new long[node_amount];
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++) {
+			for (int i = 0; i < out_degrees[nodeIdM]; i++)
+				out_targets[out_offsets[nodeIdM] + i] = adjM.getTarget(nodeIdM, i, Direction.OUTGOING);
+			int in_degree = in_offsets[nodeIdM + 1] - in_offsets[nodeIdM];
+			for (int i = 0; i < in_degree; i++)
+				in_sources[in_offsets[nodeIdM] + i] = adjM.getTarget(nodeIdM, i, Direction.INCOMING);
+			if (out_degrees[nodeIdM] == 0)
+				dangling[nodeIdM >>> 6] |= (1L << nodeIdM);
+			original_ids[nodeIdM] = adjM.toOriginalNodeId(nodeIdM);
+		}
+
+		long sorted_original_ids[] = new long[node_amount];
+		int sorted_mapped_ids[] = new int[node_amount];
+		sortOriginalIds(original_ids, sorted_original_ids, sorted_mapped_ids);
+		return new Array_Graph(node_amount, out_offsets, out_targets, out_degrees, in_offsets, in_sources, dangling,
+				original_ids, sorted_original_ids, sorted_mapped_ids);
+	}
+
+	static CSR_Graph mapped(int node_amount, IntBuffer out_offsets, IntBuffer out_targets, IntBuffer out_degrees,
+			IntBuffer in_offsets, IntBuffer in_sources, LongBuffer dangling, LongBuffer original_ids,
+			LongBuffer sorted_original_ids, IntBuffer sorted_mapped_ids) { // used by Graph_Snapshot
+		return new Mapped_Graph(node_amount, out_offsets, out_targets, out_degrees, in_offsets, in_sources, dangling,
+				original_ids, sorted_original_ids, sorted_mapped_ids);
+	}
+
+	public static CSR_Graph fromEdges(long original_ids[], int edge_sources[], int edge_targets[]) {
+		// build a snapshot from edges (edge_sources[i] -> edge_targets[i]) between mapped node ids,
+		// e.g. for generated graphs; the out-edges of a node keep the order of the edges
+
+		int node_amount = original_ids.length, edge_amount = edge_sources.length;
+		int out_offsets[] = new int[node_amount + 1];
+		int out_degrees[] = new int[node_amount];
+		int in_offsets[] = new int[node_amount + 1];
+		for (int i = 0; i < edge_amount; i++) {
+			out_offsets[edge_sources[i] + 1]++;
+			in_offsets[edge_targets[i] + 1]++;
+		}
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++) {
+			out_degrees[nodeIdM] = out_offsets[nodeIdM + 1];
+			out_offsets[nodeIdM + 1] += out_offsets[nodeIdM];
+			in_offsets[nodeIdM + 1] += in_offsets[nodeIdM];
+		}
+
+		int out_targets[] = new int[edge_amount];
+		int in_sources[] = new int[edge_amount];
+		int out_next[] = Arrays.copyOf(out_offsets, node_amount); // next free slot of each node
+		int in_next[] = Arrays.copyOf(in_offsets, node_amount);
+		for (int i = 0; i < edge_amount; i++) {
+			out_targets[out_next[edge_sources[i]]++] = edge_targets[i];
+			in_sources[in_next[edge_targets[i]]++] = edge_sources[i];
+		}
+		long dangling[] = new long[danglingLength(node_amount)];
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++)
+			if (out_degrees[nodeIdM] == 0)
+				dangling[nodeIdM >>> 6] |= (1L << nodeIdM);
+
+		long sorted_original_ids[] = new long[node_amount];
+		int sorted_mapped_ids[] = new int[node_amount];
+		sortOriginalIds(original_ids, sorted_original_ids, sorted_mapped_ids);
+		return new Array_Graph(node_amount, out_offsets, out_targets, out_degrees, in_offsets, in_sources, dangling,
+				original_ids.clone(), sorted_original_ids, sorted_mapped_ids);
+	}
+
+	static int danglingLength(int node_amount) { // the number of longs in the dangling bitmap
+		return (node_amount + 63) >>> 6;
+	}
+
+	private static void sortOriginalIds(long original_ids[], long sorted_original_ids[],
+			int sorted_mapped_ids[]) { // fill sorted_original_ids & sorted_mapped_ids for toMappedNodeId
+		int node_amount = original_ids.length;
+		long pairs[] = new long[node_amount]; // (original id << 32 | mapped id) sorts by original id
+		boolean isPackable = true;
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++) {
+			if (original_ids[nodeIdM] < 0 || original_ids[nodeIdM] > Integer.MAX_VALUE) {
+				isPackable = false;
+				break;
+			}
+			pairs[nodeIdM] = (original_ids[nodeIdM] << 32) | nodeIdM;
+		}
+
+		if (isPackable) {
+			Arrays.sort(pairs);
+			for (int i = 0; i < node_amount; i++) {
+				sorted_original_ids[i] = pairs[i] >>> 32;
+				sorted_mapped_ids[i] = (int)pairs[i];
+			}
+			return;
+		}
+
+		Integer order[] = new Integer[node_amount]; // node ids too large to pack, sort indexes instead
+		for (int i = 0; i < node_amount; i++)
+			order[i] = i;
+		Arrays.sort(order, (id1, id2) -> Long.compare(original_ids[id1], original_ids[id2]));
+		for (int i = 0; i < node_amount; i++) {
+			sorted_original_ids[i] = original_ids[order[i]];
+			sorted_mapped_ids[i] = order[i];
+		}
+	}
+
+	public final int nodeCount() {
+		return node_amount;
+	}
+
+	public abstract int relCount(); // the number of edges in the snapshot
+
+	abstract long sortedOriginalId(int i); // the i-th smallest node id in graphDb
+
+	abstract int sortedMappedId(int i); // the mapped id of the i-th smallest node id in graphDb
+
+	public final int toMappedNodeId(long nodeId) { // return -1 if the node is not in the snapshot
+		int low = 0, high = node_amount - 1;
+		while (low <= high) { // binary search in the sorted node ids
+			int mid = (low + high) >>> 1;
+			long nodeId_mid = sortedOriginalId(mid);
+			if (nodeId_mid < nodeId)
+				low = mid + 1;
+			else if (nodeId_mid > nodeId)
+				high = mid - 1;
+			else
+				return sortedMappedId(mid);
+		}
+		return -1;
+	}
+
+	public final int requireMappedNodeId(long nodeId) { // toMappedNodeId of a query's node, which must be in the snapshot
+		int nodeIdM = toMappedNodeId(nodeId);
+		if (nodeIdM < 0)
+			throw new IllegalArgumentException("Node " + nodeId + " is not in the graph");
+		return nodeIdM;
+	}
+
+	public abstract long toOriginalNodeId(int nodeIdM);
+
+	public abstract int outDegree(int nodeIdM);
+
+	public abstract int outBegin(int nodeIdM); // index of the first out-edge of the node
+
+	public abstract int outEnd(int nodeIdM); // index after the last out-edge of the node
+
+	public abstract int target(int edge); // target node of the out-edge at index edge
+
+	public abstract int inDegree(int nodeIdM);
+
+	public abstract int inBegin(int nodeIdM); // index of the first in-edge of the node
+
+	public abstract int inEnd(int nodeIdM); // index after the last in-edge of the node
+
+	public abstract int source(int edge); // source node of the in-edge at index edge
+
+	public abstract boolean isDangling(int nodeIdM); // whether the node has no out-edge
+
+	// read-only views of the sections for Graph_Snapshot.export
+
+	abstract IntBuffer outOffsets();
+
+	abstract IntBuffer outTargets();
+
+	abstract IntBuffer outDegrees();
+
+	abstract IntBuffer inOffsets();
+
+	abstract IntBuffer inSources();
+
+	abstract LongBuffer danglingBitmap();
+
+	abstract LongBuffer originalIds();
+
+	abstract LongBuffer sortedOriginalIds();
+
+	abstract IntBuffer sortedMappedIds();
+
+	public final long getChecksum() {
+		// CRC32 of the node ids and out-edges, with their sizes, fingerprinting the graph for files derived from it;
+		// computed on the first call, or read from the header of the snapshot the graph is loaded from
+
+		long checksum_t = checksum;
+		if (checksum_t < 0) {
+			CRC32 crc = new CRC32();
+			ByteBuffer buf = ByteBuffer.allocate(CHECKSUM_CHUNK * 8).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(nodeCount()).putInt(relCount());
+			updateInts(crc, buf, outOffsets());
+			updateInts(crc, buf, outTargets());
+			LongBuffer ids = originalIds();
+			while (ids.hasRemaining()) {
+				if (buf.remaining() < 8)
+					flush(crc, buf);
+				buf.putLong(ids.get());
+			}
+			flush(crc, buf);
+			checksum = checksum_t = crc.getValue();
+		}
+		return checksum_t;
+	}
+
+	void setChecksum(long checksum) { // used by Graph_Snapshot, which stores the checksum of the exported graph
+		this.checksum = checksum;
+	}
+
+	private static void updateInts(CRC32 crc, ByteBuffer buf, IntBuffer values) {
+		while (values.hasRemaining()) {
+			if (buf.remaining() < 4)
+				flush(crc, buf);
+			buf.putInt(values.get());
+		}
+	}
+
+	private static void flush(CRC32 crc, ByteBuffer buf) {
+		buf.flip();
+		crc.update(buf);
+		buf.clear();
+	}
+
+	private static final class Array_Graph extends CSR_Graph { // the sections in heap arrays
+		private final int out_offsets[];
+		private final int out_targets[];
+		private final int out_degrees[]; // cached out-degree of each node
+		private final int in_offsets[];
+		private final int in_sources[];
+		private final long dangling[]; // bitmap of the nodes without out-edges
+		private final long original_ids[]; // (mapped node id, node id in graphDb)
+		private final long sorted_original_ids[]; // node ids in graphDb in ascending order
+		private final int sorted_mapped_ids[]; // mapped node ids in the order of sorted_original_ids
+
+		Array_Graph(int node_amount, int out_offsets[], int out_targets[], int out_degrees[], int in_offsets[],
+				int in_sources[], long dangling[], long original_ids[], long sorted_original_ids[],
+				int sorted_mapped_ids[]) {
+			super(node_amount);
+			this.out_offsets = out_offsets;
+			this.out_targets = out_targets;
+			this.out_degrees = out_degrees;
+			this.in_offsets = in_offsets;
+			this.in_sources = in_sources;
+			this.dangling = dangling;
+			this.original_ids = original_ids;
+			this.sorted_original_ids = sorted_original_ids;
+			this.sorted_mapped_ids = sorted_mapped_ids;
+		}
+
+		@Override
+		public int relCount() {
+			return out_targets.length;
+		}
+
+		@Override
+		long sortedOriginalId(int i) {
+			return sorted_original_ids[i];
+		}
+
+		@Override
+		int sortedMappedId(int i) {
+			return sorted_mapped_ids[i];
+		}
+
+		@Override
+		public long toOriginalNodeId(int nodeIdM) {
+			return original_ids[nodeIdM];
+		}
+
+		@Override
+		public int outDegree(int nodeIdM) {
+			return out_degrees[nodeIdM];
+		}
+
+		@Override
+		public int outBegin(int nodeIdM) {
+			return out_offsets[nodeIdM];
+		}
+
+		@Override
+		public int outEnd(int nodeIdM) {
+			return out_offsets[nodeIdM + 1];
+		}
+
+		@Override
+		public int target(int edge) {
+			return out_targets[edge];
+		}
+
+		@Override
+		public int inDegree(int nodeIdM) {
+			return in_offsets[nodeIdM + 1] - in_offsets[nodeIdM];
+		}
+
+		@Override
+		public int inBegin(int nodeIdM) {
+			return in_offsets[nodeIdM];
+		}
+
+		@Override
+		public int inEnd(int nodeIdM) {
+			return in_offsets[nodeIdM + 1];
+		}
+
+		@Override
+		public int source(int edge) {
+			return in_sources[edge];
+		}
+
+		@Override
+		public boolean isDangling(int nodeIdM) {
+			return (dangling[nodeIdM >>> 6] & (1L << nodeIdM)) != 0;
+		}
+
+		@Override
+		IntBuffer outOffsets() {
+			return IntBuffer.wrap(out_offsets).asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer outTargets() {
+			return IntBuffer.wrap(out_targets).asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer outDegrees() {
+			return IntBuffer.wrap(out_degrees).asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer inOffsets() {
+			return IntBuffer.wrap(in_offsets).asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer inSources() {
+			return IntBuffer.wrap(in_sources).asReadOnlyBuffer();
+		}
+
+		@Override
+		LongBuffer danglingBitmap() {
+			return LongBuffer.wrap(dangling).asReadOnlyBuffer();
+		}
+
+		@Override
+		LongBuffer originalIds() {
+			return LongBuffer.wrap(original_ids).asReadOnlyBuffer();
+		}
+
+		@Override
+		LongBuffer sortedOriginalIds() {
+			return LongBuffer.wrap(sorted_original_ids).asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer sortedMappedIds() {
+			return IntBuffer.wrap(sorted_mapped_ids).asReadOnlyBuffer();
+		}
+	}
+
+	private static final class Mapped_Graph extends CSR_Graph { // the sections in read-only views of a mapped file
+		private final IntBuffer out_offsets;
+		private final IntBuffer out_targets;
+		private final IntBuffer out_degrees;
+		private final IntBuffer in_offsets;
+		private final IntBuffer in_sources;
+		private final LongBuffer dangling;
+		private final LongBuffer original_ids;
+		private final LongBuffer sorted_original_ids;
+		private final IntBuffer sorted_mapped_ids;
+
+		Mapped_Graph(int node_amount, IntBuffer out_offsets, IntBuffer out_targets, IntBuffer out_degrees,
+				IntBuffer in_offsets, IntBuffer in_sources, LongBuffer dangling, LongBuffer original_ids,
+				LongBuffer sorted_original_ids, IntBuffer sorted_mapped_ids) {
+			super(node_amount);
+			this.out_offsets = out_offsets;
+			this.out_targets = out_targets;
+			this.out_degrees = out_degrees;
+			this.in_offsets = in_offsets;
+			this.in_sources = in_sources;
+			this.dangling = dangling;
+			this.original_ids = original_ids;
+			this.sorted_original_ids = sorted_original_ids;
+			this.sorted_mapped_ids = sorted_mapped_ids;
+		}
+
+		@Override
+		public int relCount() {
+			return out_targets.capacity();
+		}
+
+		@Override
+		long sortedOriginalId(int i) {
+			return sorted_original_ids.get(i);
+		}
+
+		@Override
+		int sortedMappedId(int i) {
+			return sorted_mapped_ids.get(i);
+		}
+
+		@Override
+		public long toOriginalNodeId(int nodeIdM) {
+			return original_ids.get(nodeIdM);
+		}
+
+		@Override
+		public int outDegree(int nodeIdM) {
+			return out_degrees.get(nodeIdM);
+		}
+
+		@Override
+		public int outBegin(int nodeIdM) {
+			return out_offsets.get(nodeIdM);
+		}
+
+		@Override
+		public int outEnd(int nodeIdM) {
+			return out_offsets.get(nodeIdM + 1);
+		}
+
+		@Override
+		public int target(int edge) {
+			return out_targets.get(edge);
+		}
+
+		@Override
+		public int inDegree(int nodeIdM) {
+			return in_offsets.get(nodeIdM + 1) - in_offsets.get(nodeIdM);
+		}
+
+		@Override
+		public int inBegin(int nodeIdM) {
+			return in_offsets.get(nodeIdM);
+		}
+
+		@Override
+		public int inEnd(int nodeIdM) {
+			return in_offsets.get(nodeIdM + 1);
+		}
+
+		@Override
+		public int source(int edge) {
+			return in_sources.get(edge);
+		}
+
+		@Override
+		public boolean isDangling(int nodeIdM) {
+			return (dangling.get(nodeIdM >>> 6) & (1L << nodeIdM)) != 0;
+		}
+
+		@Override
+		IntBuffer outOffsets() {
+			return out_offsets.asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer outTargets() {
+			return out_targets.asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer outDegrees() {
+			return out_degrees.asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer inOffsets() {
+			return in_offsets.asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer inSources() {
+			return in_sources.asReadOnlyBuffer();
+		}
+
+		@Override
+		LongBuffer danglingBitmap() {
+			return dangling.asReadOnlyBuffer();
+		}
+
+		@Override
+		LongBuffer originalIds() {
+			return original_ids.asReadOnlyBuffer();
+		}
+
+		@Override
+		LongBuffer sortedOriginalIds() {
+			return sorted_original_ids.asReadOnlyBuffer();
+		}
+
+		@Override
+		IntBuffer sortedMappedIds() {
+			return sorted_mapped_ids.asReadOnlyBuffer();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package joezie.fora_neo4j;
+
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.function.LongSupplier;
+
+public class Cached_Topk implements Topk_Util_Interface { // answers repeated top-k queries from a PPR_Result_Cache
+	/* As Cached_Whole_Graph, for top-k queries. The cached results keep
+	 * their pprs only if the algo also has whole-graph results holding them.
+	 */
+
+	private Topk_Util_Interface algo; // the wrapped algo object
+	private String algo_name; // algo part of the cache keys
+	private double alpha;
+	private PPR_Result_Cache cache;
+	private LongSupplier graph_version; // version of the graph algo computes on
+	private PPR_Result_Cache.Result hit_result; // result of the last query if it's a hit, otherwise null
+	private boolean isResultBuilt; // whether topk_nodeIds holds hit_result
+	private Vector<Long> topk_nodeIds; // result of the last hit
+
+	public Cached_Topk(Topk_Util_Interface algo, double alpha, PPR_Result_Cache cache, LongSupplier graph_version) {
+		this.algo = algo;
+		this.alpha = alpha;
+		this.cache = cache;
+		this.graph_version = graph_version;
+		algo_name = algo.getClass().getSimpleName();
+		topk_nodeIds = new Vector<>();
+	}
+
+	@Override
+	public Cached_Topk newWorker() { // the worker of algo, sharing the cache
+		return new Cached_Topk(algo.newWorker(), alpha, cache, graph_version);
+	}
+
+	public Topk_Util_Interface getAlgo() {
+		return algo;
+	}
+
+	public PPR_Result_Cache getCache() {
+		return cache;
+	}
+
+	public boolean isLastHit() { // whether the last query was answered from the cache
+		return hit_result != null;
+	}
+
+	@Override
+	public void computeTopKPPR(Long nodeId_start, int k, Object param) {
+		PPR_Result_Cache.Key key = new PPR_Result_Cache.Key(algo_name, nodeId_start, alpha, param, k);
+		long version = graph_version.getAsLong(); // read before computing, so an update during it makes the result stale
+		isResultBuilt = false;
+		if ((hit_result = cache.get(key, version)) != null)
+			return;
+
+		algo.computeTopKPPR(nodeId_start, k, param);
+		Vector<Long> nodeIds = algo.getTopKNodeIds(k);
+		long nodeIds_t[] = new long[nodeIds.size()];
+		double pprs_t[] = (algo instanceof Whole_Graph_Util_Interface) ? new double[nodeIds.size()] : null;
+		HashMap<Long, Double> pprs = (pprs_t == null) ? null : ((Whole_Graph_Util_Interface)algo).getWholeGraphPPR();
+		for (int i = 0; i < nodeIds_t.length; i++) {
+			nodeIds_t[i] = nodeIds.get(i);
+			Double ppr = (pprs == null) ? null : pprs.get(nodeIds_t[i]);
+			if (ppr == null) // the whole-graph result doesn't hold the top-k, so keep the ids only
+				pprs = null;
+			else
+				pprs_t[i] = ppr;
+		}
+		cache.put(key, new PPR_Result_Cache.Result(nodeIds_t, (pprs == null) ? null : pprs_t), version);
+	}
+
+	@Override
+	public Vector<Long> getTopKNodeIds(int k) { // top-k node ids sorted by ppr; might include more than k nodes
+		if (hit_result == null)
+			return algo.getTopKNodeIds(k);
+		if (!isResultBuilt) {
+			isResultBuilt = true;
+			topk_nodeIds.clear();
+			for (int i = 0; i < hit_result.size(); i++)
+				topk_nodeIds.add(hit_result.nodeIdAt(i));
+		}
+		return topk_nodeIds;
+	}
+
+	@Override
+	public void printTopKResult(int k) {
+		if (hit_result == null) {
+			algo.printTopKResult(k);
+			return;
+		}
+		System.out.println("\n" + algo_name + "-Top" + k + " PPR (cached):");
+		for (int i = 0; i < hit_result.size() && i < k; i++)
+			System.out.println("@" + hit_result.nodeIdAt(i) + (hit_result.hasPPR() ? "\t" + hit_result.pprAt(i) : ""));
+	}
+}
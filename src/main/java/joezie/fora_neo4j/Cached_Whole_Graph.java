@@ -0,0 +1,98 @@
+package joezie.fora_neo4j;
+
+import java.util.HashMap;
+import java.util.function.LongSupplier;
+
+public class Cached_Whole_Graph implements Whole_Graph_Util_Interface { // answers repeated whole-graph queries from a PPR_Result_Cache
+	/* A query found in the cache is answered from it, otherwise the wrapped
+	 * algo computes it and the result is copied into the cache, tagged with
+	 * the version of the graph it's computed on, so that the results of a
+	 * graph updated in place (see Dynamic_Graph) aren't hits anymore. Workers
+	 * share the cache, so a result computed by one worker is a hit for the
+	 * others.
+	 */
+
+	private Whole_Graph_Util_Interface algo; // the wrapped algo object
+	private String algo_name; // algo part of the cache keys
+	private double alpha;
+	private PPR_Result_Cache cache;
+	private LongSupplier graph_version; // version of the graph algo computes on
+	private PPR_Result_Cache.Result hit_result; // result of the last query if it's a hit, otherwise null
+	private boolean isResultBuilt; // whether ppr_result holds hit_result
+	private HashMap<Long, Double> ppr_result; // result of the last hit
+
+	public Cached_Whole_Graph(Whole_Graph_Util_Interface algo, double alpha, PPR_Result_Cache cache, LongSupplier graph_version) {
+		this.algo = algo;
+		this.alpha = alpha;
+		this.cache = cache;
+		this.graph_version = graph_version;
+		algo_name = algo.getClass().getSimpleName();
+		ppr_result = new HashMap<>();
+	}
+
+	@Override
+	public Cached_Whole_Graph newWorker() { // the worker of algo, sharing the cache
+		return new Cached_Whole_Graph(algo.newWorker(), alpha, cache, graph_version);
+	}
+
+	public Whole_Graph_Util_Interface getAlgo() {
+		return algo;
+	}
+
+	public PPR_Result_Cache getCache() {
+		return cache;
+	}
+
+	public boolean isLastHit() { // whether the last query was answered from the cache
+		return hit_result != null;
+	}
+
+	@Override
+	public void computeWholeGraphPPR(Long nodeId_start, Object param) {
+		PPR_Result_Cache.Key key = new PPR_Result_Cache.Key(algo_name, nodeId_start, alpha, param, -1);
+		long version = graph_version.getAsLong(); // read before computing, so an update during it makes the result stale
+		isResultBuilt = false;
+		if ((hit_result = cache.get(key, version)) != null)
+			return;
+
+		algo.computeWholeGraphPPR(nodeId_start, param);
+		HashMap<Long, Double> pprs = algo.getWholeGraphPPR();
+		long nodeIds_t[] = new long[pprs.size()];
+		double pprs_t[] = new double[pprs.size()];
+		int i = 0;
+		for (HashMap.Entry<Long, Double> ppr : pprs.entrySet()) {
+			nodeIds_t[i] = ppr.getKey();
+			pprs_t[i++] = ppr.getValue();
+		}
+		cache.put(key, new PPR_Result_Cache.Result(nodeIds_t, pprs_t), version);
+	}
+
+	@Override
+	public HashMap<Long, Double> getWholeGraphPPR() {
+		if (hit_result == null)
+			return algo.getWholeGraphPPR();
+		if (!isResultBuilt) {
+			isResultBuilt = true;
+			ppr_result.clear();
+			for (int i = 0; i < hit_result.size(); i++)
+				ppr_result.put(hit_result.nodeIdAt(i), hit_result.pprAt(i));
+		}
+		return ppr_result;
+	}
+
+	@Override
+	public void printWholeGraphResult() {
+		if (hit_result == null) {
+			algo.printWholeGraphResult();
+			return;
+		}
+		Topk_Selector selector = new Topk_Selector(); // sort the cached result by ppr
+		selector.begin(hit_result.size());
+		for (int i = 0; i < hit_result.size(); i++)
+			selector.offer(hit_result.nodeIdAt(i), hit_result.pprAt(i));
+		selector.finish();
+		System.out.println(algo_name + " PPR (cached):");
+		for (int i = 0; i < selector.size(); i++)
+			System.out.println("@" + selector.idAt(i) + '\t' + selector.pprAt(i));
+	}
+}
@@ -0,0 +1,401 @@
+package joezie.fora_neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+public class Dynamic_Forward_Push { // Forward Push results of tracked sources, repaired locally as edges change
+	/* For source s, forward push keeps reserve p and residue r with
+	 *   p(v) + alpha * r(v) = alpha * [v = s] + (1 - alpha) * sum_{u -> v} p(u) / |N_out(u)|
+	 * for every node v, where a node without out-edges has s as its only
+	 * out-neighbor. An edge update at u only changes the terms of p(u), so
+	 * the invariant is restored by rescaling p(u) to the new out-degree and
+	 * moving the difference into the residues of u and the changed neighbor
+	 * (r may turn negative). Pushing then brings every |r(v)| / |N_out(v)|
+	 * back under rmax, which costs about as much as the update disturbs,
+	 * instead of a push from scratch. A source is only touched if p(u) != 0.
+	 *
+	 * Sources are tracked when first read, up to max_sources: the source read
+	 * least recently is dropped to make room, so the cost of an update is
+	 * bounded too. Updates come from a TransactionEventHandler registered on
+	 * graphDb, which hands the relationships created and deleted by each
+	 * committed transaction to an updater thread through a bounded queue, so
+	 * the commit only waits when the updater is UPDATE_QUEUE_SIZE transactions
+	 * behind. Like the loaded graph, relationships of any type count. The
+	 * updater applies a transaction at once and reads are serialized on this
+	 * object, so a read sees either all or none of a transaction; a read right
+	 * after a commit may still miss it, unless it calls awaitUpdates() first.
+	 */
+
+	public static final int DEFAULT_MAX_SOURCES = 1024;
+	private static final int UPDATE_QUEUE_SIZE = 1024; // committed transactions waiting for the updater
+	private static final long STOP[][] = new long[2][0]; // put by unregister() to stop the updater
+
+	private Dynamic_Graph graph;
+	private double alpha; // the probability stopped at each node during a random walk
+	private double rmax; // the push threshold of residue per out-edge
+	private LinkedHashMap<Integer, Source_State> states; // (mapped source node id, its reserve & residue), in LRU order
+	private int max_sources; // sources tracked at most
+	private Node_Queue Q; // nodes whose residue still has to be pushed
+	private int queue_capacity; // node amount Q is allocated for
+	private GraphDatabaseService graphDb; // where the handler is registered; null if not registered
+	private Update_Handler handler;
+	private BlockingQueue<long[][]> updates; // (created, deleted) endpoints of the committed transactions
+	private Thread updater; // applies updates; null if not registered
+	private Object register_lock; // serializes register() & unregister(), which wait for the updater without this
+	private AtomicLong committed_amount; // transactions handed to the updater so far
+	private long applied_amount; // transactions applied so far
+	private long update_amount; // edge updates applied so far
+	private long push_amount; // pushes performed by the repairs so far
+
+	private static class Source_State {
+		int nodeIdM_source;
+		Sparse_Vector reserve; // (mapped node id, pi)
+		Sparse_Vector residue; // (mapped node id, r)
+
+		Source_State(int nodeIdM_source) {
+			this.nodeIdM_source = nodeIdM_source;
+			reserve = new Sparse_Vector(16);
+			residue = new Sparse_Vector(16);
+		}
+	}
+
+	public Dynamic_Forward_Push(CSR_Graph csr, double alpha, double rmax) {
+		this(csr, alpha, rmax, DEFAULT_MAX_SOURCES);
+	}
+
+	public Dynamic_Forward_Push(CSR_Graph csr, double alpha, double rmax, int max_sources) {
+		graph = new Dynamic_Graph(csr);
+		this.alpha = alpha;
+		this.rmax = rmax;
+		this.max_sources = max_sources;
+		states = new LinkedHashMap<Integer, Source_State>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Source_State> eldest) {
+				return size() > Dynamic_Forward_Push.this.max_sources;
+			}
+		};
+		queue_capacity = graph.nodeCount();
+		Q = new Node_Queue(queue_capacity);
+		handler = new Update_Handler();
+		updates = new ArrayBlockingQueue<>(UPDATE_QUEUE_SIZE);
+		committed_amount = new AtomicLong();
+		register_lock = new Object();
+	}
+
+	public void register(GraphDatabaseService graphDb) {
+		// apply the edge updates committed to graphDb from now on; graphDb must still hold the graph of csr
+
+		synchronized (register_lock) {
+			unregister();
+			updater = new Thread(this::applyCommitted, "Dynamic_Forward_Push updater");
+			updater.setDaemon(true);
+			updater.start();
+			graphDb.registerTransactionEventHandler(handler);
+			this.graphDb = graphDb;
+		}
+	}
+
+	public void unregister() { // stop following graphDb, once the updates committed so far are applied
+		synchronized (register_lock) {
+			if (graphDb == null)
+				return;
+			graphDb.unregisterTransactionEventHandler(handler);
+			graphDb = null;
+			boolean interrupted = false;
+			boolean isStopPut = false;
+			while (updater.isAlive()) {
+				try {
+					if (!isStopPut) {
+						updates.put(STOP);
+						isStopPut = true;
+					}
+					updater.join();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			updater = null;
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized void awaitUpdates() throws InterruptedException {
+		// wait until the transactions committed so far are applied
+
+		long amount = committed_amount.get();
+		while (applied_amount < amount)
+			wait();
+	}
+
+	public synchronized void readPPR(Long nodeId_start, HashMap<Long, Double> pprs) {
+		// fill pprs with (node id in graphDb, ppr) of the source, tracking the source if it's new
+
+		pprs.clear();
+		Source_State state = track(nodeId_start);
+		if (state == null)
+			return;
+		for (int i = 0; i < state.reserve.size(); i++) {
+			double reserve_t = state.reserve.valueAt(i);
+			if (reserve_t > 0.0) // only the nodes that have pushed have reserve
+				pprs.put(graph.toOriginalNodeId(state.reserve.keyAt(i)), reserve_t);
+		}
+	}
+
+	public synchronized void readPPR(Long nodeId_start, Sparse_Vector pprs) {
+		// fill pprs with (node id mapped by toOriginalNodeId, ppr) of the source, tracking the source if it's new
+
+		pprs.clear();
+		Source_State state = track(nodeId_start);
+		if (state == null)
+			return;
+		for (int i = 0; i < state.reserve.size(); i++) {
+			double reserve_t = state.reserve.valueAt(i);
+			if (reserve_t > 0.0) // only the nodes that have pushed have reserve
+				pprs.put(state.reserve.keyAt(i), reserve_t);
+		}
+	}
+
+	synchronized void readState(Long nodeId_start, HashMap<Long, Double> reserve, HashMap<Long, Double> residue) {
+		// fill reserve & residue with (node id in graphDb, p) & (node id in graphDb, r) of the source, zeros included
+
+		reserve.clear();
+		residue.clear();
+		Source_State state = track(nodeId_start);
+		if (state == null)
+			return;
+		for (int i = 0; i < state.reserve.size(); i++)
+			reserve.put(graph.toOriginalNodeId(state.reserve.keyAt(i)), state.reserve.valueAt(i));
+		for (int i = 0; i < state.residue.size(); i++)
+			residue.put(graph.toOriginalNodeId(state.residue.keyAt(i)), state.residue.valueAt(i));
+	}
+
+	private Source_State track(Long nodeId_start) { // the state of the source, pushed once if it's new; null if unknown
+		int nodeIdM_start = graph.toMappedNodeId(nodeId_start);
+		if (nodeIdM_start < 0) // neither in the snapshot nor in any update
+			return null;
+
+		Source_State state = states.get(nodeIdM_start);
+		if (state == null) { // push from scratch once, then keep it repaired
+			state = new Source_State(nodeIdM_start);
+			state.residue.put(nodeIdM_start, 1.0); // r(s,s) = 1.0
+			enqueue(state, nodeIdM_start);
+			push(state);
+			states.put(nodeIdM_start, state);
+		}
+		return state;
+	}
+
+	public synchronized long toOriginalNodeId(int nodeIdM) { // node id in graphDb of a node read by readPPR
+		return graph.toOriginalNodeId(nodeIdM);
+	}
+
+	public synchronized void untrack(Long nodeId_start) { // stop repairing the results of the source
+		states.remove(graph.toMappedNodeId(nodeId_start));
+	}
+
+	public synchronized int getSourceAmount() { // the number of tracked sources
+		return states.size();
+	}
+
+	public long getGraphVersion() { // version of the graph, advanced by each committed transaction updating it
+		return graph.getVersion();
+	}
+
+	public synchronized long getUpdateAmount() {
+		return update_amount;
+	}
+
+	public synchronized long getPushAmount() {
+		return push_amount;
+	}
+
+	public synchronized void insertEdge(long nodeId_from, long nodeId_to) {
+		int nodeIdM_from = graph.addNode(nodeId_from);
+		int nodeIdM_to = graph.addNode(nodeId_to);
+		int degree = graph.outDegree(nodeIdM_from); // before the insertion
+		graph.addEdge(nodeIdM_from, nodeIdM_to);
+		update_amount++;
+		if (graph.nodeCount() > queue_capacity) { // nodes are added since Q was allocated
+			queue_capacity = graph.nodeCount() * 2;
+			Q = new Node_Queue(queue_capacity); // Q is empty between updates
+		}
+
+		for (Source_State state : states.values()) {
+			double reserve_from = state.reserve.get(nodeIdM_from);
+			if (reserve_from == 0.0) // no walk of the source has reached the node yet
+				continue;
+
+			if (degree == 0) { // the walks used to go back to the source, now they go to the new neighbor
+				double moved = (1.0 - alpha) * reserve_from / alpha;
+				state.residue.add(state.nodeIdM_source, -moved);
+				state.residue.add(nodeIdM_to, moved);
+			}
+			else { // p(u) / |N_out(u)| stays the same for the old neighbors
+				state.reserve.put(nodeIdM_from, reserve_from * (degree + 1) / degree);
+				state.residue.add(nodeIdM_from, -reserve_from / (alpha * degree));
+				state.residue.add(nodeIdM_to, (1.0 - alpha) * reserve_from / (alpha * degree));
+			}
+			enqueue(state, nodeIdM_from);
+			enqueue(state, nodeIdM_to);
+			enqueue(state, state.nodeIdM_source);
+			push(state);
+		}
+	}
+
+	public synchronized void deleteEdge(long nodeId_from, long nodeId_to) {
+		int nodeIdM_from = graph.toMappedNodeId(nodeId_from);
+		int nodeIdM_to = graph.toMappedNodeId(nodeId_to);
+		if (nodeIdM_from < 0 || nodeIdM_to < 0 || !graph.removeEdge(nodeIdM_from, nodeIdM_to))
+			return; // not in the graph, e.g. created before the snapshot was loaded and deleted since
+		int degree = graph.outDegree(nodeIdM_from) + 1; // before the deletion
+		update_amount++;
+
+		for (Source_State state : states.values()) {
+			double reserve_from = state.reserve.get(nodeIdM_from);
+			if (reserve_from == 0.0)
+				continue;
+
+			if (degree == 1) { // the walks now go back to the source instead of the old neighbor
+				double moved = (1.0 - alpha) * reserve_from / alpha;
+				state.residue.add(nodeIdM_to, -moved);
+				state.residue.add(state.nodeIdM_source, moved);
+			}
+			else { // p(u) / |N_out(u)| stays the same for the remaining neighbors
+				state.reserve.put(nodeIdM_from, reserve_from * (degree - 1) / degree);
+				state.residue.add(nodeIdM_from, reserve_from / (alpha * degree));
+				state.residue.add(nodeIdM_to, -(1.0 - alpha) * reserve_from / (alpha * degree));
+			}
+			enqueue(state, nodeIdM_from);
+			enqueue(state, nodeIdM_to);
+			enqueue(state, state.nodeIdM_source);
+			push(state);
+		}
+	}
+
+	private void enqueue(Source_State state, int nodeIdM) { // add the node into Q if its residue should be pushed
+		double residue_t = state.residue.get(nodeIdM);
+		int out_degree = graph.outDegree(nodeIdM);
+		if (out_degree == 0 ? residue_t != 0.0 : Math.abs(residue_t) / out_degree >= rmax)
+			Q.offer(nodeIdM); // ignored if it's in Q currently
+	}
+
+	private void push(Source_State state) {
+		// forward push the nodes in Q until every node v satisfies |r(s,v)| / |N_out(v)| < rmax
+
+		int nodeIdM_start = state.nodeIdM_source;
+		while (!Q.isEmpty()) {
+			int nodeIdM_cur = Q.poll();
+			double residue_cur = state.residue.get(nodeIdM_cur);
+			if (residue_cur == 0.0)
+				continue;
+			state.residue.put(nodeIdM_cur, 0.0); // r(s,v)=0
+			push_amount++;
+
+			int out_degree_cur = graph.outDegree(nodeIdM_cur);
+			if (out_degree_cur == 0) {
+				if (nodeIdM_cur == nodeIdM_start) { // the residue keeps coming back to s, so all of it stays
+					state.reserve.add(nodeIdM_cur, residue_cur);
+					continue;
+				}
+				// no out neighbor, then consider start node as its only neighbor
+				state.reserve.add(nodeIdM_cur, residue_cur * alpha);
+				state.residue.add(nodeIdM_start, residue_cur * (1.0 - alpha));
+				enqueue(state, nodeIdM_start);
+				continue;
+			}
+
+			state.reserve.add(nodeIdM_cur, residue_cur * alpha); // pi(s,v) = pi(s,v) + alpha * r(s,v)
+			double avg_push_residue = ((1.0 - alpha) * residue_cur) / (double)out_degree_cur;
+			for (int i = 0; i < out_degree_cur; i++) {
+				int nodeIdM_next = graph.target(nodeIdM_cur, i);
+				state.residue.add(nodeIdM_next, avg_push_residue);
+				//r(s,u) = r(s,u) + (1 - alpha) * r(s,v) / |N_out(v)|
+				enqueue(state, nodeIdM_next);
+			}
+		}
+	}
+
+	private synchronized void applyUpdates(long updates[][]) { // insert the created edges, then delete the deleted ones
+		for (int i = 0; i < updates[0].length; i += 2)
+			insertEdge(updates[0][i], updates[0][i + 1]);
+		for (int i = 0; i < updates[1].length; i += 2)
+			deleteEdge(updates[1][i], updates[1][i + 1]);
+		graph.advanceVersion();
+		applied_amount++;
+		notifyAll();
+	}
+
+	private void applyCommitted() { // the updater: apply the committed transactions in order until STOP
+		while (true) {
+			long updates_t[][];
+			try {
+				updates_t = updates.take();
+			}
+			catch (InterruptedException e) { // only unregister() stops the updater
+				continue;
+			}
+			if (updates_t == STOP)
+				return;
+			applyUpdates(updates_t);
+		}
+	}
+
+	private static long[] endpoints(Iterable<Relationship> rels) { // (start node id, end node id) of each relationship
+		List<Long> ids = new ArrayList<>();
+		for (Relationship rel : rels) {
+			ids.add(rel.getStartNodeId());
+			ids.add(rel.getEndNodeId());
+		}
+		long ret[] = new long[ids.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = ids.get(i);
+		return ret;
+	}
+
+	private class Update_Handler implements TransactionEventHandler<long[][]> {
+		@Override
+		public long[][] beforeCommit(TransactionData data) throws Exception {
+			// collect the endpoints while the deleted relationships can still be read
+
+			long updates[][] = { endpoints(data.createdRelationships()), endpoints(data.deletedRelationships()) };
+			return (updates[0].length == 0 && updates[1].length == 0) ? null : updates;
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, long updates_t[][]) {
+			if (updates_t == null)
+				return;
+			committed_amount.incrementAndGet();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					updates.put(updates_t); // waits only while the updater is far behind
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		@Override
+		public void afterRollback(TransactionData data, long updates_t[][]) {
+			// nothing is applied before the commit
+		}
+	}
+}
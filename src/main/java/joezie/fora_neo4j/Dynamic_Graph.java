@@ -0,0 +1,114 @@
+package joezie.fora_neo4j;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Dynamic_Graph { // mutable out-adjacency on mapped node ids, seeded from a CSR_Graph
+	/* Nodes of the snapshot keep their mapped ids, and a node first seen
+	 * in an update gets the next free mapped id. Each node owns its array
+	 * of out-edges, so inserting or deleting an edge costs O(out-degree) at
+	 * most. Parallel edges are kept, as in the snapshot, and deleting an edge
+	 * removes one of them. Not thread-safe: the caller serializes updates.
+	 * The version, which results computed on the graph can be tagged with,
+	 * is advanced by the caller after each batch of updates and can be read
+	 * from any thread.
+	 */
+
+	private CSR_Graph csr; // the snapshot the graph starts from
+	private int node_amount;
+	private int targets[][]; // out-edges of each node; only the first degrees[v] are valid
+	private int degrees[];
+	private long original_ids[]; // (mapped node id, node id in graphDb) of the added nodes, after csr's
+	private HashMap<Long, Integer> added_ids; // (node id in graphDb, mapped node id) of the added nodes
+	private AtomicLong version; // advanced after each batch of updates
+
+	public Dynamic_Graph(CSR_Graph csr) {
+		this.csr = csr;
+		node_amount = csr.nodeCount();
+		targets = new int[Math.max(node_amount, 16)][];
+		degrees = new int[targets.length];
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++) {
+			int degree = csr.outDegree(nodeIdM);
+			targets[nodeIdM] = new int[degree];
+			for (int i = 0; i < degree; i++)
+				targets[nodeIdM][i] = csr.target(csr.outBegin(nodeIdM) + i);
+			degrees[nodeIdM] = degree;
+		}
+		original_ids = new long[16];
+		added_ids = new HashMap<>();
+		version = new AtomicLong();
+	}
+
+	public long getVersion() {
+		return version.get();
+	}
+
+	public void advanceVersion() { // results computed on the graph before are stale
+		version.incrementAndGet();
+	}
+
+	public int nodeCount() {
+		return node_amount;
+	}
+
+	public int toMappedNodeId(long nodeId) { // return -1 if the node is neither in csr nor added
+		int nodeIdM = csr.toMappedNodeId(nodeId);
+		if (nodeIdM >= 0)
+			return nodeIdM;
+		Integer nodeIdM_added = added_ids.get(nodeId);
+		return (nodeIdM_added == null) ? -1 : nodeIdM_added;
+	}
+
+	public long toOriginalNodeId(int nodeIdM) {
+		return (nodeIdM < csr.nodeCount()) ? csr.toOriginalNodeId(nodeIdM) : original_ids[nodeIdM - csr.nodeCount()];
+	}
+
+	public int addNode(long nodeId) { // return the mapped id of the node, adding it if it's new
+		int nodeIdM = toMappedNodeId(nodeId);
+		if (nodeIdM >= 0)
+			return nodeIdM;
+
+		nodeIdM = node_amount++;
+		if (nodeIdM == targets.length) {
+			targets = Arrays.copyOf(targets, nodeIdM * 2);
+			degrees = Arrays.copyOf(degrees, nodeIdM * 2);
+		}
+		targets[nodeIdM] = new int[0];
+		int added = nodeIdM - csr.nodeCount();
+		if (added == original_ids.length)
+			original_ids = Arrays.copyOf(original_ids, added * 2);
+		original_ids[added] = nodeId;
+		added_ids.put(nodeId, nodeIdM);
+		return nodeIdM;
+	}
+
+	public int outDegree(int nodeIdM) {
+		return degrees[nodeIdM];
+	}
+
+	public int target(int nodeIdM, int i) { // ith out-neighbor of the node, i < outDegree(nodeIdM)
+		return targets[nodeIdM][i];
+	}
+
+	public void addEdge(int nodeIdM_from, int nodeIdM_to) {
+		int degree = degrees[nodeIdM_from];
+		if (degree == targets[nodeIdM_from].length)
+			targets[nodeIdM_from] = Arrays.copyOf(targets[nodeIdM_from], Math.max(degree * 2, 4));
+		targets[nodeIdM_from][degree] = nodeIdM_to;
+		degrees[nodeIdM_from]++;
+	}
+
+	public boolean removeEdge(int nodeIdM_from, int nodeIdM_to) { // return false if there's no such edge
+		int out[] = targets[nodeIdM_from];
+		int last = degrees[nodeIdM_from] - 1;
+		for (int i = last; i >= 0; i--) {
+			if (out[i] == nodeIdM_to) {
+				out[i] = out[last]; // the order of out-edges doesn't matter to forward push
+				degrees[nodeIdM_from]--;
+				return true;
+			}
+		}
+		return false;
+	}
+}
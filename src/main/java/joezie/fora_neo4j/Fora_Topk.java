@@ -6,12 +6,8 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.neo4j.graphalgo.api.Graph;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -21,10 +17,10 @@ import org.neo4j.register.Register.Int;
 public class Fora_Topk extends Algo_Util implements Topk_Util_Interface { // FORA algorithm in top-k query
 	private GraphDatabaseService graphDb;
 	private String dir_db;
-	Graph adjM; // adjacency matrix of the graph	
-	private HashMap<Long, Double> residue; // propagated value, i.e r
-	private HashMap<Long, Double> reserve; // stored value, i.e pi
-	private HashMap<Long, Double> topk_res; // top-k ppr result
+	CSR_Graph csr; // CSR snapshot of the adjacency matrix
+	private Sparse_Vector reserve; // (mapped node id, stored value, i.e pi)
+	private Topk_Selector topk_selector; // top-k ppr result sorted by ppr
+	private boolean isTopkSelected; // whether topk_selector holds the top-k of reserve
 	private Vector<Long> topk_nodeIds; // top-k node ids sorted by ppr
 	private int node_amount; // the total number of nodes in the graph
 	private int rel_amount; // the total number of nodes in the graph
@@ -34,17 +30,22 @@ public class Fora_Topk extends Algo_Util implements Topk_Util_Interface { // FOR
 	private Double delta; // the reserve(pi) threshold
 	private Double min_delta; // the minimum reserve(pi) threshold
 	private int k;
+	private Push_Engine fp_engine; // forward push section, reused by every query
+	private Monte_Carlo mc_section; // random walk section
+	private Walk_Index walk_index; // precomputed walks used instead of online ones; null if not used
+	private Query_Metrics metrics;
+	private Query_Metrics.Sample sample; // counts of the last query
 	
 	public Fora_Topk(Double alpha, Double rsum, Double pfail, Double delta, 
 			int node_amount, int rel_amount, GraphDatabaseService graphDb, Double min_delta, 
-			int k, Graph adjM, String node_property, String dir_db) {
+			int k, CSR_Graph csr, String node_property, String dir_db) {
 		super(node_property);
 		this.graphDb = graphDb;
 		this.dir_db = dir_db;
-		this.adjM = adjM;
-		residue = new HashMap<>();
-		reserve = new HashMap<>();
-		topk_res = new HashMap<>();
+		this.csr = csr;
+		reserve = new Sparse_Vector(16);
+		topk_selector = new Topk_Selector();
+		isTopkSelected = false;
 		topk_nodeIds = new Vector<>();
 		this.node_amount = node_amount;
 		this.rel_amount = rel_amount;
@@ -54,28 +55,30 @@ public class Fora_Topk extends Algo_Util implements Topk_Util_Interface { // FOR
 		this.delta = delta;
 		this.min_delta = min_delta;
 		this.k = k;
+		fp_engine = new Push_Engine(csr, node_amount, alpha);
+		mc_section = new Monte_Carlo(alpha, node_amount, graphDb, pfail, delta, csr, node_property, dir_db);
+		metrics = Query_Metrics.of("Fora_Topk");
+		sample = new Query_Metrics.Sample();
+	}
+	
+	@Override
+	public Fora_Topk newWorker() { // same configuration, own push engine & random walk section
+		Fora_Topk worker = new Fora_Topk(alpha, rsum, pfail, delta, node_amount, rel_amount, graphDb, min_delta,
+				k, csr, node_property, dir_db);
+		worker.setWalkIndex(walk_index);
+		return worker;
+	}
+	
+	public void setWalkIndex(Walk_Index walk_index) {
+		this.walk_index = walk_index;
 	}
 	
 	@Override
 	public void printTopKResult(int dummy) {
-		if (topk_res.isEmpty())
-			retrieveTopK(k);
-		
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		int count = 0;
+		retrieveTopK(k);
 		System.out.println("\nFora-Top" + k + " PPR:");
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) {
-			if (count >= k) // we need to count since the size of topk_reserves might be greater than k
-				break;
-			count++;
-			System.out.println("@" + getNodeName(topk_res_list_t.getKey(), graphDb) + '\t' + topk_res_list_t.getValue());
-		}
+		for (int i = 0; i < topk_selector.size() && i < k; i++) // there might be more than k selected nodes
+			System.out.println("@" + getNodeName(topk_selector.idAt(i), graphDb) + '\t' + topk_selector.pprAt(i));
 	}
 	
 	@Override
@@ -83,27 +86,18 @@ public class Fora_Topk extends Algo_Util implements Topk_Util_Interface { // FOR
 		if (!topk_nodeIds.isEmpty()) // topk_node_ids is already set, then no need to compute again 
 			return topk_nodeIds;
 		
-		if (topk_res.isEmpty())
-			retrieveTopK(k);
-		
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) // store node ids in topk_node_ids after sorting
-			topk_nodeIds.add(topk_res_list_t.getKey());
+		retrieveTopK(k);
+		for (int i = 0; i < topk_selector.size(); i++) // the selected nodes are already sorted by ppr
+			topk_nodeIds.add(topk_selector.idAt(i));
 		return topk_nodeIds;
 	}
 
 	@Override
 	public void computeTopKPPR(Long nodeId_start, int dummy, Object eps) {
+		long startTime_query = System.nanoTime();
 		// clear results of last call
-		residue.clear();
 		reserve.clear();
-		topk_res.clear();
+		isTopkSelected = false;
 		topk_nodeIds.clear();
 
 		Double epsilon = (Double)eps;
@@ -114,63 +108,85 @@ public class Fora_Topk extends Algo_Util implements Topk_Util_Interface { // FOR
 				rsum_local = rsum;
 
 		long startTime = 0, endTime = 0, duration_fwdpush = 0, duration_random = 0;
-		Queue<Long> Q = new ConcurrentLinkedQueue<>();
-		Q.offer(nodeId_start);
+		long walk_amount = 0, walk_steps = 0;
+		long push_amount = fp_engine.getPushAmount(), edge_amount = fp_engine.getEdgeAmount();
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		fp_engine.reset();
+		fp_engine.load_queue(nodeIdM_start); // Q = {s}
 		boolean isFirstPwdpush = true; // mark the first forward push
 		int round = 0;
-		Forward_Push fp_section = new Forward_Push(alpha, rsum_local, node_amount, graphDb, adjM, node_property, dir_db);
 
 		while (delta_local >= min_delta) {
 			Double rmax_local = epsilon * Math.sqrt(delta_local / 3.0 / (double)rel_amount / Math.log(2.0 / pfail));
 			omega_local = (epsilon + 2.0) * Math.log(2.0 / pfail) / epsilon / epsilon / delta_local;
-			int nodeIdM_start = adjM.toMappedNodeId(nodeId_start); // start node id in adjacency matrix
-			int out_degree_start = adjM.degree(nodeIdM_start, Direction.OUTGOING);
+			int out_degree_start = csr.outDegree(nodeIdM_start);
 			if (out_degree_start == 0) { // terminate if start node's out degree is 0
-				reserve.put(nodeId_start, 1.0);
+				reserve.put(nodeIdM_start, 1.0);
 				rsum_local = 0.0;
 				break;
 			}
 			rmax_local *= Math.sqrt((double)rel_amount * rmax_local) * 3.0;
+			round++;
 
 			// part 1: perform forward push
-			startTime = System.nanoTime()
-			fp_section.forward_push_topk(nodeId_start, Q, min_rmax, isFirstPwdpush, rmax_local);
+			startTime = System.nanoTime();
+			if (!isFirstPwdpush)
+				fp_engine.load_next_queue(); // Q = Q_next of the last round
+			rsum_local = fp_engine.push_topk(nodeIdM_start, min_rmax, isFirstPwdpush, rmax_local);
 			endTime = System.nanoTime();
 			duration_fwdpush += (endTime - startTime);
 
 			isFirstPwdpush = false;
-			rsum_local = fp_section.getUpdatedRsum();
-			reserve = fp_section.getReserveCopy();
-			residue = fp_section.getResidueCopy();
-			Q = fp_section.getNextQueueCopy(); // update Q
+			reserve.clear(); // start from the reserve of forward push
+			for (int i = 0; i < fp_engine.getTouchedSize(); i++) {
+				int nodeIdM_i = fp_engine.getTouched(i);
+				double reserve_i = fp_engine.getReserve(nodeIdM_i);
+				if (reserve_i > 0.0)
+					reserve.put(nodeIdM_i, reserve_i);
+			}
 
 			// part 2: perform random walks
 			Double rsum_random_walk = rsum_local * (1.0 - alpha); //rsum used by random walk
-
-			Monte_Carlo mc_section = new Monte_Carlo(alpha, node_amount, graphDb, pfail, delta_local, adjM, node_property, dir_db);
 			long num_random_walk = (long)(omega_local * rsum_random_walk);
 
-
 			startTime = System.nanoTime();
-			for (Map.Entry<Long, Double> entry : residue.entrySet()) { // perform random walk from each v_i for omega_i times
-				Long nodeId_cur = entry.getKey();
-				Double residue_cur = entry.getValue();
+			for (int i = 0; i < fp_engine.getTouchedSize(); i++) { // perform random walk from each v_i for omega_i times
+				int nodeIdM_cur = fp_engine.getTouched(i);
+				double residue_cur = fp_engine.getResidue(nodeIdM_cur);
+				if (residue_cur == 0.0) // no random walk from this node
+					continue;
 				long omega_i = (long)Math.ceil(residue_cur * (double)num_random_walk);
-				Double a_i = residue_cur * (double)num_random_walk / (double)omega_i;
-				Double reserve_incr = a_i / (double)num_random_walk;
+				if (walk_index != null) {
+					// a walk stops at once with probability alpha, so give alpha * r(s,v) to v directly
+					// and spread the rest over walks without zero hop, read from the index first
+					reserve.add(nodeIdM_cur, residue_cur * alpha);
+					long omega_hop = (long)Math.ceil(omega_i * (1.0 - alpha));
+					double reserve_incr = residue_cur * (1.0 - alpha) / (double)omega_hop;
+					long omega_indexed = Math.min(omega_hop, walk_index.walkCount(nodeIdM_cur));
+					for (int j = 0; j < omega_indexed; j++)
+						reserve.add(walk_index.destination(nodeIdM_cur, j), reserve_incr);
+					for (long j = omega_indexed; j < omega_hop; j++) {
+						long walk = mc_section.walk_mapped(nodeIdM_cur, false);
+						reserve.add(Monte_Carlo.finalNode(walk), reserve_incr);
+						walk_steps += Monte_Carlo.stepAmount(walk);
+					}
+					walk_amount += omega_hop;
+					continue;
+				}
+				double a_i = residue_cur * (double)num_random_walk / (double)omega_i;
+				double reserve_incr = a_i / (double)num_random_walk;
 				for (long j = 0; j < omega_i; j++) {
-					Long nodeId_dest = mc_section.random_walk(nodeId_cur);
-					Double old_reserve_dest = reserve.get(nodeId_dest);
-					if (old_reserve_dest == null)
-						old_reserve_dest = 0.0;
-					reserve.put(nodeId_dest, old_reserve_dest + reserve_incr);
+					long walk = mc_section.walk_mapped(nodeIdM_cur, true);
+					reserve.add(Monte_Carlo.finalNode(walk), reserve_incr);
+					walk_steps += Monte_Carlo.stepAmount(walk);
 				}
+				walk_amount += omega_i;
 			}
 			endTime = System.nanoTime();
 			duration_random += (endTime - startTime);
 
 			// part 3: check termination conditions
-			Double kth_ppr_score = kth_ppr(reserve.values().toArray(), k);
+			Double kth_ppr_score = kth_ppr(reserve, k);
 			kth_ppr_score = (kth_ppr_score == null) ? 0.0 : kth_ppr_score;
 			if (kth_ppr_score >= (1 + epsilon) * delta_local || delta_local <= min_delta)
 				break;
@@ -178,23 +194,25 @@ public class Fora_Topk extends Algo_Util implements Topk_Util_Interface { // FOR
 				delta_local = Math.max(min_delta, delta_local / 4.0); // divide faster: divided by 4 instead of 2
 		}
 
-		//performance info:
-		//System.out.println("Finish forward push in " + duration_fwdpush / 1000000 + "(ms)");
-		//System.out.println("Finish random walk in " + duration_random / 1000000 + "(ms)");
+		// performance info
+		sample.clear();
+		sample.latency_ns = System.nanoTime() - startTime_query;
+		sample.push_ns = duration_fwdpush;
+		sample.walk_ns = duration_random;
+		sample.pushes = fp_engine.getPushAmount() - push_amount;
+		sample.edges = fp_engine.getEdgeAmount() - edge_amount;
+		sample.walks = walk_amount;
+		sample.walk_steps = walk_steps;
+		sample.frontier_peak = fp_engine.getQueuePeak();
+		sample.rounds = round;
+		metrics.record(sample);
 	}
 	
-	private void retrieveTopK(int k) { // retrieve top-k results from whole-graph ppr results and store in topk_res
-		Double kth_reserve = kth_ppr(reserve.values().toArray(), k); // find the kth ppr
-		if (kth_reserve == null) { // there might be less than k results, so we copy all of them to topk_res
-			topk_res = new HashMap<>(reserve);
+	private void retrieveTopK(int k) { // select top-k results from whole-graph ppr results into topk_selector
+		if (isTopkSelected)
 			return;
-		}
-			
-		for (Map.Entry<Long, Double> reserve_t : reserve.entrySet()) {
-			// find the pprs not smaller than the kth ppr, so it's possible that
-			// the size of topk_res is greater than k
-			if (reserve_t.getValue() >= kth_reserve)
-				topk_res.put(reserve_t.getKey(), reserve_t.getValue());
-		}
+		isTopkSelected = true;
+		
+		topk_selector.select(reserve, csr::toOriginalNodeId, k);
 	}
 }
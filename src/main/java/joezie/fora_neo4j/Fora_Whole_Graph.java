@@ -11,9 +11,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.io.FileUtils;
-import org.neo4j.graphalgo.api.Graph;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -23,9 +23,10 @@ import org.neo4j.register.Register.Int;
 public class Fora_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Interface, Preprocessing_Interface { // FORA algorithm in whole graph query
 	private GraphDatabaseService graphDb;
 	private String dir_db;
-	Graph adjM; // adjacency matrix of the graph	
-	private HashMap<Long, Double> residue; // propagated value, i.e r
-	private HashMap<Long, Double> reserve; // stored value, i.e pi
+	CSR_Graph csr; // CSR snapshot of the adjacency matrix
+	private HashMap<Long, Double> reserve; // stored value, i.e pi; built from reserve_vec when requested
+	private Sparse_Vector reserve_vec; // (mapped node id, pi) of the last query
+	private boolean isResultBuilt; // whether reserve holds the result of the last query
 	private int node_amount; // the total number of nodes in the graph
 	private int rel_amount; // the total number of edges in the graph
 	private Double alpha; // the probability stopped at each node during a random walk
@@ -34,15 +35,25 @@ public class Fora_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 	private Double delta; // the reserve(pi) threshold
 	private static final Double avg_rand_walk_time = 400.0; // 400(ns)
 	private String preprocessing_dirName;
+	private PPR_Index ppr_index; // mapped preprocessed results; loaded on the first read
+	private PPR_Records prep_records; // records of a source read from ppr_index
+	private int prep_score_bits; // bits per stored ppr in preprocessing; 0 to store exact pprs
+	private ForkJoinPool pool; // pool computing the sources of preprocessing; null for serial mode
+	private Push_Engine fp_engine; // forward push section, reused by every query
+	private Monte_Carlo mc_section; // random walk section
+	private Walk_Index walk_index; // precomputed walks used instead of online ones; null if not used
+	private Query_Metrics metrics;
+	private Query_Metrics.Sample sample; // counts of the last query
 	
 	public Fora_Whole_Graph(Double alpha, Double rsum, Double pfail, Double delta, int node_amount, int rel_amount,
-			GraphDatabaseService graphDb, Graph adjM, String node_property, String dir_db) {
+			GraphDatabaseService graphDb, CSR_Graph csr, String node_property, String dir_db) {
 		super(node_property);
 		this.graphDb = graphDb;
 		this.dir_db = dir_db;
-		this.adjM = adjM;
-		residue = new HashMap<>();
+		this.csr = csr;
 		reserve = new HashMap<>();
+		reserve_vec = new Sparse_Vector(16);
+		isResultBuilt = true;
 		this.node_amount = node_amount;
 		this.rel_amount = rel_amount;
 		this.alpha = alpha;
@@ -50,10 +61,36 @@ public class Fora_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 		this.pfail = pfail;
 		this.delta = delta;
 		preprocessing_dirName = "FORA_ppr_results/" + dir_db;
+		prep_records = new PPR_Records();
+		fp_engine = new Push_Engine(csr, node_amount, alpha);
+		mc_section = new Monte_Carlo(alpha, node_amount, graphDb, pfail, delta, csr, node_property, dir_db);
+		metrics = Query_Metrics.of("Fora_Whole_Graph");
+		sample = new Query_Metrics.Sample();
+	}
+	
+	@Override
+	public Fora_Whole_Graph newWorker() { // same configuration, own push engine & random walk section
+		Fora_Whole_Graph worker = new Fora_Whole_Graph(alpha, rsum, pfail, delta, node_amount, rel_amount, graphDb,
+				csr, node_property, dir_db);
+		worker.preprocessing_dirName = preprocessing_dirName;
+		worker.ppr_index = ppr_index;
+		worker.prep_score_bits = prep_score_bits;
+		worker.setWalkIndex(walk_index);
+		worker.setPool(pool);
+		return worker;
+	}
+	
+	public void setPool(ForkJoinPool pool) { // compute the sources of preprocessing in pool, or serially if pool is null
+		this.pool = pool;
+	}
+	
+	public void setWalkIndex(Walk_Index walk_index) {
+		this.walk_index = walk_index;
 	}
 	
 	@Override
 	public void printWholeGraphResult() {
+		buildResult();
 		List<Map.Entry<Long, Double>> reserve_list = new ArrayList<Map.Entry<Long, Double>>(reserve.entrySet());
 		reserve_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
 			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
@@ -69,9 +106,18 @@ public class Fora_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 	
 	@Override
 	public HashMap<Long, Double> getWholeGraphPPR() { // return the reference of reserve
+		buildResult();
 		return reserve;
 	}
 	
+	private void buildResult() { // convert reserve_vec to original node ids
+		if (isResultBuilt)
+			return;
+		isResultBuilt = true;
+		for (int i = 0; i < reserve_vec.size(); i++)
+			reserve.put(csr.toOriginalNodeId(reserve_vec.keyAt(i)), reserve_vec.valueAt(i));
+	}
+	
 	private Double computeEstRandWalkTime(Double rsum_local, Double omega_local) { 
 		// compute estimated time (ns) for omega times random walks
 		
@@ -80,152 +126,150 @@ public class Fora_Whole_Graph extends Algo_Util implements Whole_Graph_Util_Inte
 	
 	@Override
 	public void computeWholeGraphPPR(Long nodeId_start, Object epsilon) {
-		residue.clear();
+		long startTime_query = System.nanoTime();
 		reserve.clear();
+		reserve_vec.clear();
+		isResultBuilt = false;
 		Double rsum_local = rsum, 
 				rmax_local = (Double)epsilon * Math.sqrt(delta / 3.0 / (double)rel_amount / Math.log(2.0 / pfail)) / (1.0 - alpha),
 				omega_local = ((Double)epsilon + 2.0) * Math.log(2.0 / pfail) / (Double)epsilon / (Double)epsilon / delta;
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
 		
 		long startTime = 0, endTime = 0, duration_fwdpush = 0, duration_random = 0;
+		long push_amount = fp_engine.getPushAmount(), edge_amount = fp_engine.getEdgeAmount();
+		long walk_amount = 0, walk_steps = 0;
+		int round = 0, queue_peak = 0;
+		// walks are cheap to read, so a single push with the rmax the index is sized for is balanced; an index sized
+		// for another epsilon covers few of the walks, which then run online and need the adaptive rounds
+		boolean isIndexSized = (walk_index != null) && walk_index.isSizedFor(alpha, rmax_local, omega_local);
         
 		// part 1: perform forward push
-		Forward_Push fp_section = null;
 		while (duration_fwdpush < computeEstRandWalkTime(rsum_local, omega_local)) {
-			fp_section = new Forward_Push(alpha, 1.0, node_amount, graphDb, adjM, node_property, dir_db);
-		
 			startTime = System.nanoTime();
-			fp_section.computeWholeGraphPPR(nodeId_start, rmax_local);
+			rsum_local = fp_engine.push_whole_graph(nodeIdM_start, rmax_local);
 			endTime = System.nanoTime();
 			duration_fwdpush += (endTime - startTime);
+			round++;
+			queue_peak = Math.max(queue_peak, fp_engine.getQueuePeak());
 		
-			rsum_local = fp_section.getUpdatedRsum() * (1 - alpha);
+			rsum_local *= (1 - alpha);
 			rmax_local /= 2.0;
+			if (isIndexSized)
+				break;
 		}
-
-		// performance info:
-		//System.out.println("\nFinish forward push in " + duration_fwdpush / 1000000 + "(ms)");
 		
-		reserve = fp_section.getReserveCopy();
-		residue = fp_section.getResidueCopy();
+		for (int i = 0; i < fp_engine.getTouchedSize(); i++) { // start from the reserve of forward push
+			int nodeIdM_i = fp_engine.getTouched(i);
+			double reserve_i = fp_engine.getReserve(nodeIdM_i);
+			if (reserve_i > 0.0)
+				reserve_vec.put(nodeIdM_i, reserve_i);
+		}
 		
 		// part 2: perform random walks
-		Monte_Carlo mc_section = new Monte_Carlo(alpha, node_amount, graphDb, pfail, delta, 
-				adjM, node_property, dir_db);
-		
-		
 		long num_random_walk = (long)(omega_local * rsum_local);
 		
 		startTime = System.nanoTime();
-		for (Map.Entry<Long, Double> entry : residue.entrySet()) { // perform random walk from each v_i for omega_i times
-			Long nodeId_cur = entry.getKey();
-			Double residue_cur = entry.getValue();
-			Double reserve_incr_cur = residue_cur * alpha; // transfer part of residue to reserve
+		for (int i = 0; i < fp_engine.getTouchedSize(); i++) { // perform random walk from each v_i for omega_i times
+			int nodeIdM_cur = fp_engine.getTouched(i);
+			double residue_cur = fp_engine.getResidue(nodeIdM_cur);
+			if (residue_cur == 0.0) // nothing to transfer
+				continue;
+			double reserve_incr_cur = residue_cur * alpha; // transfer part of residue to reserve
 			residue_cur *= (1.0 - alpha); // update residue_cur
-			Double old_reserve_cur = reserve.get(nodeId_cur);
-			if (old_reserve_cur == null)
-				old_reserve_cur = 0.0;
-			reserve.put(nodeId_cur, old_reserve_cur + reserve_incr_cur);
+			reserve_vec.add(nodeIdM_cur, reserve_incr_cur);
 
 			long omega_i = (long)Math.ceil(residue_cur / rsum_local * (double)num_random_walk);
-			Double a_i = residue_cur / rsum_local * (double)num_random_walk / (double)omega_i;
-			Double reserve_incr = a_i / (double)num_random_walk * rsum_local;
+			double a_i = residue_cur / rsum_local * (double)num_random_walk / (double)omega_i;
+			double reserve_incr = a_i / (double)num_random_walk * rsum_local;
 
-			for (long j = 0; j < omega_i; j++) {
-				Long nodeId_dest = mc_section.random_walk_no_zero_hop(nodeId_cur);
-				Double old_reserve_dest = reserve.get(nodeId_dest);
-				if (old_reserve_dest == null)
-					old_reserve_dest = 0.0;
-				reserve.put(nodeId_dest, old_reserve_dest + reserve_incr);
+			long omega_indexed = (walk_index == null) ? 0 : Math.min(omega_i, walk_index.walkCount(nodeIdM_cur));
+			for (int j = 0; j < omega_indexed; j++) // read precomputed walks first
+				reserve_vec.add(walk_index.destination(nodeIdM_cur, j), reserve_incr);
+			for (long j = omega_indexed; j < omega_i; j++) {
+				long walk = mc_section.walk_mapped(nodeIdM_cur, false);
+				reserve_vec.add(Monte_Carlo.finalNode(walk), reserve_incr);
+				walk_steps += Monte_Carlo.stepAmount(walk);
 			}
+			walk_amount += omega_i;
 		}
 		endTime = System.nanoTime();
 		duration_random += (endTime - startTime);
 
-		// performance info:
-		//System.out.println("\nFinish random walk in " + duration_random / 1000000 + "(ms)");
+		// performance info
+		sample.clear();
+		sample.latency_ns = System.nanoTime() - startTime_query;
+		sample.push_ns = duration_fwdpush;
+		sample.walk_ns = duration_random;
+		sample.pushes = fp_engine.getPushAmount() - push_amount;
+		sample.edges = fp_engine.getEdgeAmount() - edge_amount;
+		sample.walks = walk_amount;
+		sample.walk_steps = walk_steps;
+		sample.frontier_peak = queue_peak;
+		sample.rounds = round;
+		metrics.record(sample);
 	}
 	
 	@Override
 	public void preprocessing(Double dummy, Object epsilon) {
 		// customize preprocessing_dirName
 		preprocessing_dirName += ("/" + epsilon);
+		ppr_index = null;
 		
 		System.out.println("\nFORA preprocessing starts...");
-		HashMap<Integer, Integer> prog_pct_map = new HashMap<>(); // (nodeId, progress percentage)
-		for (int i = 10; i < 100; i += 10) {
-			int nodeId_i = node_amount * i / 100;
-			prog_pct_map.put(nodeId_i, i);
+		File indexFile = new File(preprocessing_dirName, PPR_Index.FILE_NAME);
+		String params = "Fora_Whole_Graph alpha=" + alpha + " epsilon=" + epsilon + " nodes=" + node_amount + " rels=" + csr.relCount() 
+				+ " graph=" + String.format("%08x", csr.getChecksum()) + " walk_index=" + (walk_index != null) 
+				+ " score_bits=" + prep_score_bits;
+		try (Prep_Manifest manifest = openPrepDir(preprocessing_dirName, params);
+				PPR_Index_Writer writer = new PPR_Index_Writer(indexFile, node_amount, prep_score_bits, manifest)) {
+			Prep_Pipeline.run(node_amount, pool, () -> {
+				Fora_Whole_Graph worker = newWorker(); // own push engine & random walk section for each compute slot
+				return (nodeIdM, result) -> {
+					worker.computeWholeGraphPPR(csr.toOriginalNodeId(nodeIdM), epsilon); // run FORA Whole-Graph SSPPR algo on src node
+					for (int i = 0; i < worker.reserve_vec.size(); i++)
+						result.add(worker.reserve_vec.keyAt(i), worker.reserve_vec.valueAt(i));
+				};
+			}, writer);
+			writer.finish();
+			manifest.delete(); // nothing to resume
 		}
-		prog_pct_map.put(node_amount - 1, 100);
-		
-		File dirPath = new File(preprocessing_dirName);
-		if (!dirPath.exists()) { // create directory if not exists
-			dirPath.mkdirs();
-			System.out.println("\nCreated directory " + preprocessing_dirName);
-		}
-		else { // if exists, clear it before preprocessing
-			try {
-				FileUtils.cleanDirectory(dirPath);
-			}
-			catch (IOException e) {
-				System.out.println("Clear directory " + preprocessing_dirName + " failed!");
-				e.printStackTrace();
-			}
-			System.out.println("\nDirectory " + preprocessing_dirName + " cleared");
+		catch (IOException e) {
+			System.out.println("Write to file " + indexFile.getPath() + " failed!");
+			e.printStackTrace();
 		}
-		
-		adjM.forEachNode(nodeIdM -> {
-			Long nodeId_start = adjM.toOriginalNodeId(nodeIdM);
-			computeWholeGraphPPR(nodeId_start, epsilon); // run FORA Whole-Graph SSPPR algo on src node
-			
-			String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-			try { // store ppr values that are not smaller than threshold
-				FileWriter fw = new FileWriter(fileName_start, false);
-				for (Map.Entry< Long, Double > entry_t : reserve.entrySet()) {
-					Long nodeId_i = entry_t.getKey();
-					Double ppr_i = entry_t.getValue();
-					//if (ppr_i >= threshold)
-						fw.write(nodeId_i.toString() + '\t' + ppr_i.toString() + '\n');
-				}
-				fw.close();
-			}
-			catch (IOException e) {
-				System.out.println("Write to file " + fileName_start + " failed!");
-				e.printStackTrace();
-			}
-			
-			if (prog_pct_map.containsKey(nodeIdM))
-				System.out.println("Progress: " + prog_pct_map.get(nodeIdM) + "%");
-			return true;
-		});
 	}
 
 	@Override
 	public void readPreprocessedPPR(Long nodeId_start) {
-		// read pprs from file corresponding to src node and store in reserve
+		// read pprs of src node from the ppr index and store in reserve_vec
 		reserve.clear();
-		String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(fileName_start)));
-			String tmpStr = null;
-			while ((tmpStr = br.readLine()) != null) {
-				int space_idx = tmpStr.indexOf('\t');
-				Long nodeId_target = Long.parseLong(tmpStr.substring(0, space_idx));
-				Double ppr_target = Double.parseDouble(tmpStr.substring(space_idx + 1));
-				reserve.put(nodeId_target, ppr_target);
-			}
-			br.close();
-		}
-		catch (IOException e) {
-			System.out.println("Read from file " + fileName_start + " failed!");
-			e.printStackTrace();
-		}
+		reserve_vec.clear();
+		isResultBuilt = false; // reserve is built from reserve_vec when requested
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null)
+			return;
+		
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		ppr_index.read(nodeIdM_start, prep_records);
+		for (int i = 0; i < prep_records.size(); i++)
+			reserve_vec.put(prep_records.nodeAt(i), prep_records.pprAt(i));
 	}
 	
 	@Override
 	public Long getPrepSize() {
 		return FileUtils.sizeOfDirectory(new File(preprocessing_dirName));
 	}
+	
+	@Override
+	public void setScoreBits(int score_bits) {
+		prep_score_bits = score_bits;
+	}
+	
+	@Override
+	public Double getPrepMaxError() {
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null)
+			return null;
+		return ppr_index.getMaxError();
+	}
 
 	@Override
 	public void deletePrepDir() {
@@ -9,18 +9,16 @@ import java.util.AbstractQueue;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.io.FileUtils;
 import org.neo4j.cypher.internal.compiler.v2_3.spi.TheCookieManager;
-import org.neo4j.graphalgo.api.Graph;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -28,245 +26,199 @@ import org.neo4j.graphdb.Transaction;
 
 
 public class Forward_Push extends Algo_Util implements Whole_Graph_Util_Interface, Preprocessing_Interface, Topk_Util_Interface { // Forward Push algorithm
+	private static final int RESULT_ENGINE = 0; // the result of the last query is in engine
+	private static final int RESULT_RECORDS = 1; // in prep_records
+	private static final int RESULT_DYNAMIC = 2; // in dynamic_reserve
+	
 	private GraphDatabaseService graphDb;
 	private String dir_db;
-	Graph adjM; // adjacency matrix of the graph
+	CSR_Graph csr; // CSR snapshot of the adjacency matrix
+	private Push_Engine engine; // performs the push on mapped node ids; allocated on the first push
 	private HashMap<Long, Double> residue; // (node id in graphDb, propagated value, i.e r)
 	private HashMap<Long, Double> reserve; // (node id in graphDb, stored value, i.e pi)
-	Queue<Long> Q_next; // nodes that might still propagate forward in the next call 
-						// meet the requirement of r(s,v) / |N_out(v)| > min_rmax	
+	private boolean isResultBuilt; // whether residue & reserve hold the result of the last query
+	private int result_from; // where the result of the last query is, one of RESULT_*
 	private int node_amount; // the total number of nodes in the graph
 	private Double alpha; // the probability stopped at each node during a random walk
 	private Double rsum; // the sum of all nodes' residues(r) during a local update process from s
 	private String preprocessing_dirName;
+	private PPR_Index ppr_index; // mapped preprocessed results; loaded on the first read
+	private PPR_Records prep_records; // records of a source read from ppr_index
+	private int prep_score_bits; // bits per stored ppr in preprocessing; 0 to store exact pprs
+	private ForkJoinPool pool; // pool computing the sources of preprocessing; null for serial mode
+	private volatile Dynamic_Forward_Push dynamic; // pprs kept up to date with graphDb's updates; null if not in dynamic mode
+	private boolean isDynamicOwned; // whether dynamic is started by this object, which stops it
+	private Dynamic_Forward_Push dynamic_read; // dynamic as of the last read in dynamic mode, which dynamic_reserve is of
+	private Sparse_Vector dynamic_reserve; // (node id mapped by dynamic_read, ppr) of the last read in dynamic mode
 	private Vector<Long> topk_nodeIds; // top-k node ids sorted by ppr
-	private HashMap<Long, Double> topk_res; // top-k ppr result
+	private Topk_Selector topk_selector; // top-k ppr result sorted by ppr
+	private boolean isTopkSelected; // whether topk_selector holds the top-k of the last push
+	private Query_Metrics metrics;
+	private Query_Metrics.Sample sample; // counts of the last whole-graph push
 	
 	public Forward_Push(Double alpha, Double rsum, int node_amount, GraphDatabaseService graphDb,
-			Graph adjM, String node_property, String dir_db) {
+			CSR_Graph csr, String node_property, String dir_db) {
 		super(node_property);
 		this.graphDb = graphDb;
 		this.dir_db = dir_db;
-		this.adjM = adjM;
+		this.csr = csr;
+		engine = null;
 		residue = new HashMap<>();
 		reserve = new HashMap<>();
-		Q_next = new ConcurrentLinkedQueue<>();
+		isResultBuilt = true;
+		result_from = RESULT_ENGINE;
+		dynamic_reserve = new Sparse_Vector(16);
 		topk_nodeIds = new Vector<>();
-		topk_res = new HashMap<>();
+		topk_selector = new Topk_Selector();
+		isTopkSelected = false;
 		this.node_amount = node_amount;
 		this.alpha = alpha;
 		this.rsum = rsum;
 		preprocessing_dirName = "FWP_ppr_results/" + dir_db;
+		prep_records = new PPR_Records();
+		metrics = Query_Metrics.of("Forward_Push");
+		sample = new Query_Metrics.Sample();
+	}
+	
+	@Override
+	public Forward_Push newWorker() { // same configuration, own push engine & results
+		Forward_Push worker = new Forward_Push(alpha, rsum, node_amount, graphDb, csr, node_property, dir_db);
+		worker.preprocessing_dirName = preprocessing_dirName;
+		worker.ppr_index = ppr_index;
+		worker.prep_score_bits = prep_score_bits;
+		worker.setPool(pool);
+		worker.dynamic = dynamic; // shared, stopped by this object only
+		return worker;
+	}
+	
+	public void setPool(ForkJoinPool pool) { // compute the sources of preprocessing in pool, or serially if pool is null
+		this.pool = pool;
+	}
+	
+	public void startDynamicMode(Object rmax) {
+		/* Answer readPreprocessedPPR from results that follow the edges created
+		 * and deleted in graphDb from now on, instead of the ppr index, which
+		 * goes stale as soon as graphDb changes. A source is pushed once when
+		 * it's first read, then repaired locally after every committed update.
+		 * csr must still match graphDb when this is called.
+		 */
+		
+		stopDynamicMode();
+		Dynamic_Forward_Push dynamic_t = new Dynamic_Forward_Push(csr, alpha, (Double)rmax);
+		dynamic_t.register(graphDb);
+		isDynamicOwned = true;
+		dynamic = dynamic_t;
+		System.out.println("\nForward Push dynamic mode started with rmax = " + rmax);
+	}
+	
+	public void startDynamicMode(Dynamic_Forward_Push dynamic) {
+		// same, sharing dynamic, which the caller has registered on graphDb and unregisters
+		
+		stopDynamicMode();
+		isDynamicOwned = false;
+		this.dynamic = dynamic;
+	}
+	
+	public void stopDynamicMode() { // stop following the updates of graphDb and read the ppr index again
+		Dynamic_Forward_Push dynamic_t = dynamic;
+		if (dynamic_t == null)
+			return;
+		dynamic = null; // a read in progress keeps its own reference
+		if (isDynamicOwned)
+			dynamic_t.unregister();
+	}
+	
+	public Dynamic_Forward_Push getDynamic() { // null if not in dynamic mode
+		return dynamic;
+	}
+	
+	private Push_Engine getEngine() {
+		if (engine == null)
+			engine = new Push_Engine(csr, node_amount, alpha);
+		return engine;
 	}
 	
 	@Override
 	public void computeWholeGraphPPR(Long nodeId_start, Object rmax) { // forward push for whole graph ppr
+		long startTime = System.nanoTime();
 		residue.clear();
 		reserve.clear();
 		topk_nodeIds.clear();
-		topk_res.clear();
-		Double rsum_local = 1.0;
-		int nodeIdM_start = adjM.toMappedNodeId(nodeId_start); // start node id in adjacency matrix
-		int out_degree_start = adjM.degree(nodeIdM_start, Direction.OUTGOING);
-		
-		if (out_degree_start == 0) { // terminate if start node's out degree is 0
-			reserve.put(nodeId_start, 1.0);
-			rsum = 0.0;
-			return;
-		}
+		isTopkSelected = false;
+		isResultBuilt = false; // the result stays in the engine until it's requested
+		result_from = RESULT_ENGINE;
 		
-		HashSet<Long> nodesInQueue = new HashSet<>(); // record nodes in Q
-		Queue<Long> Q = new ConcurrentLinkedQueue<>(); // nodes that can still propagate forward
-				
-		Q.offer(nodeId_start);
-		nodesInQueue.add(nodeId_start);
-		residue.put(nodeId_start, 1.0); // r(s,s) = 1.0
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		Push_Engine engine = getEngine();
+		long push_amount = engine.getPushAmount(), edge_amount = engine.getEdgeAmount();
+		rsum = engine.push_whole_graph(nodeIdM_start, (Double)rmax);
 		
-		while (!Q.isEmpty()) {
-			Long nodeId_cur = Q.poll();
-			nodesInQueue.remove(nodeId_cur);
-			Double residue_cur = residue.get(nodeId_cur);
-			residue.replace(nodeId_cur, 0.0); // r(s,v)=0
-			
-			Double old_reserve_cur = reserve.get(nodeId_cur);
-			if (old_reserve_cur == null)
-				old_reserve_cur = 0.0;
-			reserve.put(nodeId_cur, old_reserve_cur + residue_cur * alpha);
-			// pi(s,v) = pi(s,v) + alpha * r(s,v)
-			
-			rsum_local -= residue_cur * alpha; //update rsum_local
-			int nodeIdM_cur = adjM.toMappedNodeId(nodeId_cur); // current node id in adjacency matrix
-			int out_degree_cur = adjM.degree(nodeIdM_cur, Direction.OUTGOING);
-			
-			if (out_degree_cur == 0) {
-				// no out neighbor, then consider start node as its only neighbor
-				// and propagate (1 - alpha) * r(s,v) to start node
-				Double new_residue_start = residue.get(nodeId_start) + residue_cur * (1.0 - alpha);
-				residue.put(nodeId_start, new_residue_start);
-				
-				if (out_degree_start > 0 && new_residue_start / (double)out_degree_start >= (Double)rmax 
-						&& !nodesInQueue.contains(nodeId_start)) {
-					// check whether the updated start node should be added into Q or not
-					// condition: meet the requirement of Q and not in Q currently
-					Q.offer(nodeId_start);
-					nodesInQueue.add(nodeId_start);
-				}
-				continue;
-			}
-			
-			Double avg_push_residue = ((1.0 - alpha) * residue_cur) / (double)out_degree_cur;
-						
-			adjM.forEachRelationship(nodeIdM_cur, Direction.OUTGOING, 
-				(nodeIdM1, nodeIdM2, tmp) -> {
-					Long nodeId1 = adjM.toOriginalNodeId(nodeIdM1);
-					Long nodeId2 = adjM.toOriginalNodeId(nodeIdM2);
-					Double old_residue_next = residue.get(nodeId2);
-					if (old_residue_next == null)
-						old_residue_next = 0.0;
-					Double new_residue_next = old_residue_next + avg_push_residue;
-					residue.put(nodeId2, new_residue_next);
-					//r(s,u) = r(s,u) + (1 - alpha) * r(s,v) / |N_out(v)|
-									
-					int out_degree_next = adjM.degree(nodeIdM2, Direction.OUTGOING);
-					
-					if (new_residue_next / (double)out_degree_next >= (Double)rmax && !nodesInQueue.contains(nodeId2)) {
-						// check whether the updated next node should be added into Q or not
-						// condition: meet the requirement of Q and not in Q currently
-						Q.offer(nodeId2);
-						nodesInQueue.add(nodeId2);
-					}
-					return true;
-				});
-			rsum = rsum_local; // update rsum
-		}
+		sample.clear();
+		sample.latency_ns = sample.push_ns = System.nanoTime() - startTime;
+		sample.pushes = engine.getPushAmount() - push_amount;
+		sample.edges = engine.getEdgeAmount() - edge_amount;
+		sample.frontier_peak = engine.getQueuePeak();
+		sample.rounds = 1;
+		metrics.record(sample);
 	}
 	
 	public void forward_push_topk(Long nodeId_start, Queue<Long> Q, Double min_rmax, boolean isFirstFwdpush, 
 			Double rmax) { // forward push for topk ppr
-		int nodeIdM_start = adjM.toMappedNodeId(nodeId_start); // start node id in adjacency matrix
-		int out_degree_start = adjM.degree(nodeIdM_start, Direction.OUTGOING);
-		
-		if (out_degree_start == 0) { // terminate if start node's out degree is 0
-			reserve.put(nodeId_start, 1.0);
-			rsum = 0.0;
-			return;
-		}
-		
-		if (isFirstFwdpush) // initialize residue if it's the first forward push
-			residue.put(nodeId_start, 1.0);
-		Q_next.clear(); // clear Q_next to be ready for storing new ones
-		Double rsum_local = rsum;
+		Push_Engine engine = getEngine();
+		if (isFirstFwdpush) // a new query starts, so clear the residue & reserve of the last one
+			engine.reset();
+		residue.clear();
+		reserve.clear();
+		isResultBuilt = false;
+		result_from = RESULT_ENGINE;
+		isTopkSelected = false;
 		
-		HashSet<Long> nodesInQueue = new HashSet<>(); // record nodes in Q
-		HashSet<Long> nodesInQueue_next = new HashSet<>(); // record nodes in Q_next
+		while (!Q.isEmpty()) // load Q into the engine
+			engine.load_queue(csr.requireMappedNodeId(Q.poll()));
 		
-		nodesInQueue.addAll(Q); // initialize nodesInQueue
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		rsum = engine.push_topk(nodeIdM_start, min_rmax, isFirstFwdpush, rmax);
+	}
+	
+	private void buildResult() { // convert the result of the last query to original node ids
+		if (isResultBuilt)
+			return;
+		isResultBuilt = true;
 		
-		while (!Q.isEmpty()) {
-			Long nodeId_cur = Q.poll();
-			nodesInQueue.remove(nodeId_cur);
-			Double residue_cur = residue.get(nodeId_cur);
-			
-			int nodeIdM_cur = adjM.toMappedNodeId(nodeId_cur); // current node id in adjacency matrix
-			int out_degree_cur = adjM.degree(nodeIdM_cur, Direction.OUTGOING);
-			
-			if (residue_cur / out_degree_cur >= rmax) {
-				// since it's not guaranteed that the nodes in Q meet the
-				// requirement that r(s,v)/|N_out(v)|>r_max, we need to check
-				residue.replace(nodeId_cur, 0.0); // r(s,v)=0
-			
-				Double old_reserve_cur = reserve.get(nodeId_cur);
-				if (old_reserve_cur == null)
-					old_reserve_cur = 0.0;
-				reserve.put(nodeId_cur, old_reserve_cur + residue_cur * alpha);
-				// pi(s,v) = pi(s,v) + alpha * r(s,v)
-			
-				rsum_local -= residue_cur * alpha; //update rsum_local
-			
-				if (out_degree_cur == 0) {
-					// no out neighbor, then consider start node as its only neighbor
-					// and propagate (1 - alpha) * r(s,v) to start node
-					Double new_residue_start = residue.get(nodeId_start) + residue_cur * (1 - alpha);
-					residue.put(nodeId_start, new_residue_start);
-				
-					
-					if (out_degree_start > 0 && new_residue_start / (double)out_degree_start >= rmax 
-							&& !nodesInQueue.contains(nodeId_start)) {
-						// check whether the updated start node should be added into Q or not
-						// condition: meet the requirement of Q and not in Q currently
-						Q.offer(nodeId_start);
-						nodesInQueue.add(nodeId_start);
-					}
-					else if (out_degree_start > 0 && new_residue_start / (double)out_degree_start >= min_rmax 
-							&& !nodesInQueue_next.contains(nodeId_start)) {
-						// check whether the updated start node should be added into Q_next or not
-						// condition: meet the requirement of Q_next and not in Q_next currently
-						 
-						nodesInQueue_next.add(nodeId_start);
-						Q_next.offer(nodeId_start);
-					}
-					continue;
-				}
-			
-				Double avg_push_residue = ((1.0 - alpha) * residue_cur) / (double)out_degree_cur;
-								
-				adjM.forEachRelationship(nodeIdM_cur, Direction.OUTGOING, 
-						(nodeIdM1, nodeIdM2, tmp) -> {
-							Long nodeId1 = adjM.toOriginalNodeId(nodeIdM1);
-							Long nodeId2 = adjM.toOriginalNodeId(nodeIdM2);
-							Double old_residue_next = residue.get(nodeId2);
-							if (old_residue_next == null)
-								old_residue_next = 0.0;
-							Double new_residue_next = old_residue_next + avg_push_residue;
-							residue.put(nodeId2, new_residue_next);
-							//r(s,u) = r(s,u) + (1 - alpha) * r(s,v) / |N_out(v)|
-											
-							int out_degree_next = adjM.degree(nodeIdM2, Direction.OUTGOING);
-							
-							if (new_residue_next / (double)out_degree_next >= rmax && !nodesInQueue.contains(nodeId2)) {
-								// check whether the updated next node should be added into Q or not
-								// condition: meet the requirement of Q and not in Q currently
-								Q.offer(nodeId2);
-								nodesInQueue.add(nodeId2);
-							}
-							else if (new_residue_next / (double)out_degree_next >= min_rmax && !nodesInQueue_next.contains(nodeId2)) {
-								// check whether the updated next node should be added into Q_next or not
-								// condition: meet the requirement of Q_next and not in Q_next currently
-								nodesInQueue_next.add(nodeId2);
-								Q_next.offer(nodeId2);
-							}
-							return true;
-						});
-			}
-			else if (residue_cur / (double)out_degree_cur >= min_rmax && !nodesInQueue_next.contains(nodeId_cur)) {
-				// check whether the current node should be added into Q_next or not
-				// condition: meet the requirement of Q_next and not in Q_next currently
-				 
-				nodesInQueue_next.add(nodeId_cur);
-				Q_next.offer(nodeId_cur);
-			}
+		if (result_from == RESULT_RECORDS) {
+			for (int i = 0; i < prep_records.size(); i++)
+				reserve.put(csr.toOriginalNodeId(prep_records.nodeAt(i)), prep_records.pprAt(i));
+			return;
+		}
+		if (result_from == RESULT_DYNAMIC) {
+			for (int i = 0; i < dynamic_reserve.size(); i++)
+				reserve.put(dynamic_read.toOriginalNodeId(dynamic_reserve.keyAt(i)), dynamic_reserve.valueAt(i));
+			return;
+		}
+		for (int i = 0; i < engine.getTouchedSize(); i++) {
+			int nodeIdM = engine.getTouched(i);
+			Long nodeId = csr.toOriginalNodeId(nodeIdM);
+			residue.put(nodeId, engine.getResidue(nodeIdM));
+			Double reserve_t = engine.getReserve(nodeIdM);
+			if (reserve_t > 0.0) // only the nodes that have pushed have reserve
+				reserve.put(nodeId, reserve_t);
 		}
-		rsum = rsum_local; // update rsum
 	}
 		
 	public Double getUpdatedRsum() {
 		return rsum;
 	}
 	
-	public HashMap<Long, Double> getResidueCopy() { // copy the hashmap residue and return
-		return new HashMap<>(residue);
-	}
-
-	public HashMap<Long, Double> getReserveCopy() { // copy the hashmap reserve and return
-		return new HashMap<>(reserve);
-	}
-	
 	public Queue<Long> getNextQueueCopy() { // copy the queue Q_next and return
-		return new ConcurrentLinkedQueue<>(Q_next); 
+		Queue<Long> Q_next = new ConcurrentLinkedQueue<>();
+		for (int i = 0; i < engine.getNextQueueSize(); i++)
+			Q_next.offer(csr.toOriginalNodeId(engine.getNextQueue(i)));
+		return Q_next; 
 	}
 	
 	@Override
 	public void printWholeGraphResult() {		
+		buildResult();
 		List<Map.Entry<Long, Double>> reserve_list = new ArrayList<Map.Entry<Long, Double>>(reserve.entrySet());
 		reserve_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
 			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
@@ -282,6 +234,7 @@ public class Forward_Push extends Algo_Util implements Whole_Graph_Util_Interfac
 
 	@Override
 	public HashMap<Long, Double> getWholeGraphPPR() { // return the reference of reserve
+		buildResult();
 		return reserve;
 	}
 	
@@ -289,81 +242,63 @@ public class Forward_Push extends Algo_Util implements Whole_Graph_Util_Interfac
 	public void preprocessing(Double dummy, Object rmax) {
 		// customize preprocessing_dirName
 		preprocessing_dirName += ("/" + rmax);
+		ppr_index = null;
 		
 		System.out.println("\nForward Push preprocessing started...");
-		HashMap<Integer, Integer> prog_pct_map = new HashMap<>(); // (nodeId, progress percentage)
-		for (int i = 10; i < 100; i += 10) {
-			int nodeId_i = node_amount * i / 100;
-			prog_pct_map.put(nodeId_i, i);
-		}
-		prog_pct_map.put(node_amount - 1, 100);
-		
-		File dirPath = new File(preprocessing_dirName);
-		if (!dirPath.exists()) { // create directory if not exists
-			dirPath.mkdirs();
-			System.out.println("\nCreated directory " + preprocessing_dirName);
+		File indexFile = new File(preprocessing_dirName, PPR_Index.FILE_NAME);
+		String params = "Forward_Push alpha=" + alpha + " rmax=" + rmax + " nodes=" + node_amount + " rels=" + csr.relCount() 
+				+ " graph=" + String.format("%08x", csr.getChecksum()) + " score_bits=" + prep_score_bits;
+		try (Prep_Manifest manifest = openPrepDir(preprocessing_dirName, params);
+				PPR_Index_Writer writer = new PPR_Index_Writer(indexFile, node_amount, prep_score_bits, manifest)) {
+			Prep_Pipeline.run(node_amount, pool, () -> {
+				Forward_Push worker = newWorker(); // own push engine for each compute slot
+				return (nodeIdM, result) -> {
+					worker.computeWholeGraphPPR(csr.toOriginalNodeId(nodeIdM), rmax); // run Forward Push on src node
+					for (int i = 0; i < worker.engine.getTouchedSize(); i++) { // read the result from the engine directly
+						int nodeIdM_i = worker.engine.getTouched(i);
+						double ppr_i = worker.engine.getReserve(nodeIdM_i);
+						if (ppr_i > 0.0)
+							result.add(nodeIdM_i, ppr_i);
+					}
+				};
+			}, writer);
+			writer.finish();
+			manifest.delete(); // nothing to resume
 		}
-		else { // if exists, clear it before preprocessing
-			try {
-				FileUtils.cleanDirectory(dirPath);
-			}
-			catch (IOException e) {
-				System.out.println("Clear directory " + preprocessing_dirName + " failed!");
-				e.printStackTrace();
-			}
-			System.out.println("\nDirectory " + preprocessing_dirName + " cleared");
+		catch (IOException e) {
+			System.out.println("Write to file " + indexFile.getPath() + " failed!");
+			e.printStackTrace();
 		}
-		
-		adjM.forEachNode(nodeIdM -> {
-			Long nodeId_start = adjM.toOriginalNodeId(nodeIdM);
-			computeWholeGraphPPR(nodeId_start, rmax); // run Forward Push on src node
-			
-			String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-			try { // store ppr values that are not smaller than threshold
-				FileWriter fw = new FileWriter(fileName_start, false);
-				for (Map.Entry< Long, Double > entry_t : reserve.entrySet()) {
-					Long nodeId_i = entry_t.getKey();
-					Double ppr_i = entry_t.getValue();
-					fw.write(nodeId_i.toString() + '\t' + ppr_i.toString() + '\n');
-				}
-				fw.close();
-			}
-			catch (IOException e) {
-				System.out.println("Write to file " + fileName_start + " failed!");
-				e.printStackTrace();
-			}
-			
-			if (prog_pct_map.containsKey(nodeIdM))
-				System.out.println("Progress: " + prog_pct_map.get(nodeIdM) + "%");
-			return true;
-		});
 	}
 
 	@Override
 	public void readPreprocessedPPR(Long nodeId_start) {
-		// read pprs from file corresponding to src node and store in ppr
+		// read pprs of src node from the ppr index into prep_records, which reserve is built from on request
+		residue.clear();
 		reserve.clear();
-		String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(fileName_start)));
-			String tmpStr = null;
-			while ((tmpStr = br.readLine()) != null) {
-				int space_idx = tmpStr.indexOf('\t');
-				Long nodeId_target = Long.parseLong(tmpStr.substring(0, space_idx));
-				Double ppr_target = Double.parseDouble(tmpStr.substring(space_idx + 1));
-				reserve.put(nodeId_target, ppr_target);
-			}
-			br.close();
+		topk_nodeIds.clear();
+		isResultBuilt = false;
+		isTopkSelected = false;
+		Dynamic_Forward_Push dynamic_t = dynamic; // dynamic mode may stop meanwhile
+		if (dynamic_t != null) { // the ppr index might be stale
+			result_from = RESULT_DYNAMIC;
+			dynamic_read = dynamic_t;
+			dynamic_t.readPPR(nodeId_start, dynamic_reserve);
+			return;
 		}
-		catch (IOException e) {
-			System.out.println("Read from file " + fileName_start + " failed!");
-			e.printStackTrace();
+		result_from = RESULT_RECORDS;
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null) {
+			prep_records.clear();
+			return;
 		}
+		
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		ppr_index.read(nodeIdM_start, prep_records);
 	}
 	
 	@Override
 	public void computeTopKPPR(Long nodeId_start, int k, Object rmax) { 
-		// store the top-k results in topk_res; might include more than k nodes
+		// store the top-k results in topk_selector; might include more than k nodes
 		
 		computeWholeGraphPPR(nodeId_start, rmax);
 		// perform Forward Push Whole-Graph SSPPR algo
@@ -371,23 +306,10 @@ public class Forward_Push extends Algo_Util implements Whole_Graph_Util_Interfac
 	
 	@Override
 	public void printTopKResult(int k) {
-		if (topk_res.isEmpty())
-			retrieveTopK(k);
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		int count = 0;
+		retrieveTopK(k);
 		System.out.println("\nForward-Push-Top" + k + " PPR:");
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) {
-			if (count >= k) // we need to count since the size of topk_reserves might be greater than k
-				break;
-			count++;
-			System.out.println("@" + getNodeName(topk_res_list_t.getKey(), graphDb) + '\t' + topk_res_list_t.getValue());
-		}
+		for (int i = 0; i < topk_selector.size() && i < k; i++) // there might be more than k selected nodes
+			System.out.println("@" + getNodeName(topk_selector.idAt(i), graphDb) + '\t' + topk_selector.pprAt(i));
 	}
 	
 	@Override
@@ -395,43 +317,44 @@ public class Forward_Push extends Algo_Util implements Whole_Graph_Util_Interfac
 		if (!topk_nodeIds.isEmpty()) // topk_node_ids is already set, then no need to compute again 
 			return topk_nodeIds;	
 		
-		if (topk_res.isEmpty())
-			retrieveTopK(k);
-		
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) // store node ids in topk_node_ids after sorting
-			topk_nodeIds.add(topk_res_list_t.getKey());
+		retrieveTopK(k);
+		for (int i = 0; i < topk_selector.size(); i++) // the selected nodes are already sorted by ppr
+			topk_nodeIds.add(topk_selector.idAt(i));
 		return topk_nodeIds;
 	}
 	
-	private void retrieveTopK(int k) { // retrieve top-k results from whole-graph ppr results and store in topk_res
-		if (!topk_res.isEmpty())
+	private void retrieveTopK(int k) { // select top-k results from whole-graph ppr results into topk_selector
+		if (isTopkSelected)
 			return;
+		isTopkSelected = true;
 		
-		Double kth_reserve = kth_ppr(reserve.values().toArray(), k); // find the kth ppr
-		if (kth_reserve == null) { // there might be less than k results, so we copy all of them to topk_res
-			topk_res = new HashMap<>(reserve);
-			return;
-		}
-
-		for (Map.Entry<Long, Double> reserve_t : reserve.entrySet()) {
-			// find the pprs not smaller than the kth ppr, so it's possible that
-			// the size of topk_res is greater than k
-			if (reserve_t.getValue() >= kth_reserve)
-				topk_res.put(reserve_t.getKey(), reserve_t.getValue());
-		}
+		if (result_from == RESULT_RECORDS)
+			topk_selector.select(prep_records, csr::toOriginalNodeId, k);
+		else if (result_from == RESULT_DYNAMIC)
+			topk_selector.select(dynamic_reserve, dynamic_read::toOriginalNodeId, k);
+		else if (engine == null) // no query yet
+			topk_selector.clear();
+		else // straight from the engine's arrays
+			topk_selector.selectDense(engine.getTouchedArray(), engine.getTouchedSize(), engine.getReserveArray(), 
+					csr::toOriginalNodeId, k);
 	}
 
 	@Override
 	public Long getPrepSize() {
 		return FileUtils.sizeOfDirectory(new File(preprocessing_dirName));
 	}
+	
+	@Override
+	public void setScoreBits(int score_bits) {
+		prep_score_bits = score_bits;
+	}
+	
+	@Override
+	public Double getPrepMaxError() {
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null)
+			return null;
+		return ppr_index.getMaxError();
+	}
 
 	@Override
 	public void deletePrepDir() {
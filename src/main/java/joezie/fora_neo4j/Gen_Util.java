@@ -1,23 +1,48 @@
 package joezie.fora_neo4j;
 
-import java.io.FileWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 
 import org.neo4j.graphalgo.api.Graph;
+import org.neo4j.graphalgo.core.GraphLoader;
+import org.neo4j.graphalgo.core.heavyweight.HeavyGraphFactory;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 
 public class Gen_Util { // defines general functions for algo performance tests 
+	private static final int LOAD_QUERY_NODE_AMOUNT = 4096; // source nodes cycled through by a load test
+	private static final String CHECKPOINT_SEED = "# query seed "; // prefix of the line saving the seed in a sweep checkpoint
+
 	protected GraphDatabaseService graphDb;
 	protected String dir_db;
 	protected Graph adjM; // adjacency matrix of the graph
+	protected CSR_Graph csr; // CSR snapshot of adjM used by the algorithms
 	protected int node_amount;
 	protected int rel_amount;
 	protected String node_property;
@@ -27,8 +52,19 @@ public class Gen_Util { // defines general functions for algo performance tests
 	protected Double alpha; // probability that a random walk terminates at a step
 	protected Double epsilon; // error bound of estimated and actual pi 
 	protected Node nodes[]; // small graph sample
-	private String algo_perf_result_file_name;
-	private FileWriter fw;
+	protected ForkJoinPool mc_pool; // pool for parallel Monte-Carlo walks, preprocessing & Power Method; null for serial mode
+	protected Walk_Index walk_index; // precomputed walks for FORA; null if not used
+	protected int prep_score_bits; // bits per ppr stored in preprocessing; 0 to store exact pprs
+	protected long prep_memory_budget; // bytes of pprs BASE preprocessing buffers in memory; 0 for its default
+	protected double pm_tolerance; // L1 residual at which Power Method stops; 0 for its default
+	protected Ground_Truth_Cache gt_cache; // Power Method results of earlier runs; null if not used
+	protected int warmup_num; // queries run before the timed ones of a test, not counted
+	protected long query_seed; // seed of the query & warmup nodes
+	protected boolean isSeedSet; // whether query_seed is given rather than random, so a resumed sweep keeps it
+	protected PPR_Result_Cache result_cache; // results shared by the queries of load tests & replays; null if not used
+	protected Dynamic_Forward_Push dynamic_push; // shared by Forward Push's dynamic mode; null if not used
+	private Perf_Results perf_results; // results of the tests in the current batch
+	private String perf_run; // start time of the current batch
 
 	protected enum RelTypes implements RelationshipType
 	{
@@ -63,30 +99,55 @@ public class Gen_Util { // defines general functions for algo performance tests
 		MAX_ERR
 	}
 
+	protected void loadAdjMatrix() { // load adjM from graphDb through graphalgo's GraphLoader
+		adjM = new GraphLoader((GraphDatabaseAPI)graphDb)
+				.withoutRelationshipWeights()
+				.withoutNodeWeights()
+				.withoutNodeProperties()
+				.withAnyRelationshipType()
+				.withAnyLabel()
+				.load(HeavyGraphFactory.class);
+	}
+
 	protected Object newAlgoObj(AlgoType algo, int k) { // create a new algo object; k is for top-k algo
-		Algo_Conf ac_t = new Algo_Conf(alpha, node_property);
+		return newAlgoObj(algo, k, mc_pool);
+	}
+
+	protected Object newAlgoObj(AlgoType algo, int k, ForkJoinPool pool) { // same, running in parallel on pool
+		Algo_Conf ac_t = new Algo_Conf(alpha, node_property, pool, walk_index);
 		Object ret = null;
 		switch (algo) {
 		case MC:
-			ret = ac_t.set_conf_mc(node_amount, rel_amount, graphDb, adjM, dir_db);
+			ret = ac_t.set_conf_mc(node_amount, rel_amount, graphDb, csr, dir_db);
 			break;
 		case POWER_METHOD:
-			ret = ac_t.set_conf_power_method(graphDb, adjM, dir_db);
+			ret = ac_t.set_conf_power_method(graphDb, csr, dir_db);
+			if (pm_tolerance > 0)
+				((Power_Method)ret).setTolerance(pm_tolerance);
+			((Power_Method)ret).setGroundTruthCache(gt_cache);
 			break;
 		case BASE_WHOLE_GRAPH:
-			ret = ac_t.set_conf_base_whole_graph(node_amount, rel_amount, graphDb, adjM, dir_db);
+			ret = ac_t.set_conf_base_whole_graph(node_amount, rel_amount, graphDb, csr, dir_db);
+			if (prep_memory_budget > 0)
+				((Base_Whole_Graph)ret).setMemoryBudget(prep_memory_budget);
 			break;
 		case FORA_WHOLE_GRAPH:
-			ret = ac_t.set_conf_fora_whole_graph(node_amount, rel_amount, graphDb, adjM, dir_db);
+			ret = ac_t.set_conf_fora_whole_graph(node_amount, rel_amount, graphDb, csr, dir_db);
 			break;
 		case FWDPUSH:
-			ret = ac_t.set_conf_fwdpush(node_amount, rel_amount, graphDb, adjM, dir_db);
+			ret = ac_t.set_conf_fwdpush(node_amount, rel_amount, graphDb, csr, dir_db);
+			if (dynamic_push != null)
+				((Forward_Push)ret).startDynamicMode(dynamic_push);
 			break;
 		case NEO4J_METHOD:
-			ret = ac_t.set_conf_neo4j_method(graphDb, adjM, label_type, rel_type, node_amount, dir_db);
+			synchronized (this) { // concurrent cells of a sweep
+				if (adjM == null) // csr was loaded from a snapshot
+					loadAdjMatrix();
+			}
+			ret = ac_t.set_conf_neo4j_method(graphDb, adjM, csr, label_type, rel_type, node_amount, dir_db);
 			break;
 		case FORA_TOPK:
-			ret = ac_t.set_conf_fora_topk(node_amount, rel_amount, k, graphDb, adjM, dir_db);
+			ret = ac_t.set_conf_fora_topk(node_amount, rel_amount, k, graphDb, csr, dir_db);
 			break;
 		default:
 			break;
@@ -96,24 +157,51 @@ public class Gen_Util { // defines general functions for algo performance tests
 		return ret;
 	}
 
-	private Vector<Long> getQueryNodes(int query_num) { // randomly pick query_num nodes as query src nodes
+	private Vector<Long> getQueryNodes(int query_num, Random rnd) { // randomly pick query_num nodes as query src nodes
 		Vector<Long> queryNodes = new Vector<>();
 
 		for (int i = 0; i < query_num; i++) {
-			int picked_node_num = ThreadLocalRandom.current().nextInt(node_amount);
+			int picked_node_num = rnd.nextInt(node_amount);
 			queryNodes.add((long)picked_node_num);
 		}
 		return queryNodes;
 	}
 
+	private static PPR_Result_Cache.Result copyWholeGraphPPR(HashMap<Long, Double> pprs) { // kept in arrays till it's evaluated
+		long nodeIds_t[] = new long[pprs.size()];
+		double pprs_t[] = new double[pprs.size()];
+		int i = 0;
+		for (Map.Entry<Long, Double> ppr : pprs.entrySet()) {
+			nodeIds_t[i] = ppr.getKey();
+			pprs_t[i++] = ppr.getValue();
+		}
+		return new PPR_Result_Cache.Result(nodeIds_t, pprs_t);
+	}
+
 	public void algo_perf_test(AlgoType algoType, int query_num, int k, Object param, Double threshold, 
 			Boolean to_be_preprocessed, TestType testType) throws Exception { 
+		algo_perf_test(algoType, query_num, k, param, threshold, to_be_preprocessed, testType, mc_pool);
+	}
+
+	public void algo_perf_test(AlgoType algoType, int query_num, int k, Object param, Double threshold, 
+			Boolean to_be_preprocessed, TestType testType, ForkJoinPool pool) throws Exception { 
 		// test algorithms' performance: executing time and error; k is for top-k algo;
 		// param is the parameter used to adjust accuracy of Whole-Graph SSPPR algo; 
 		// in the end of preprocessing, we only store ppr values that are not smaller than threshold;
 		// to_be_processed is used to indicate whether preprocessing is required or not;
+		// the algo & Power Method run in parallel on pool, or serially if it's null;
+		
+		/* A test runs in three phases: warmup_num warmup queries, whose time isn't
+		 * counted, so the timed queries don't pay for class loading & JIT
+		 * compilation; then the timed queries back-to-back, keeping a copy of each
+		 * result; and at last an untimed pass computing the ground truth by Power
+		 * Method and the error of every kept result. Every test of a batch draws
+		 * the same query & warmup nodes from query_seed.
+		 */
 
-		Vector<Long> queryNodes = getQueryNodes(query_num); // get query src nodes
+		Random rnd = new Random(query_seed);
+		Vector<Long> queryNodes = getQueryNodes(query_num, rnd); // get query src nodes
+		Vector<Long> warmupNodes = getQueryNodes(warmup_num, rnd); // drawn after the query nodes, so these don't depend on warmup_num
 		HashMap<Integer, Integer> prog_pct_map = new HashMap<>(); // (query_idx, progress percentage)
 		for (int i = 10; i < 100; i += 10) {
 			int query_idx = query_num * i / 100;
@@ -121,14 +209,25 @@ public class Gen_Util { // defines general functions for algo performance tests
 		}
 		prog_pct_map.put(query_num - 1, 100);
 
+		Log_Histogram latency_ns = new Log_Histogram(); // latency of each query
+		Perf_Results.Row row = new Perf_Results.Row()
+				.set("run", perf_run)
+				.set("graph", dir_db)
+				.set("algo", algoType.name())
+				.set("queries", query_num)
+				.set("warmup", warmup_num)
+				.set("seed", query_seed);
+
 		if (testType == TestType.TOPK) { // test top-k algo performance
-			Topk_Util_Interface topk_t = (Topk_Util_Interface)newAlgoObj(algoType, k);
-			Power_Method pm_t = (Power_Method)newAlgoObj(AlgoType.POWER_METHOD, -1);
+			Topk_Util_Interface topk_t = (Topk_Util_Interface)newAlgoObj(algoType, k, pool);
+			Power_Method pm_t = (Power_Method)newAlgoObj(AlgoType.POWER_METHOD, -1, pool);
 			long startTime = 0, endTime = 0, duration = 0, duration_prep = 0;
 			Double sum_precision = 0.0, sum_NDCG = 0.0;		
+			row.set("test", "topk").set("k", k);
 
 			if (algoType == AlgoType.BASE_WHOLE_GRAPH) { // preprocessing is required for BASE
 				startTime = System.nanoTime();
+				((Base_Whole_Graph)topk_t).setScoreBits(prep_score_bits);
 				((Base_Whole_Graph)topk_t).preprocessing(threshold, k); // need sorting
 				endTime = System.nanoTime();
 				duration_prep += (endTime - startTime);
@@ -136,26 +235,41 @@ public class Gen_Util { // defines general functions for algo performance tests
 				System.out.println("\nPreprocessing time for " + algoType + ": " + duration_prep / 1000000 + "(ms)");
 
 				Long prepSize = ((Base_Whole_Graph)topk_t).getPrepSize();
-				fw.write(threshold + "," + k + "," + duration_prep / 1000000 + "," + prepSize + ",");
+				Double prepMaxError = ((Base_Whole_Graph)topk_t).getPrepMaxError(); // bound of the error added by storage
+				row.set("threshold", threshold).set("prep_ms", duration_prep / 1000000)
+						.set("prep_bytes", prepSize).set("prep_max_error", prepMaxError);
 			}
 			else { // preprocessing isn't required
-				fw.write(param + "," + k + ",");
+				row.set("param", param);
 			}
 
-			System.out.println("\nTesting Top-k SSPPR performance of " + algoType + " with " + query_num + " queries");
+			// warm up
+			for (int i = 0; i < warmup_num; i++)
+				topk_t.computeTopKPPR(warmupNodes.get(i), k, param);
+
+			System.out.println("\nTesting Top-k SSPPR performance of " + algoType + " with " + query_num + " queries"
+					+ " after " + warmup_num + " warmup queries");
+			Vector<Vector<Long>> topk_res = new Vector<>(); // top-k node ids of each query
 			for (int i = 0; i < query_num; i++) {
 				// run top-k algo
 				startTime = System.nanoTime();
 				topk_t.computeTopKPPR(queryNodes.get(i), k, param);
 				endTime = System.nanoTime();
 				duration += (endTime - startTime);
+				latency_ns.record(endTime - startTime);
 
+				Vector<Long> topk_nodeIds = topk_t.getTopKNodeIds(k);
+				topk_res.add((topk_nodeIds == null) ? null : new Vector<>(topk_nodeIds));
+			}
+
+			System.out.println("\nEvaluating the accuracy of " + algoType);
+			for (int i = 0; i < query_num; i++) {
 				// run power method
 				pm_t.computeTopKPPR(queryNodes.get(i), k, null);
 
 				// compute error
-				Double precision = computeError(topk_t, pm_t, ErrType.PRECISION, k);
-				Double NDCG = computeError(topk_t, pm_t, ErrType.NDCG, k);
+				Double precision = computeError(topk_res.get(i), pm_t, ErrType.PRECISION, k);
+				Double NDCG = computeError(topk_res.get(i), pm_t, ErrType.NDCG, k);
 				sum_precision += (precision == null) ? 0.0 : precision;
 				sum_NDCG += (NDCG == null) ? 0.0 : NDCG;
 
@@ -172,26 +286,28 @@ public class Gen_Util { // defines general functions for algo performance tests
 
 			System.out.println("\n" + algoType + " performance:"
 					+ "\nAverage running time: " + avg_duration / 1000000 + "(ms)"
+					+ "\n" + latencySummary(latency_ns)
 					+ "\nAverage precision: " + avg_precision
 					+ "\nAverage NDCG: " + avg_NDCG
 					+ "\n");
 			
-			fw.write(avg_duration / 1000000 + "," + avg_precision + "," + avg_NDCG + "\n");
+			row.setLatencies(latency_ns).set("precision", avg_precision).set("ndcg", avg_NDCG);
 		}
 		else if (testType == TestType.WHOLE_GRAPH){ // test whole-graph algo performance
-			Whole_Graph_Util_Interface algo_t = (Whole_Graph_Util_Interface)newAlgoObj(algoType, -1);
+			Whole_Graph_Util_Interface algo_t = (Whole_Graph_Util_Interface)newAlgoObj(algoType, -1, pool);
 			Preprocessing_Interface prep_algo_t = null;
-			Power_Method pm_t = (Power_Method)newAlgoObj(AlgoType.POWER_METHOD, -1);
+			Power_Method pm_t = (Power_Method)newAlgoObj(AlgoType.POWER_METHOD, -1, pool);
 			long startTime = 0, endTime = 0, duration_compute = 0, duration_prep = 0;
 			Double sum_max_err = 0.0;		
 
-			fw.write(param + ",");
+			row.set("test", to_be_preprocessed ? "preprocessing" : "whole_graph").set("param", param);
 			
 			if (to_be_preprocessed || algoType == AlgoType.BASE_WHOLE_GRAPH) { // preprocessing is required
 				
 				startTime = System.nanoTime();
 
 				prep_algo_t = (Preprocessing_Interface)algo_t;
+				prep_algo_t.setScoreBits(prep_score_bits);
 				prep_algo_t.preprocessing(threshold, param);
 
 				endTime = System.nanoTime();
@@ -200,11 +316,22 @@ public class Gen_Util { // defines general functions for algo performance tests
 				System.out.println("\nPreprocessing time for " + algoType + ": " + duration_prep / 1000000 + "(ms)");
 				 
 				Long prepSize = prep_algo_t.getPrepSize();
-				fw.write(threshold + "," + duration_prep / 1000000 + "," + prepSize + ",");
+				Double prepMaxError = prep_algo_t.getPrepMaxError(); // bound of the error added by storage
+				row.set("threshold", threshold).set("prep_ms", duration_prep / 1000000)
+						.set("prep_bytes", prepSize).set("prep_max_error", prepMaxError);
 			}
 			
+			// warm up
+			for (int i = 0; i < warmup_num; i++) {
+				if (to_be_preprocessed)
+					prep_algo_t.readPreprocessedPPR(warmupNodes.get(i));
+				else
+					algo_t.computeWholeGraphPPR(warmupNodes.get(i), param);
+			}
 		
-			System.out.println("\nTesting performance of " + algoType + " with " + query_num + " queries");
+			System.out.println("\nTesting performance of " + algoType + " with " + query_num + " queries"
+					+ " after " + warmup_num + " warmup queries");
+			Vector<PPR_Result_Cache.Result> ppr_res = new Vector<>(); // ppr results of each query
 			for (int i = 0; i < query_num; i++) {
 				Long nodeId_start = queryNodes.get(i);
 
@@ -218,12 +345,23 @@ public class Gen_Util { // defines general functions for algo performance tests
 
 				endTime = System.nanoTime();
 				duration_compute += (endTime - startTime);
+				latency_ns.record(endTime - startTime);
 
+				ppr_res.add(copyWholeGraphPPR(algo_t.getWholeGraphPPR()));
+			}
+
+			System.out.println("\nEvaluating the accuracy of " + algoType);
+			for (int i = 0; i < query_num; i++) {
 				// run power method
-				pm_t.computeWholeGraphPPR(nodeId_start, null);
+				pm_t.computeWholeGraphPPR(queryNodes.get(i), null);
 
 				// compute error
-				Double max_err = computeError(algo_t, pm_t, ErrType.MAX_ERR, -1);
+				PPR_Result_Cache.Result res_t = ppr_res.get(i);
+				HashMap<Long, Double> algo_ppr_res = new HashMap<>(res_t.size() * 4 / 3 + 1);
+				for (int j = 0; j < res_t.size(); j++)
+					algo_ppr_res.put(res_t.nodeIdAt(j), res_t.pprAt(j));
+				ppr_res.set(i, null); // not needed anymore
+				Double max_err = computeError(algo_ppr_res, pm_t, ErrType.MAX_ERR, -1);
 				sum_max_err += max_err;
 
 				// show progress
@@ -238,13 +376,10 @@ public class Gen_Util { // defines general functions for algo performance tests
 
 			System.out.println("\n" + algoType + " performance:"
 					+ "\nAverage computing time: " + avg_duration_compute / 1000000 + "(ms)"
+					+ "\n" + latencySummary(latency_ns)
 					+ "\nAverage max error: " + avg_max_err);
 
-			if (!to_be_preprocessed)
-				fw.write(avg_duration_compute / 1000000 + ",");
-				
-			//fw.write("Average max error: " + avg_max_err + "\n");
-			fw.write(avg_max_err + "\n");
+			row.setLatencies(latency_ns).set("max_error", avg_max_err); // the latency of reading the results if preprocessed
 
 			if (to_be_preprocessed && algoType != AlgoType.BASE_WHOLE_GRAPH) 
 				// for preprocessing algo other than BASE, we would delete the preprocessing directory
@@ -254,17 +389,260 @@ public class Gen_Util { // defines general functions for algo performance tests
 			System.out.println("Error: Test type should be WHOLE_GRAPH or TOPK!");
 			return;
 		}
+		if (perf_results != null)
+			perf_results.write(row);
+	}
+	
+	protected static Object parseParam(AlgoType algoType, String value) { // iterations of Neo4j Method are integers
+		return (algoType == AlgoType.NEO4J_METHOD) ? (Object)Integer.valueOf(value) : (Object)Double.valueOf(value);
+	}
+
+	private LongConsumer newQuery(AlgoType algoType, TestType testType, int k, Object param, Double threshold) throws Exception {
+		/* Set up an algo for concurrent queries, preprocessing BASE with
+		 * threshold, and return a query taking the source node, which runs on a
+		 * context pooled by an Algo_Engine and reads its result, as a server
+		 * returning it would. The contexts answer repeated queries from
+		 * result_cache if it's set. Return null if the algo doesn't support testType.
+		 */
+
+		Object algo_t = newAlgoObj(algoType, k);
+		if (!((testType == TestType.TOPK) ? algo_t instanceof Topk_Util_Interface : algo_t instanceof Whole_Graph_Util_Interface)) {
+			System.out.println("Error: " + algoType + " doesn't compute " + testType + " ppr!");
+			return null;
+		}
+		if (algoType == AlgoType.BASE_WHOLE_GRAPH) { // preprocessing is required for BASE
+			long startTime = System.nanoTime();
+			((Base_Whole_Graph)algo_t).setScoreBits(prep_score_bits);
+			((Base_Whole_Graph)algo_t).preprocessing(threshold, (testType == TestType.TOPK) ? k : param);
+			System.out.println("\nPreprocessing time for " + algoType + ": " + (System.nanoTime() - startTime) / 1000000 + "(ms)");
+		}
+
+		Dynamic_Forward_Push dynamic = (algo_t instanceof Forward_Push) ? ((Forward_Push)algo_t).getDynamic() : null;
+		LongSupplier graph_version = (dynamic != null) ? dynamic::getGraphVersion : () -> 0L; // csr never changes
+		LongConsumer query;
+		if (testType == TestType.TOPK) {
+			Topk_Util_Interface topk_t = (Topk_Util_Interface)algo_t;
+			if (result_cache != null)
+				topk_t = new Cached_Topk(topk_t, alpha, result_cache, graph_version);
+			Algo_Engine<Topk_Util_Interface> engine = Algo_Engine.ofTopk(topk_t);
+			query = nodeId_start -> engine.query(context -> {
+				context.computeTopKPPR(nodeId_start, k, param);
+				return context.getTopKNodeIds(k);
+			});
+		}
+		else {
+			Whole_Graph_Util_Interface whole_graph_t = (Whole_Graph_Util_Interface)algo_t;
+			if (result_cache != null)
+				whole_graph_t = new Cached_Whole_Graph(whole_graph_t, alpha, result_cache, graph_version);
+			Algo_Engine<Whole_Graph_Util_Interface> engine = Algo_Engine.ofWholeGraph(whole_graph_t);
+			query = nodeId_start -> engine.query(context -> {
+				context.computeWholeGraphPPR(nodeId_start, param);
+				return context.getWholeGraphPPR();
+			});
+		}
+		return query;
+	}
+
+	public void algo_load_test(AlgoType algoType, TestType testType, int k, Object param, Double threshold, 
+			int clients_arr[], double arrival_rate, long duration_ms) throws Exception {
+		/* Load test of an algo: for each client count in clients_arr, run its
+		 * queries from that many threads for duration_ms, after a warmup of a
+		 * tenth of it; closed loop if arrival_rate is 0, else open loop at
+		 * arrival_rate queries per second. BASE is preprocessed with threshold
+		 * first; the other algos compute online with param. k is for top-k algo.
+		 */
+
+		LongConsumer query = newQuery(algoType, testType, k, param, threshold);
+		if (query == null)
+			return;
+		Load_Test load_t = new Load_Test(query, getQueryNodes(LOAD_QUERY_NODE_AMOUNT, new Random(query_seed)));
+
+		boolean isOwnResults = (perf_results == null); // not run from a batch
+		if (isOwnResults) {
+			perf_run = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()); // current time
+			perf_results = new Perf_Results(dir_db + "_AlgoPerfResults");
+		}
+		try {
+			System.out.println("\nLoad testing " + algoType + " for " + duration_ms / 1000 + "(s) per client count");
+			for (int clients : clients_arr) {
+				if (result_cache != null)
+					result_cache.resetStats();
+				Load_Test.Report report = load_t.run(clients, arrival_rate, duration_ms / 10, duration_ms);
+				System.out.println(report);
+				if (result_cache != null)
+					System.out.println("Result " + result_cache);
+
+				perf_results.write(new Perf_Results.Row()
+						.set("run", perf_run)
+						.set("graph", dir_db)
+						.set("test", "load")
+						.set("algo", algoType.name())
+						.set("param", (algoType == AlgoType.BASE_WHOLE_GRAPH) ? null : param)
+						.set("threshold", (algoType == AlgoType.BASE_WHOLE_GRAPH) ? threshold : null)
+						.set("k", (testType == TestType.TOPK) ? k : null)
+						.set("queries", report.queries)
+						.set("seed", query_seed)
+						.setLatencies(report.latency_ns)
+						.set("clients", clients)
+						.set("arrival_qps", (arrival_rate > 0) ? arrival_rate : null)
+						.set("qps", report.getQPS())
+						.set("errors", report.errors)
+						.set("cpu_util", (report.cpu_util < 0) ? null : report.cpu_util)
+						.set("cpu_us_per_query", (report.cpu_us_per_query < 0) ? null : report.cpu_us_per_query)
+						.set("cache_hit_rate", (result_cache == null) ? null : result_cache.getHitRate()));
+			}
+		}
+		finally {
+			if (isOwnResults) {
+				perf_results.close();
+				perf_results = null;
+			}
+		}
+	}
+
+	private long findNodeId(String node_value) {
+		// the id of the node with node_value through the index on node_label(node_property); -1 if there's none
+
+		Node node = graphDb.findNode(node_label, node_property, node_value);
+		if (node == null && node_value.matches("-?\\d+")) // the property might be numeric
+			node = graphDb.findNode(node_label, node_property, Long.parseLong(node_value));
+		return (node == null) ? -1 : node.getId();
+	}
+
+	public void algo_replay_test(File trace_file, int clients, double speed) throws Exception {
+		/* Replay the queries of a trace (see Trace_Replay) from clients threads,
+		 * at speed times the recorded rate or as fast as possible if speed is 0,
+		 * and report the latency of each request class. Source nodes are resolved
+		 * by their node_property value; queries of nodes not found, or of algos
+		 * that can't run them, are dropped. Each class gets its own algo object,
+		 * all on the loaded graph, and the first warmup_num queries of the trace
+		 * are run once untimed before the replay, with result_cache cleared after.
+		 */
+
+		List<Trace_Replay.Request> requests_t = Trace_Replay.read(trace_file);
+		System.out.println("\nRead " + requests_t.size() + " queries from trace " + trace_file.getPath());
+
+		// resolve the source nodes
+		HashMap<String, Long> nodeIds_resolved = new HashMap<>(); // (node_property value, node id)
+		try ( Transaction tx = graphDb.beginTx() ) {
+			for (Trace_Replay.Request request : requests_t)
+				if (!nodeIds_resolved.containsKey(request.node_value))
+					nodeIds_resolved.put(request.node_value, findNodeId(request.node_value));
+			tx.success();
+		}
+
+		// set up the algo of each request class
+		HashMap<String, LongConsumer> class_queries = new HashMap<>(); // (class name, its query); null if unsupported
+		for (Trace_Replay.Request request : requests_t) {
+			String name = request.getClassName();
+			if (class_queries.containsKey(name))
+				continue;
+			LongConsumer query = null;
+			try {
+				AlgoType algoType = AlgoType.valueOf(request.algo);
+				TestType testType = (request.k < 0) ? TestType.WHOLE_GRAPH : TestType.TOPK;
+				Object param = parseParam(algoType, request.param);
+				if (algoType == AlgoType.BASE_WHOLE_GRAPH) // param is the threshold of BASE
+					query = newQuery(algoType, testType, request.k, -1, (Double)param);
+				else
+					query = newQuery(algoType, testType, request.k, param, -1.0);
+			}
+			catch (IllegalArgumentException e) { // unknown algo or invalid param
+				System.out.println("Invalid request class " + name + ": " + e.getMessage());
+			}
+			class_queries.put(name, query);
+		}
+
+		List<Trace_Replay.Request> requests = new ArrayList<>(requests_t.size());
+		for (Trace_Replay.Request request : requests_t)
+			if (nodeIds_resolved.get(request.node_value) >= 0 && class_queries.get(request.getClassName()) != null)
+				requests.add(request);
+		long nodeIds_start[] = new long[requests.size()];
+		LongConsumer queries[] = new LongConsumer[requests.size()];
+		for (int i = 0; i < requests.size(); i++) {
+			nodeIds_start[i] = nodeIds_resolved.get(requests.get(i).node_value);
+			queries[i] = class_queries.get(requests.get(i).getClassName());
+		}
+		System.out.println("Replaying " + requests.size() + " queries (" + (requests_t.size() - requests.size()) 
+				+ " dropped) with " + clients + " clients at "
+				+ ((speed > 0) ? speed + "x the recorded rate" : "full speed"));
+
+		// warm up
+		for (int i = 0; i < Math.min(warmup_num, requests.size()); i++)
+			queries[i].accept(nodeIds_start[i]);
+		if (result_cache != null) { // the replay must not hit the results of the warmup, which runs the same queries
+			result_cache.invalidateAll();
+			result_cache.resetStats();
+		}
+
+		Trace_Replay.Report report = new Trace_Replay(requests, nodeIds_start, queries).run(clients, speed);
+		System.out.println("\nReplay completed in " + report.duration_ns / 1000000 + "(ms)"
+				+ "\nAll queries: " + report.latency_ns.getCount() + " queries, " + latencySummary(report.latency_ns));
+		if (result_cache != null)
+			System.out.println("Result " + result_cache);
+
+		boolean isOwnResults = (perf_results == null); // not run from a batch
+		if (isOwnResults) {
+			perf_run = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()); // current time
+			perf_results = new Perf_Results(dir_db + "_AlgoPerfResults");
+		}
+		try {
+			for (int i = 0; i < requests.size(); i++) {
+				Trace_Replay.Request request = requests.get(i);
+				Trace_Replay.Class_Report class_report = report.classes.remove(request.getClassName());
+				if (class_report == null) // reported already
+					continue;
+				long count = class_report.latency_ns.getCount(); // without the failed ones
+				System.out.println(request.getClassName() + ": " + count + " queries, " 
+						+ class_report.errors.sum() + " errors, " + latencySummary(class_report.latency_ns));
+
+				boolean isBase = request.algo.equals(AlgoType.BASE_WHOLE_GRAPH.name());
+				perf_results.write(new Perf_Results.Row()
+						.set("run", perf_run)
+						.set("graph", dir_db)
+						.set("test", "replay")
+						.set("algo", request.algo)
+						.set("param", isBase ? null : request.param)
+						.set("threshold", isBase ? request.param : null)
+						.set("k", (request.k < 0) ? null : request.k)
+						.set("queries", count)
+						.set("warmup", warmup_num)
+						.setLatencies(class_report.latency_ns)
+						.set("clients", clients)
+						.set("arrival_qps", (speed > 0 && class_report.recorded_span_ms > 0) 
+								? count * 1000.0 * speed / class_report.recorded_span_ms : null)
+						.set("qps", count * 1.0e9 / report.duration_ns)
+						.set("errors", class_report.errors.sum())
+						.set("cache_hit_rate", (result_cache == null) ? null : result_cache.getHitRate()));
+			}
+		}
+		finally {
+			if (isOwnResults) {
+				perf_results.close();
+				perf_results = null;
+			}
+		}
+	}
+
+	private static String latencySummary(Log_Histogram latency_ns) { // percentiles of the query latencies in us
+		return String.format("Latency (us): p50 %.1f, p90 %.1f, p99 %.1f, p999 %.1f, max %.1f",
+				latency_ns.getValueAtPercentile(50.0) / 1000.0, latency_ns.getValueAtPercentile(90.0) / 1000.0,
+				latency_ns.getValueAtPercentile(99.0) / 1000.0, latency_ns.getValueAtPercentile(99.9) / 1000.0,
+				latency_ns.getMax() / 1000.0);
 	}
 
-	private Double computeError(Object algo, Power_Method pm, ErrType err_type, int k) { 
+	@SuppressWarnings("unchecked")
+	private Double computeError(Object algo_res, Power_Method pm, ErrType err_type, int k) { 
 		/* Compute error between ground truth and ppr result of each algorithm.
+		 * algo_res is the top-k node ids (Vector<Long>) for PRECISION & NDCG, and
+		 * the whole-graph pprs (HashMap<Long, Double>) for MAX_ERR.
 		 * k is for top-k algo 
 		 */
 		if (err_type == ErrType.PRECISION || err_type == ErrType.NDCG) { // compute error for top-k algo
 			Vector<Long> gnd_topk_nodeIds = pm.getTopKNodeIds(k);
 			if (gnd_topk_nodeIds == null) // get ground truth top-k node ids failed
 				return null;
-			Vector<Long> algo_topk_nodeIds = ((Topk_Util_Interface)algo).getTopKNodeIds(k);
+			Vector<Long> algo_topk_nodeIds = (Vector<Long>)algo_res;
 			if (algo_topk_nodeIds == null) // get algo's top-k node ids failed
 				return null;
 
@@ -306,7 +684,7 @@ public class Gen_Util { // defines general functions for algo performance tests
 		else if (err_type == ErrType.MAX_ERR){ // compute the max error of |pi(s, v) - pi'(s, v)| among all nodes v
 			Double maxErr = 0.0;
 			HashMap<Long, Double> gnd_ppr_res = pm.getWholeGraphPPR(); // ground truth ppr results computed by power method
-			HashMap<Long, Double> algo_ppr_res = ((Whole_Graph_Util_Interface)algo).getWholeGraphPPR(); // estimated ppr results computed by algo
+			HashMap<Long, Double> algo_ppr_res = (HashMap<Long, Double>)algo_res; // estimated ppr results computed by algo
 
 			for (Map.Entry<Long, Double> gnd_entry : gnd_ppr_res.entrySet()) {
 				Long nodeId = gnd_entry.getKey();
@@ -325,324 +703,121 @@ public class Gen_Util { // defines general functions for algo performance tests
 		}
 	}
 
-	public void algo_perf_batch_test(int query_num, int k) throws Exception { 
-		algo_perf_result_file_name = dir_db + "_AlgoPerfResults.txt";
-		/* perform algo tests of all kinds in batches
-		 * k for top-k algo
+	public void algo_perf_batch_test(String sweep, int query_num, int k) throws Exception { 
+		/* Run the cells of a sweep config (see Sweep_Config) on the loaded graph;
+		 * query_num & k are used unless the config sets them. Up to concurrency
+		 * cells run at once, each on a pool of its own threads, so they share the
+		 * graph but not their thread budgets; their latencies are only comparable
+		 * if the machine has cores for all of them. Cells writing the same
+		 * preprocessing directory run one after another. A finished cell is
+		 * appended to <dir_db>_<sweep name>.checkpoint with the run-wide settings
+		 * (see getRunSettings), and the cells listed there with the same settings
+		 * are skipped, so an interrupted sweep resumes where it stopped; delete
+		 * the file to run the sweep from scratch. The query seed is saved in the
+		 * checkpoint too, and a sweep resumed without a seed given reuses it, so
+		 * the resumed cells query the same nodes as the finished ones.
 		 */
 
-		// Testset1. parameters for BlogCatalog
-		/*
-		// parameters for whole-graph
-		Double threshold_arr_base_whole_graph[] = {0.001, 7.0E-4, 5.0E-4, 1.0E-4, 5.0E-5}; // for BASE
-		Double epsilon_arr_fora_whole_graph[] = {50.0, 10.0, 5.0, 1.0, 0.5}; // for FORA-Whole-Graph
-		Double epsilon_arr_mc_whole_graph[] = {5.0, 1.0, 0.7, 0.5, 0.3}; // for Monte-Carlo
-		Double rmax_arr_whole_graph[] = {1.0E-6, 7.0E-7, 5.0E-7, 3.0E-7, 1.0E-7}; // for Forward Push
-		Integer iteration_arr_whole_graph[] = {1, 5, 10, 40, 100}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_whole_graph[] = {-1}; // for BASE
-		
-		
-		// parameters for top-k
-		Double threshold_arr_base_topk[] = {0.001, 7.0E-4, 5.0E-4, 1.0E-4, 5.0E-5}; // for BASE
-		Double epsilon_arr_fora_topk[] = {1.0, 0.5, 0.1, 0.05, 0.01}; // for FORA-Topk
-		Double epsilon_arr_mc_topk[] = {5.0, 1.0, 0.5, 0.1, 0.05}; // for Monte-Carlo
-		Double rmax_arr_topk[] = {1.0E-6, 5.0E-7, 1.0E-7, 5.0E-8, 1.0E-8}; // for Forward Push
-		Integer iteration_arr_topk[] = {1, 5, 10, 40, 100}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_topk[] = {-1}; // for BASE
-
-
-		// parameters for preprocessing
-		Double threshold_arr_base_prep[] = {0.001, 7.0E-4, 5.0E-4, 1.0E-4, 5.0E-5}; // for BASE
-		Double threshold_arr_other_prep[] = {-1.0}; // for other preprocessing algo
-		Double epsilon_arr_fora_prep[] = {50.0, 10.0, 5.0, 1.0, 0.5}; // for FORA-Whole-Graph
-		Double epsilon_arr_mc_prep[] = {5.0, 1.0, 0.7, 0.5, 0.3}; // for Monte-Carlo
-		Double rmax_arr_prep[] = {1.0E-6, 7.0E-7, 5.0E-7, 3.0E-7, 1.0E-7}; // for Forward Push
-		Integer iteration_arr_prep[] = {1, 5, 10, 40, 100}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_prep[] = {-1}; // for BASE
-		*/
-		
-		// Testset2. parameters for Flickr
-		/*
-		// parameters for top-k
-		Double threshold_arr_base_topk[] = {5.0E-4, 3.0E-4, 1.0E-4, 7.0E-5, 5.0E-5}; // for BASE
-		Double epsilon_arr_fora_topk[] = {50.0, 10.0, 1.0, 0.1, 0.05}; // for FORA-Topk
-		Double epsilon_arr_mc_topk[] = {5.0, 1.0, 0.3, 0.1, 0.05}; // for Monte-Carlo
-		Double rmax_arr_topk[] = {5.0E-7, 1.0E-7, 5.0E-8, 1.0E-8, 5.0E-9}; // for Forward Push
-		Integer iteration_arr_topk[] = {5, 10, 40, 100, 200}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_topk[] = {-1}; // for BASE
-		
-		
-		// parameters for preprocessing
-		Double threshold_arr_base_prep[] = {0.01, 0.005, 0.001, 7.0E-4, 5.0E-4, 1.0E-4, 7.0E-5, 5.0E-5, 3.0E-5, 1.0E-5}; // for BASE
-		Double epsilon_arr_fora_prep[] = {500.0, 200.0, 100.0, 20.0, 10.0}; // for FORA-Whole-Graph
-		Double rmax_arr_prep[] = {5.0E-5, 1.0E-5, 5.0E-6, 1.0E-6, 7.0E-7}; // for Forward Push
-		Integer iteration_arr_prep[] = {1, 5, 10, 40, 100}; // for Neo4j Method
-		Double epsilon_arr_mc_prep[] = {20.0, 10.0, 7.0, 5.0, 3.0}; // for Monte-Carlo
-		 
-		
-		// parameters for whole-graph
-		Double epsilon_arr_fora_whole_graph[] = {500.0, 50.0, 10.0, 5.0, 3.0, 1.0, 0.5}; // for FORA-Whole-Graph
-		Double rmax_arr_whole_graph[] = {5.0E-5, 1.0E-6, 5.0E-8, 1.0E-8, 5.0E-9}; // for Forward Push
-		Integer iteration_arr_whole_graph[] = {1, 5, 10, 40, 100}; // for Neo4j Method
-		Double epsilon_arr_mc_whole_graph[] = {10.0, 5.0, 1.0, 0.5, 0.3}; // for Monte-Carlo
-		Double threshold_arr_base_whole_graph[] = {0.005, 0.001, 5.0E-4, 1.0E-4, 7.0E-5}; // for BASE
-		*/ 
-		
-		// Testset3. parameters for grqc
-		/*
-		// parameters for top-k
-		Double threshold_arr_base_topk[] = {0.001, 5.0E-4, 5.0E-5, 1.0E-7, 5.0E-8}; // for BASE
-		Double epsilon_arr_fora_topk[] = {10.0, 0.5, 0.1, 0.01, 0.001}; // for FORA-Whole-Graph
-		Double epsilon_arr_mc_topk[] = {3.0, 1.0, 0.2, 0.1, 0.05}; // for Monte-Carlo
-		Double rmax_arr_topk[] = {1.0E-4, 1.0E-6, 5.0E-8, 7.0E-9, 7.0E-10}; // for Forward Push
-		Integer iteration_arr_topk[] = {5, 40, 300, 500, 1000}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_topk[] = {-1}; // for BASE
-				
-				
-		// parameters for whole-graph
-		Double epsilon_arr_fora_whole_graph[] = {10.0, 5.0, 0.5, 0.1, 0.05}; // for FORA-Whole-Graph
-		Double rmax_arr_whole_graph[] = {1.0E-4, 1.0E-5, 1.0E-6, 1.0E-7, 1.0E-8}; // for Forward Push
-		Integer iteration_arr_whole_graph[] = {5, 40, 100, 200, 300}; // for Neo4j Method
-		Double epsilon_arr_mc_whole_graph[] = {1.0, 0.5, 0.3, 0.1, 0.05}; // for Monte-Carlo
-		Double threshold_arr_base_whole_graph[] = {0.001, 5.0E-4, 5.0E-5, 1.0E-6, 5.0E-7}; // for BASE
-		Integer dummy_whole_graph_k_arr_whole_graph[] = {-1}; // for BASE
-		
-		
-		// parameters for preprocessing
-		Double epsilon_arr_fora_prep[] = {10.0, 5.0, 0.5, 0.3, 0.1}; // for FORA-Whole-Graph
-		Double rmax_arr_prep[] = {1.0E-4, 1.0E-5, 1.0E-6, 5.0E-7, 1.0E-7}; // for Forward Push
-		Integer iteration_arr_prep[] = {5, 40, 100, 200, 300}; // for Neo4j Method
-		Double epsilon_arr_mc_prep[] = {1.0, 0.5, 0.3, 0.2, 0.1}; // for Monte-Carlo
-		Double threshold_arr_base_prep[] = {0.001, 5.0E-4, 5.0E-5, 1.0E-6, 5.0E-7}; // for BASE
-		Integer dummy_whole_graph_k_arr_prep[] = {-1}; // for BASE
-		Double threshold_arr_other_prep[] = {-1.0}; // for other preprocessing algo
-		*/
-		
-		// Testset4. parameters for amazon
-		/*
-		// parameters for top-k
-		Double threshold_arr_base_topk[] = {1.0E-3, 5.0E-4, 1.0E-4, 5.0E-5}; // for BASE
-		Double epsilon_arr_fora_topk[] = {50.0, 10.0, 5.0, 1.0, 0.5}; // for FORA-Topk
-		Double epsilon_arr_mc_topk[] = {10.0, 5.0, 1.0, 0.5, 0.3}; // for Monte-Carlo
-		Double rmax_arr_topk[] = {5.0E-5, 1.0E-5, 5.0E-6, 1.0E-6, 5.0E-7}; // for Forward Push
-		Integer iteration_arr_topk[] = {5, 10, 100, 200, 300}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_topk[] = {-1}; // for BASE
-		
-		
-		// parameters for whole-graph
-		Double threshold_arr_base_whole_graph[] = {1.0E-4, 5.0E-5, 4.0E-5, 3.0E-5, 2.0E-5}; // for BASE
-		Double epsilon_arr_fora_whole_graph[] = {50.0, 10.0, 5.0, 3.0, 1.0}; // for FORA-Whole-Graph
-		Double epsilon_arr_mc_whole_graph[] = {1.0, 0.7, 0.5, 0.3, 0.1}; // for Monte-Carlo
-		Double rmax_arr_whole_graph[] = {1.0E-6, 5.0E-7, 3.0E-7, 5.0E-8, 1.0E-8}; // for Forward Push
-		Integer iteration_arr_whole_graph[] = {1, 5, 10, 40, 100}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_whole_graph[] = {-1}; // for BASE
-		
-		
-		// parameters for preprocessing
-		Double epsilon_arr_fora_prep[] = {500.0, 200.0, 70.0, 50.0, 30.0}; // for FORA-Whole-Graph
-		Double threshold_arr_base_prep[] = {}; // for BASE
-		Double epsilon_arr_mc_prep[] = {50.0, 20.0, 10.0, 7.0, 5.0}; // for Monte-Carlo
-		Double rmax_arr_prep[] = {1.0E-5, 5.0E-5, 1.0E-6, 5.0E-7, 3.0E-7}; // for Forward Push
-		Integer iteration_arr_prep[] = {1}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_prep[] = {-1}; // for BASE
-		Double threshold_arr_other_prep[] = {-1.0}; // for other preprocessing algo
-		*/
-		
-		// Testset5. parameters for GOT
-		
-		// parameters for top-k
-		Double threshold_arr_base_topk[] = {0.001, 5.0E-4, 5.0E-5, 1.0E-6, 5.0E-7}; // for BASE
-		Double epsilon_arr_fora_topk[] = {10.0, 5.0, 0.5, 0.1, 0.05}; // for FORA-Whole-Graph
-		Double epsilon_arr_mc_topk[] = {1.0, 0.5, 0.3, 0.1, 0.05}; // for Monte-Carlo
-		Double rmax_arr_topk[] = {1.0E-4, 1.0E-5, 1.0E-6, 1.0E-7, 1.0E-8}; // for Forward Push
-		Integer iteration_arr_topk[] = {5, 40, 100, 200, 300}; // for Neo4j Method
-		Integer dummy_whole_graph_k_arr_topk[] = {-1}; // for BASE
-				
-				
-		// parameters for whole-graph
-		Double epsilon_arr_fora_whole_graph[] = {10.0, 5.0, 0.5, 0.1, 0.05}; // for FORA-Whole-Graph
-		Double rmax_arr_whole_graph[] = {1.0E-4, 1.0E-5, 1.0E-6, 1.0E-7, 1.0E-8}; // for Forward Push
-		Integer iteration_arr_whole_graph[] = {5, 40, 100, 200, 300}; // for Neo4j Method
-		Double epsilon_arr_mc_whole_graph[] = {1.0, 0.5, 0.3, 0.1, 0.05}; // for Monte-Carlo
-		Double threshold_arr_base_whole_graph[] = {0.001, 5.0E-4, 5.0E-5, 1.0E-6, 5.0E-7}; // for BASE
-		Integer dummy_whole_graph_k_arr_whole_graph[] = {-1}; // for BASE
-		
-		
-		// parameters for preprocessing
-		Double epsilon_arr_fora_prep[] = {10.0, 5.0, 0.5, 0.1, 0.05}; // for FORA-Whole-Graph
-		Double rmax_arr_prep[] = {1.0E-4, 1.0E-5, 1.0E-6, 1.0E-7, 1.0E-8}; // for Forward Push
-		Integer iteration_arr_prep[] = {5, 40, 100, 200, 300}; // for Neo4j Method
-		Double epsilon_arr_mc_prep[] = {1.0, 0.5, 0.3, 0.1, 0.05}; // for Monte-Carlo
-		Double threshold_arr_base_prep[] = {0.001, 5.0E-4, 5.0E-5, 1.0E-6, 5.0E-7}; // for BASE
-		Integer dummy_whole_graph_k_arr_prep[] = {-1}; // for BASE
-		Double threshold_arr_other_prep[] = {-1.0}; // for other preprocessing algo
-		
-		
-		// algo classifications
-		AlgoType preprocessingAlgos[] = {
-				AlgoType.FORA_WHOLE_GRAPH, 
-				AlgoType.FWDPUSH, 
-				AlgoType.NEO4J_METHOD,
-				AlgoType.MC, 
-				AlgoType.BASE_WHOLE_GRAPH
-		};
-		AlgoType wholeGraphAlgos[] = {
-				AlgoType.FORA_WHOLE_GRAPH, 
-				AlgoType.FWDPUSH, 
-				AlgoType.NEO4J_METHOD,
-				AlgoType.MC, 
-				AlgoType.BASE_WHOLE_GRAPH
-		};
-		AlgoType topKAlgos[] = {
-				AlgoType.FORA_TOPK, 
-				AlgoType.FWDPUSH, 
-				AlgoType.NEO4J_METHOD,
-				AlgoType.MC, 
-				AlgoType.BASE_WHOLE_GRAPH
-		};
-
-		// 1. open AlgoPerfResults.txt to store performance results
-		fw = new FileWriter(algo_perf_result_file_name, true);
-
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		fw.write(sdf.format(new Date()) + "\n"); // write current time
-
-		fw.close();
-
-		// 2. tests
-		
-		// Test 1. Whole-Graph test
-		fw = new FileWriter(algo_perf_result_file_name, true);
-		fw.write("\nTest 1. Whole-Graph test\n");
-		fw.close();
-		for (Integer i = 0; i < wholeGraphAlgos.length; i++) {
-			AlgoType algoType = wholeGraphAlgos[i];
-			Object param_arr[] = null;
-			if (algoType == AlgoType.MC)
-				param_arr = epsilon_arr_mc_whole_graph;
-			else if (algoType == AlgoType.FORA_WHOLE_GRAPH)
-				param_arr = epsilon_arr_fora_whole_graph;
-			else if (algoType == AlgoType.FWDPUSH)
-				param_arr = rmax_arr_whole_graph;
-			else if (algoType == AlgoType.NEO4J_METHOD)
-				param_arr = iteration_arr_whole_graph;
-			else if (algoType == AlgoType.BASE_WHOLE_GRAPH)
-				param_arr = dummy_whole_graph_k_arr_whole_graph;
-			else {
-				System.out.println("Invalid algo type!");
-				return;
-			}
-
-			Integer idx = i + 1;
-			fw = new FileWriter(algo_perf_result_file_name, true);
-			fw.write("\n1." + idx + " " + algoType + "\n");
-			fw.close();
-			if (algoType == AlgoType.BASE_WHOLE_GRAPH) {
-
-				for (Double thres : threshold_arr_base_whole_graph) {
-					fw = new FileWriter(algo_perf_result_file_name, true);
-					algo_perf_test(algoType, query_num, -1, -1, thres, false, TestType.WHOLE_GRAPH);
-					fw.close();
-				}
-			}
-			else {
+		Sweep_Config config = Sweep_Config.load(sweep);
+		List<Sweep_Config.Cell> cells = config.getCells(dir_db, query_num, k, 
+				(mc_pool == null) ? 1 : mc_pool.getParallelism());
+		if (cells.isEmpty()) {
+			System.out.println("\nSweep " + sweep + " has no cells on graph " + dir_db + " (it covers " + config.getGraphs() + ")");
+			return;
+		}
 
-				for (Object param : param_arr) {
-					fw = new FileWriter(algo_perf_result_file_name, true);
-					algo_perf_test(algoType, query_num, -1, param, -1.0, false, TestType.WHOLE_GRAPH);
-					fw.close();
-				}
+		// 1. skip the cells finished before
+		File checkpointFile = new File(dir_db + "_" + new File(sweep).getName().replaceFirst("\\.[^.]*$", "") + ".checkpoint");
+		Set<String> finished = new HashSet<>();
+		Long seed_saved = null; // the seed of the last run of the sweep
+		if (checkpointFile.exists())
+			for (String line : Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8)) {
+				if (line.startsWith(CHECKPOINT_SEED))
+					seed_saved = Long.valueOf(line.substring(CHECKPOINT_SEED.length()));
+				else
+					finished.add(line);
 			}
+		if (!isSeedSet && seed_saved != null && seed_saved != query_seed) {
+			query_seed = seed_saved;
+			System.out.println("\nResuming with the query seed " + query_seed + " saved in " + checkpointFile.getPath());
 		}
-
-
-		// Test 2. Top-k test
-		fw = new FileWriter(algo_perf_result_file_name, true);
-		fw.write("\nTest 2. Top-k test\n");
-		fw.close();
-		for (Integer i = 0; i < topKAlgos.length; i++) {
-			AlgoType algoType = topKAlgos[i];
-			Object param_arr[] = null;
-			if (algoType == AlgoType.MC)
-				param_arr = epsilon_arr_mc_topk;
-			else if (algoType == AlgoType.FORA_TOPK)
-				param_arr = epsilon_arr_fora_topk;
-			else if (algoType == AlgoType.FWDPUSH)
-				param_arr = rmax_arr_topk;
-			else if (algoType == AlgoType.NEO4J_METHOD)
-				param_arr = iteration_arr_topk;
-			else if (algoType == AlgoType.BASE_WHOLE_GRAPH)
-				param_arr = dummy_whole_graph_k_arr_topk;
-			else {
-				System.out.println("Invalid algo type!");
-				return;
+		String settings = getRunSettings();
+		List<Sweep_Config.Cell> cells_todo = new ArrayList<>();
+		for (Sweep_Config.Cell cell : cells)
+			if (!finished.contains(cell.getKey() + "\t" + settings))
+				cells_todo.add(cell);
+		System.out.println("\nSweep " + sweep + ": " + cells.size() + " cells, " + (cells.size() - cells_todo.size()) 
+				+ " of them finished before (" + checkpointFile.getPath() + "), " + config.getConcurrency() + " running at once");
+
+		// 2. open <dir_db>_AlgoPerfResults.csv & .jsonl to store performance results
+		perf_run = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()); // current time
+		perf_results = new Perf_Results(dir_db + "_AlgoPerfResults");
+		ExecutorService executor = Executors.newFixedThreadPool(config.getConcurrency());
+		ConcurrentHashMap<String, Object> prepDirLocks = new ConcurrentHashMap<>(); // (preprocessing directory key, its lock)
+
+		try (PrintWriter checkpoint = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(checkpointFile, true), StandardCharsets.UTF_8))) {
+			if (seed_saved == null || seed_saved != query_seed) {
+				checkpoint.println(CHECKPOINT_SEED + query_seed);
+				checkpoint.flush();
 			}
+			
+			// 3. tests
+			List<Future<?>> futures = new ArrayList<>();
+			for (Sweep_Config.Cell cell : cells_todo)
+				futures.add(executor.submit(() -> {
+					String prepDirKey = cell.getPrepDirKey();
+					if (prepDirKey == null)
+						runCell(cell);
+					else
+						synchronized (prepDirLocks.computeIfAbsent(prepDirKey, key -> new Object())) {
+							runCell(cell);
+						}
+					synchronized (checkpoint) {
+						checkpoint.println(cell.getKey() + "\t" + settings);
+						checkpoint.flush();
+					}
+					return null;
+				}));
 
-			Integer idx = i + 1;
-			fw = new FileWriter(algo_perf_result_file_name, true);
-			fw.write("\n2." + idx + " " + algoType + "\n");
-			fw.close();
-			if (algoType == AlgoType.BASE_WHOLE_GRAPH) {
-				for (Double thres : threshold_arr_base_topk) {
-					fw = new FileWriter(algo_perf_result_file_name, true);
-					algo_perf_test(algoType, query_num, k, -1, thres, false, TestType.TOPK);
-					fw.close();
+			int failed = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
 				}
-			}
-			else {
-				for (Object param : param_arr) {
-					fw = new FileWriter(algo_perf_result_file_name, true);
-					algo_perf_test(algoType, query_num, k, param, -1.0, false, TestType.TOPK);
-					fw.close();
+				catch (ExecutionException e) { // the other cells go on; this one is run again when the sweep resumes
+					failed++;
+					System.out.println("Test of " + cells_todo.get(i) + " failed!");
+					e.getCause().printStackTrace();
 				}
 			}
+			System.out.println("\nSweep " + sweep + " completed: " + (cells_todo.size() - failed) + " cells run, " 
+					+ failed + " failed");
 		}
+		finally {
+			executor.shutdownNow();
+			perf_results.close();
+			perf_results = null;
+		}
+	}
 
+	private String getRunSettings() {
+		// the settings of a batch which change the results of every cell; a cell finished with other ones is run again
 
-		// Test 3. Preprocessing test
-		fw = new FileWriter(algo_perf_result_file_name, true);
-		fw.write("\nTest 3. Preprocessing test\n");
-		fw.close();
-		for (Integer i = 0; i < preprocessingAlgos.length; i++) {
-			AlgoType algoType = preprocessingAlgos[i];
-			Object param_arr[] = null;
-			if (algoType == AlgoType.MC)
-				param_arr = epsilon_arr_mc_prep;
-			else if (algoType == AlgoType.FORA_WHOLE_GRAPH)
-				param_arr = epsilon_arr_fora_prep;
-			else if (algoType == AlgoType.FWDPUSH)
-				param_arr = rmax_arr_prep;
-			else if (algoType == AlgoType.NEO4J_METHOD)
-				param_arr = iteration_arr_prep;
-			else if (algoType == AlgoType.BASE_WHOLE_GRAPH)
-				param_arr = dummy_whole_graph_k_arr_prep;
-			else {
-				System.out.println("Invalid algo type!");
-				return;
-			}
-
-			Integer idx = i + 1;
-			fw = new FileWriter(algo_perf_result_file_name, true);
-			fw.write("\n3." + idx + " " + algoType + "\n");
-			fw.close();
+		return "alpha=" + alpha + "\tseed=" + query_seed + "\twarmup=" + warmup_num + "\tscore_bits=" + prep_score_bits
+				+ "\tpm_tolerance=" + pm_tolerance + "\twalk_index=" 
+				+ ((walk_index == null) ? "none" : walk_index.getWalkAmount() + " walks, rmax " + walk_index.getRmax());
+	}
 
-			if (algoType == AlgoType.BASE_WHOLE_GRAPH) {
-				for (Double thres : threshold_arr_base_prep) {
-					fw = new FileWriter(algo_perf_result_file_name, true);
-					algo_perf_test(algoType, query_num, -1, -1, thres, true, TestType.WHOLE_GRAPH);
-					fw.close();
-				}
-			}
-			else { // for other preprocessing algo
-				for (Object param : param_arr) {
-					for (Double thres : threshold_arr_other_prep) {
-						fw = new FileWriter(algo_perf_result_file_name, true);
-						algo_perf_test(algoType, query_num, -1, param, thres, true, TestType.WHOLE_GRAPH);
-						fw.close();
-					}
-				}
-			}
+	private void runCell(Sweep_Config.Cell cell) throws Exception { // run a cell of a sweep on a pool of its thread budget
+		ForkJoinPool pool = (cell.threads > 1) ? new ForkJoinPool(cell.threads) : null;
+		try {
+			algo_perf_test(cell.algo, cell.queries, cell.k, cell.param, cell.threshold, cell.test.equals("preprocessing"), 
+					cell.test.equals("topk") ? TestType.TOPK : TestType.WHOLE_GRAPH, pool);
+		}
+		finally {
+			if (pool != null)
+				pool.shutdown();
 		}
-
 	}
 }
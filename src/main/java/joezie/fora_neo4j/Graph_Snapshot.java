@@ -0,0 +1,212 @@
+package joezie.fora_neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class Graph_Snapshot { // versioned binary file of a CSR_Graph, loaded back through memory mapping
+	/* File layout (little-endian):
+	 *   header (HEADER_SIZE bytes): magic, version, node_amount, edge_amount, rel_amount, file_size,
+	 *     store_creation_time, store_random_id, checksum
+	 *   sections, each starting at an 8-byte aligned offset:
+	 *     out_offsets int[n + 1], out_targets int[m], out_degrees int[n],
+	 *     in_offsets int[n + 1], in_sources int[m], dangling long[(n + 63) / 64],
+	 *     original_ids long[n], sorted_original_ids long[n], sorted_mapped_ids int[n]
+	 * The sections are mapped read-only, so every JVM loading the same file
+	 * shares its pages in the OS page cache instead of holding a private copy.
+	 * The store id of graphDb and its node & relationship counts at the export
+	 * are kept in the header and checked by matches before the snapshot is used
+	 * for a database, so a snapshot of another database, or of an older state
+	 * of it with other counts, is refused instead of mapping node ids wrongly.
+	 * The checksum of the graph (CSR_Graph.getChecksum) is kept too, so files
+	 * keyed by it don't need a pass over the mapped sections.
+	 */
+
+	private static final long MAGIC = 0x315253435F525050L; // bytes "PPR_CSR1" read as a little-endian long
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 64;
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private CSR_Graph csr; // the loaded graph
+	private int rel_amount; // the number of relationships in graphDb when the snapshot was exported
+	private long store_creation_time; // the store id of graphDb
+	private long store_random_id;
+
+	private Graph_Snapshot(CSR_Graph csr, int rel_amount, long store_creation_time, long store_random_id) {
+		this.csr = csr;
+		this.rel_amount = rel_amount;
+		this.store_creation_time = store_creation_time;
+		this.store_random_id = store_random_id;
+	}
+
+	public CSR_Graph getGraph() {
+		return csr;
+	}
+
+	public int getRelAmount() {
+		return rel_amount;
+	}
+
+	public String matches(long node_amount, long rel_amount, long store_creation_time, long store_random_id) {
+		// null if the snapshot was exported from a database with this store id & these counts, else why not
+
+		if (store_creation_time != this.store_creation_time || store_random_id != this.store_random_id)
+			return "it was exported from another database";
+		if (node_amount != csr.nodeCount() || rel_amount != this.rel_amount)
+			return "it has " + csr.nodeCount() + " nodes & " + this.rel_amount + " relationships, the database "
+					+ node_amount + " & " + rel_amount;
+		return null;
+	}
+
+	private static long align(long offset) { // round offset up to a multiple of 8
+		return (offset + 7) & ~7L;
+	}
+
+	private static long[] sectionSizes(int node_amount, int edge_amount) { // size in bytes of each section
+		long n = node_amount, m = edge_amount;
+		return new long[] {
+				(n + 1) * 4, m * 4, n * 4,
+				(n + 1) * 4, m * 4, (long)CSR_Graph.danglingLength(node_amount) * 8,
+				n * 8, n * 8, n * 4 };
+	}
+
+	public static void export(CSR_Graph csr, int rel_amount, long store_creation_time, long store_random_id,
+			File file) throws IOException {
+		// write csr together with rel_amount & the store id of graphDb into file, replacing the existing one
+
+		long sizes[] = sectionSizes(csr.nodeCount(), csr.relCount());
+		long file_size = HEADER_SIZE;
+		for (long size : sizes)
+			file_size = align(file_size) + size;
+
+		File tmp_file = new File(file.getPath() + ".tmp"); // write aside so a crash never leaves a half file
+		try (FileChannel channel = FileChannel.open(tmp_file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putLong(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(csr.nodeCount());
+			buf.putInt(csr.relCount());
+			buf.putInt(rel_amount);
+			buf.putLong(file_size);
+			buf.putLong(store_creation_time);
+			buf.putLong(store_random_id);
+			buf.putLong(csr.getChecksum());
+			while (buf.position() < HEADER_SIZE)
+				buf.put((byte)0);
+
+			writeInts(channel, buf, csr.outOffsets());
+			writeInts(channel, buf, csr.outTargets());
+			writeInts(channel, buf, csr.outDegrees());
+			writeInts(channel, buf, csr.inOffsets());
+			writeInts(channel, buf, csr.inSources());
+			writeLongs(channel, buf, csr.danglingBitmap());
+			writeLongs(channel, buf, csr.originalIds());
+			writeLongs(channel, buf, csr.sortedOriginalIds());
+			writeInts(channel, buf, csr.sortedMappedIds());
+			flush(channel, buf);
+			channel.force(true);
+		}
+
+		if (file.exists() && !file.delete())
+			throw new IOException("Cannot replace snapshot file " + file.getPath());
+		if (!tmp_file.renameTo(file))
+			throw new IOException("Cannot rename " + tmp_file.getPath() + " to " + file.getPath());
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	private static void padToAlignment(FileChannel channel, ByteBuffer buf) throws IOException {
+		// pad the output so that the next section starts at an 8-byte aligned offset
+
+		long offset = channel.position() + buf.position();
+		for (long i = offset; i < align(offset); i++) {
+			if (!buf.hasRemaining())
+				flush(channel, buf);
+			buf.put((byte)0);
+		}
+	}
+
+	private static void writeInts(FileChannel channel, ByteBuffer buf, IntBuffer section) throws IOException {
+		padToAlignment(channel, buf);
+		for (int i = 0; i < section.capacity(); i++) {
+			if (buf.remaining() < 4)
+				flush(channel, buf);
+			buf.putInt(section.get(i));
+		}
+	}
+
+	private static void writeLongs(FileChannel channel, ByteBuffer buf, LongBuffer section) throws IOException {
+		padToAlignment(channel, buf);
+		for (int i = 0; i < section.capacity(); i++) {
+			if (buf.remaining() < 8)
+				flush(channel, buf);
+			buf.putLong(section.get(i));
+		}
+	}
+
+	public static Graph_Snapshot load(File file) throws IOException {
+		// memory-map a snapshot written by export; the mappings stay valid after the channel is closed
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining())
+				if (channel.read(header) < 0)
+					throw new IOException("Snapshot file " + file.getPath() + " is truncated");
+			header.flip();
+
+			if (header.getLong() != MAGIC)
+				throw new IOException(file.getPath() + " is not a graph snapshot");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported graph snapshot version " + version + " (expected "
+						+ VERSION + ")");
+			int node_amount = header.getInt();
+			int edge_amount = header.getInt();
+			int rel_amount = header.getInt();
+			long file_size = header.getLong();
+			long store_creation_time = header.getLong();
+			long store_random_id = header.getLong();
+			long checksum = header.getLong();
+			if (node_amount < 0 || edge_amount < 0 || file_size != channel.size())
+				throw new IOException("Snapshot file " + file.getPath() + " is corrupted or truncated");
+
+			long sizes[] = sectionSizes(node_amount, edge_amount);
+			long offsets[] = new long[sizes.length];
+			long offset = HEADER_SIZE;
+			for (int i = 0; i < sizes.length; i++) {
+				offsets[i] = align(offset);
+				offset = offsets[i] + sizes[i];
+				if (sizes[i] > Integer.MAX_VALUE) // a single mapping is limited to 2GB
+					throw new IOException("Snapshot section " + i + " is too large to be mapped");
+			}
+
+			CSR_Graph csr = CSR_Graph.mapped(node_amount,
+					map(channel, offsets[0], sizes[0]).asIntBuffer(),
+					map(channel, offsets[1], sizes[1]).asIntBuffer(),
+					map(channel, offsets[2], sizes[2]).asIntBuffer(),
+					map(channel, offsets[3], sizes[3]).asIntBuffer(),
+					map(channel, offsets[4], sizes[4]).asIntBuffer(),
+					map(channel, offsets[5], sizes[5]).asLongBuffer(),
+					map(channel, offsets[6], sizes[6]).asLongBuffer(),
+					map(channel, offsets[7], sizes[7]).asLongBuffer(),
+					map(channel, offsets[8], sizes[8]).asIntBuffer());
+			csr.setChecksum(checksum);
+			return new Graph_Snapshot(csr, rel_amount, store_creation_time, store_random_id);
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,105 @@
+package joezie.fora_neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Ground_Truth_Cache { // ground-truth pprs on disk, computed once per (graph, alpha, tolerance, source)
+	/* The results of a graph live under a directory named after the checksum
+	 * of its CSR snapshot (node ids & out-edges), so a changed graph never
+	 * reads the results of the old one, and with one sub-directory per alpha
+	 * and tolerance. Each source has its own file (little-endian): magic,
+	 * size, then size mapped node ids and size pprs. A file is written to a
+	 * temporary name and renamed, so concurrent workers and interrupted runs
+	 * never leave a partial result behind.
+	 */
+
+	private static final long MAGIC = 0x3152505054505F47L; // bytes "G_TPPPR1" read as a little-endian long
+	private static final int HEADER_SIZE = 12; // long magic + int size
+
+	private File dir; // directory of the graph
+	private int node_amount;
+	private AtomicLong hits;
+	private AtomicLong misses;
+
+	public Ground_Truth_Cache(File root, CSR_Graph csr) {
+		dir = new File(root, String.format("%08x", csr.getChecksum()));
+		node_amount = csr.nodeCount();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	private File sourceFile(double alpha, double tolerance, int nodeIdM_start) {
+		return new File(dir, "alpha_" + alpha + "_tol_" + tolerance + "/" + nodeIdM_start + ".ppr");
+	}
+
+	public boolean read(double alpha, double tolerance, int nodeIdM_start, Sparse_Vector reserve) {
+		// load the cached pprs of the source into reserve; false if they're not cached
+
+		File file = sourceFile(alpha, tolerance, nodeIdM_start);
+		reserve.clear();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) {
+				misses.incrementAndGet();
+				return false;
+			}
+			ByteBuffer buf = ByteBuffer.allocate((int)channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			while (buf.hasRemaining() && channel.read(buf) >= 0)
+				;
+			buf.flip();
+			int size = (buf.getLong() == MAGIC) ? buf.getInt() : -1;
+			if (size < 0 || size > node_amount || buf.remaining() != size * 12L) { // not written by this class
+				misses.incrementAndGet();
+				return false;
+			}
+			int ids_pos = buf.position();
+			for (int i = 0; i < size; i++)
+				reserve.put(buf.getInt(ids_pos + i * 4), buf.getDouble(ids_pos + size * 4 + i * 8));
+		}
+		catch (IOException e) { // not cached yet
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	public void write(double alpha, double tolerance, int nodeIdM_start, Sparse_Vector reserve) throws IOException {
+		File file = sourceFile(alpha, tolerance, nodeIdM_start);
+		file.getParentFile().mkdirs();
+		File tmpFile = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+
+		int size = reserve.size();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + size * 12).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putLong(MAGIC).putInt(size);
+		for (int i = 0; i < size; i++)
+			buf.putInt(reserve.keyAt(i));
+		for (int i = 0; i < size; i++)
+			buf.putDouble(reserve.valueAt(i));
+		buf.flip();
+		try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buf.hasRemaining())
+				channel.write(buf);
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,153 @@
+package joezie.fora_neo4j;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+public class Load_Test { // drives the queries of an algo from concurrent clients, measuring throughput & latency under load
+	/* Closed loop: each client sends its next query as soon as the previous
+	 * one returns, so the offered load follows the service rate and the QPS
+	 * levels off as clients are added. Open loop: queries arrive at a fixed
+	 * rate whatever the service rate, query i being due i / arrival_rate
+	 * seconds after the start, and the clients serve them in order. The
+	 * latency of a query is counted from its due time, not from when a client
+	 * got to it, so queries waiting behind slow ones aren't hidden. Queries
+	 * due during the warmup aren't counted, and failed queries are counted
+	 * as errors only, outside the completions & latencies.
+	 */
+
+	public static class Report {
+		public int clients;
+		public double arrival_rate; // queries per second of open loop; 0 for closed loop
+		public long queries; // queries due & completed in the measured window, without error
+		public long errors; // queries due in the measured window that failed
+		public long duration_ns; // of the measured window
+		public Log_Histogram latency_ns; // of the queries due in the measured window that didn't fail
+		public double cpu_util; // cpu time of the process / (wall time * cores) in the window; -1 if unsupported
+		public double cpu_us_per_query; // cpu time of the clients per completed query, warmup included; -1 if unsupported
+
+		public double getQPS() {
+			return queries * 1.0e9 / duration_ns;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d clients (%s): %.1f QPS, %d errors, "
+					+ "latency (us) mean %.1f, p50 %.1f, p99 %.1f, p999 %.1f, max %.1f, "
+					+ "cpu %.1f%%, %.1f cpu us per query",
+					clients, (arrival_rate > 0) ? "open loop at " + arrival_rate + " QPS" : "closed loop",
+					getQPS(), errors, latency_ns.getMean() / 1000.0,
+					latency_ns.getValueAtPercentile(50.0) / 1000.0, latency_ns.getValueAtPercentile(99.0) / 1000.0,
+					latency_ns.getValueAtPercentile(99.9) / 1000.0, latency_ns.getMax() / 1000.0,
+					cpu_util * 100.0, cpu_us_per_query);
+		}
+	}
+
+	private LongConsumer query; // runs the query of a source node on the calling thread
+	private List<Long> nodeIds_start; // source nodes of the queries, cycled through
+
+	public Load_Test(LongConsumer query, List<Long> nodeIds_start) {
+		this.query = query;
+		this.nodeIds_start = nodeIds_start;
+	}
+
+	private static long processCpuTime() { // ns; -1 if unsupported
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		return -1;
+	}
+
+	static void sleepUntil(long time_ns) {
+		for (long wait = time_ns - System.nanoTime(); wait > 0; wait = time_ns - System.nanoTime())
+			LockSupport.parkNanos(wait);
+	}
+
+	public Report run(int clients, double arrival_rate, long warmup_ms, long duration_ms) throws InterruptedException {
+		// run the queries from clients threads for warmup_ms, then duration_ms measured; closed loop if arrival_rate is 0
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		boolean hasThreadCpu = threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+		Log_Histogram latency_ns = new Log_Histogram();
+		LongAdder completed = new LongAdder(); // in the measured window
+		LongAdder completed_all = new LongAdder(); // warmup included
+		LongAdder errors = new LongAdder(); // in the measured window
+		LongAdder errors_all = new LongAdder(); // warmup included
+		LongAdder client_cpu_ns = new LongAdder();
+		AtomicReference<RuntimeException> first_error = new AtomicReference<>();
+		AtomicLong next_query = new AtomicLong();
+
+		long start = System.nanoTime(); // the threads' start-up is part of the warmup
+		long measure_start = start + warmup_ms * 1000000L, end = measure_start + duration_ms * 1000000L;
+		Thread threads[] = new Thread[clients];
+		for (int c = 0; c < clients; c++) {
+			threads[c] = new Thread(() -> {
+				long cpu_start = hasThreadCpu ? threadBean.getCurrentThreadCpuTime() : 0;
+				while (true) {
+					long i = next_query.getAndIncrement(), due;
+					if (arrival_rate > 0) { // wait for the query to arrive
+						due = start + (long)(i * 1.0e9 / arrival_rate);
+						if (due >= end)
+							break;
+						sleepUntil(due);
+					}
+					else if ((due = System.nanoTime()) >= end)
+						break;
+
+					try {
+						query.accept(nodeIds_start.get((int)(i % nodeIds_start.size())));
+					}
+					catch (RuntimeException e) {
+						errors_all.increment();
+						if (due >= measure_start)
+							errors.increment();
+						first_error.compareAndSet(null, e);
+						continue;
+					}
+					long done = System.nanoTime();
+					completed_all.increment();
+					if (due >= measure_start) {
+						latency_ns.record(done - due);
+						if (done <= end)
+							completed.increment();
+					}
+				}
+				if (hasThreadCpu)
+					client_cpu_ns.add(threadBean.getCurrentThreadCpuTime() - cpu_start);
+			}, "Load_Test client " + c);
+			threads[c].setDaemon(true);
+			threads[c].start();
+		}
+
+		sleepUntil(measure_start);
+		long cpu_t0 = processCpuTime(), wall_t0 = System.nanoTime();
+		sleepUntil(end);
+		long cpu_t1 = processCpuTime(), wall_t1 = System.nanoTime();
+		for (Thread thread : threads)
+			thread.join();
+
+		if (first_error.get() != null) {
+			System.out.println(errors_all.sum() + " queries of the load test failed, the first with:");
+			first_error.get().printStackTrace();
+		}
+
+		Report report = new Report();
+		report.clients = clients;
+		report.arrival_rate = arrival_rate;
+		report.queries = completed.sum();
+		report.errors = errors.sum();
+		report.duration_ns = end - measure_start;
+		report.latency_ns = latency_ns;
+		report.cpu_util = (cpu_t0 < 0) ? -1.0
+				: (double)(cpu_t1 - cpu_t0) / (wall_t1 - wall_t0) / Runtime.getRuntime().availableProcessors();
+		report.cpu_us_per_query = (!hasThreadCpu || completed_all.sum() == 0) ? -1.0
+				: client_cpu_ns.sum() / 1000.0 / completed_all.sum();
+		return report;
+	}
+}
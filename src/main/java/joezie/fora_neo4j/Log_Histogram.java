@@ -0,0 +1,187 @@
+package joezie.fora_neo4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class Log_Histogram { // concurrent histogram of non-negative longs, e.g. latencies in ns, with ~3% relative error
+	/* Values below SUB_BUCKETS have a bucket each; above that, every power
+	 * of two [2^e, 2^(e+1)) is split into SUB_BUCKETS equal buckets, so a
+	 * bucket is at most 1/SUB_BUCKETS as wide as the values in it, whatever
+	 * their magnitude. As in a LongAdder, a thread records into one of
+	 * STRIPES Recorders picked by its id, made on the first record there, so
+	 * threads rarely share the cache lines of a record, while the memory of a
+	 * histogram stays bounded however many threads come and go. Reads merge
+	 * the recorders; percentiles are read from a pass over the merged
+	 * buckets, and report the upper end of the bucket holding the rank
+	 * (capped by the exact max).
+	 */
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKET_AMOUNT = (63 - SUB_BITS + 1) << SUB_BITS; // enough for Long.MAX_VALUE
+	static final int STRIPES = stripeAmount(); // a power of two
+
+	static final class Recorder { // values recorded by the threads sharing a stripe
+		private final AtomicLongArray counts; // (bucket, the number of values in it)
+		private final AtomicLong count;
+		private final AtomicLong sum;
+		private final AtomicLong max;
+
+		Recorder() {
+			counts = new AtomicLongArray(BUCKET_AMOUNT);
+			count = new AtomicLong();
+			sum = new AtomicLong();
+			max = new AtomicLong();
+		}
+
+		void record(long value) { // negative values are recorded as 0
+			value = Math.max(value, 0L);
+			// the max goes first, so a reader seeing the bucket count also sees a max capping it right
+			if (value > max.get())
+				max.accumulateAndGet(value, Math::max);
+			counts.incrementAndGet(bucketOf(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+		}
+
+		void add(Recorder other) { // add the values recorded in other
+			long max_t = other.max.get();
+			if (max_t > max.get())
+				max.accumulateAndGet(max_t, Math::max);
+			for (int bucket = 0; bucket < BUCKET_AMOUNT; bucket++) {
+				long count_t = other.counts.get(bucket);
+				if (count_t != 0)
+					counts.addAndGet(bucket, count_t);
+			}
+			count.addAndGet(other.count.get());
+			sum.addAndGet(other.sum.get());
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		long getSum() {
+			return sum.get();
+		}
+	}
+
+	private volatile AtomicReferenceArray<Recorder> recorders; // STRIPES slots, null until recorded into
+
+	public Log_Histogram() {
+		recorders = new AtomicReferenceArray<>(STRIPES);
+	}
+
+	private static int stripeAmount() { // at least twice the processors, so few threads share a stripe, up to 64
+		int processors = Math.min(Runtime.getRuntime().availableProcessors(), 32);
+		return Integer.highestOneBit(processors * 2 - 1) << 1;
+	}
+
+	static int stripeOf(Thread thread) { // ids of threads are sequential, so the threads alive at once rarely share
+		return (int)thread.getId() & (STRIPES - 1);
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int)value;
+		int exp = 63 - Long.numberOfLeadingZeros(value); // value is in [2^exp, 2^(exp+1)), exp >= SUB_BITS
+		return ((exp - SUB_BITS + 1) << SUB_BITS) + (int)((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	static long upperBoundOf(int bucket) { // the largest value in the bucket
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket >>> SUB_BITS) - 1; // values of the bucket share all but their lowest shift bits
+		long lower = (long)(SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	private Recorder getRecorder() { // the calling thread's recorder, made on the first record into its stripe
+		AtomicReferenceArray<Recorder> recorders_t = recorders;
+		int stripe = stripeOf(Thread.currentThread());
+		Recorder recorder = recorders_t.get(stripe);
+		if (recorder == null && !recorders_t.compareAndSet(stripe, null, recorder = new Recorder()))
+			recorder = recorders_t.get(stripe); // made by another thread meanwhile
+		return recorder;
+	}
+
+	public void record(long value) { // negative values are recorded as 0
+		getRecorder().record(value);
+	}
+
+	void add(Recorder other) { // add the values recorded in other
+		getRecorder().add(other);
+	}
+
+	public void add(Log_Histogram other) { // add the values recorded in other
+		Recorder recorder = getRecorder();
+		AtomicReferenceArray<Recorder> others = other.recorders;
+		for (int stripe = 0; stripe < STRIPES; stripe++)
+			if (others.get(stripe) != null)
+				recorder.add(others.get(stripe));
+	}
+
+	public void reset() { // not atomic with concurrent records, which may be partly kept
+		recorders = new AtomicReferenceArray<>(STRIPES);
+	}
+
+	public long getCount() {
+		AtomicReferenceArray<Recorder> recorders_t = recorders;
+		long count = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++)
+			if (recorders_t.get(stripe) != null)
+				count += recorders_t.get(stripe).count.get();
+		return count;
+	}
+
+	public double getMean() { // 0 if nothing is recorded
+		AtomicReferenceArray<Recorder> recorders_t = recorders;
+		long count = 0, sum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			Recorder recorder = recorders_t.get(stripe);
+			if (recorder != null) {
+				count += recorder.count.get();
+				sum += recorder.sum.get();
+			}
+		}
+		return (count == 0) ? 0.0 : (double)sum / count;
+	}
+
+	public long getMax() {
+		AtomicReferenceArray<Recorder> recorders_t = recorders;
+		long max = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++)
+			if (recorders_t.get(stripe) != null)
+				max = Math.max(max, recorders_t.get(stripe).max.get());
+		return max;
+	}
+
+	public long getValueAtPercentile(double percentile) {
+		// the smallest bucket bound that at least percentile% of the values are below or equal to; 0 if empty
+
+		AtomicReferenceArray<Recorder> recorders_t = recorders;
+		long counts[] = new long[BUCKET_AMOUNT];
+		long total = 0, max = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) { // merged once, so the pass below sees a single set of counts
+			Recorder recorder = recorders_t.get(stripe);
+			if (recorder == null)
+				continue;
+			for (int bucket = 0; bucket < BUCKET_AMOUNT; bucket++)
+				counts[bucket] += recorder.counts.get(bucket);
+			max = Math.max(max, recorder.max.get());
+		}
+		for (int bucket = 0; bucket < BUCKET_AMOUNT; bucket++)
+			total += counts[bucket];
+		if (total == 0)
+			return 0L;
+		long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKET_AMOUNT; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank)
+				return Math.min(upperBoundOf(bucket), max);
+		}
+		return max;
+	}
+}
@@ -13,11 +13,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.ThreadLocalRandom;
 import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.core.StopAnalyzer;
-import org.neo4j.graphalgo.api.Graph;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -28,33 +28,137 @@ import org.neo4j.internal.kernel.api.security.AccessMode.Static;
 import org.neo4j.register.Register.Int;
 
 public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface, Preprocessing_Interface, Topk_Util_Interface { // Monte-Carlo algorithm based on random walks
+	private static final long MIN_WALKS_PER_SLOT = 1024; // fewer walks aren't worth a task of their own
+	private static final ThreadLocal<Walk_Counts> walk_counts = ThreadLocal.withInitial(Walk_Counts::new);
+	
+	private static class Walk_Counts { // stop counts of the walks run by a thread, shared by the Monte_Carlo objects on it
+		int counts[] = new int[0]; // (mapped node id) -> the number of walks stopping at the node
+		int stopped[] = new int[16]; // nodes with non-zero count, in the order they're first stopped at
+		int stopped_size;
+		
+		void begin(int node_amount, long walk_amount) { // clear the counts of the last user, ready for walk_amount walks
+			for (int i = 0; i < stopped_size; i++)
+				counts[stopped[i]] = 0;
+			stopped_size = 0;
+			if (counts.length < node_amount)
+				counts = new int[node_amount];
+			int stopped_max = (int)Math.min(walk_amount, node_amount);
+			if (stopped.length < stopped_max)
+				stopped = new int[Math.max(stopped_max, stopped.length * 2)];
+		}
+		
+		void add(int nodeIdM, int count) {
+			if (counts[nodeIdM] == 0)
+				stopped[stopped_size++] = nodeIdM;
+			counts[nodeIdM] += count;
+		}
+	}
+	
 	private GraphDatabaseService graphDb;
 	private String dir_db;
-	Graph adjM; // adjacency matrix of the graph	
-	private HashMap<Long, Double> ppr; // (nodeId in graphDb, ppr value)
+	CSR_Graph csr; // CSR snapshot of the adjacency matrix
+	private HashMap<Long, Double> ppr; // (nodeId in graphDb, ppr value); built on request
+	private boolean isResultBuilt; // whether ppr holds the result of the last query
+	private boolean isResultRead; // whether the result of the last query is in prep_records rather than walk_nodes
+	private int walk_nodes[]; // mapped node ids where the walks of the last query stopped
+	private double walk_pprs[]; // their pprs
+	private int walk_size; // the number of nodes in walk_nodes
 	private int node_amount; // the total number of nodes in the graph
 	private Double alpha; // the probability stopped at each node during a random walk
 	private Double delta; // the reserve(pi) threshold
 	private Double pfail; // failure probability
 	public long startTime, endTime, duration;
 	private String preprocessing_dirName;
+	private PPR_Index ppr_index; // mapped preprocessed results; loaded on the first read
+	private PPR_Records prep_records; // records of a source read from ppr_index
+	private int prep_score_bits; // bits per stored ppr in preprocessing; 0 to store exact pprs
 	private Vector<Long> topk_nodeIds; // top-k node ids sorted by ppr
-	private HashMap<Long, Double> topk_res; // top-k ppr result
+	private Topk_Selector topk_selector; // top-k ppr result sorted by ppr
+	private boolean isTopkSelected; // whether topk_selector holds the top-k of ppr
+	private ForkJoinPool pool; // pool running the walks of a query, or the sources of preprocessing, in parallel; null for serial mode
+	private int slot_nodes[][]; // (slot, i) -> the ith node the walks of the slot stopped at in the last query
+	private int slot_counts[][]; // (slot, i) -> the number of those walks stopping at it
+	private int slot_sizes[]; // (slot) -> the number of nodes in slot_nodes[slot]
+	private long slot_steps[]; // (slot) -> steps of the walks of the slot in the last query
+	private Query_Metrics metrics;
+	private Query_Metrics.Sample sample; // counts of the last query
 	
 	public Monte_Carlo(Double alpha, int node_amount, GraphDatabaseService graphDb,
-			Double pfail, Double delta, Graph adjM, String node_property, String dir_db) {
+			Double pfail, Double delta, CSR_Graph csr, String node_property, String dir_db) {
 		super(node_property);
 		this.graphDb = graphDb;
 		this.dir_db = dir_db;
-		this.adjM = adjM;
+		this.csr = csr;
 		ppr = new HashMap<>();
+		isResultBuilt = true;
+		walk_nodes = new int[16];
+		walk_pprs = new double[16];
 		topk_nodeIds = new Vector<>();
-		topk_res = new HashMap<>();
+		topk_selector = new Topk_Selector();
+		isTopkSelected = false;
 		this.node_amount = node_amount;
 		this.alpha = alpha;
 		this.pfail = pfail;
 		this.delta = delta;		
 		preprocessing_dirName = "MC_ppr_results/" + dir_db;
+		prep_records = new PPR_Records();
+		metrics = Query_Metrics.of("Monte_Carlo");
+		sample = new Query_Metrics.Sample();
+	}
+	
+	@Override
+	public Monte_Carlo newWorker() { // same configuration, own counts & results
+		Monte_Carlo worker = new Monte_Carlo(alpha, node_amount, graphDb, pfail, delta, csr, node_property, dir_db);
+		worker.preprocessing_dirName = preprocessing_dirName;
+		worker.ppr_index = ppr_index;
+		worker.prep_score_bits = prep_score_bits;
+		worker.setPool(pool);
+		return worker;
+	}
+	
+	public void setPool(ForkJoinPool pool) { // run the walks of a query, or the sources of preprocessing, in pool; serially if pool is null
+		this.pool = pool;
+	}
+	
+	private void prepareSlots(int slot_amount) { // allocate the per-slot results once; their rows grow with the walks
+		if (slot_nodes != null && slot_nodes.length >= slot_amount)
+			return;
+		slot_nodes = new int[slot_amount][0];
+		slot_counts = new int[slot_amount][0];
+		slot_sizes = new int[slot_amount];
+		slot_steps = new long[slot_amount];
+	}
+	
+	private long walk(Walk_Counts counts, int nodeIdM_start, long walk_amount) {
+		// perform walk_amount random walks, count their final nodes in counts and return their steps
+		
+		long steps = 0;
+		for (long i = 0; i < walk_amount; i++) {
+			long walk = walk_mapped(nodeIdM_start, true);
+			counts.add(finalNode(walk), 1);
+			steps += stepAmount(walk);
+		}
+		return steps;
+	}
+	
+	private void walk_slot(int slot, int nodeIdM_start, long walk_amount) {
+		// perform walk_amount random walks on the counts of the current thread, and copy them to slot
+		
+		Walk_Counts counts = walk_counts.get();
+		counts.begin(node_amount, walk_amount);
+		slot_steps[slot] = walk(counts, nodeIdM_start, walk_amount);
+		
+		int size = counts.stopped_size; // at most walk_amount
+		if (slot_nodes[slot].length < size) {
+			slot_nodes[slot] = new int[size];
+			slot_counts[slot] = new int[size];
+		}
+		for (int i = 0; i < size; i++) {
+			int nodeIdM = counts.stopped[i];
+			slot_nodes[slot][i] = nodeIdM;
+			slot_counts[slot][i] = counts.counts[nodeIdM];
+		}
+		slot_sizes[slot] = size;
 	}
 	
 	public Long random_walk(Long nodeId_start) { 
@@ -63,34 +167,68 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 		 * alpha, and move to a randomly picked outgoing neighboring node with a
 		 * probability of 1 - alpha.
 		 */
-			
-		int nodeIdM_start = adjM.toMappedNodeId(nodeId_start); // start node id in adjacency matrix
-		int out_degree_start = adjM.degree(nodeIdM_start, Direction.OUTGOING);
+		
+		int nodeIdM_final = random_walk_mapped(csr.requireMappedNodeId(nodeId_start));
+		return csr.toOriginalNodeId(nodeIdM_final); // final node id in graphDb
+	}
+	
+	public int random_walk_mapped(int nodeIdM_start) { 
+		/* Same as random_walk, but both start and final node ids are the ones
+		 * in adjacency matrix.
+		 */
+		
+		return finalNode(walk_mapped(nodeIdM_start, true));
+	}
+	
+	public long walk_mapped(int nodeIdM_start, boolean hasZeroHop) {
+		/* Random walk from start node in adjacency matrix, stopping at once with
+		 * a probability of alpha if hasZeroHop, or after at least one step if not.
+		 * Return the final node and the number of steps packed into a long,
+		 * read by finalNode and stepAmount, so that callers can count the steps
+		 * without any state in this object, which is shared by parallel walks.
+		 */
+		
+		int out_degree_start = csr.outDegree(nodeIdM_start);
 		
 		if (out_degree_start == 0)
 			// if there's no outgoing edge from this node, then return the start node
-			return nodeId_start;
+			return nodeIdM_start;
 		
 		int nodeIdM_cur = nodeIdM_start; // current node id in adjacency matrix
+		long steps = 0;
+		if (!hasZeroHop) { // move a step from start to one of its neighbor
+			int picked_rel_num_start = ThreadLocalRandom.current().nextInt(out_degree_start);
+			nodeIdM_cur = csr.target(csr.outBegin(nodeIdM_start) + picked_rel_num_start);
+			steps++;
+		}
+		
 		while (true) {
 			if (ThreadLocalRandom.current().nextDouble(1.0) < alpha)
 				// Stop at current node with a probability of alpha
 				break;
 						
-			int out_degree_cur = adjM.degree(nodeIdM_cur, Direction.OUTGOING);
+			int out_degree_cur = csr.outDegree(nodeIdM_cur);
 			if (out_degree_cur > 0) {
 				// At least one outgoing neighboring node exists, then randomly
 				// pick an outgoing neighboring node as the next node
 				int picked_rel_num = ThreadLocalRandom.current().nextInt(out_degree_cur);
-				nodeIdM_cur = adjM.getTarget(nodeIdM_cur, picked_rel_num, Direction.OUTGOING); // move to the node at outgoing[nodeIdM_cur][picked_rel_num]
+				nodeIdM_cur = csr.target(csr.outBegin(nodeIdM_cur) + picked_rel_num); // move to the node at outgoing[nodeIdM_cur][picked_rel_num]
 			}
 			else {
 				// If there's no outgoing edge from this node, then reset current node to the start node
 				nodeIdM_cur = nodeIdM_start;
 			}
+			steps++;
 		}
-		Long nodeId_cur = adjM.toOriginalNodeId(nodeIdM_cur); // current node id in graphDb 
-		return nodeId_cur;
+		return (steps << 32) | nodeIdM_cur;
+	}
+	
+	public static int finalNode(long walk) { // the final node of a walk returned by walk_mapped
+		return (int)walk;
+	}
+	
+	public static long stepAmount(long walk) { // the number of steps of a walk returned by walk_mapped
+		return walk >>> 32;
 	}
 	
 	public Long random_walk_no_zero_hop(Long nodeId_start) { 
@@ -100,36 +238,16 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 		 * probability of 1 - alpha.
 		 */	
 
-		int nodeIdM_start = adjM.toMappedNodeId(nodeId_start); // start node id in adjacency matrix
-		int out_degree_start = adjM.degree(nodeIdM_start, Direction.OUTGOING);
+		int nodeIdM_final = random_walk_no_zero_hop_mapped(csr.requireMappedNodeId(nodeId_start));
+		return csr.toOriginalNodeId(nodeIdM_final); // final node id in graphDb
+	}
+	
+	public int random_walk_no_zero_hop_mapped(int nodeIdM_start) { 
+		/* Same as random_walk_no_zero_hop, but both start and final node ids
+		 * are the ones in adjacency matrix.
+		 */	
 
-		if (out_degree_start == 0)
-			// if there's no outgoing edge from this node, then return the start node
-			return nodeId_start;
-		
-		 // move a step from start to one of its neighbor
-		int picked_rel_num_start = ThreadLocalRandom.current().nextInt(out_degree_start);			
-		int nodeIdM_cur = adjM.getTarget(nodeIdM_start, picked_rel_num_start, Direction.OUTGOING); // current node id in adjacency matrix
-		
-		while (true) {
-			if (ThreadLocalRandom.current().nextDouble(1.0) < alpha)
-				// Stop at current node with a probability of alpha
-				break;
-						
-			int out_degree_cur = adjM.degree(nodeIdM_cur, Direction.OUTGOING);
-			if (out_degree_cur > 0) {
-				// At least one outgoing neighboring node exists, then randomly
-				// pick an outgoing neighboring node as the next node
-				int picked_rel_num = ThreadLocalRandom.current().nextInt(out_degree_cur);
-				nodeIdM_cur = adjM.getTarget(nodeIdM_cur, picked_rel_num, Direction.OUTGOING); // move to the node at outgoing[nodeIdM_cur][picked_rel_num]
-			}
-			else {
-				// If there's no outgoing edge from this node, then reset current node to the start node
-				nodeIdM_cur = nodeIdM_start;
-			}
-		}
-		Long nodeId_cur = adjM.toOriginalNodeId(nodeIdM_cur); // current node id in graphDb 
-		return nodeId_cur;
+		return finalNode(walk_mapped(nodeIdM_start, false));
 	}
 	
 	@Override
@@ -138,27 +256,84 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 		 * ppr value as the ratio of random walks stopping at it. 
 		 */
 		
+		long start_ns = System.nanoTime();
 		ppr.clear();
 		topk_nodeIds.clear();
-		topk_res.clear();
+		isTopkSelected = false;
+		isResultBuilt = false;
+		isResultRead = false;
 		
 		Double omega = 3 * Math.log(2 / pfail) / (Double)epsilon / (Double)epsilon / delta;
 		
-		HashMap<Long, Integer> stop_count = new HashMap<>();
+		long walk_amount = (long)Math.floor(omega); // as many walks as "for (i = 1; i <= omega; i++)"
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		int slot_amount = (pool == null) ? 1 : (int)Math.max(1, 
+				Math.min(pool.getParallelism(), (walk_amount + MIN_WALKS_PER_SLOT - 1) / MIN_WALKS_PER_SLOT));
 		
-		for (long i = 1; i <= omega; i++) {
-			Long nodeId_final = random_walk(nodeId_start);
-			Integer old_stop_count = stop_count.get(nodeId_final);
-			old_stop_count = (old_stop_count == null) ? 0 : old_stop_count;
-			stop_count.put(nodeId_final, old_stop_count + 1);
+		Walk_Counts counts = walk_counts.get(); // counts of this thread, which the slots are merged into
+		long steps;
+		if (slot_amount == 1) {
+			counts.begin(node_amount, walk_amount);
+			steps = walk(counts, nodeIdM_start, walk_amount);
+		}
+		else { // split the walks evenly into one task per slot, each counting on the thread running it
+			prepareSlots(slot_amount);
+			List<ForkJoinTask<?>> tasks = new ArrayList<>(slot_amount);
+			for (int slot = 0; slot < slot_amount; slot++) {
+				final int slot_t = slot;
+				final long walk_amount_t = walk_amount / slot_amount + (slot < walk_amount % slot_amount ? 1 : 0);
+				tasks.add(pool.submit(() -> walk_slot(slot_t, nodeIdM_start, walk_amount_t)));
+			}
+			for (ForkJoinTask<?> task : tasks)
+				task.join();
+			
+			// this thread might have run a slot while joining, so its counts are only taken after the joins
+			counts.begin(node_amount, walk_amount);
+			steps = 0;
+			for (int slot = 0; slot < slot_amount; slot++) {
+				steps += slot_steps[slot];
+				for (int i = 0; i < slot_sizes[slot]; i++)
+					counts.add(slot_nodes[slot][i], slot_counts[slot][i]);
+			}
 		}
 		
-		for (Map.Entry<Long, Integer> stop_count_t : stop_count.entrySet()) 
-			ppr.put(stop_count_t.getKey(), ((double)(stop_count_t.getValue())) / omega);
+		int stopped_size = counts.stopped_size;
+		if (walk_nodes.length < stopped_size) {
+			walk_nodes = new int[Math.max(stopped_size, walk_nodes.length * 2)];
+			walk_pprs = new double[walk_nodes.length];
+		}
+		for (int i = 0; i < stopped_size; i++) {
+			int nodeIdM = counts.stopped[i];
+			walk_nodes[i] = nodeIdM;
+			walk_pprs[i] = ((double)counts.counts[nodeIdM]) / omega;
+		}
+		walk_size = stopped_size;
+		
+		sample.clear();
+		sample.latency_ns = sample.walk_ns = System.nanoTime() - start_ns;
+		sample.walks = walk_amount;
+		sample.walk_steps = steps;
+		sample.rounds = 1;
+		metrics.record(sample);
+	}
+	
+	private void buildResult() { // convert the result of the last query to original node ids
+		if (isResultBuilt)
+			return;
+		isResultBuilt = true;
+		
+		if (isResultRead) {
+			for (int i = 0; i < prep_records.size(); i++)
+				ppr.put(csr.toOriginalNodeId(prep_records.nodeAt(i)), prep_records.pprAt(i));
+			return;
+		}
+		for (int i = 0; i < walk_size; i++)
+			ppr.put(csr.toOriginalNodeId(walk_nodes[i]), walk_pprs[i]);
 	}
 	
 	@Override
 	public void printWholeGraphResult() {
+		buildResult();
 		List<Map.Entry<Long, Double>> reserve_list = new ArrayList<Map.Entry<Long, Double>>(ppr.entrySet());
 		reserve_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
 			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
@@ -174,6 +349,7 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 
 	@Override
 	public HashMap<Long, Double> getWholeGraphPPR() { // return the reference of reserve
+		buildResult();
 		return ppr;
 	}
 
@@ -181,76 +357,47 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 	public void preprocessing(Double dummy, Object epsilon) {
 		// customize preprocessing_dirName
 		preprocessing_dirName += ("/" + epsilon);
+		ppr_index = null;
 		
 		System.out.println("\nMonte-Carlo preprocessing started...");
-		HashMap<Integer, Integer> prog_pct_map = new HashMap<>(); // (nodeId, progress percentage)
-		for (int i = 10; i < 100; i += 10) {
-			int nodeId_i = node_amount * i / 100;
-			prog_pct_map.put(nodeId_i, i);
-		}
-		prog_pct_map.put(node_amount - 1, 100);
-		
-		File dirPath = new File(preprocessing_dirName);
-		if (!dirPath.exists()) { // create directory if not exists
-			dirPath.mkdirs();
-			System.out.println("\nCreated directory " + preprocessing_dirName);
+		File indexFile = new File(preprocessing_dirName, PPR_Index.FILE_NAME);
+		String params = "Monte_Carlo alpha=" + alpha + " epsilon=" + epsilon + " nodes=" + node_amount + " rels=" + csr.relCount() 
+				+ " graph=" + String.format("%08x", csr.getChecksum()) + " score_bits=" + prep_score_bits;
+		try (Prep_Manifest manifest = openPrepDir(preprocessing_dirName, params);
+				PPR_Index_Writer writer = new PPR_Index_Writer(indexFile, node_amount, prep_score_bits, manifest)) {
+			Prep_Pipeline.run(node_amount, pool, () -> {
+				Monte_Carlo worker = newWorker(); // own counts for each compute slot, whose walks run serially
+				worker.setPool(null);
+				return (nodeIdM, result) -> {
+					worker.computeWholeGraphPPR(csr.toOriginalNodeId(nodeIdM), epsilon); // run Monte Carlo on src node
+					for (int i = 0; i < worker.walk_size; i++) // read the result of the walks directly
+						result.add(worker.walk_nodes[i], worker.walk_pprs[i]);
+				};
+			}, writer);
+			writer.finish();
+			manifest.delete(); // nothing to resume
 		}
-		else { // if exists, clear it before preprocessing
-			try {
-				FileUtils.cleanDirectory(dirPath);
-			}
-			catch (IOException e) {
-				System.out.println("Clear directory " + preprocessing_dirName + " failed!");
-				e.printStackTrace();
-			}
-			System.out.println("\nDirectory " + preprocessing_dirName + " cleared");
+		catch (IOException e) {
+			System.out.println("Write to file " + indexFile.getPath() + " failed!");
+			e.printStackTrace();
 		}
-		
-		adjM.forEachNode(nodeIdM -> {
-			Long nodeId_start = adjM.toOriginalNodeId(nodeIdM);
-			computeWholeGraphPPR(nodeId_start, epsilon); // run Monte Carlo on src node
-			
-			String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-			try { // store ppr values that are not smaller than threshold
-				FileWriter fw = new FileWriter(fileName_start, false);
-				for (Map.Entry< Long, Double > entry_t : ppr.entrySet()) {
-					Long nodeId_i = entry_t.getKey();
-					Double ppr_i = entry_t.getValue();
-					fw.write(nodeId_i.toString() + '\t' + ppr_i.toString() + '\n');
-				}
-				fw.close();
-			}
-			catch (IOException e) {
-				System.out.println("Write to file " + fileName_start + " failed!");
-				e.printStackTrace();
-			}
-			
-			if (prog_pct_map.containsKey(nodeIdM))
-				System.out.println("Progress: " + prog_pct_map.get(nodeIdM) + "%");
-			return true;
-		});
 	}
 
 	@Override
 	public void readPreprocessedPPR(Long nodeId_start) {
-		// read pprs from file corresponding to src node and store in ppr
+		// read pprs of src node from the ppr index into prep_records, which ppr is built from on request
 		ppr.clear();
-		String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(fileName_start)));
-			String tmpStr = null;
-			while ((tmpStr = br.readLine()) != null) {
-				int space_idx = tmpStr.indexOf('\t');
-				Long nodeId_target = Long.parseLong(tmpStr.substring(0, space_idx));
-				Double ppr_target = Double.parseDouble(tmpStr.substring(space_idx + 1));
-				ppr.put(nodeId_target, ppr_target);
-			}
-			br.close();
-		}
-		catch (IOException e) {
-			System.out.println("Read from file " + fileName_start + " failed!");
-			e.printStackTrace();
+		topk_nodeIds.clear();
+		isTopkSelected = false;
+		isResultBuilt = false;
+		isResultRead = true;
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null) {
+			prep_records.clear();
+			return;
 		}
+		
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		ppr_index.read(nodeIdM_start, prep_records);
 	}
 	
 	@Override
@@ -258,18 +405,9 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 		if (!topk_nodeIds.isEmpty()) // topk_node_ids is already set, then no need to compute again 
 			return topk_nodeIds;		
 
-		if (topk_res.isEmpty())
-			retrieveTopK(k);
-		
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) // store node ids in topk_node_ids after sorting
-			topk_nodeIds.add(topk_res_list_t.getKey());
+		retrieveTopK(k);
+		for (int i = 0; i < topk_selector.size(); i++) // the selected nodes are already sorted by ppr
+			topk_nodeIds.add(topk_selector.idAt(i));
 		return topk_nodeIds;
 	}
 	
@@ -281,41 +419,21 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 	
 	@Override
 	public void printTopKResult(int k) {
-		if (topk_res.isEmpty())
-			retrieveTopK(k);
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		int count = 0;
+		retrieveTopK(k);
 		System.out.println("\nMonte-Carlo-Top" + k + " PPR:");
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) {
-			if (count >= k) // we need to count since the size of topk_reserves might be greater than k
-				break;
-			count++;
-			System.out.println("@" + getNodeName(topk_res_list_t.getKey(), graphDb) + '\t' + topk_res_list_t.getValue());
-		}
+		for (int i = 0; i < topk_selector.size() && i < k; i++) // there might be more than k selected nodes
+			System.out.println("@" + getNodeName(topk_selector.idAt(i), graphDb) + '\t' + topk_selector.pprAt(i));
 	}
 	
-	private void retrieveTopK(int k) { // retrieve top-k results from whole-graph ppr results and store in topk_res
-		if (!topk_res.isEmpty())
+	private void retrieveTopK(int k) { // select top-k results from whole-graph ppr results into topk_selector
+		if (isTopkSelected)
 			return;
+		isTopkSelected = true;
 		
-		Double kth_reserve = kth_ppr(ppr.values().toArray(), k); // find the kth ppr
-		if (kth_reserve == null) { // there might be less than k results, so we copy all of them to topk_res
-			topk_res = new HashMap<>(ppr);
-			return;
-		}
-
-		for (Map.Entry<Long, Double> reserve_t : ppr.entrySet()) {
-			// find the pprs not smaller than the kth ppr, so it's possible that
-			// the size of topk_res is greater than k
-			if (reserve_t.getValue() >= kth_reserve)
-				topk_res.put(reserve_t.getKey(), reserve_t.getValue());
-		}
+		if (isResultRead)
+			topk_selector.select(prep_records, csr::toOriginalNodeId, k);
+		else
+			topk_selector.select(walk_nodes, walk_pprs, walk_size, csr::toOriginalNodeId, k);
 	}
 	
 
@@ -323,6 +441,18 @@ public class Monte_Carlo extends Algo_Util implements Whole_Graph_Util_Interface
 	public Long getPrepSize() {
 		return FileUtils.sizeOfDirectory(new File(preprocessing_dirName));
 	}
+	
+	@Override
+	public void setScoreBits(int score_bits) {
+		prep_score_bits = score_bits;
+	}
+	
+	@Override
+	public Double getPrepMaxError() {
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null)
+			return null;
+		return ppr_index.getMaxError();
+	}
 
 	@Override
 	public void deletePrepDir() {
@@ -11,6 +11,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
@@ -36,38 +37,69 @@ public class Neo4j_Method extends Algo_Util implements Whole_Graph_Util_Interfac
 	private GraphDatabaseService graphDb;
 	private String dir_db;
 	private Graph adjM; // adjacency matrix of the graph
+	private CSR_Graph csr; // CSR snapshot of adjM, whose checksum tells the graph of a preprocessing
 	private int node_amount; // the total number of nodes in the graph
 	private Double alpha;
-	private HashMap<Long, Double> ppr;
+	private HashMap<Long, Double> ppr; // built on request
+	private int ppr_nodes[]; // mapped node ids with non-zero ppr in rankResult, allocated on the first build
+	private double ppr_values[]; // their normalized pprs
+	private int ppr_size; // the number of nodes in ppr_nodes; -1 if they aren't built from rankResult yet
+	private boolean isResultRead; // whether the result of the last query is in prep_records rather than rankResult
 	private String label_type;
 	private String rel_type;
 	private PageRankResult rankResult;
 	private String preprocessing_dirName;
+	private PPR_Index ppr_index; // mapped preprocessed results; loaded on the first read
+	private PPR_Records prep_records; // records of a source read from ppr_index
+	private int prep_score_bits; // bits per stored ppr in preprocessing; 0 to store exact pprs
+	private ForkJoinPool pool; // pool computing the sources of preprocessing; null for serial mode
 	private Vector<Long> topk_nodeIds; // top-k node ids sorted by ppr
-	private HashMap<Long, Double> topk_res; // top-k ppr result
+	private Topk_Selector topk_selector; // top-k ppr result sorted by ppr
+	private boolean isTopkSelected; // whether topk_selector holds the top-k of ppr
 	
 	public Neo4j_Method(GraphDatabaseService graphDb, Double alpha, String label_type, 
-			String rel_type, Graph adjM, int node_amount, String node_property, String dir_db) {
+			String rel_type, Graph adjM, CSR_Graph csr, int node_amount, String node_property, String dir_db) {
 		super(node_property);
 		this.graphDb = graphDb;
 		this.dir_db = dir_db;
 		this.adjM = adjM;
+		this.csr = csr;
 		this.alpha = alpha;
 		this.label_type = label_type;
 		this.rel_type = rel_type;
 		this.node_amount = node_amount;
 		ppr = new HashMap<>();
+		ppr_size = -1;
 		topk_nodeIds = new Vector<>();
-		topk_res = new HashMap<>();
+		topk_selector = new Topk_Selector();
+		isTopkSelected = false;
 		rankResult = null;
 		preprocessing_dirName = "Neo4j_Method_ppr_results/" + dir_db;
+		prep_records = new PPR_Records();
+	}
+	
+	@Override
+	public Neo4j_Method newWorker() { // same configuration, own rankResult & ppr
+		Neo4j_Method worker = new Neo4j_Method(graphDb, alpha, label_type, rel_type, adjM, csr, node_amount,
+				node_property, dir_db);
+		worker.preprocessing_dirName = preprocessing_dirName;
+		worker.ppr_index = ppr_index;
+		worker.prep_score_bits = prep_score_bits;
+		worker.setPool(pool);
+		return worker;
+	}
+	
+	public void setPool(ForkJoinPool pool) { // compute the sources of preprocessing in pool, or serially if pool is null
+		this.pool = pool;
 	}
 	
 	@Override
 	public void computeWholeGraphPPR(Long nodeId_start, Object iterations) {
 		ppr.clear();
 		topk_nodeIds.clear();
-		topk_res.clear();
+		isTopkSelected = false;
+		isResultRead = false;
+		ppr_size = -1;
 		
 		rankResult = null;
 		LongStream nodeId_start_stream = LongStream.of(nodeId_start);
@@ -77,8 +109,10 @@ public class Neo4j_Method extends Algo_Util implements Whole_Graph_Util_Interfac
                 .result();
 	}
 	
-	private Boolean buildPPRMap() { // build ppr based on rankResult	
-		Double ppr_sum = 0.0;	
+	private Boolean buildPPRArrays() { // build ppr_nodes & ppr_values based on rankResult
+		if (ppr_size >= 0)
+			return true;
+		double ppr_sum = 0.0;
 		for (int i = 0; i < node_amount; i++)
 			ppr_sum += rankResult.score(i);
 		
@@ -89,15 +123,34 @@ public class Neo4j_Method extends Algo_Util implements Whole_Graph_Util_Interfac
 		
 		System.out.println("ppr sum: " + ppr_sum);
 		
+		if (ppr_nodes == null) {
+			ppr_nodes = new int[node_amount];
+			ppr_values = new double[node_amount];
+		}
+		ppr_size = 0;
 		for (int i = 0; i < node_amount; i++) {
-			long nodeId = adjM.toOriginalNodeId(i);
-			Double ppr_i = rankResult.score(i);
-			if (ppr_i > 0.0) // we don't store ppr whose value is 0
-				ppr.put(nodeId, ppr_i / ppr_sum); // normalization
+			double ppr_i = rankResult.score(i);
+			if (ppr_i > 0.0) { // we don't store ppr whose value is 0
+				ppr_nodes[ppr_size] = i;
+				ppr_values[ppr_size++] = ppr_i / ppr_sum; // normalization
+			}
 		}
 		return true;
 	}
 	
+	private Boolean buildPPRMap() { // build ppr based on the result of the last query
+		if (isResultRead) {
+			for (int i = 0; i < prep_records.size(); i++)
+				ppr.put(adjM.toOriginalNodeId(prep_records.nodeAt(i)), prep_records.pprAt(i));
+			return true;
+		}
+		if (!buildPPRArrays())
+			return false;
+		for (int i = 0; i < ppr_size; i++)
+			ppr.put(adjM.toOriginalNodeId(ppr_nodes[i]), ppr_values[i]);
+		return true;
+	}
+	
 	@Override
 	public void printWholeGraphResult() {
 		if (ppr.isEmpty())
@@ -126,120 +179,74 @@ public class Neo4j_Method extends Algo_Util implements Whole_Graph_Util_Interfac
 	public void preprocessing(Double dummy, Object iterations) {
 		// customize preprocessing_dirName
 		preprocessing_dirName += ("/" + iterations);
+		ppr_index = null;
 		
 		System.out.println("\nNeo4j-Method preprocessing started...");
-		HashMap<Integer, Integer> prog_pct_map = new HashMap<>(); // (nodeId, progress percentage)
-		for (int i = 10; i < 100; i += 10) {
-			int nodeId_i = node_amount * i / 100;
-			prog_pct_map.put(nodeId_i, i);
-		}
-		prog_pct_map.put(node_amount - 1, 100);
-		
-		File dirPath = new File(preprocessing_dirName);
-		if (!dirPath.exists()) { // create directory if not exists
-			dirPath.mkdirs();
-			System.out.println("\nCreated directory " + preprocessing_dirName);
-		}
-		else { // if exists, clear it before preprocessing
-			try {
-				FileUtils.cleanDirectory(dirPath);
-			}
-			catch (IOException e) {
-				System.out.println("Clear directory " + preprocessing_dirName + " failed!");
-				e.printStackTrace();
-			}
-			System.out.println("\nDirectory " + preprocessing_dirName + " cleared");
-		}
-		
-		adjM.forEachNode(nodeIdM -> {
-			Long nodeId_start = adjM.toOriginalNodeId(nodeIdM);
-			computeWholeGraphPPR(nodeId_start, iterations); // run Neo4j Method on src node
-			
-			String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-			try { // store ppr values that are not smaller than threshold
-				FileWriter fw = new FileWriter(fileName_start, false);
+		File indexFile = new File(preprocessing_dirName, PPR_Index.FILE_NAME);
+		String params = "Neo4j_Method alpha=" + alpha + " iterations=" + iterations + " nodes=" + node_amount 
+				+ " graph=" + String.format("%08x", csr.getChecksum()) + " label=" + label_type + " rel=" + rel_type 
+				+ " score_bits=" + prep_score_bits;
+		try (Prep_Manifest manifest = openPrepDir(preprocessing_dirName, params);
+				PPR_Index_Writer writer = new PPR_Index_Writer(indexFile, node_amount, prep_score_bits, manifest)) {
+			Prep_Pipeline.run(node_amount, pool, () -> {
+				Neo4j_Method worker = newWorker(); // own rankResult for each compute slot
+				return (nodeIdM, result) -> {
+					worker.computeWholeGraphPPR(adjM.toOriginalNodeId(nodeIdM), iterations); // run Neo4j Method on src node
 				
-				Double ppr_sum = 0.0;	
-				for (int i = 0; i < node_amount; i++)
-					ppr_sum += rankResult.score(i);
+					Double ppr_sum = 0.0;	
+					for (int i = 0; i < node_amount; i++)
+						ppr_sum += worker.rankResult.score(i);
 				
-				if (ppr_sum == 0.0) {
-					System.out.println("Error: sum of ppr equials 0!");
-				}
+					if (ppr_sum == 0.0) {
+						System.out.println("Error: sum of ppr equials 0!");
+					}
 					
-				for (int i = 0; i < node_amount; i++) {
-					Long nodeId_i = adjM.toOriginalNodeId(i);
-					Double ppr_i = rankResult.score(i) / ppr_sum; // normalization
-					try {
-	            		fw.write(nodeId_i.toString() + '\t' + ppr_i.toString() + '\n');
-	            	}
-	            	catch (IOException e) {
-	            		System.out.println("Write to file " + fileName_start + " failed!");
-	            		e.printStackTrace();
-	            	}
-				}
-				
-				fw.close();
-			}
-			catch (IOException e) {
-				System.out.println("Write to file " + fileName_start + " failed!");
-				e.printStackTrace();
-			}
-			
-			if (prog_pct_map.containsKey(nodeIdM))
-				System.out.println("Progress: " + prog_pct_map.get(nodeIdM) + "%");
-			return true;
-		});
+					for (int i = 0; i < node_amount; i++)
+						if (worker.rankResult.score(i) > 0.0) // zero pprs are implied by their absence
+							result.add(i, worker.rankResult.score(i) / ppr_sum); // normalization
+				};
+			}, writer);
+			writer.finish();
+			manifest.delete(); // nothing to resume
+		}
+		catch (IOException e) {
+			System.out.println("Write to file " + indexFile.getPath() + " failed!");
+			e.printStackTrace();
+		}
 	}
 
 	@Override
 	public void readPreprocessedPPR(Long nodeId_start) {
-		// read pprs from file corresponding to src node and store in ppr
-		
+		// read pprs of src node from the ppr index into prep_records, which ppr is built from on request
 		ppr.clear();
-		String fileName_start = preprocessing_dirName + "/" + nodeId_start.toString() + ".txt";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(fileName_start)));
-			String tmpStr = null;
-			while ((tmpStr = br.readLine()) != null) {
-				int space_idx = tmpStr.indexOf('\t');
-				Long nodeId_target = Long.parseLong(tmpStr.substring(0, space_idx));
-				Double ppr_target = Double.parseDouble(tmpStr.substring(space_idx + 1));
-				ppr.put(nodeId_target, ppr_target);
-			}
-			br.close();
-		}
-		catch (IOException e) {
-			System.out.println("Read from file " + fileName_start + " failed!");
-			e.printStackTrace();
+		topk_nodeIds.clear();
+		isTopkSelected = false;
+		isResultRead = true;
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null) {
+			prep_records.clear();
+			return;
 		}
+		
+		int nodeIdM_start = adjM.toMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		if (nodeIdM_start < 0)
+			throw new IllegalArgumentException("Node " + nodeId_start + " is not in the graph");
+		ppr_index.read(nodeIdM_start, prep_records);
 	}
 	
 	@Override
-	public Vector<Long> getTopKNodeIds(int k) { 
-		// return the reference of topk_nodeIds sorted by ppr; might include more than k nodes
-		
+	public Vector<Long> getTopKNodeIds(int k) { // return the reference of topk_nodeIds sorted by ppr; might include more than k nodes
 		if (!topk_nodeIds.isEmpty()) // topk_node_ids is already set, then no need to compute again 
 			return topk_nodeIds;		
 
-		if (ppr.isEmpty())
-			retrieveTopK(k);
-		
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) // store node ids in topk_node_ids after sorting
-			topk_nodeIds.add(topk_res_list_t.getKey());
+		retrieveTopK(k);
+		for (int i = 0; i < topk_selector.size(); i++) // the selected nodes are already sorted by ppr
+			topk_nodeIds.add(topk_selector.idAt(i));
 		return topk_nodeIds;
 	}
 	
 	@Override
 	public void computeTopKPPR(Long nodeId_start, int k, Object iterations) { 
-		// store the top-k results in topk_res; might include more than k nodes
+		// store the top-k results in topk_selector; might include more than k nodes
 		
 		computeWholeGraphPPR(nodeId_start, iterations);
 		// perform Neo4j Method Whole-Graph SSPPR algo
@@ -247,51 +254,41 @@ public class Neo4j_Method extends Algo_Util implements Whole_Graph_Util_Interfac
 	
 	@Override
 	public void printTopKResult(int k) {
-		if (ppr.isEmpty())
-			retrieveTopK(k);
-		
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		int count = 0;
+		retrieveTopK(k);
 		System.out.println("\nNeo4j-Method-Top" + k + " PPR:");
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) {
-			if (count >= k) // we need to count since the size of topk_reserves might be greater than k
-				break;
-			count++;
-			System.out.println("@" + getNodeName(topk_res_list_t.getKey(), graphDb) + '\t' + topk_res_list_t.getValue());
-		}
+		for (int i = 0; i < topk_selector.size() && i < k; i++) // there might be more than k selected nodes
+			System.out.println("@" + getNodeName(topk_selector.idAt(i), graphDb) + '\t' + topk_selector.pprAt(i));
 	}
 	
-	private void retrieveTopK(int k) { // retrieve top-k results from whole-graph ppr results and store in topk_res
-		// 1. build ppr map
-		if (ppr.isEmpty())
-			buildPPRMap();
-		
-		// 2. retrieve top-k results and store in topk_res 
-		Double kth_reserve = kth_ppr(ppr.values().toArray(), k); // find the kth ppr
-		if (kth_reserve == null) { // there might be less than k results, so we copy all of them to topk_res
-			topk_res = new HashMap<>(ppr);
+	private void retrieveTopK(int k) { // select top-k results from whole-graph ppr results into topk_selector
+		if (isTopkSelected)
 			return;
-		}
-			
-		for (Map.Entry<Long, Double> reserve_t : ppr.entrySet()) {
-			// find the pprs not smaller than the kth ppr, so it's possible that
-			// the size of topk_res is greater than k
-			if (reserve_t.getValue() >= kth_reserve)
-				topk_res.put(reserve_t.getKey(), reserve_t.getValue());
-		}
-		return;
+		isTopkSelected = true;
+		
+		if (isResultRead)
+			topk_selector.select(prep_records, adjM::toOriginalNodeId, k);
+		else if (rankResult != null && buildPPRArrays())
+			topk_selector.select(ppr_nodes, ppr_values, ppr_size, adjM::toOriginalNodeId, k);
+		else
+			topk_selector.clear();
 	}
 
 	@Override
 	public Long getPrepSize() {
 		return FileUtils.sizeOfDirectory(new File(preprocessing_dirName));
 	}
+	
+	@Override
+	public void setScoreBits(int score_bits) {
+		prep_score_bits = score_bits;
+	}
+	
+	@Override
+	public Double getPrepMaxError() {
+		if (ppr_index == null && (ppr_index = loadPPRIndex(preprocessing_dirName, node_amount)) == null)
+			return null;
+		return ppr_index.getMaxError();
+	}
 
 	@Override
 	public void deletePrepDir() {
@@ -0,0 +1,63 @@
+package joezie.fora_neo4j;
+
+public class Node_Queue { // FIFO queue of mapped node ids with a bitset recording which nodes are in it
+	private int queue[]; // ring buffer; a node is in the queue at most once, so node_amount slots suffice
+	private int head; // index of the next node to poll
+	private int size; // number of nodes in the queue
+	private long in_queue[]; // membership bitset indexed by mapped node id
+
+	public Node_Queue(int node_amount) {
+		queue = new int[Math.max(node_amount, 1)];
+		in_queue = new long[(node_amount + 63) >>> 6];
+		head = 0;
+		size = 0;
+	}
+
+	public boolean contains(int nodeIdM) {
+		return (in_queue[nodeIdM >>> 6] & (1L << nodeIdM)) != 0;
+	}
+
+	public boolean offer(int nodeIdM) {
+		// append the node if it's not in the queue yet; return whether it's appended
+
+		if (contains(nodeIdM))
+			return false;
+		int tail = head + size;
+		if (tail >= queue.length)
+			tail -= queue.length;
+		queue[tail] = nodeIdM;
+		size++;
+		in_queue[nodeIdM >>> 6] |= (1L << nodeIdM);
+		return true;
+	}
+
+	public int poll() { // remove and return the head of the queue; the queue must not be empty
+		int nodeIdM = queue[head];
+		if (++head == queue.length)
+			head = 0;
+		size--;
+		in_queue[nodeIdM >>> 6] &= ~(1L << nodeIdM);
+		return nodeIdM;
+	}
+
+	public int get(int i) { // return the ith node from the head without removing it
+		int idx = head + i;
+		if (idx >= queue.length)
+			idx -= queue.length;
+		return queue[idx];
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() { // O(size): only the bits of the queued nodes are reset
+		while (size > 0)
+			poll();
+		head = 0;
+	}
+}
@@ -2,22 +2,25 @@ package joezie.fora_neo4j;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
-import org.neo4j.graphalgo.core.GraphLoader;
-import org.neo4j.graphalgo.core.heavyweight.HeavyGraphFactory;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.schema.IndexDefinition;
 import org.neo4j.graphdb.schema.Schema;
 import org.neo4j.helpers.collection.Iterators;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.storageengine.api.StoreId;
 
 
 public class PPR extends Gen_Util { // main class
@@ -30,6 +33,32 @@ public class PPR extends Gen_Util { // main class
 	private static final String LABEL_TYPE_OPTION = "label_type";
 	private static final String REL_TYPE_OPTION = "rel_type";
 	private static final String DATABASE_DIR_OPTION = "db_dir";
+	private static final String SNAPSHOT_OPTION = "snapshot";
+	private static final String EXPORT_SNAPSHOT_OPTION = "export_snapshot";
+	private static final String THREADS_OPTION = "threads";
+	private static final String WALK_INDEX_OPTION = "walk_index";
+	private static final String SCORE_BITS_OPTION = "score_bits";
+	private static final String PREP_MEMORY_OPTION = "prep_memory";
+	private static final String PM_TOLERANCE_OPTION = "pm_tolerance";
+	private static final String GROUND_TRUTH_OPTION = "ground_truth_dir";
+	private static final String SWEEP_OPTION = "sweep";
+	private static final String WARMUP_OPTION = "warmup";
+	private static final String SEED_OPTION = "seed";
+	private static final String LOAD_CLIENTS_OPTION = "load_clients";
+	private static final String LOAD_ALGO_OPTION = "load_algo";
+	private static final String LOAD_TEST_OPTION = "load_test";
+	private static final String LOAD_PARAM_OPTION = "load_param";
+	private static final String ARRIVAL_RATE_OPTION = "arrival_rate";
+	private static final String LOAD_DURATION_OPTION = "load_duration";
+	private static final String REPLAY_OPTION = "replay";
+	private static final String REPLAY_SPEED_OPTION = "replay_speed";
+	private static final String REPLAY_CLIENTS_OPTION = "replay_clients";
+	private static final String RESULT_CACHE_OPTION = "result_cache";
+	private static final String CACHE_POLICY_OPTION = "cache_policy";
+	private static final String METRICS_FILE_OPTION = "metrics_file";
+	private static final String METRICS_PERIOD_OPTION = "metrics_period";
+	private static final String DYNAMIC_PUSH_OPTION = "dynamic_push";
+	private static final String DYNAMIC_SOURCES_OPTION = "dynamic_sources";
 	private static final String HELP_OPTION = "help";
 	
 	private static void registerShutdownHook( final GraphDatabaseService graphDb )
@@ -62,6 +91,8 @@ public class PPR extends Gen_Util { // main class
 	public void shutDown()
     {
         System.out.println( "\nShutting down database ..." );
+        if (dynamic_push != null)
+        	dynamic_push.unregister();
         // tag::shutdownServer[]
         graphDb.shutdown();
         // end::shutdownServer[]
@@ -126,10 +157,12 @@ public class PPR extends Gen_Util { // main class
 		this.label_type = label_type;
 		this.rel_type = rel_type;
 		node_label = Label.label(label_type);
-		node_amount = (int)(adjM.nodeCount());
-		try ( Transaction tx = graphDb.beginTx() ) {
-			rel_amount = (int)Iterators.count(graphDb.getAllRelationships().iterator());
-			tx.success();
+		node_amount = csr.nodeCount();
+		if (rel_amount == 0) { // not known yet if the graph isn't from a snapshot
+			try ( Transaction tx = graphDb.beginTx() ) {
+				rel_amount = (int)Iterators.count(graphDb.getAllRelationships().iterator());
+				tx.success();
+			}
 		}
 	}
 	
@@ -138,17 +171,120 @@ public class PPR extends Gen_Util { // main class
 		long startTime = 0, endTime = 0, duration = 0;
 		startTime = System.nanoTime();
 		
-		adjM = new GraphLoader((GraphDatabaseAPI)graphDb)
-				.withoutRelationshipWeights()
-				.withoutNodeWeights()
-				.withoutNodeProperties()
-				.withAnyRelationshipType()
-				.withAnyLabel()
-				.load(HeavyGraphFactory.class);
+		loadAdjMatrix();
 		
 		endTime = System.nanoTime();
 		duration = endTime - startTime;
 		System.out.println("\nFinish graph loading in " + duration / 1000000 + "(ms)");
+		
+		startTime = System.nanoTime();
+		csr = CSR_Graph.of(adjM); // flatten adjM once so that the algorithms can traverse plain arrays
+		endTime = System.nanoTime();
+		duration = endTime - startTime;
+		System.out.println("\nFinish CSR snapshot building in " + duration / 1000000 + "(ms)");
+	}
+	
+	public void loadSnapshot(File snapshotFile) throws IOException {
+		// memory-map the graph exported by exportSnapshot instead of loading it from graphDb;
+		// adjM is then only loaded if Neo4j Method is run
+		
+		System.out.println("\nLoading graph snapshot " + snapshotFile.getPath() + "...");
+		long startTime = 0, endTime = 0, duration = 0;
+		startTime = System.nanoTime();
+		
+		Graph_Snapshot snapshot = Graph_Snapshot.load(snapshotFile);
+		StoreId storeId = ((GraphDatabaseAPI)graphDb).storeId();
+		String mismatch = snapshot.matches(countOf("MATCH (n) RETURN count(n) AS count"), 
+				countOf("MATCH ()-[r]->() RETURN count(r) AS count"), storeId.getCreationTime(), storeId.getRandomId());
+		if (mismatch != null) // node ids would be mapped wrongly
+			throw new IOException("Graph snapshot " + snapshotFile.getPath() + " doesn't match database " + dir_db 
+					+ ": " + mismatch + "; export it again with -" + EXPORT_SNAPSHOT_OPTION);
+		csr = snapshot.getGraph();
+		rel_amount = snapshot.getRelAmount();
+		
+		endTime = System.nanoTime();
+		duration = endTime - startTime;
+		System.out.println("\nFinish graph snapshot loading in " + duration / 1000000 + "(ms)");
+	}
+	
+	private long countOf(String query) { // the count returned by a cypher query, which the counts store answers at once
+		try ( Transaction tx = graphDb.beginTx(); Result result = graphDb.execute(query) ) {
+			long count = result.<Number>columnAs("count").next().longValue();
+			tx.success();
+			return count;
+		}
+	}
+	
+	public void exportSnapshot(File snapshotFile) throws IOException {
+		// write csr & rel_amount into a snapshot file for loadSnapshot
+		
+		System.out.println("\nExporting graph snapshot to " + snapshotFile.getPath() + "...");
+		long startTime = 0, endTime = 0, duration = 0;
+		startTime = System.nanoTime();
+		
+		StoreId storeId = ((GraphDatabaseAPI)graphDb).storeId();
+		Graph_Snapshot.export(csr, rel_amount, storeId.getCreationTime(), storeId.getRandomId(), snapshotFile);
+		
+		endTime = System.nanoTime();
+		duration = endTime - startTime;
+		System.out.println("\nFinish graph snapshot exporting in " + duration / 1000000 + "(ms)");
+	}
+
+	public void setupWalkIndex(File indexFile) throws IOException {
+		// load the random walk index of FORA, or build it with the current settings if it doesn't exist or is
+		// sized for other settings
+		
+		long startTime = 0, endTime = 0, duration = 0;
+		startTime = System.nanoTime();
+		
+		Double delta = 1.0 / (double)node_amount; // the same bounds as Algo_Conf.set_conf_fora_whole_graph
+		Double pfail = 1.0 / (double)node_amount;
+		double rmax = Walk_Index.computeRmax(alpha, epsilon, pfail, delta, rel_amount);
+		double omega = Walk_Index.computeOmega(epsilon, pfail, delta);
+		walk_index = null;
+		if (indexFile.exists()) {
+			System.out.println("\nLoading walk index " + indexFile.getPath() + "...");
+			walk_index = Walk_Index.load(indexFile, csr);
+			if (!walk_index.isSizedFor(alpha, rmax, omega)) { // its walk counts would bias the estimates
+				System.out.println("Walk index is built for alpha = " + walk_index.getAlpha() + ", epsilon = " 
+						+ walk_index.getEpsilon() + " (rmax " + walk_index.getRmax() + ", omega " + walk_index.getOmega() 
+						+ "), not alpha = " + alpha + ", epsilon = " + epsilon + " (rmax " + rmax + ", omega " + omega 
+						+ "), rebuilding it");
+				walk_index = null;
+			}
+		}
+		if (walk_index == null) {
+			System.out.println("\nBuilding walk index " + indexFile.getPath() + "...");
+			Monte_Carlo mc_t = (Monte_Carlo)newAlgoObj(AlgoType.MC, 0);
+			walk_index = Walk_Index.build(csr, mc_t, alpha, epsilon, pfail, delta, rel_amount, mc_pool, indexFile);
+		}
+		
+		endTime = System.nanoTime();
+		duration = endTime - startTime;
+		System.out.println("\nFinish walk index setup (" + walk_index.getWalkAmount() + " walks) in "
+				+ duration / 1000000 + "(ms)");
+	}
+
+	public void setupResultCache(long max_bytes, PPR_Result_Cache.Policy policy) { // share results among the queries of load tests & replays
+		result_cache = new PPR_Result_Cache(max_bytes, policy);
+		result_cache.setGraph(csr);
+		System.out.println("\nResult cache of " + (max_bytes >> 20) + "MB (" + policy + ") set up");
+	}
+
+	public void setupDynamicPush(double rmax, int max_sources) {
+		// answer Forward Push's preprocessed queries from results following the updates of graphDb
+		
+		dynamic_push = new Dynamic_Forward_Push(csr, alpha, rmax, max_sources);
+		dynamic_push.register(graphDb);
+		System.out.println("\nForward Push dynamic mode started with rmax = " + rmax + ", tracking up to " 
+				+ max_sources + " sources");
+	}
+
+	public void setupGroundTruthCache(File dir) { // reuse the ground truth stored in dir for the current graph
+		long startTime = System.nanoTime();
+		gt_cache = new Ground_Truth_Cache(dir, csr); // checksums the graph
+		long duration = System.nanoTime() - startTime;
+		System.out.println("\nGround truth cache " + gt_cache.getDir().getPath() + " set up in " + duration / 1000000 + "(ms)");
 	}
 
     public static void main( String[] args ) throws IOException
@@ -163,6 +299,32 @@ public class PPR extends Gen_Util { // main class
         cliOptions.addOption("label", LABEL_TYPE_OPTION, true, "The nodes' label type in the input datatbase (Default: \"Person\")");
         cliOptions.addOption("rel", REL_TYPE_OPTION, true, "The relationships' type in the input database (Default: \"Relation\")");
         cliOptions.addOption("db", DATABASE_DIR_OPTION, true, "The directory of the input database (Default: \"target/got.db\")");
+        cliOptions.addOption("snap", SNAPSHOT_OPTION, true, "Memory-map the graph from this snapshot file instead of loading it from the database (Default: none)");
+        cliOptions.addOption("export", EXPORT_SNAPSHOT_OPTION, true, "Load the graph from the database, export it to this snapshot file and exit (Default: none)");
+        cliOptions.addOption("threads", THREADS_OPTION, true, "The number of threads running the random walks of Monte-Carlo, the sources of preprocessing and the iterations of Power Method in parallel (Default: 1)");
+        cliOptions.addOption("walks", WALK_INDEX_OPTION, true, "Let FORA read random walks from this index file, which is built with eps first if it doesn't exist (Default: none)");
+        cliOptions.addOption("bits", SCORE_BITS_OPTION, true, "Store each preprocessed PPR quantized to this many bits (1-32) with node ids delta-encoded, or exactly if 0 (Default: 0)");
+        cliOptions.addOption("prepmem", PREP_MEMORY_OPTION, true, "Megabytes of PPRs BASE preprocessing buffers in memory before spilling them to disk (Default: 256)");
+        cliOptions.addOption("tol", PM_TOLERANCE_OPTION, true, "Stop the Power Method computing the ground truth once its unassigned PPR mass (L1 residual) is below this (Default: 1e-7)");
+        cliOptions.addOption("gt", GROUND_TRUTH_OPTION, true, "Keep the ground truth computed by Power Method in this directory, keyed by the graph's checksum, and reuse it in later runs; \"none\" to always compute it (Default: \"GT_ppr_results\")");
+        cliOptions.addOption("sweep", SWEEP_OPTION, true, "The config file, or resource, listing the algorithms, parameters, k values & graphs of the batch tests, which resume from the last run's checkpoint (Default: \"sweeps/got.properties\")");
+        cliOptions.addOption("warmup", WARMUP_OPTION, true, "The number of warmup queries run before the timed queries of each test, which aren't counted in its results (Default: 10)");
+        cliOptions.addOption("seed", SEED_OPTION, true, "The seed of the random query nodes, so that a test can be repeated on the same nodes (Default: random, or the seed saved in the checkpoint of a resumed sweep)");
+        cliOptions.addOption("load", LOAD_CLIENTS_OPTION, true, "Load test an algorithm with these comma-separated numbers of concurrent clients, e.g. \"1,2,4,8\", instead of running the batch tests (Default: none)");
+        cliOptions.addOption("loadalgo", LOAD_ALGO_OPTION, true, "The algorithm of the load test: FORA_TOPK, FORA_WHOLE_GRAPH, MC, FWDPUSH, NEO4J_METHOD or BASE_WHOLE_GRAPH (Default: FORA_TOPK)");
+        cliOptions.addOption("loadtest", LOAD_TEST_OPTION, true, "The queries of the load test: TOPK or WHOLE_GRAPH (Default: TOPK)");
+        cliOptions.addOption("loadparam", LOAD_PARAM_OPTION, true, "The parameter of the load tested algorithm: epsilon, rmax, iterations, or the threshold of BASE (Default: the value of eps)");
+        cliOptions.addOption("rate", ARRIVAL_RATE_OPTION, true, "Queries per second arriving in the load test (open loop), or 0 for each client to send its next query when the last one returns (closed loop) (Default: 0)");
+        cliOptions.addOption("duration", LOAD_DURATION_OPTION, true, "Seconds the load test runs for each number of clients, after a warmup of a tenth of it (Default: 30)");
+        cliOptions.addOption("replay", REPLAY_OPTION, true, "Replay the queries of this trace file, whose lines are \"timestamp(ms),node,algo,k,param\" with node being the node property value of the source and k -1 for whole-graph queries, instead of running the batch tests (Default: none)");
+        cliOptions.addOption("speed", REPLAY_SPEED_OPTION, true, "Replay the trace at this multiple of its recorded rate, or as fast as possible if 0 (Default: 1)");
+        cliOptions.addOption("replayclients", REPLAY_CLIENTS_OPTION, true, "The number of concurrent clients replaying the trace (Default: 8)");
+        cliOptions.addOption("cache", RESULT_CACHE_OPTION, true, "Megabytes of query results the load test or replay keeps to answer repeated queries, reporting its hit rate; 0 to compute every query (Default: 0)");
+        cliOptions.addOption("cachepolicy", CACHE_POLICY_OPTION, true, "Eviction policy of the result cache: LRU or LFU (Default: LRU)");
+        cliOptions.addOption("metrics", METRICS_FILE_OPTION, true, "Write the per-query metrics of every algorithm (also exposed over JMX) to this file periodically, one json line per algorithm (Default: none)");
+        cliOptions.addOption("metricsperiod", METRICS_PERIOD_OPTION, true, "Seconds between two writes of the metrics file (Default: 10)");
+        cliOptions.addOption("dynamic", DYNAMIC_PUSH_OPTION, true, "Answer the preprocessed queries of Forward Push from results pushed with this rmax and repaired as relationships are created and deleted in the database, instead of its ppr index (Default: none)");
+        cliOptions.addOption("dynsources", DYNAMIC_SOURCES_OPTION, true, "The number of sources the dynamic mode of Forward Push keeps repaired, dropping the least recently read one beyond it (Default: " + Dynamic_Forward_Push.DEFAULT_MAX_SOURCES + ")");
         cliOptions.addOption("help", HELP_OPTION, false, "Print information about command line inputs.");
         
         try {
@@ -182,14 +344,95 @@ public class PPR extends Gen_Util { // main class
             final String label_type = line.getOptionValue(LABEL_TYPE_OPTION, "Person");
             final String rel_type = line.getOptionValue(REL_TYPE_OPTION, "Relation");
             final String dir_db = line.getOptionValue(DATABASE_DIR_OPTION, "target/got.db");
+            final String snapshot_file = line.getOptionValue(SNAPSHOT_OPTION);
+            final String export_file = line.getOptionValue(EXPORT_SNAPSHOT_OPTION);
+            final int threads = Integer.parseInt(line.getOptionValue(THREADS_OPTION, "1"));
+            final String walk_index_file = line.getOptionValue(WALK_INDEX_OPTION);
+            final int score_bits = Integer.parseInt(line.getOptionValue(SCORE_BITS_OPTION, "0"));
+            final long prep_memory = Long.parseLong(line.getOptionValue(PREP_MEMORY_OPTION, "256"));
+            final String ground_truth_dir = line.getOptionValue(GROUND_TRUTH_OPTION, "GT_ppr_results");
+            final String sweep = line.getOptionValue(SWEEP_OPTION, "sweeps/got.properties");
+            final int warmup_num = Integer.parseInt(line.getOptionValue(WARMUP_OPTION, "10"));
+            final long query_seed = line.hasOption(SEED_OPTION) ? Long.parseLong(line.getOptionValue(SEED_OPTION)) 
+            		: new Random().nextLong();
+            final String load_clients = line.getOptionValue(LOAD_CLIENTS_OPTION);
+            final AlgoType load_algo = AlgoType.valueOf(line.getOptionValue(LOAD_ALGO_OPTION, "FORA_TOPK"));
+            final TestType load_test = TestType.valueOf(line.getOptionValue(LOAD_TEST_OPTION, "TOPK"));
+            final Object load_param = parseParam(load_algo, line.getOptionValue(LOAD_PARAM_OPTION, String.valueOf(epsilon)));
+            final double arrival_rate = Double.parseDouble(line.getOptionValue(ARRIVAL_RATE_OPTION, "0"));
+            final long load_duration = Long.parseLong(line.getOptionValue(LOAD_DURATION_OPTION, "30"));
+            final String replay_file = line.getOptionValue(REPLAY_OPTION);
+            final double replay_speed = Double.parseDouble(line.getOptionValue(REPLAY_SPEED_OPTION, "1"));
+            final int replay_clients = Integer.parseInt(line.getOptionValue(REPLAY_CLIENTS_OPTION, "8"));
+            final long result_cache_mb = Long.parseLong(line.getOptionValue(RESULT_CACHE_OPTION, "0"));
+            final PPR_Result_Cache.Policy cache_policy = PPR_Result_Cache.Policy.valueOf(line.getOptionValue(CACHE_POLICY_OPTION, "LRU"));
+            final String metrics_file = line.getOptionValue(METRICS_FILE_OPTION);
+            final long metrics_period = Long.parseLong(line.getOptionValue(METRICS_PERIOD_OPTION, "10"));
+            final String dynamic_rmax = line.getOptionValue(DYNAMIC_PUSH_OPTION);
+            final int dynamic_sources = Integer.parseInt(line.getOptionValue(DYNAMIC_SOURCES_OPTION, 
+            		String.valueOf(Dynamic_Forward_Push.DEFAULT_MAX_SOURCES)));
+            final double pm_tolerance = Double.parseDouble(line.getOptionValue(PM_TOLERANCE_OPTION, 
+            		String.valueOf(Power_Method.DEFAULT_TOLERANCE)));
+            if (score_bits < 0 || score_bits > PPR_Index.MAX_SCORE_BITS) {
+            	System.out.println("Invalid " + SCORE_BITS_OPTION + ": " + score_bits);
+            	return;
+            }
+            if (warmup_num < 0) {
+            	System.out.println("Invalid " + WARMUP_OPTION + ": " + warmup_num);
+            	return;
+            }
      
             PPR ppr_t = new PPR();
+            if (threads > 1)
+            	ppr_t.mc_pool = new ForkJoinPool(threads);
+            ppr_t.prep_score_bits = score_bits;
+            ppr_t.prep_memory_budget = prep_memory << 20;
+            ppr_t.pm_tolerance = pm_tolerance;
+            ppr_t.warmup_num = warmup_num;
+            ppr_t.query_seed = query_seed;
+            ppr_t.isSeedSet = line.hasOption(SEED_OPTION);
             ppr_t.createDb(new File(dir_db));
-            ppr_t.setupAdjMatrix();
+            if (snapshot_file != null && export_file == null)
+            	ppr_t.loadSnapshot(new File(snapshot_file));
+            else
+            	ppr_t.setupAdjMatrix();
             ppr_t.set_configuration(alpha, epsilon, node_property, label_type, rel_type);
+            
+            if (export_file != null) {
+            	ppr_t.exportSnapshot(new File(export_file));
+            	ppr_t.shutDown();
+            	return;
+            }
             ppr_t.create_index();
+            if (walk_index_file != null)
+            	ppr_t.setupWalkIndex(new File(walk_index_file));
+            if (!ground_truth_dir.equals("none"))
+            	ppr_t.setupGroundTruthCache(new File(ground_truth_dir));
+            if (result_cache_mb > 0)
+            	ppr_t.setupResultCache(result_cache_mb << 20, cache_policy);
+            if (dynamic_rmax != null)
+            	ppr_t.setupDynamicPush(Double.parseDouble(dynamic_rmax), dynamic_sources);
+            if (metrics_file != null)
+            	Query_Metrics.startSnapshots(new File(metrics_file), metrics_period);
 
-        	ppr_t.algo_perf_batch_test(query_num, k);
+        	System.out.println("\nQuery seed: " + query_seed);
+        	if (replay_file != null)
+        		ppr_t.algo_replay_test(new File(replay_file), replay_clients, replay_speed);
+        	else if (load_clients != null) {
+        		int clients_arr[] = Arrays.stream(load_clients.split(",")).mapToInt(c -> Integer.parseInt(c.trim())).toArray();
+        		if (load_algo == AlgoType.BASE_WHOLE_GRAPH) // load_param is the threshold of BASE
+        			ppr_t.algo_load_test(load_algo, load_test, k, -1, (Double)load_param, clients_arr, arrival_rate, load_duration * 1000);
+        		else
+        			ppr_t.algo_load_test(load_algo, load_test, k, load_param, -1.0, clients_arr, arrival_rate, load_duration * 1000);
+        	}
+        	else
+        		ppr_t.algo_perf_batch_test(sweep, query_num, k);
+        	if (ppr_t.gt_cache != null)
+        		System.out.println("\nGround truth cache: " + ppr_t.gt_cache.getHits() + " hits, " 
+        				+ ppr_t.gt_cache.getMisses() + " misses");
+        	if (ppr_t.result_cache != null)
+        		System.out.println("\nResult " + ppr_t.result_cache);
+        	Query_Metrics.stopSnapshots(); // writes the final metrics
 
         	ppr_t.shutDown();
         }
@@ -0,0 +1,150 @@
+package joezie.fora_neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class PPR_Index { // preprocessed ppr results of every source node in one memory-mapped binary file
+	/* File layout (little-endian):
+	 *   header (HEADER_SIZE bytes): magic, version, node_amount, record_amount, file_size,
+	 *     score_bits, max_error
+	 *   offsets long[n]: position of the records of each source, relative to the records section
+	 *   counts int[n]: the number of records of each source
+	 *   sizes int[n]: the size in bytes of the records of each source
+	 *   records, starting at an 8-byte aligned offset
+	 * Sources and targets are mapped node ids of the graph the results are computed
+	 * on. If score_bits is 0, the records of a source are packed (int target,
+	 * double ppr) pairs; otherwise they are compressed as described in
+	 * PPR_Records.decode, and a stored ppr is off by at most max_error. The
+	 * records of a source never cross a SEGMENT_SIZE boundary, so each source
+	 * is read from a slice of a single mapping.
+	 */
+
+	public static final String FILE_NAME = "ppr.idx"; // name of the index in a preprocessing directory
+	public static final int MAX_SCORE_BITS = 32;
+	static final long MAGIC = 0x315844495F525050L; // bytes "PPR_IDX1" read as a little-endian long
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 12; // int target + double ppr
+	static final int SEGMENT_SHIFT = 30; // 1GB per mapping of the records section
+	static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final ByteBuffer NO_RECORDS = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private int node_amount;
+	private long record_amount; // the total number of records in the index
+	private int score_bits; // bits per quantized ppr; 0 if pprs are stored exactly
+	private double max_error; // the largest error of a stored ppr
+	private LongBuffer offsets;
+	private IntBuffer counts;
+	private IntBuffer sizes;
+	private ByteBuffer segments[]; // records in [i * SEGMENT_SIZE, (i + 1) * SEGMENT_SIZE) of the records section
+
+	private PPR_Index(int node_amount, long record_amount, int score_bits, double max_error, LongBuffer offsets,
+			IntBuffer counts, IntBuffer sizes, ByteBuffer segments[]) {
+		this.node_amount = node_amount;
+		this.record_amount = record_amount;
+		this.score_bits = score_bits;
+		this.max_error = max_error;
+		this.offsets = offsets;
+		this.counts = counts;
+		this.sizes = sizes;
+		this.segments = segments;
+	}
+
+	static long recordsPosition(int node_amount) { // the records section follows the offsets, counts & sizes
+		return (HEADER_SIZE + (long)node_amount * 16 + 7) & ~7L;
+	}
+
+	public int getNodeAmount() {
+		return node_amount;
+	}
+
+	public long getRecordAmount() {
+		return record_amount;
+	}
+
+	public int getScoreBits() {
+		return score_bits;
+	}
+
+	public double getMaxError() {
+		return max_error;
+	}
+
+	public int recordCount(int nodeIdM) { // the number of stored pprs of the source
+		return counts.get(nodeIdM);
+	}
+
+	public void read(int nodeIdM, PPR_Records records) {
+		/* Load the records of the source into records. Exact records are
+		 * read in place from a view of the mapping, so nothing is copied;
+		 * compressed ones are decoded. The view is private to records, so
+		 * the index can be read by many threads at once.
+		 */
+
+		int count = counts.get(nodeIdM);
+		ByteBuffer block = NO_RECORDS;
+		if (count > 0) {
+			long offset = offsets.get(nodeIdM);
+			block = segments[(int)(offset >>> SEGMENT_SHIFT)].duplicate();
+			int begin = (int)(offset & (SEGMENT_SIZE - 1));
+			block.limit(begin + sizes.get(nodeIdM));
+			block.position(begin);
+			block = block.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (score_bits == 0 || count == 0)
+			records.setRaw(block, count);
+		else
+			records.decode(block, count, score_bits);
+	}
+
+	public static PPR_Index load(File file, int node_amount) throws IOException {
+		// map an index written by PPR_Index_Writer; it must cover node_amount sources
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException("PPR index " + file.getPath() + " is truncated");
+			ByteBuffer header = map(channel, 0, HEADER_SIZE);
+			if (header.getLong() != MAGIC)
+				throw new IOException(file.getPath() + " is not a ppr index");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported ppr index version " + version + " (expected " + VERSION + ")");
+			int node_amount_t = header.getInt();
+			long record_amount = header.getLong();
+			long file_size = header.getLong();
+			int score_bits = header.getInt();
+			header.getInt(); // padding
+			double max_error = header.getDouble();
+			if (node_amount_t != node_amount)
+				throw new IOException("PPR index " + file.getPath() + " has " + node_amount_t + " sources, but the graph has "
+						+ node_amount + " nodes");
+			if (file_size != channel.size() || score_bits < 0 || score_bits > MAX_SCORE_BITS)
+				throw new IOException("PPR index " + file.getPath() + " is corrupted or truncated");
+			if ((long)node_amount * 8 > Integer.MAX_VALUE) // a single mapping is limited to 2GB
+				throw new IOException("Too many sources to map ppr index " + file.getPath());
+
+			long n = node_amount;
+			LongBuffer offsets = map(channel, HEADER_SIZE, n * 8).asLongBuffer();
+			IntBuffer counts = map(channel, HEADER_SIZE + n * 8, n * 4).asIntBuffer();
+			IntBuffer sizes = map(channel, HEADER_SIZE + n * 12, n * 4).asIntBuffer();
+			long records_pos = recordsPosition(node_amount), records_size = file_size - records_pos;
+			int segment_amount = (int)((records_size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+			ByteBuffer segments[] = new ByteBuffer[segment_amount];
+			for (int i = 0; i < segment_amount; i++) {
+				long begin = (long)i << SEGMENT_SHIFT;
+				segments[i] = map(channel, records_pos + begin, Math.min(SEGMENT_SIZE, records_size - begin));
+			}
+			return new PPR_Index(node_amount, record_amount, score_bits, max_error, offsets, counts, sizes, segments);
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,320 @@
+package joezie.fora_neo4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class PPR_Index_Writer implements Closeable { // writes the ppr results of each source into a PPR_Index file
+	/* The pprs of a source are added one by one, then finishSource() appends them
+	 * to the records section; sources may be finished in any order, and those
+	 * never finished have no records. The index is written aside and only
+	 * renamed to the target file by close(), so a crash never leaves a half index.
+	 *
+	 * With score_bits > 0 the records of a source are compressed: node ids are
+	 * sorted and stored as varint gaps, and each ppr is scaled by the largest
+	 * ppr of the source and rounded to score_bits bits, so it's off by at most
+	 * scale / (2 * (2^score_bits - 1)). Negative pprs are stored as 0.
+	 *
+	 * Given a Prep_Manifest, checkpoint() records the sources finished so far,
+	 * and a writer opened on the manifest of an interrupted run picks up the
+	 * index written aside where the last checkpoint left it, with those
+	 * sources already finished. If the index written aside is gone, the
+	 * writer starts over and clears the manifest, so that its checkpoints are
+	 * never replayed against another file. The index is only complete once
+	 * finish() is called; closing the writer before that keeps what's needed
+	 * to resume.
+	 */
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private File file;
+	private File tmp_file;
+	private FileChannel channel;
+	private ByteBuffer buf; // pending bytes of the records section
+	private int node_amount;
+	private int score_bits; // bits per quantized ppr; 0 to store exact pprs
+	private double max_error; // the largest quantization error so far
+	private long offsets[]; // position of each source's records, relative to the records section
+	private int counts[]; // the number of records of each source
+	private int sizes[]; // the size in bytes of each source's records
+	private long records_pos; // position of the records section in the file
+	private long records_end; // the size of the records section written so far, including buf
+	private long record_amount;
+	private int targets[]; // records of the current source
+	private double pprs[];
+	private int size; // the number of records of the current source
+	private long order[]; // (target << 32 | record index) sorted to order the records by target
+	private byte block[]; // the compressed records of the current source
+	private Prep_Manifest manifest; // where checkpoints are recorded; null if the index isn't resumable
+	private boolean finished[]; // whether each source is finished
+	private int finished_amount;
+	private int unrecorded[]; // sources finished since the last checkpoint
+	private int unrecorded_size;
+	private boolean isComplete; // whether finish() has been called
+
+	public PPR_Index_Writer(File file, int node_amount, int score_bits) throws IOException {
+		this(file, node_amount, score_bits, null);
+	}
+
+	public PPR_Index_Writer(File file, int node_amount, int score_bits, Prep_Manifest manifest) throws IOException {
+		if (score_bits < 0 || score_bits > PPR_Index.MAX_SCORE_BITS)
+			throw new IllegalArgumentException("score_bits should be in [0, " + PPR_Index.MAX_SCORE_BITS + "]");
+		this.file = file;
+		this.node_amount = node_amount;
+		this.score_bits = score_bits;
+		this.manifest = manifest;
+		tmp_file = new File(file.getPath() + ".tmp");
+		boolean hasCheckpoints = manifest != null && !manifest.getBlocks().isEmpty();
+		boolean isResumed = hasCheckpoints && tmp_file.exists();
+		if (hasCheckpoints && !isResumed) // the records the checkpoints refer to are lost, so start over
+			manifest.clear();
+		channel = isResumed ? FileChannel.open(tmp_file.toPath(), StandardOpenOption.WRITE)
+				: FileChannel.open(tmp_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+		buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		offsets = new long[node_amount];
+		counts = new int[node_amount];
+		sizes = new int[node_amount];
+		finished = new boolean[node_amount];
+		unrecorded = new int[16];
+		records_pos = PPR_Index.recordsPosition(node_amount);
+		if (isResumed) {
+			for (ByteBuffer checkpoint : manifest.getBlocks())
+				restore(checkpoint);
+			channel.truncate(records_pos + records_end); // drop records written after the last checkpoint
+		}
+		channel.position(records_pos + records_end);
+		targets = new int[16];
+		pprs = new double[16];
+	}
+
+	private void restore(ByteBuffer checkpoint) { // apply a block written by checkpoint()
+		int entry_amount = checkpoint.getInt();
+		for (int i = 0; i < entry_amount; i++) {
+			int nodeIdM_source = checkpoint.getInt();
+			offsets[nodeIdM_source] = checkpoint.getLong();
+			counts[nodeIdM_source] = checkpoint.getInt();
+			sizes[nodeIdM_source] = checkpoint.getInt();
+			if (!finished[nodeIdM_source])
+				finished_amount++;
+			finished[nodeIdM_source] = true;
+		}
+		records_end = checkpoint.getLong();
+		record_amount = checkpoint.getLong();
+		max_error = checkpoint.getDouble();
+	}
+
+	public boolean isFinished(int nodeIdM_source) { // whether the source is finished, e.g. before an interruption
+		return finished[nodeIdM_source];
+	}
+
+	public int getFinishedAmount() {
+		return finished_amount;
+	}
+
+	public double getMaxError() { // the largest error of a ppr stored so far
+		return max_error;
+	}
+
+	public void add(int nodeIdM_target, double ppr) { // add a ppr of the current source
+		if (size == targets.length) {
+			targets = Arrays.copyOf(targets, size * 2);
+			pprs = Arrays.copyOf(pprs, size * 2);
+		}
+		targets[size] = nodeIdM_target;
+		pprs[size] = ppr;
+		size++;
+	}
+
+	public void finishSource(int nodeIdM_source) throws IOException {
+		// store the pprs added since the last call as the records of the source
+
+		int bytes = (score_bits == 0) ? rawSize(nodeIdM_source) : compress();
+		long segment_end = ((records_end >>> PPR_Index.SEGMENT_SHIFT) + 1) << PPR_Index.SEGMENT_SHIFT;
+		if (records_end + bytes > segment_end) { // start a new segment, so the records don't cross its boundary
+			flush();
+			records_end = segment_end;
+			channel.position(records_pos + records_end);
+		}
+
+		offsets[nodeIdM_source] = records_end;
+		counts[nodeIdM_source] = size;
+		sizes[nodeIdM_source] = bytes;
+		if (score_bits == 0) {
+			for (int i = 0; i < size; i++) {
+				if (buf.remaining() < PPR_Index.RECORD_SIZE)
+					flush();
+				buf.putInt(targets[i]);
+				buf.putDouble(pprs[i]);
+			}
+		}
+		else {
+			for (int written = 0; written < bytes; ) {
+				if (!buf.hasRemaining())
+					flush();
+				int length = Math.min(bytes - written, buf.remaining());
+				buf.put(block, written, length);
+				written += length;
+			}
+		}
+		records_end += bytes;
+		record_amount += size;
+		size = 0;
+		if (!finished[nodeIdM_source])
+			finished_amount++;
+		finished[nodeIdM_source] = true;
+		if (manifest != null) {
+			if (unrecorded_size == unrecorded.length)
+				unrecorded = Arrays.copyOf(unrecorded, unrecorded_size * 2);
+			unrecorded[unrecorded_size++] = nodeIdM_source;
+		}
+	}
+
+	public void checkpoint() throws IOException {
+		// make the finished sources durable and record them in the manifest, so they're kept when resuming
+
+		if (manifest == null || unrecorded_size == 0)
+			return;
+		flush();
+		channel.force(false); // records must be on disk before the manifest refers to them
+		ByteBuffer checkpoint = ByteBuffer.allocate(4 + unrecorded_size * 20 + 24).order(ByteOrder.LITTLE_ENDIAN);
+		checkpoint.putInt(unrecorded_size);
+		for (int i = 0; i < unrecorded_size; i++) {
+			int nodeIdM_source = unrecorded[i];
+			checkpoint.putInt(nodeIdM_source);
+			checkpoint.putLong(offsets[nodeIdM_source]);
+			checkpoint.putInt(counts[nodeIdM_source]);
+			checkpoint.putInt(sizes[nodeIdM_source]);
+		}
+		checkpoint.putLong(records_end);
+		checkpoint.putLong(record_amount);
+		checkpoint.putDouble(max_error);
+		checkpoint.flip();
+		manifest.append(checkpoint);
+		unrecorded_size = 0;
+	}
+
+	private int rawSize(int nodeIdM_source) throws IOException {
+		long bytes = (long)size * PPR_Index.RECORD_SIZE;
+		if (bytes > PPR_Index.SEGMENT_SIZE)
+			throw new IOException("Too many pprs of source " + nodeIdM_source + " for a ppr index");
+		return (int)bytes;
+	}
+
+	private int compress() {
+		// compress the records of the current source into block; return its size in bytes
+
+		if (order == null || order.length < size)
+			order = new long[Math.max(size, 2 * (order == null ? 16 : order.length))];
+		double scale = 0.0;
+		for (int i = 0; i < size; i++) {
+			order[i] = ((long)targets[i] << 32) | i;
+			scale = Math.max(scale, pprs[i]);
+		}
+		Arrays.sort(order, 0, size);
+		int max_size = 8 + size * 5 + (int)(((long)size * score_bits + 7) / 8);
+		if (block == null || block.length < max_size)
+			block = new byte[Math.max(max_size, 2 * (block == null ? 64 : block.length))];
+
+		long bits_max = (1L << score_bits) - 1;
+		if (size > 0)
+			max_error = Math.max(max_error, scale / 2.0 / (double)bits_max);
+		long scale_bits = Double.doubleToRawLongBits(scale);
+		for (int i = 0; i < 8; i++)
+			block[i] = (byte)(scale_bits >>> (8 * i));
+		int pos = 8, nodeIdM_last = 0;
+		for (int i = 0; i < size; i++) { // gaps between sorted node ids as varints
+			int nodeIdM = (int)(order[i] >>> 32);
+			int gap = nodeIdM - nodeIdM_last;
+			nodeIdM_last = nodeIdM;
+			while ((gap & ~0x7F) != 0) {
+				block[pos++] = (byte)((gap & 0x7F) | 0x80);
+				gap >>>= 7;
+			}
+			block[pos++] = (byte)gap;
+		}
+
+		long bits = 0;
+		int bit_amount = 0;
+		for (int i = 0; i < size; i++) { // quantized pprs, lowest bit first
+			double ppr = Math.max(pprs[(int)order[i]], 0.0);
+			long q = (scale > 0.0) ? Math.min(bits_max, Math.round(ppr / scale * (double)bits_max)) : 0;
+			bits |= q << bit_amount;
+			bit_amount += score_bits;
+			while (bit_amount >= 8) {
+				block[pos++] = (byte)bits;
+				bits >>>= 8;
+				bit_amount -= 8;
+			}
+		}
+		if (bit_amount > 0)
+			block[pos++] = (byte)bits;
+		return pos;
+	}
+
+	private void flush() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	public void finish() throws IOException { // write the header & offsets, then replace file with the index
+		try {
+			flush();
+			long file_size = records_pos + records_end;
+			channel.position(0);
+			buf.putLong(PPR_Index.MAGIC);
+			buf.putInt(PPR_Index.VERSION);
+			buf.putInt(node_amount);
+			buf.putLong(record_amount);
+			buf.putLong(file_size);
+			buf.putInt(score_bits);
+			buf.putInt(0); // padding
+			buf.putDouble(max_error);
+			while (buf.position() < PPR_Index.HEADER_SIZE)
+				buf.put((byte)0);
+			for (long offset : offsets) {
+				if (buf.remaining() < 8)
+					flush();
+				buf.putLong(offset);
+			}
+			for (int count : counts) {
+				if (buf.remaining() < 4)
+					flush();
+				buf.putInt(count);
+			}
+			for (int size_t : sizes) {
+				if (buf.remaining() < 4)
+					flush();
+				buf.putInt(size_t);
+			}
+			flush();
+			channel.force(true);
+		}
+		finally {
+			isComplete = true;
+			channel.close();
+		}
+
+		if (file.exists() && !file.delete())
+			throw new IOException("Cannot replace ppr index " + file.getPath());
+		if (!tmp_file.renameTo(file))
+			throw new IOException("Cannot rename " + tmp_file.getPath() + " to " + file.getPath());
+	}
+
+	@Override
+	public void close() throws IOException { // abandon an unfinished index; it's kept aside if it can be resumed
+		if (isComplete)
+			return;
+		isComplete = true;
+		channel.close();
+		if (manifest == null)
+			tmp_file.delete();
+	}
+}
@@ -0,0 +1,82 @@
+package joezie.fora_neo4j;
+
+import java.nio.ByteBuffer;
+
+public class PPR_Records { // the records of one source read from a PPR_Index, reusable between reads
+	/* Records of an index storing exact pprs are read in place from a view of
+	 * the mapping. Records of a compressed index are decoded into arrays owned
+	 * by this object, which are reused by later reads.
+	 */
+
+	private ByteBuffer raw; // view of exact records in the mapping; null if the records are decoded
+	private int size; // the number of records
+	private int nodes[]; // decoded records, sorted by node id
+	private double pprs[];
+
+	public PPR_Records() {
+		nodes = new int[16];
+		pprs = new double[16];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int nodeAt(int i) { // mapped node id of the ith record
+		return (raw != null) ? raw.getInt(i * PPR_Index.RECORD_SIZE) : nodes[i];
+	}
+
+	public double pprAt(int i) { // ppr of the ith record
+		return (raw != null) ? raw.getDouble(i * PPR_Index.RECORD_SIZE + 4) : pprs[i];
+	}
+
+	public void clear() {
+		raw = null;
+		size = 0;
+	}
+
+	void setRaw(ByteBuffer raw, int size) {
+		this.raw = raw;
+		this.size = size;
+	}
+
+	void decode(ByteBuffer block, int size, int score_bits) {
+		/* Decode a block written by PPR_Index_Writer: the scale (the largest ppr),
+		 * then the gaps between sorted node ids as varints, then the quantized
+		 * pprs packed in score_bits bits each, lowest bit first.
+		 */
+
+		raw = null;
+		this.size = size;
+		if (nodes.length < size) {
+			nodes = new int[Math.max(size, nodes.length * 2)];
+			pprs = new double[nodes.length];
+		}
+
+		double scale = block.getDouble(0) / (double)((1L << score_bits) - 1);
+		int pos = 8, nodeIdM = 0;
+		for (int i = 0; i < size; i++) {
+			int gap = 0, shift = 0;
+			byte b;
+			do {
+				b = block.get(pos++);
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			nodeIdM += gap;
+			nodes[i] = nodeIdM;
+		}
+
+		long bits = 0, mask = (1L << score_bits) - 1;
+		int bit_amount = 0;
+		for (int i = 0; i < size; i++) {
+			while (bit_amount < score_bits) {
+				bits |= (long)(block.get(pos++) & 0xFF) << bit_amount;
+				bit_amount += 8;
+			}
+			pprs[i] = (double)(bits & mask) * scale;
+			bits >>>= score_bits;
+			bit_amount -= score_bits;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package joezie.fora_neo4j;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+public class PPR_Result_Cache { // single-source ppr results kept in primitive arrays, bounded by bytes
+	/* Results are keyed by (algorithm, source, alpha, accuracy param, k), and
+	 * entries are evicted in the order of the policy once their total size
+	 * exceeds the budget: the least recently used one first for LRU, or the
+	 * least frequently used one (the least recently used among ties) for LFU.
+	 * A result larger than the whole budget isn't cached. All entries are
+	 * dropped when the cache is told of another graph snapshot, or when a
+	 * lookup or result comes with a newer version of the graph than the
+	 * entries' (see Dynamic_Graph.getVersion), since the results of the old
+	 * graph are stale; a result computed on an older version than the
+	 * entries' isn't cached. Thread-safe; shared by the Cached_Whole_Graph or
+	 * Cached_Topk workers of an Algo_Engine.
+	 */
+
+	public enum Policy {
+		LRU,
+		LFU
+	}
+
+	public static final int ENTRY_OVERHEAD_BYTES = 128; // key, entry, arrays' headers & the maps' nodes
+
+	public static final class Key {
+		private final String algo; // e.g. the simple class name of the algorithm
+		private final long nodeId_start;
+		private final double alpha;
+		private final Object param; // epsilon, rmax, iterations... as passed to the algorithm; might be null
+		private final int k; // -1 for whole-graph results
+		private final int hash;
+
+		public Key(String algo, long nodeId_start, double alpha, Object param, int k) {
+			this.algo = algo;
+			this.nodeId_start = nodeId_start;
+			this.alpha = alpha;
+			this.param = param;
+			this.k = k;
+			int h = algo.hashCode();
+			h = h * 31 + Long.hashCode(nodeId_start);
+			h = h * 31 + Double.hashCode(alpha);
+			h = h * 31 + ((param == null) ? 0 : param.hashCode());
+			hash = h * 31 + k;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key)o;
+			return nodeId_start == other.nodeId_start && k == other.k
+					&& Double.compare(alpha, other.alpha) == 0 && algo.equals(other.algo)
+					&& (param == null ? other.param == null : param.equals(other.param));
+		}
+	}
+
+	public static final class Result { // (node id, ppr) pairs; pprs is null for top-k results without pprs
+		private final long nodeIds[];
+		private final double pprs[];
+
+		public Result(long nodeIds[], double pprs[]) {
+			this.nodeIds = nodeIds;
+			this.pprs = pprs;
+		}
+
+		public int size() {
+			return nodeIds.length;
+		}
+
+		public long nodeIdAt(int i) {
+			return nodeIds[i];
+		}
+
+		public double pprAt(int i) {
+			return pprs[i];
+		}
+
+		public boolean hasPPR() {
+			return pprs != null;
+		}
+
+		long bytes() {
+			return ENTRY_OVERHEAD_BYTES + 8L * nodeIds.length + ((pprs == null) ? 0 : 8L * pprs.length);
+		}
+	}
+
+	private static final class Entry {
+		Key key;
+		Result result;
+		long bytes;
+		long uses; // the number of times it was put or hit
+		long last_use; // value of clock at the last use
+	}
+
+	private Policy policy;
+	private long max_bytes;
+	private long bytes; // total size of the entries
+	private HashMap<Key, Entry> entries;
+	private TreeSet<Entry> eviction_order; // the first entry is evicted first
+	private long clock; // incremented at each use of an entry
+	private Object graph; // the snapshot the results are computed on
+	private long graph_version; // version of the graph the entries are computed on
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public PPR_Result_Cache(long max_bytes, Policy policy) {
+		this.max_bytes = max_bytes;
+		this.policy = policy;
+		entries = new HashMap<>();
+		if (policy == Policy.LRU)
+			eviction_order = new TreeSet<>((e1, e2) -> Long.compare(e1.last_use, e2.last_use));
+		else
+			eviction_order = new TreeSet<>((e1, e2) -> (e1.uses != e2.uses) ? Long.compare(e1.uses, e2.uses)
+					: Long.compare(e1.last_use, e2.last_use));
+	}
+
+	public synchronized Result get(Key key, long graph_version) {
+		// return null on a miss; graph_version is the current version of the graph
+
+		checkVersion(graph_version);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		use(entry);
+		return entry.result;
+	}
+
+	public synchronized void put(Key key, Result result, long graph_version) {
+		// cache result computed on graph_version of the graph
+
+		long result_bytes = result.bytes();
+		if (result_bytes > max_bytes || graph_version < this.graph_version) // the graph has changed since
+			return;
+		checkVersion(graph_version);
+
+		Entry entry = entries.get(key);
+		if (entry != null) { // computed concurrently by another worker
+			bytes -= entry.bytes;
+			entry.result = result;
+			entry.bytes = result_bytes;
+			bytes += result_bytes;
+			use(entry);
+		}
+		else {
+			entry = new Entry();
+			entry.key = key;
+			entry.result = result;
+			entry.bytes = result_bytes;
+			entry.last_use = ++clock;
+			entry.uses = 1;
+			entries.put(key, entry);
+			eviction_order.add(entry);
+			bytes += result_bytes;
+		}
+
+		while (bytes > max_bytes) {
+			Entry victim = eviction_order.pollFirst();
+			entries.remove(victim.key);
+			bytes -= victim.bytes;
+			evictions++;
+		}
+	}
+
+	private void use(Entry entry) { // reorder the entry after a hit
+		eviction_order.remove(entry);
+		entry.uses++;
+		entry.last_use = ++clock;
+		eviction_order.add(entry);
+	}
+
+	private void checkVersion(long graph_version) { // drop the entries of an older version of the graph
+		if (graph_version > this.graph_version) {
+			invalidateAll();
+			this.graph_version = graph_version;
+		}
+	}
+
+	public synchronized void setGraph(Object graph) {
+		// tell the cache which graph snapshot (e.g. a CSR_Graph) results are computed on; a new one invalidates all
+
+		if (this.graph != null && this.graph != graph)
+			invalidateAll();
+		this.graph = graph;
+	}
+
+	public synchronized void invalidateAll() { // drop all entries, e.g. when the graph has changed
+		entries.clear();
+		eviction_order.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized double getHitRate() { // 0.0 before the first lookup
+		return (hits + misses == 0) ? 0.0 : (double)hits / (hits + misses);
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return policy + " cache: " + entries.size() + " results, " + bytes + " / " + max_bytes + " bytes, hit rate "
+				+ String.format("%.4f", getHitRate()) + " (" + hits + " hits, " + misses + " misses), "
+				+ evictions + " evictions";
+	}
+}
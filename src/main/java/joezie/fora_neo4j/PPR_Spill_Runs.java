@@ -0,0 +1,355 @@
+package joezie.fora_neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PPR_Spill_Runs { // (source, target, ppr) triples spilled to sorted runs on disk, then merged by source
+	/* Each thread adds triples to its own Run_Buffer, which sorts them by
+	 * source and writes them to a new run file whenever it's full. A buffer
+	 * must be given the triples of one target after another in ascending
+	 * order of target, so that sorting by source alone (which is stable here)
+	 * leaves each run sorted by (source, target). merge() then reads the runs
+	 * together and hands the triples of each source to a Source_Consumer, in
+	 * ascending order of source and target; when there are more runs than
+	 * the memory budget has read buffers for, it merges them in passes.
+	 *
+	 * The triples are added by units of work (e.g. the triples of a target),
+	 * and a buffer only spills once a unit ends, so each run holds whole units.
+	 * Given a Prep_Manifest, each run is recorded with the units it completes,
+	 * and the runs of an interrupted preprocessing are picked up again, so
+	 * only the units not in any recorded run have to be redone.
+	 */
+
+	public static final int TRIPLE_BYTES = 24; // memory of a buffered triple: sort key, source, target & ppr
+	private static final int RUN_RECORD_SIZE = 16; // int source + int target + double ppr
+	private static final int IO_BUFFER_SIZE = 1 << 16; // per run, both in writing and merging
+	private static final int MIN_FAN_IN = 2;
+	private static final int MAX_FAN_IN = 256; // runs merged at once, whatever the memory budget
+
+	public interface Source_Consumer {
+		void accept(int nodeIdM_source, int targets[], double pprs[], int size) throws IOException;
+	}
+
+	private File dir; // directory of the run files
+	private AtomicInteger next_run; // number of the next run file
+	private List<File> run_files; // runs written so far
+	private Prep_Manifest manifest; // where runs are recorded; null if they can't be resumed
+	private BitSet done_units; // units completed by the runs of an interrupted preprocessing
+	private int done_unit_amount;
+
+	public PPR_Spill_Runs(File dir) throws IOException {
+		this(dir, null);
+	}
+
+	public PPR_Spill_Runs(File dir, Prep_Manifest manifest) throws IOException {
+		this.dir = dir;
+		this.manifest = manifest;
+		next_run = new AtomicInteger();
+		run_files = new ArrayList<>();
+		done_units = new BitSet();
+		dir.mkdirs();
+		if (manifest == null)
+			return;
+
+		Set<String> recorded = new HashSet<>(); // names of the runs recorded in manifest
+		for (ByteBuffer block : manifest.getBlocks()) { // (run number, unit amount, units)
+			int run = block.getInt();
+			File file = runFile(run);
+			run_files.add(file);
+			recorded.add(file.getName());
+			next_run.set(Math.max(next_run.get(), run + 1));
+			for (int i = block.getInt(); i > 0; i--) {
+				done_units.set(block.getInt());
+				done_unit_amount++;
+			}
+		}
+		File files[] = dir.listFiles();
+		for (File file : (files == null) ? new File[0] : files)
+			if (!recorded.contains(file.getName())) // spilled after the last record, or a partial run
+				file.delete();
+	}
+
+	public boolean isDone(int unit) { // whether the unit is completed by a run of an interrupted preprocessing
+		return done_units.get(unit);
+	}
+
+	public int getDoneUnitAmount() {
+		return done_unit_amount;
+	}
+
+	public Run_Buffer newBuffer(int capacity) { // a buffer for one thread, spilling once it holds capacity triples
+		return new Run_Buffer(capacity);
+	}
+
+	public int getRunAmount() {
+		synchronized (run_files) {
+			return run_files.size();
+		}
+	}
+
+	private File runFile(int run) {
+		return new File(dir, "run_" + run);
+	}
+
+	public class Run_Buffer {
+		private int capacity;
+		private long keys[]; // (source << 32 | triple index), sorted to order the triples by source
+		private int sources[];
+		private int targets[];
+		private double pprs[];
+		private int size;
+		private int units[]; // units completed by the buffered triples
+		private int unit_size;
+
+		private Run_Buffer(int capacity) {
+			this.capacity = capacity;
+			keys = new long[capacity];
+			sources = new int[capacity];
+			targets = new int[capacity];
+			pprs = new double[capacity];
+			units = new int[16];
+		}
+
+		public void add(int nodeIdM_source, int nodeIdM_target, double ppr) {
+			if (size == keys.length) { // a unit may overrun the capacity until it ends
+				int new_capacity = size * 2;
+				keys = Arrays.copyOf(keys, new_capacity);
+				sources = Arrays.copyOf(sources, new_capacity);
+				targets = Arrays.copyOf(targets, new_capacity);
+				pprs = Arrays.copyOf(pprs, new_capacity);
+			}
+			keys[size] = ((long)nodeIdM_source << 32) | size;
+			sources[size] = nodeIdM_source;
+			targets[size] = nodeIdM_target;
+			pprs[size] = ppr;
+			size++;
+		}
+
+		public void endUnit(int unit) throws IOException { // all triples of unit are added; spill if full
+			if (unit_size == units.length)
+				units = Arrays.copyOf(units, unit_size * 2);
+			units[unit_size++] = unit;
+			if (size >= capacity)
+				spill();
+		}
+
+		public void spill() throws IOException { // write the buffered triples as a new run
+			if (size == 0 && unit_size == 0)
+				return;
+			Arrays.sort(keys, 0, size);
+			int run = next_run.getAndIncrement();
+			File file = runFile(run);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < size; i++) {
+					if (buf.remaining() < RUN_RECORD_SIZE)
+						flush(channel, buf);
+					int idx = (int)keys[i];
+					buf.putInt(sources[idx]);
+					buf.putInt(targets[idx]);
+					buf.putDouble(pprs[idx]);
+				}
+				flush(channel, buf);
+				if (manifest != null)
+					channel.force(true); // the run must be on disk before manifest refers to it
+			}
+			synchronized (run_files) {
+				run_files.add(file);
+			}
+			if (manifest != null) {
+				ByteBuffer block = ByteBuffer.allocate(8 + unit_size * 4).order(ByteOrder.LITTLE_ENDIAN);
+				block.putInt(run).putInt(unit_size);
+				for (int i = 0; i < unit_size; i++)
+					block.putInt(units[i]);
+				block.flip();
+				manifest.append(block);
+			}
+			size = 0;
+			unit_size = 0;
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	private static class Run_Reader { // reads the triples of a run one by one
+		private FileChannel channel;
+		private ByteBuffer buf;
+		long key; // (source << 32 | target) of the current triple
+		double ppr;
+
+		Run_Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			buf = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buf.flip();
+		}
+
+		boolean next() throws IOException { // move to the next triple; false at the end of the run
+			if (buf.remaining() < RUN_RECORD_SIZE) {
+				buf.compact();
+				while (buf.position() < RUN_RECORD_SIZE && channel.read(buf) >= 0)
+					;
+				buf.flip();
+				if (buf.remaining() < RUN_RECORD_SIZE)
+					return false;
+			}
+			key = ((long)buf.getInt() << 32) | (buf.getInt() & 0xFFFFFFFFL);
+			ppr = buf.getDouble();
+			return true;
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private interface Triple_Sink { // takes the merged triples one by one
+		void accept(long key, double ppr) throws IOException;
+	}
+
+	public static int fanInOf(long memory_budget) { // runs merged at once within memory_budget, one more buffer to write
+		return (int)Math.max(MIN_FAN_IN, Math.min(MAX_FAN_IN, memory_budget / IO_BUFFER_SIZE - 1));
+	}
+
+	public void merge(Source_Consumer consumer) throws IOException {
+		merge(Long.MAX_VALUE, consumer);
+	}
+
+	public void merge(long memory_budget, Source_Consumer consumer) throws IOException {
+		/* Merge all runs, passing the triples of each source to consumer. At most
+		 * fanInOf(memory_budget) runs are read at once: while there are more, the
+		 * runs are merged by groups into longer runs, pass after pass. The runs
+		 * spilled are kept until delete(), as a manifest refers to them, while
+		 * the runs of the passes are deleted as soon as they're merged.
+		 */
+
+		int fan_in = fanInOf(memory_budget);
+		List<File> files = new ArrayList<>(run_files);
+		Set<File> spilled = new HashSet<>(run_files);
+		while (files.size() > fan_in) {
+			List<File> next_files = new ArrayList<>();
+			for (int begin = 0; begin < files.size(); begin += fan_in) {
+				List<File> group = files.subList(begin, Math.min(begin + fan_in, files.size()));
+				if (group.size() == 1) { // nothing to merge it with
+					next_files.add(group.get(0));
+					continue;
+				}
+				File file = new File(dir, "pass_" + next_run.getAndIncrement());
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+					mergeRuns(group, (key, ppr) -> {
+						if (buf.remaining() < RUN_RECORD_SIZE)
+							flush(channel, buf);
+						buf.putInt((int)(key >>> 32));
+						buf.putInt((int)key);
+						buf.putDouble(ppr);
+					});
+					flush(channel, buf);
+				}
+				for (File merged : group)
+					if (!spilled.contains(merged))
+						merged.delete();
+				next_files.add(file);
+			}
+			files = next_files;
+		}
+
+		Source_Grouper grouper = new Source_Grouper(consumer);
+		try {
+			mergeRuns(files, grouper);
+			grouper.finish();
+		}
+		finally {
+			for (File file : files)
+				if (!spilled.contains(file))
+					file.delete();
+		}
+	}
+
+	private static class Source_Grouper implements Triple_Sink { // gathers the triples of each source for a consumer
+		private Source_Consumer consumer;
+		private int targets[];
+		private double pprs[];
+		private int size;
+		private int nodeIdM_source;
+
+		Source_Grouper(Source_Consumer consumer) {
+			this.consumer = consumer;
+			targets = new int[16];
+			pprs = new double[16];
+			nodeIdM_source = -1;
+		}
+
+		@Override
+		public void accept(long key, double ppr) throws IOException {
+			int nodeIdM_cur = (int)(key >>> 32);
+			if (nodeIdM_cur != nodeIdM_source) { // all triples of the last source are read
+				finish();
+				nodeIdM_source = nodeIdM_cur;
+			}
+			if (size == targets.length) {
+				targets = Arrays.copyOf(targets, size * 2);
+				pprs = Arrays.copyOf(pprs, size * 2);
+			}
+			targets[size] = (int)key;
+			pprs[size] = ppr;
+			size++;
+		}
+
+		void finish() throws IOException { // pass the triples of the current source
+			if (size > 0)
+				consumer.accept(nodeIdM_source, targets, pprs, size);
+			size = 0;
+		}
+	}
+
+	private static void mergeRuns(List<File> files, Triple_Sink sink) throws IOException {
+		// merge the runs all at once, passing their triples to sink in ascending order of (source, target)
+
+		PriorityQueue<Run_Reader> heads = new PriorityQueue<>((r1, r2) -> Long.compare(r1.key, r2.key));
+		List<Run_Reader> readers = new ArrayList<>();
+		try {
+			for (File file : files) {
+				Run_Reader reader = new Run_Reader(file);
+				readers.add(reader);
+				if (reader.next())
+					heads.add(reader);
+			}
+			while (!heads.isEmpty()) {
+				Run_Reader head = heads.poll();
+				sink.accept(head.key, head.ppr);
+				if (head.next())
+					heads.add(head);
+			}
+		}
+		finally {
+			for (Run_Reader reader : readers)
+				reader.close();
+		}
+	}
+
+	public void delete() { // delete the runs and their directory, once they're merged
+		for (File file : run_files)
+			file.delete();
+		run_files.clear();
+		dir.delete();
+	}
+}
@@ -0,0 +1,133 @@
+package joezie.fora_neo4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Perf_Results implements Closeable { // rows of performance test results, appended to a CSV and a JSON-lines file
+	/* Every row has the same columns, so <base>.csv starts with a header
+	 * line (written when the file is created) and each line of <base>.jsonl
+	 * is an object with the same keys. A column that doesn't apply to a row,
+	 * e.g. precision in a whole-graph test, is empty in the CSV and null in
+	 * the JSON. Rows are flushed as soon as they're written, so the results
+	 * of finished tests survive an interrupted batch.
+	 */
+
+	public static final List<String> COLUMNS = Arrays.asList(
+			"run", // start time of the batch
+			"graph", // database directory name
+			"test", // whole_graph, topk, preprocessing or load
+			"algo",
+			"param", // accuracy parameter of the algo: epsilon, rmax, iterations...
+			"threshold", // ppr threshold of preprocessing
+			"k",
+			"queries",
+			"warmup", // warmup queries run before the timed ones
+			"seed", // seed of the query nodes
+			"prep_ms",
+			"prep_bytes",
+			"prep_max_error",
+			"mean_us",
+			"p50_us",
+			"p90_us",
+			"p99_us",
+			"p999_us",
+			"max_us",
+			"precision",
+			"ndcg",
+			"max_error",
+			"clients", // client threads of a load test
+			"arrival_qps", // arrival rate of an open-loop load test
+			"qps", // queries completed per second under load
+			"errors",
+			"cpu_util", // fraction of all cores used by the process under load
+			"cpu_us_per_query",
+			"cache_hit_rate"); // hits per lookup of the result cache during a load test or replay, warmup included
+
+	public static class Row {
+		private Map<String, Object> values; // (column, value); null if not set
+
+		public Row() {
+			values = new LinkedHashMap<>();
+			for (String column : COLUMNS)
+				values.put(column, null);
+		}
+
+		public Row set(String column, Object value) {
+			if (!values.containsKey(column))
+				throw new IllegalArgumentException("Unknown column " + column);
+			values.put(column, value);
+			return this;
+		}
+
+		public Object get(String column) {
+			return values.get(column);
+		}
+
+		public Row setLatencies(Log_Histogram latency_ns) { // the mean, percentiles & max of the latencies, in us
+			set("mean_us", latency_ns.getMean() / 1000.0);
+			set("p50_us", latency_ns.getValueAtPercentile(50.0) / 1000.0);
+			set("p90_us", latency_ns.getValueAtPercentile(90.0) / 1000.0);
+			set("p99_us", latency_ns.getValueAtPercentile(99.0) / 1000.0);
+			set("p999_us", latency_ns.getValueAtPercentile(99.9) / 1000.0);
+			set("max_us", latency_ns.getMax() / 1000.0);
+			return this;
+		}
+	}
+
+	private PrintWriter csv;
+	private PrintWriter jsonl;
+
+	public Perf_Results(String base) throws IOException { // append to base.csv & base.jsonl
+		File csvFile = new File(base + ".csv");
+		boolean hasHeader = csvFile.length() > 0;
+		csv = new PrintWriter(new OutputStreamWriter(new FileOutputStream(csvFile, true), StandardCharsets.UTF_8));
+		jsonl = new PrintWriter(new OutputStreamWriter(new FileOutputStream(base + ".jsonl", true), StandardCharsets.UTF_8));
+		if (!hasHeader) {
+			csv.println(String.join(",", COLUMNS));
+			csv.flush();
+		}
+	}
+
+	public synchronized void write(Row row) throws IOException {
+		StringBuilder csv_line = new StringBuilder(), json_line = new StringBuilder("{");
+		for (String column : COLUMNS) {
+			Object value = row.get(column);
+			if (!column.equals(COLUMNS.get(0))) {
+				csv_line.append(',');
+				json_line.append(',');
+			}
+			json_line.append('"').append(column).append("\":");
+			if (value == null || (value instanceof Double && (((Double)value).isNaN() || ((Double)value).isInfinite()))) {
+				json_line.append("null");
+				continue;
+			}
+			String text = value.toString();
+			csv_line.append((text.indexOf(',') >= 0 || text.indexOf('"') >= 0) ? '"' + text.replace("\"", "\"\"") + '"' : text);
+			if (value instanceof Number)
+				json_line.append(text);
+			else
+				json_line.append('"').append(text.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		csv.println(csv_line);
+		jsonl.println(json_line.append('}'));
+		csv.flush();
+		jsonl.flush();
+		if (csv.checkError() || jsonl.checkError())
+			throw new IOException("Write performance results failed");
+	}
+
+	@Override
+	public void close() {
+		csv.close();
+		jsonl.close();
+	}
+}
@@ -0,0 +1,148 @@
+package joezie.fora_neo4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Power_Engine { // power iteration of ppr on dense vectors, pulling over the in-edges in parallel
+	/* An iteration moves alpha * r(v) of every node into its reserve and
+	 * spreads the rest over its out-edges (or back to the start node if it
+	 * has none), like Power_Method's sparse iterations but for all nodes at
+	 * once: each node first divides its residue by its out-degree in place,
+	 * then each node sums the divided residues of its in-neighbors. Both
+	 * passes only write the entries of their own nodes, so the nodes are
+	 * split into chunks that pool threads claim without any locking. The
+	 * partial sums of each chunk are added in chunk order, so the result
+	 * doesn't depend on the number of threads.
+	 *
+	 * The L1 norm of the residue is the ppr mass not yet assigned, which
+	 * bounds the total error of the reserve, so the iterations stop once it
+	 * drops below the tolerance.
+	 */
+
+	private static final int NODES_PER_CHUNK = 4096;
+
+	private interface Chunk_Task { // processes the nodes [begin, end) and returns a partial sum
+		double run(int begin, int end);
+	}
+
+	private CSR_Graph csr;
+	private int node_amount;
+	private double alpha;
+	private double residue[]; // (mapped node id, r); divided by out-degree during an iteration
+	private double residue_next[];
+	private double reserve[]; // (mapped node id, pi)
+	private double partial_sums[]; // partial sum of each chunk
+	private ForkJoinPool pool; // pool running the chunks; null for serial mode
+
+	public Power_Engine(CSR_Graph csr, double alpha) {
+		this.csr = csr;
+		node_amount = csr.nodeCount();
+		this.alpha = alpha;
+		residue = new double[node_amount];
+		residue_next = new double[node_amount];
+		reserve = new double[node_amount];
+		partial_sums = new double[(node_amount + NODES_PER_CHUNK - 1) / NODES_PER_CHUNK];
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public void load(Sparse_Vector residue_init, Sparse_Vector reserve_init) { // start from these vectors
+		Arrays.fill(residue, 0.0);
+		Arrays.fill(reserve, 0.0);
+		for (int i = 0; i < residue_init.size(); i++)
+			residue[residue_init.keyAt(i)] = residue_init.valueAt(i);
+		for (int i = 0; i < reserve_init.size(); i++)
+			reserve[reserve_init.keyAt(i)] = reserve_init.valueAt(i);
+	}
+
+	public int iterate(int nodeIdM_start, double tolerance, int max_iterations) {
+		// iterate until the L1 norm of the residue is below tolerance; return the number of iterations
+
+		int num_iter = 0;
+		double residue_l1 = Double.MAX_VALUE;
+		while (num_iter < max_iterations && residue_l1 >= tolerance) {
+			double dangling_residue = forEachChunk((begin, end) -> { // the residue left at nodes without out-edges
+				double sum = 0.0;
+				for (int nodeIdM = begin; nodeIdM < end; nodeIdM++) {
+					double residue_cur = residue[nodeIdM];
+					if (residue_cur == 0.0)
+						continue;
+					reserve[nodeIdM] += residue_cur * alpha; // pi(s,v) = pi(s,v) + alpha * r(s,v)
+					int out_degree_cur = csr.outDegree(nodeIdM);
+					if (out_degree_cur == 0) {
+						sum += residue_cur;
+						residue[nodeIdM] = 0.0;
+					}
+					else
+						residue[nodeIdM] = residue_cur / out_degree_cur;
+				}
+				return sum;
+			});
+
+			residue_l1 = forEachChunk((begin, end) -> {
+				double sum = 0.0;
+				for (int nodeIdM = begin; nodeIdM < end; nodeIdM++) {
+					double residue_in = 0.0;
+					for (int e = csr.inBegin(nodeIdM), e_end = csr.inEnd(nodeIdM); e < e_end; e++)
+						residue_in += residue[csr.source(e)];
+					residue_next[nodeIdM] = residue_in * (1.0 - alpha);
+					//r(s,u) = sum of (1 - alpha) * r(s,v) / |N_out(v)| over in-neighbors v
+					sum += residue_next[nodeIdM];
+				}
+				return sum;
+			});
+			residue_next[nodeIdM_start] += dangling_residue * (1.0 - alpha); // passed back to start
+			residue_l1 += dangling_residue * (1.0 - alpha);
+
+			double swap[] = residue;
+			residue = residue_next;
+			residue_next = swap;
+			num_iter++;
+		}
+		return num_iter;
+	}
+
+	private double forEachChunk(Chunk_Task task) { // run task on every chunk and sum the partial sums in chunk order
+		int chunk_amount = partial_sums.length;
+		int slot_amount = (pool == null) ? 1 : Math.min(pool.getParallelism(), chunk_amount);
+		if (slot_amount <= 1) {
+			for (int chunk = 0; chunk < chunk_amount; chunk++)
+				partial_sums[chunk] = runChunk(task, chunk);
+		}
+		else {
+			AtomicInteger next_chunk = new AtomicInteger();
+			List<ForkJoinTask<?>> tasks = new ArrayList<>(slot_amount);
+			for (int slot = 0; slot < slot_amount; slot++)
+				tasks.add(pool.submit(() -> {
+					int chunk;
+					while ((chunk = next_chunk.getAndIncrement()) < chunk_amount)
+						partial_sums[chunk] = runChunk(task, chunk);
+				}));
+			for (ForkJoinTask<?> task_t : tasks)
+				task_t.join();
+		}
+
+		double sum = 0.0;
+		for (int chunk = 0; chunk < chunk_amount; chunk++)
+			sum += partial_sums[chunk];
+		return sum;
+	}
+
+	private double runChunk(Chunk_Task task, int chunk) {
+		int begin = chunk * NODES_PER_CHUNK;
+		return task.run(begin, Math.min(begin + NODES_PER_CHUNK, node_amount));
+	}
+
+	public void store(Sparse_Vector reserve_out) { // put the non-zero reserves into reserve_out
+		reserve_out.clear();
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++)
+			if (reserve[nodeIdM] != 0.0)
+				reserve_out.put(nodeIdM, reserve[nodeIdM]);
+	}
+}
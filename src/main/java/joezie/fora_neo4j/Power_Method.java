@@ -1,5 +1,6 @@
 package joezie.fora_neo4j;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -10,98 +11,182 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 
-import org.neo4j.graphalgo.api.Graph;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 
 public class Power_Method extends Algo_Util implements Whole_Graph_Util_Interface, Topk_Util_Interface { // computing ground truth of ppr
+	public static final double DEFAULT_TOLERANCE = 1e-7; // about the residue left by the former fixed 100 iterations
+	public static final int DEFAULT_MAX_ITERATIONS = 1000;
+	private static final int DENSE_RATIO = 16; // iterate on dense vectors once the residue covers 1/DENSE_RATIO of the nodes
+	
 	private GraphDatabaseService graphDb;
 	private String dir_db;
-	Graph adjM; // adjacency matrix of the graph
-	private HashMap<Long, Double> residue; // propagated value, i.e r
-	private HashMap<Long, Double> reserve; // stored value, i.e pi
+	CSR_Graph csr; // CSR snapshot of the adjacency matrix
+	private Sparse_Vector residue; // (mapped node id, propagated value, i.e r)
+	private Sparse_Vector residue_last; // residue of the last iteration
+	private Sparse_Vector reserve_vec; // (mapped node id, stored value, i.e pi)
+	private HashMap<Long, Double> reserve; // stored value, i.e pi; built from reserve_vec when requested
+	private boolean isResultBuilt; // whether reserve holds the result of the last query
+	private Topk_Selector topk_selector; // top-k ppr result sorted by ppr
 	private HashMap<Long, Double> topk_res; // top-k ppr result
 	private Vector<Long> topk_nodeIds; // top-k node ids sorted by ppr
 	private Double alpha;
+	private double tolerance; // L1 norm of the residue at which the iterations stop
+	private int max_iterations;
+	private int iterations; // iterations of the last query
+	private Power_Engine engine; // dense iterations; allocated when a query first needs it
+	private ForkJoinPool pool; // pool running the dense iterations; null for serial mode
+	private Ground_Truth_Cache gt_cache; // results computed by earlier runs; null if not cached
 		
-	public Power_Method(GraphDatabaseService graphDb, Double alpha, Graph adjM, String node_property, String dir_db) {
+	public Power_Method(GraphDatabaseService graphDb, Double alpha, CSR_Graph csr, String node_property, String dir_db) {
 		super(node_property);
 		this.graphDb = graphDb;
 		this.dir_db = dir_db;
-		this.adjM = adjM;
-		residue = new HashMap<>();
+		this.csr = csr;
+		residue = new Sparse_Vector(16);
+		residue_last = new Sparse_Vector(16);
+		reserve_vec = new Sparse_Vector(16);
 		reserve = new HashMap<>();
+		isResultBuilt = true;
+		topk_selector = new Topk_Selector();
 		topk_res = new HashMap<>();
 		topk_nodeIds = new Vector<>();
 		this.alpha = alpha;
+		tolerance = DEFAULT_TOLERANCE;
+		max_iterations = DEFAULT_MAX_ITERATIONS;
+	}
+	
+	@Override
+	public Power_Method newWorker() { // same configuration, own residue & reserve
+		Power_Method worker = new Power_Method(graphDb, alpha, csr, node_property, dir_db);
+		worker.setTolerance(tolerance);
+		worker.setMaxIterations(max_iterations);
+		worker.setPool(pool);
+		worker.setGroundTruthCache(gt_cache);
+		return worker;
+	}
+	
+	public void setTolerance(double tolerance) { // stop once the unassigned ppr mass is below tolerance
+		this.tolerance = tolerance;
+	}
+	
+	public void setMaxIterations(int max_iterations) {
+		this.max_iterations = max_iterations;
+	}
+	
+	public void setPool(ForkJoinPool pool) { // run the dense iterations in pool, or serially if pool is null
+		this.pool = pool;
+		if (engine != null)
+			engine.setPool(pool);
+	}
+	
+	public void setGroundTruthCache(Ground_Truth_Cache gt_cache) { // read & store results in gt_cache; null to always compute
+		this.gt_cache = gt_cache;
+	}
+	
+	public int getIterations() { // the number of iterations of the last query
+		return iterations;
 	}
 	
 	@Override
 	public void computeWholeGraphPPR(Long nodeId_start, Object dummy) { 
-		// compute exact ppr by performing forward push for 100 iterations
+		/* Compute exact ppr by pushing the residue of every node in each
+		 * iteration, until the L1 norm of the residue (the ppr mass not
+		 * assigned yet) is below tolerance. The iterations run on sparse
+		 * vectors while the residue stays near the start node, and move to
+		 * the dense Power_Engine once it spreads over the graph.
+		 */
 		
 		// 1. clear
 		reserve.clear();
+		reserve_vec.clear();
 		residue.clear();
+		topk_selector.clear();
 		topk_res.clear();
 		topk_nodeIds.clear();
+		isResultBuilt = false;
+		
+		// 2. read the result of an earlier run
+		int nodeIdM_start = csr.requireMappedNodeId(nodeId_start); // start node id in adjacency matrix
+		iterations = 0;
+		if (gt_cache != null && gt_cache.read(alpha, tolerance, nodeIdM_start, reserve_vec))
+			return;
 		
-		// 2. perform forward push for 100 times
-		residue.put(nodeId_start, 1.0); // r(s,s) = 1.0
-		int iterations = 100;
+		// 3. perform sparse iterations
+		residue.put(nodeIdM_start, 1.0); // r(s,s) = 1.0
+		double residue_l1 = 1.0;
 		
-		for (int num_iter = 0; num_iter < iterations; num_iter++) {
-			HashMap<Long, Double> pairs = new HashMap<>(residue);
+		while (iterations < max_iterations && residue_l1 >= tolerance 
+				&& residue.size() * DENSE_RATIO < csr.nodeCount()) {
+			Sparse_Vector pairs = residue; // swap instead of copying the residue
+			residue = residue_last;
+			residue_last = pairs;
 			residue.clear();
-			for (Map.Entry<Long, Double> entry : pairs.entrySet()) {
-				Long nodeId_cur = entry.getKey();
-				Double residue_cur = entry.getValue();
-				int nodeIdM_cur = adjM.toMappedNodeId(nodeId_cur); // current node id in adjacency matrix
-				int out_degree_cur = adjM.degree(nodeIdM_cur, Direction.OUTGOING);
+			residue_l1 = 0.0;
+			for (int i = 0; i < pairs.size(); i++) {
+				int nodeIdM_cur = pairs.keyAt(i); // current node id in adjacency matrix
+				double residue_cur = pairs.valueAt(i);
 				
-				if (entry.getValue() > 0) {
-					Double old_reserve_cur = reserve.get(nodeId_cur);
-					if (old_reserve_cur == null)
-						old_reserve_cur = 0.0;
-					reserve.put(nodeId_cur, old_reserve_cur + residue_cur * alpha);
+				if (residue_cur > 0) {
+					reserve_vec.add(nodeIdM_cur, residue_cur * alpha);
 					// pi(s,v) = pi(s,v) + alpha * r(s,v)
 					
-					Double residue_remain = residue_cur * (1 - alpha);
+					double residue_remain = residue_cur * (1 - alpha);
+					residue_l1 += residue_remain;
+					int out_degree_cur = csr.outDegree(nodeIdM_cur);
 					if (out_degree_cur == 0) {
 						// no out neighbors, then pass the remaining residue to start
-						Double old_residue_start = residue.get(nodeId_start);
-						if (old_residue_start == null)
-							old_residue_start = 0.0;
-						residue.put(nodeId_start, old_residue_start + residue_remain);
+						residue.add(nodeIdM_start, residue_remain);
 					}
 					else {
-						Double avg_push_residue = residue_remain / out_degree_cur;
-												
-						adjM.forEachRelationship(nodeIdM_cur, Direction.OUTGOING, 
-								(nodeIdM1, nodeIdM2, tmp) -> {
-									Long nodeId1 = adjM.toOriginalNodeId(nodeIdM1);
-									Long nodeId2 = adjM.toOriginalNodeId(nodeIdM2);
-									Double old_residue_next = residue.get(nodeId2);
-									if (old_residue_next == null)
-										old_residue_next = 0.0;
-									Double new_residue_next = old_residue_next + avg_push_residue;
-									residue.put(nodeId2, new_residue_next);
-									//r(s,u) = r(s,u) + (1 - alpha) * r(s,v) / |N_out(v)|
-										
-									return true;
-								});
+						double avg_push_residue = residue_remain / out_degree_cur;
+						for (int e = csr.outBegin(nodeIdM_cur), end = csr.outEnd(nodeIdM_cur); e < end; e++)
+							residue.add(csr.target(e), avg_push_residue);
+							//r(s,u) = r(s,u) + (1 - alpha) * r(s,v) / |N_out(v)|
 					}
 				}
 			}
+			iterations++;
+		}
+		
+		// 4. perform dense iterations if the residue has spread
+		if (iterations < max_iterations && residue_l1 >= tolerance) {
+			if (engine == null) {
+				engine = new Power_Engine(csr, alpha);
+				engine.setPool(pool);
+			}
+			engine.load(residue, reserve_vec);
+			iterations += engine.iterate(nodeIdM_start, tolerance, max_iterations - iterations);
+			engine.store(reserve_vec);
+		}
+		
+		// 5. store the result for later runs
+		if (gt_cache != null && iterations < max_iterations) { // keep only converged results
+			try {
+				gt_cache.write(alpha, tolerance, nodeIdM_start, reserve_vec);
+			}
+			catch (IOException e) {
+				System.out.println("Write ground truth of " + nodeId_start + " to " + gt_cache.getDir().getPath() + " failed!");
+				e.printStackTrace();
+			}
 		}
 	}
 	
+	private void buildResult() { // convert reserve_vec to original node ids
+		if (isResultBuilt)
+			return;
+		isResultBuilt = true;
+		for (int i = 0; i < reserve_vec.size(); i++)
+			reserve.put(csr.toOriginalNodeId(reserve_vec.keyAt(i)), reserve_vec.valueAt(i));
+	}
+	
 	@Override
 	public void printWholeGraphResult() {
+		buildResult();
 		List<Map.Entry<Long, Double>> reserve_list = new ArrayList<Map.Entry<Long, Double>>(reserve.entrySet());
 		reserve_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
 			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
@@ -117,6 +202,7 @@ public class Power_Method extends Algo_Util implements Whole_Graph_Util_Interfac
 
 	@Override
 	public HashMap<Long, Double> getWholeGraphPPR() { // return the reference of reserve
+		buildResult();
 		return reserve;
 	}
 	
@@ -127,59 +213,31 @@ public class Power_Method extends Algo_Util implements Whole_Graph_Util_Interfac
 	@Override
 	public Vector<Long> getTopKNodeIds(int k) { // return the reference of topk_nodeIds sorted by ppr; might include more than k nodes
 		if (!topk_nodeIds.isEmpty()) // topk_node_ids is already set, then no need to compute again 
-			return topk_nodeIds;		
+			return topk_nodeIds;
 		
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) // store node ids in topk_node_ids after sorting
-			topk_nodeIds.add(topk_res_list_t.getKey());
+		for (int i = 0; i < topk_selector.size(); i++) // the selected nodes are already sorted by ppr
+			topk_nodeIds.add(topk_selector.idAt(i));
 		return topk_nodeIds;
 	}
 	
 	@Override
 	public void computeTopKPPR(Long nodeId_start, int k, Object dummy) { 
-		// store the top-k results in topk_res; might include more than k nodes
+		// store the top-k results in topk_selector & topk_res; might include more than k nodes
 		
 		// 1. perform Power Method Whole-Graph SSPPR algo
 		computeWholeGraphPPR(nodeId_start, dummy);
 		
-		// 2. retrieve top-k results and store in topk_res 
-		Double kth_reserve = kth_ppr(reserve.values().toArray(), k); // find the kth ppr
-		if (kth_reserve == null) { // there might be less than k results, so we copy all of them to topk_res
-			topk_res = new HashMap<>(reserve);
-			return;
-		}
-			
-		for (Map.Entry<Long, Double> reserve_t : reserve.entrySet()) {
-			// find the pprs not smaller than the kth ppr, so it's possible that
-			// the size of topk_res is greater than k
-			if (reserve_t.getValue() >= kth_reserve)
-				topk_res.put(reserve_t.getKey(), reserve_t.getValue());
-		}
+		// 2. select top-k results, and keep them in topk_res for lookups by node id 
+		topk_selector.select(reserve_vec, csr::toOriginalNodeId, k);
+		for (int i = 0; i < topk_selector.size(); i++)
+			topk_res.put(topk_selector.idAt(i), topk_selector.pprAt(i));
 		return;
 	}
 	
 	@Override
 	public void printTopKResult(int k) {
-		List<Map.Entry<Long, Double>> topk_res_list = new ArrayList<Map.Entry<Long, Double>>(topk_res.entrySet());
-		topk_res_list.sort( new Comparator<Map.Entry<Long, Double>>() { // sort in descending order
-			public int compare(Map.Entry<Long, Double> k1, Map.Entry<Long, Double> k2) { 
-				// overload with k2.val > k1.val
-				return k2.getValue().compareTo(k1.getValue());
-			}
-		} );
-		int count = 0;
 		System.out.println("\nExact-Top" + k + " PPR:");
-		for (Map.Entry<Long, Double> topk_res_list_t : topk_res_list) {
-			if (count >= k) // we need to count since the size of topk_reserves might be greater than k
-				break;
-			count++;
-			System.out.println("@" + getNodeName(topk_res_list_t.getKey(), graphDb) + '\t' + topk_res_list_t.getValue());
-		}
+		for (int i = 0; i < topk_selector.size() && i < k; i++) // there might be more than k selected nodes
+			System.out.println("@" + getNodeName(topk_selector.idAt(i), graphDb) + '\t' + topk_selector.pprAt(i));
 	}
 }
@@ -0,0 +1,178 @@
+package joezie.fora_neo4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class Prep_Manifest implements Closeable { // append-only journal of preprocessing progress, to resume an interrupted run
+	/* File layout (little-endian): magic, version, the length of params and
+	 * params in UTF-8, then checkpoint blocks, each being its length, the CRC32
+	 * of its bytes and its bytes. What a block holds is up to its writer. A
+	 * block is appended only after the results it records are on disk, and a
+	 * block torn by a crash fails its length or CRC check and is dropped with
+	 * everything after it, so the blocks read back describe a consistent state.
+	 * A manifest written with other params is never resumed.
+	 */
+
+	public static final String FILE_NAME = "prep.manifest"; // name of the manifest in a preprocessing directory
+	private static final long MAGIC = 0x314E414D50455250L; // bytes "PREPMAN1" read as a little-endian long
+	private static final int VERSION = 1;
+	private static final int BLOCK_HEADER_SIZE = 12; // int length + long crc
+
+	private File file;
+	private FileChannel channel;
+	private List<ByteBuffer> blocks; // blocks read back when opened
+	private long blocks_pos; // position of the first block
+
+	private Prep_Manifest(File file, FileChannel channel, List<ByteBuffer> blocks, long blocks_pos) {
+		this.file = file;
+		this.channel = channel;
+		this.blocks = blocks;
+		this.blocks_pos = blocks_pos;
+	}
+
+	public static boolean isResumable(File file, String params) { // whether file is a manifest written with params
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return readHeader(channel, params) >= 0;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	public static Prep_Manifest open(File file, String params) throws IOException {
+		// read back the blocks of a manifest written with params, or start a new one
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			List<ByteBuffer> blocks = new ArrayList<>();
+			long pos = readHeader(channel, params), blocks_pos;
+			if (pos < 0) { // no manifest, or one of other params
+				byte params_bytes[] = params.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer header = ByteBuffer.allocate(16 + params_bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+				header.putLong(MAGIC).putInt(VERSION).putInt(params_bytes.length).put(params_bytes);
+				header.flip();
+				channel.truncate(0);
+				write(channel, header, 0);
+				pos = header.capacity();
+				blocks_pos = pos;
+			}
+			else {
+				blocks_pos = pos;
+				ByteBuffer block_header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				while (true) {
+					block_header.clear();
+					if (read(channel, block_header, pos) < BLOCK_HEADER_SIZE)
+						break;
+					block_header.flip();
+					int length = block_header.getInt();
+					long crc = block_header.getLong();
+					if (length < 0 || pos + BLOCK_HEADER_SIZE + length > channel.size())
+						break;
+					ByteBuffer block = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+					read(channel, block, pos + BLOCK_HEADER_SIZE);
+					block.flip();
+					if (checksum(block) != crc)
+						break;
+					blocks.add(block);
+					pos += BLOCK_HEADER_SIZE + length;
+				}
+				channel.truncate(pos); // drop a torn block
+			}
+			channel.force(true);
+			channel.position(pos);
+			return new Prep_Manifest(file, channel, blocks, blocks_pos);
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public List<ByteBuffer> getBlocks() { // blocks of the interrupted run, in the order they were appended
+		return blocks;
+	}
+
+	public synchronized void clear() throws IOException {
+		// drop the blocks, e.g. when the results they record are lost, so that a later resume doesn't replay them
+
+		blocks = new ArrayList<>();
+		channel.truncate(blocks_pos);
+		channel.position(blocks_pos);
+		channel.force(true);
+	}
+
+	public synchronized void append(ByteBuffer block) throws IOException {
+		// append the remaining bytes of block and force them to disk
+
+		ByteBuffer block_header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		block_header.putInt(block.remaining()).putLong(checksum(block));
+		block_header.flip();
+		while (block_header.hasRemaining())
+			channel.write(block_header);
+		while (block.hasRemaining())
+			channel.write(block);
+		channel.force(false);
+	}
+
+	public void delete() throws IOException { // the preprocessing is complete, so there's nothing to resume
+		close();
+		if (file.exists() && !file.delete())
+			throw new IOException("Cannot delete manifest " + file.getPath());
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static long readHeader(FileChannel channel, String params) throws IOException {
+		// return the position of the first block if the manifest is written with params, otherwise -1
+
+		ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		if (read(channel, header, 0) < 16)
+			return -1;
+		header.flip();
+		if (header.getLong() != MAGIC || header.getInt() != VERSION)
+			return -1;
+		int length = header.getInt();
+		if (length < 0 || 16L + length > channel.size())
+			return -1;
+		ByteBuffer params_bytes = ByteBuffer.allocate(length);
+		read(channel, params_bytes, 16);
+		if (!params.equals(new String(params_bytes.array(), StandardCharsets.UTF_8)))
+			return -1;
+		return 16L + length;
+	}
+
+	private static long checksum(ByteBuffer block) {
+		CRC32 crc = new CRC32();
+		crc.update(block.duplicate());
+		return crc.getValue();
+	}
+
+	private static int read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		int total = 0;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		for (long pos = position; buf.hasRemaining(); )
+			pos += channel.write(buf, pos);
+	}
+}
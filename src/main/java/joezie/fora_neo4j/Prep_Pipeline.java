@@ -0,0 +1,202 @@
+package joezie.fora_neo4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+public class Prep_Pipeline { // computes the pprs of every source in parallel while a writer thread stores them
+	/* Compute slots run in pool (or one slot on the calling thread if pool is
+	 * null), each with its own Source_Computer, and claim SOURCES_PER_CLAIM
+	 * sources at a time, so a slot with cheap sources simply claims more of
+	 * them. A computed source is handed to the writer thread through a
+	 * bounded queue: there are only RESULTS_PER_SLOT result buffers per slot,
+	 * so computing blocks when the writer falls behind, rather than piling
+	 * up results in memory; a slot waits through a ManagedBlocker, so the
+	 * pool may start another thread meanwhile. Sources are finished in the
+	 * order they're computed, which PPR_Index_Writer allows. Sources the
+	 * writer has already finished in an interrupted run are skipped, and the
+	 * writer thread makes a checkpoint every CHECKPOINT_INTERVAL_MS and once
+	 * all slots are done.
+	 */
+
+	private static final int SOURCES_PER_CLAIM = 16;
+	private static final int RESULTS_PER_SLOT = 4; // result buffers a slot may have in flight
+	private static final long CHECKPOINT_INTERVAL_MS = 30000;
+	private static final Source_Result END = new Source_Result(); // put by a slot when it's done
+
+	public interface Source_Computer { // computes the pprs of sources on a single thread
+		void compute(int nodeIdM_source, Source_Result result);
+	}
+
+	public static class Source_Result { // the pprs of a source, handed from a compute slot to the writer
+		private int nodeIdM_source;
+		private int targets[];
+		private double pprs[];
+		private int size;
+
+		private Source_Result() {
+			targets = new int[16];
+			pprs = new double[16];
+		}
+
+		public void add(int nodeIdM_target, double ppr) {
+			if (size == targets.length) {
+				targets = Arrays.copyOf(targets, size * 2);
+				pprs = Arrays.copyOf(pprs, size * 2);
+			}
+			targets[size] = nodeIdM_target;
+			pprs[size] = ppr;
+			size++;
+		}
+	}
+
+	public static void run(int node_amount, ForkJoinPool pool, Supplier<Source_Computer> computers,
+			PPR_Index_Writer writer) throws IOException {
+		// compute every source with computers (one per slot) and store their pprs in writer
+
+		int slot_amount = (pool == null) ? 1 : pool.getParallelism();
+		BlockingQueue<Source_Result> free = new ArrayBlockingQueue<>(slot_amount * RESULTS_PER_SLOT);
+		BlockingQueue<Source_Result> computed = new ArrayBlockingQueue<>(slot_amount * (RESULTS_PER_SLOT + 1));
+		for (int i = 0; i < slot_amount * RESULTS_PER_SLOT; i++)
+			free.add(new Source_Result());
+		Prep_Progress progress = new Prep_Progress("sources", node_amount, writer.getFinishedAmount());
+
+		AtomicReference<Exception> failure = new AtomicReference<>(); // the first failure of the writer
+		Thread writer_thread = new Thread(() -> {
+			long checkpointTime = System.currentTimeMillis();
+			for (int ended = 0; ended < slot_amount; ) {
+				Source_Result result = takeUninterruptibly(computed);
+				if (result == END) {
+					ended++;
+					continue;
+				}
+				if (failure.get() == null) {
+					try {
+						for (int i = 0; i < result.size; i++)
+							writer.add(result.targets[i], result.pprs[i]);
+						writer.finishSource(result.nodeIdM_source);
+						if (System.currentTimeMillis() - checkpointTime >= CHECKPOINT_INTERVAL_MS) {
+							writer.checkpoint();
+							checkpointTime = System.currentTimeMillis();
+						}
+					}
+					catch (IOException | RuntimeException e) {
+						failure.set(e); // keep draining, so no slot blocks forever
+					}
+				}
+				free.add(result);
+				progress.advance();
+			}
+			if (failure.get() == null) { // keep the finished sources even if a slot has failed
+				try {
+					writer.checkpoint();
+				}
+				catch (IOException e) {
+					failure.set(e);
+				}
+			}
+		}, "ppr-index-writer");
+		writer_thread.start();
+
+		AtomicInteger next_source = new AtomicInteger();
+		Runnable compute_slot = () -> {
+			try {
+				Source_Computer computer = computers.get();
+				int begin;
+				while (failure.get() == null && (begin = next_source.getAndAdd(SOURCES_PER_CLAIM)) < node_amount) {
+					for (int nodeIdM = begin; nodeIdM < Math.min(begin + SOURCES_PER_CLAIM, node_amount); nodeIdM++) {
+						if (writer.isFinished(nodeIdM)) // finished before an interruption
+							continue;
+						Source_Result result = takeUninterruptibly(free); // blocks while the writer is behind
+						result.nodeIdM_source = nodeIdM;
+						result.size = 0;
+						computer.compute(nodeIdM, result);
+						computed.add(result);
+					}
+				}
+			}
+			finally {
+				computed.add(END);
+			}
+		};
+
+		try {
+			if (slot_amount == 1)
+				compute_slot.run();
+			else {
+				List<ForkJoinTask<?>> tasks = new ArrayList<>(slot_amount);
+				for (int slot = 0; slot < slot_amount; slot++)
+					tasks.add(pool.submit(compute_slot));
+				for (ForkJoinTask<?> task : tasks)
+					task.join();
+			}
+		}
+		finally {
+			try {
+				writer_thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the ppr index writer");
+			}
+		}
+		if (failure.get() instanceof IOException)
+			throw (IOException)failure.get();
+		if (failure.get() != null)
+			throw (RuntimeException)failure.get();
+	}
+
+	private static class Take_Blocker implements ForkJoinPool.ManagedBlocker {
+		// takes a result from a queue, letting the pool add a thread while a compute slot waits
+
+		private BlockingQueue<Source_Result> queue;
+		private Source_Result result; // null until taken
+
+		Take_Blocker(BlockingQueue<Source_Result> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+			if (result == null)
+				result = queue.take();
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			return result != null || (result = queue.poll()) != null;
+		}
+	}
+
+	private static Source_Result takeUninterruptibly(BlockingQueue<Source_Result> queue) {
+		// managedBlock() simply blocks outside a ForkJoinPool, e.g. on the writer thread
+
+		Take_Blocker blocker = new Take_Blocker(queue);
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					ForkJoinPool.managedBlock(blocker);
+					return blocker.result;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
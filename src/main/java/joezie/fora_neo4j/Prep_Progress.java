@@ -0,0 +1,40 @@
+package joezie.fora_neo4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Prep_Progress { // prints the progress of preprocessing at every 10%, with its throughput and ETA
+	/* Units done before an interruption count towards the percentage, but
+	 * not towards the throughput, which only covers the units done since
+	 * this object was created. advance() may be called by many threads.
+	 */
+
+	private String unit; // what's being counted, e.g. "sources"
+	private int total;
+	private int done_before; // units done before the current run
+	private AtomicInteger done;
+	private long startTime;
+
+	public Prep_Progress(String unit, int total, int done_before) {
+		this.unit = unit;
+		this.total = total;
+		this.done_before = done_before;
+		done = new AtomicInteger(done_before);
+		startTime = System.nanoTime();
+		if (done_before > 0)
+			System.out.println("Resuming from " + done_before + " of " + total + " " + unit + " ("
+					+ (int)(100L * done_before / total) + "%)");
+	}
+
+	public void advance() { // one more unit is done
+		int done_t = done.incrementAndGet();
+		int pct = (int)(100L * done_t / total);
+		if (pct % 10 != 0 || (int)(100L * (done_t - 1) / total) == pct) // print only when reaching a multiple of 10%
+			return;
+
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		double throughput = (done_t - done_before) / Math.max(seconds, 1e-9);
+		long eta = (long)Math.ceil((total - done_t) / throughput);
+		System.out.println("Progress: " + pct + "% (" + String.format("%.1f", throughput) + " " + unit + "/s, ETA "
+				+ String.format("%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60) + ")");
+	}
+}
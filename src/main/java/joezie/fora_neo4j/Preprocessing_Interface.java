@@ -11,6 +11,12 @@ public interface Preprocessing_Interface {
 	public Long getPrepSize();
 	// get the size of the preprocessing directory in bytes
 	
+	public void setScoreBits(int score_bits);
+	// store each ppr in score_bits bits in later preprocessing; 0 to store exact pprs
+	
+	public Double getPrepMaxError();
+	// get the largest error of a stored ppr, or null if there's no preprocessed result
+	
 	public void deletePrepDir();
 	// delete the preprocessing directory
 }
@@ -0,0 +1,244 @@
+package joezie.fora_neo4j;
+
+public class Push_Engine { // Forward Push on mapped node ids with dense residue & reserve arrays
+	private CSR_Graph csr; // CSR snapshot of the adjacency matrix
+	private int node_amount; // the total number of nodes in the graph
+	private double alpha; // the probability stopped at each node during a random walk
+	private double residue[]; // (mapped node id, propagated value, i.e r)
+	private double reserve[]; // (mapped node id, stored value, i.e pi)
+	private int touched[]; // mapped node ids whose residue or reserve is set since the last reset
+	private int touched_size;
+	private long is_touched[]; // bitset of the nodes in touched[]
+	private Node_Queue Q; // nodes that can still propagate forward
+	private Node_Queue Q_next; // nodes that might still propagate forward in the next round of top-k push
+	private double rsum; // the sum of all nodes' residues(r) after the last push
+	private long push_amount; // nodes pushed since the engine is created
+	private long edge_amount; // out-edges scanned by those pushes
+	private int queue_peak; // the most nodes in Q at once since the last reset
+
+	public Push_Engine(CSR_Graph csr, int node_amount, double alpha) {
+		this.csr = csr;
+		this.node_amount = node_amount;
+		this.alpha = alpha;
+		residue = new double[node_amount];
+		reserve = new double[node_amount];
+		touched = new int[node_amount];
+		touched_size = 0;
+		is_touched = new long[(node_amount + 63) >>> 6];
+		Q = new Node_Queue(node_amount);
+		Q_next = new Node_Queue(node_amount);
+		rsum = 1.0;
+	}
+
+	public void reset() { // clear the state of the last query in O(touched)
+		for (int i = 0; i < touched_size; i++) {
+			int nodeIdM = touched[i];
+			residue[nodeIdM] = 0.0;
+			reserve[nodeIdM] = 0.0;
+			is_touched[nodeIdM >>> 6] = 0L;
+		}
+		touched_size = 0;
+		Q.clear();
+		Q_next.clear();
+		rsum = 1.0;
+		queue_peak = 0;
+	}
+
+	private void touch(int nodeIdM) {
+		long bit = 1L << nodeIdM;
+		if ((is_touched[nodeIdM >>> 6] & bit) == 0) {
+			is_touched[nodeIdM >>> 6] |= bit;
+			touched[touched_size++] = nodeIdM;
+		}
+	}
+
+	public double push_whole_graph(int nodeIdM_start, double rmax) {
+		/* Forward push from start node until every node v satisfies
+		 * r(s,v) / |N_out(v)| < rmax. Return the remaining rsum.
+		 */
+
+		reset();
+		int out_degree_start = csr.outDegree(nodeIdM_start);
+		touch(nodeIdM_start);
+
+		if (out_degree_start == 0) { // terminate if start node's out degree is 0
+			reserve[nodeIdM_start] = 1.0;
+			rsum = 0.0;
+			return rsum;
+		}
+
+		double rsum_local = 1.0;
+		Q.offer(nodeIdM_start);
+		residue[nodeIdM_start] = 1.0; // r(s,s) = 1.0
+
+		while (!Q.isEmpty()) {
+			queue_peak = Math.max(queue_peak, Q.size());
+			int nodeIdM_cur = Q.poll();
+			double residue_cur = residue[nodeIdM_cur];
+			residue[nodeIdM_cur] = 0.0; // r(s,v)=0
+			reserve[nodeIdM_cur] += residue_cur * alpha; // pi(s,v) = pi(s,v) + alpha * r(s,v)
+			rsum_local -= residue_cur * alpha; //update rsum_local
+
+			int out_degree_cur = csr.outDegree(nodeIdM_cur);
+			push_amount++;
+			edge_amount += out_degree_cur;
+			if (out_degree_cur == 0) {
+				// no out neighbor, then consider start node as its only neighbor
+				// and propagate (1 - alpha) * r(s,v) to start node
+				residue[nodeIdM_start] += residue_cur * (1.0 - alpha);
+				if (residue[nodeIdM_start] / (double)out_degree_start >= rmax)
+					Q.offer(nodeIdM_start); // ignored if it's in Q currently
+				continue;
+			}
+
+			double avg_push_residue = ((1.0 - alpha) * residue_cur) / (double)out_degree_cur;
+			for (int e = csr.outBegin(nodeIdM_cur), end = csr.outEnd(nodeIdM_cur); e < end; e++) {
+				int nodeIdM_next = csr.target(e);
+				touch(nodeIdM_next);
+				double new_residue_next = residue[nodeIdM_next] + avg_push_residue;
+				residue[nodeIdM_next] = new_residue_next;
+				//r(s,u) = r(s,u) + (1 - alpha) * r(s,v) / |N_out(v)|
+
+				int out_degree_next = csr.outDegree(nodeIdM_next);
+				if (new_residue_next / (double)out_degree_next >= rmax)
+					Q.offer(nodeIdM_next); // ignored if it's in Q currently
+			}
+		}
+		rsum = rsum_local;
+		return rsum;
+	}
+
+	public void load_queue(int nodeIdM) { // add a node into Q before calling push_topk
+		Q.offer(nodeIdM);
+	}
+
+	public void load_next_queue() { // move the nodes left in Q_next into Q before calling push_topk
+		while (!Q_next.isEmpty())
+			Q.offer(Q_next.poll());
+	}
+
+	public double push_topk(int nodeIdM_start, double min_rmax, boolean isFirstFwdpush, double rmax) {
+		/* One round of forward push for top-k ppr, starting from the nodes
+		 * loaded into Q. Nodes satisfying r(s,v) / |N_out(v)| >= min_rmax but
+		 * not rmax are kept in Q_next for the next round. Return the remaining rsum.
+		 * A new query should call reset() before loading Q for its first round.
+		 */
+
+		int out_degree_start = csr.outDegree(nodeIdM_start);
+		touch(nodeIdM_start);
+
+		if (out_degree_start == 0) { // terminate if start node's out degree is 0
+			reserve[nodeIdM_start] = 1.0;
+			Q.clear();
+			rsum = 0.0;
+			return rsum;
+		}
+
+		if (isFirstFwdpush) // initialize residue if it's the first forward push
+			residue[nodeIdM_start] = 1.0;
+		Q_next.clear(); // clear Q_next to be ready for storing new ones
+		double rsum_local = rsum;
+
+		while (!Q.isEmpty()) {
+			queue_peak = Math.max(queue_peak, Q.size());
+			int nodeIdM_cur = Q.poll();
+			double residue_cur = residue[nodeIdM_cur];
+			int out_degree_cur = csr.outDegree(nodeIdM_cur);
+
+			if (residue_cur / out_degree_cur >= rmax) {
+				// since it's not guaranteed that the nodes in Q meet the
+				// requirement that r(s,v)/|N_out(v)|>r_max, we need to check
+				residue[nodeIdM_cur] = 0.0; // r(s,v)=0
+				reserve[nodeIdM_cur] += residue_cur * alpha; // pi(s,v) = pi(s,v) + alpha * r(s,v)
+				rsum_local -= residue_cur * alpha; //update rsum_local
+				push_amount++;
+				edge_amount += out_degree_cur;
+
+				if (out_degree_cur == 0) {
+					// no out neighbor, then consider start node as its only neighbor
+					// and propagate (1 - alpha) * r(s,v) to start node
+					residue[nodeIdM_start] += residue_cur * (1 - alpha);
+					enqueue_topk(nodeIdM_start, residue[nodeIdM_start] / (double)out_degree_start,
+							min_rmax, rmax);
+					continue;
+				}
+
+				double avg_push_residue = ((1.0 - alpha) * residue_cur) / (double)out_degree_cur;
+				for (int e = csr.outBegin(nodeIdM_cur), end = csr.outEnd(nodeIdM_cur); e < end; e++) {
+					int nodeIdM_next = csr.target(e);
+					touch(nodeIdM_next);
+					double new_residue_next = residue[nodeIdM_next] + avg_push_residue;
+					residue[nodeIdM_next] = new_residue_next;
+					//r(s,u) = r(s,u) + (1 - alpha) * r(s,v) / |N_out(v)|
+
+					int out_degree_next = csr.outDegree(nodeIdM_next);
+					enqueue_topk(nodeIdM_next, new_residue_next / (double)out_degree_next, min_rmax, rmax);
+				}
+			}
+			else if (residue_cur / (double)out_degree_cur >= min_rmax) {
+				// the current node might still propagate forward in the next round
+				Q_next.offer(nodeIdM_cur);
+			}
+		}
+		rsum = rsum_local;
+		return rsum;
+	}
+
+	private void enqueue_topk(int nodeIdM, double residue_per_degree, double min_rmax, double rmax) {
+		// add the node into Q if it meets the requirement of Q and is not in Q currently,
+		// or else add it into Q_next if it meets the requirement of Q_next
+
+		if (residue_per_degree >= rmax && !Q.contains(nodeIdM))
+			Q.offer(nodeIdM);
+		else if (residue_per_degree >= min_rmax)
+			Q_next.offer(nodeIdM); // ignored if it's in Q_next currently
+	}
+
+	public double getRsum() {
+		return rsum;
+	}
+
+	public int getTouchedSize() { // the number of nodes whose residue or reserve might be non-zero
+		return touched_size;
+	}
+
+	public int getTouched(int i) { // return the ith touched node
+		return touched[i];
+	}
+
+	public int[] getTouchedArray() { // the touched nodes in [0, getTouchedSize()), read in place
+		return touched;
+	}
+
+	public double getResidue(int nodeIdM) {
+		return residue[nodeIdM];
+	}
+
+	public double getReserve(int nodeIdM) {
+		return reserve[nodeIdM];
+	}
+
+	public double[] getReserveArray() { // reserve indexed by mapped node id, read in place
+		return reserve;
+	}
+
+	public long getPushAmount() { // nodes pushed since the engine is created
+		return push_amount;
+	}
+
+	public long getEdgeAmount() { // out-edges scanned since the engine is created
+		return edge_amount;
+	}
+
+	public int getQueuePeak() { // the most nodes queued at once since the last reset
+		return queue_peak;
+	}
+
+	public int getNextQueueSize() {
+		return Q_next.size();
+	}
+
+	public int getNextQueue(int i) { // return the ith node in Q_next
+		return Q_next.get(i);
+	}
+}
@@ -0,0 +1,339 @@
+package joezie.fora_neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Query_Metrics implements Query_Metrics_MXBean { // hot-path counters & per-query histograms of an algo
+	/* There is one instance per algo name, shared by all its objects and
+	 * workers, and registered as an MXBean named
+	 * "joezie.fora_neo4j:type=Query_Metrics,algo=<name>". An algo fills a
+	 * Sample of its own during a query, counting in plain fields of its
+	 * engines, and records it once the query ends into one of
+	 * Log_Histogram.STRIPES Stripes, picked by the recording thread's id as
+	 * in Log_Histogram: threads rarely share the cache lines of a record,
+	 * so the metrics can stay on in production, and the memory stays bounded
+	 * however many threads record. Reads merge the stripes, and the totals
+	 * are the sums of the per-query histograms.
+	 */
+
+	public static final String DOMAIN = "joezie.fora_neo4j";
+	private static final double PERCENTILES[] = {50.0, 90.0, 99.0, 99.9};
+	private static final String PERCENTILE_NAMES[] = {"p50", "p90", "p99", "p999"};
+
+	private static final ConcurrentHashMap<String, Query_Metrics> registry = new ConcurrentHashMap<>();
+	private static ScheduledExecutorService snapshot_executor; // writes the snapshot file; null if not started
+	private static File snapshot_file;
+
+	public static class Sample { // the counts of one query, filled by the algo while it runs
+		public long latency_ns;
+		public long push_ns; // time spent in forward / backward push
+		public long walk_ns; // time spent in random walks
+		public long pushes; // the number of nodes pushed
+		public long edges; // edges scanned by the pushes
+		public long walks; // walks used, including the ones read from a walk index
+		public long walk_steps; // steps of the walks run online
+		public long frontier_peak; // the most nodes queued for a push at once
+		public long rounds; // rounds of push & walks; 1 for single-round algos
+
+		public void clear() {
+			latency_ns = push_ns = walk_ns = 0;
+			pushes = edges = walks = walk_steps = 0;
+			frontier_peak = rounds = 0;
+		}
+	}
+
+	private static class Stripe { // the queries recorded by the threads sharing a stripe
+		private final Log_Histogram.Recorder latency_ns;
+		private final Log_Histogram.Recorder push_ns;
+		private final Log_Histogram.Recorder walk_ns;
+		private final Log_Histogram.Recorder pushes_per_query;
+		private final Log_Histogram.Recorder edges_per_query;
+		private final Log_Histogram.Recorder walks_per_query;
+		private final Log_Histogram.Recorder walk_steps_per_query;
+		private final Log_Histogram.Recorder frontier_peak;
+		private final Log_Histogram.Recorder rounds_per_query;
+
+		Stripe() {
+			latency_ns = new Log_Histogram.Recorder();
+			push_ns = new Log_Histogram.Recorder();
+			walk_ns = new Log_Histogram.Recorder();
+			pushes_per_query = new Log_Histogram.Recorder();
+			edges_per_query = new Log_Histogram.Recorder();
+			walks_per_query = new Log_Histogram.Recorder();
+			walk_steps_per_query = new Log_Histogram.Recorder();
+			frontier_peak = new Log_Histogram.Recorder();
+			rounds_per_query = new Log_Histogram.Recorder();
+		}
+	}
+
+	private String algo;
+	private volatile AtomicReferenceArray<Stripe> stripes; // Log_Histogram.STRIPES slots, null until recorded into
+
+	private Query_Metrics(String algo) {
+		this.algo = algo;
+		stripes = new AtomicReferenceArray<>(Log_Histogram.STRIPES);
+	}
+
+	public static Query_Metrics of(String algo) { // the metrics of the algo, created & registered on the first call
+		return registry.computeIfAbsent(algo, name -> {
+			Query_Metrics metrics = new Query_Metrics(name);
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+						new ObjectName(DOMAIN + ":type=Query_Metrics,algo=" + name));
+			}
+			catch (JMException e) { // still counted, only not visible over JMX
+				System.out.println("Register the metrics of " + name + " over JMX failed!");
+				e.printStackTrace();
+			}
+			return metrics;
+		});
+	}
+
+	public static List<Query_Metrics> all() { // the metrics of every algo that has been created, sorted by algo
+		List<Query_Metrics> metrics = new ArrayList<>(registry.values());
+		metrics.sort((m1, m2) -> m1.algo.compareTo(m2.algo));
+		return metrics;
+	}
+
+	private Stripe getStripe() { // the calling thread's stripe, made on the first record into it since the last reset
+		AtomicReferenceArray<Stripe> stripes_t = stripes;
+		int index = Log_Histogram.stripeOf(Thread.currentThread());
+		Stripe stripe = stripes_t.get(index);
+		if (stripe == null && !stripes_t.compareAndSet(index, null, stripe = new Stripe()))
+			stripe = stripes_t.get(index); // made by another thread meanwhile
+		return stripe;
+	}
+
+	public void record(Sample sample) {
+		Stripe stripe = getStripe();
+		stripe.latency_ns.record(sample.latency_ns);
+		stripe.push_ns.record(sample.push_ns);
+		stripe.walk_ns.record(sample.walk_ns);
+		stripe.pushes_per_query.record(sample.pushes);
+		stripe.edges_per_query.record(sample.edges);
+		stripe.walks_per_query.record(sample.walks);
+		stripe.walk_steps_per_query.record(sample.walk_steps);
+		stripe.frontier_peak.record(sample.frontier_peak);
+		stripe.rounds_per_query.record(sample.rounds);
+	}
+
+	private Log_Histogram merge(Function<Stripe, Log_Histogram.Recorder> field) { // the field of all stripes
+		AtomicReferenceArray<Stripe> stripes_t = stripes;
+		Log_Histogram histogram = new Log_Histogram();
+		for (int index = 0; index < Log_Histogram.STRIPES; index++)
+			if (stripes_t.get(index) != null)
+				histogram.add(field.apply(stripes_t.get(index)));
+		return histogram;
+	}
+
+	private long sum(Function<Stripe, Log_Histogram.Recorder> field) { // the sum of the values of the field
+		AtomicReferenceArray<Stripe> stripes_t = stripes;
+		long sum = 0;
+		for (int index = 0; index < Log_Histogram.STRIPES; index++)
+			if (stripes_t.get(index) != null)
+				sum += field.apply(stripes_t.get(index)).getSum();
+		return sum;
+	}
+
+	private static Map<String, Long> summarize(Log_Histogram histogram) {
+		Map<String, Long> summary = new LinkedHashMap<>();
+		summary.put("count", histogram.getCount());
+		summary.put("mean", Math.round(histogram.getMean()));
+		for (int i = 0; i < PERCENTILES.length; i++)
+			summary.put(PERCENTILE_NAMES[i], histogram.getValueAtPercentile(PERCENTILES[i]));
+		summary.put("max", histogram.getMax());
+		return summary;
+	}
+
+	@Override
+	public String getAlgo() {
+		return algo;
+	}
+
+	@Override
+	public long getQueryCount() {
+		AtomicReferenceArray<Stripe> stripes_t = stripes;
+		long count = 0;
+		for (int index = 0; index < Log_Histogram.STRIPES; index++)
+			if (stripes_t.get(index) != null)
+				count += stripes_t.get(index).latency_ns.getCount();
+		return count;
+	}
+
+	@Override
+	public long getPushCount() {
+		return sum(stripe -> stripe.pushes_per_query);
+	}
+
+	@Override
+	public long getEdgeCount() {
+		return sum(stripe -> stripe.edges_per_query);
+	}
+
+	@Override
+	public long getWalkCount() {
+		return sum(stripe -> stripe.walks_per_query);
+	}
+
+	@Override
+	public long getWalkStepCount() {
+		return sum(stripe -> stripe.walk_steps_per_query);
+	}
+
+	@Override
+	public long getRoundCount() {
+		return sum(stripe -> stripe.rounds_per_query);
+	}
+
+	@Override
+	public Map<String, Long> getLatencyNanos() {
+		return summarize(merge(stripe -> stripe.latency_ns));
+	}
+
+	@Override
+	public Map<String, Long> getPushPhaseNanos() {
+		return summarize(merge(stripe -> stripe.push_ns));
+	}
+
+	@Override
+	public Map<String, Long> getWalkPhaseNanos() {
+		return summarize(merge(stripe -> stripe.walk_ns));
+	}
+
+	@Override
+	public Map<String, Long> getPushesPerQuery() {
+		return summarize(merge(stripe -> stripe.pushes_per_query));
+	}
+
+	@Override
+	public Map<String, Long> getEdgesPerQuery() {
+		return summarize(merge(stripe -> stripe.edges_per_query));
+	}
+
+	@Override
+	public Map<String, Long> getWalksPerQuery() {
+		return summarize(merge(stripe -> stripe.walks_per_query));
+	}
+
+	@Override
+	public Map<String, Long> getWalkStepsPerQuery() {
+		return summarize(merge(stripe -> stripe.walk_steps_per_query));
+	}
+
+	@Override
+	public Map<String, Long> getFrontierPeak() {
+		return summarize(merge(stripe -> stripe.frontier_peak));
+	}
+
+	@Override
+	public Map<String, Long> getRoundsPerQuery() {
+		return summarize(merge(stripe -> stripe.rounds_per_query));
+	}
+
+	@Override
+	public void reset() { // not atomic with concurrent records, which may be partly kept
+		stripes = new AtomicReferenceArray<>(Log_Histogram.STRIPES); // stripes are made again on their next record
+	}
+
+	private String toJson(long time_ms) { // one line of the snapshot file
+		StringBuilder json = new StringBuilder();
+		json.append("{\"time_ms\":").append(time_ms).append(",\"algo\":\"").append(algo).append('"')
+				.append(",\"queries\":").append(getQueryCount())
+				.append(",\"pushes\":").append(getPushCount())
+				.append(",\"edges\":").append(getEdgeCount())
+				.append(",\"walks\":").append(getWalkCount())
+				.append(",\"walk_steps\":").append(getWalkStepCount())
+				.append(",\"rounds\":").append(getRoundCount());
+		appendJson(json, "latency_ns", merge(stripe -> stripe.latency_ns));
+		appendJson(json, "push_ns", merge(stripe -> stripe.push_ns));
+		appendJson(json, "walk_ns", merge(stripe -> stripe.walk_ns));
+		appendJson(json, "pushes_per_query", merge(stripe -> stripe.pushes_per_query));
+		appendJson(json, "edges_per_query", merge(stripe -> stripe.edges_per_query));
+		appendJson(json, "walks_per_query", merge(stripe -> stripe.walks_per_query));
+		appendJson(json, "walk_steps_per_query", merge(stripe -> stripe.walk_steps_per_query));
+		appendJson(json, "frontier_peak", merge(stripe -> stripe.frontier_peak));
+		appendJson(json, "rounds_per_query", merge(stripe -> stripe.rounds_per_query));
+		return json.append('}').toString();
+	}
+
+	private static void appendJson(StringBuilder json, String name, Log_Histogram histogram) {
+		json.append(",\"").append(name).append("\":{");
+		boolean isFirst = true;
+		for (Map.Entry<String, Long> entry : summarize(histogram).entrySet()) {
+			json.append(isFirst ? "" : ",").append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+			isFirst = false;
+		}
+		json.append('}');
+	}
+
+	public static void writeSnapshot(File file) throws IOException {
+		// write the metrics of every algo into file, one json object per line; the file is replaced atomically
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		if (file.getAbsoluteFile().getParentFile() != null)
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		long time_ms = System.currentTimeMillis();
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8))) {
+			for (Query_Metrics metrics : all())
+				writer.println(metrics.toJson(time_ms));
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static synchronized void startSnapshots(File file, long period_s) {
+		// rewrite file with the current metrics every period_s seconds, from a daemon thread
+
+		stopSnapshots();
+		snapshot_file = file;
+		snapshot_executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Query_Metrics snapshots");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshot_executor.scheduleAtFixedRate(() -> {
+			try {
+				writeSnapshot(file);
+			}
+			catch (IOException e) {
+				System.out.println("Write metrics snapshot to " + file.getPath() + " failed!");
+				e.printStackTrace();
+			}
+		}, period_s, period_s, TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stopSnapshots() { // stop the periodic snapshots and write a last one
+		if (snapshot_executor == null)
+			return;
+		snapshot_executor.shutdown(); // no more periodic runs, but let a running one finish
+		try {
+			snapshot_executor.awaitTermination(1, TimeUnit.MINUTES);
+			writeSnapshot(snapshot_file);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException e) {
+			System.out.println("Write metrics snapshot to " + snapshot_file.getPath() + " failed!");
+			e.printStackTrace();
+		}
+		snapshot_executor = null;
+	}
+}
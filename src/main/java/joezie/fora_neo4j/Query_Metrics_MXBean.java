@@ -0,0 +1,44 @@
+package joezie.fora_neo4j;
+
+import java.util.Map;
+
+public interface Query_Metrics_MXBean { // JMX view of the Query_Metrics of an algo
+	/* The counters are totals over every query since the last reset; each
+	 * histogram attribute holds the count, mean, p50, p90, p99, p999 and max
+	 * of one per-query value.
+	 */
+
+	public String getAlgo();
+
+	public long getQueryCount();
+
+	public long getPushCount();
+
+	public long getEdgeCount(); // edges scanned by the pushes
+
+	public long getWalkCount();
+
+	public long getWalkStepCount();
+
+	public long getRoundCount();
+
+	public Map<String, Long> getLatencyNanos();
+
+	public Map<String, Long> getPushPhaseNanos();
+
+	public Map<String, Long> getWalkPhaseNanos();
+
+	public Map<String, Long> getPushesPerQuery();
+
+	public Map<String, Long> getEdgesPerQuery();
+
+	public Map<String, Long> getWalksPerQuery();
+
+	public Map<String, Long> getWalkStepsPerQuery();
+
+	public Map<String, Long> getFrontierPeak(); // the most nodes queued for a push at once
+
+	public Map<String, Long> getRoundsPerQuery();
+
+	public void reset();
+}
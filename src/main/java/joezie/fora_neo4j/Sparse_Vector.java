@@ -0,0 +1,133 @@
+package joezie.fora_neo4j;
+
+import java.util.Arrays;
+
+public class Sparse_Vector { // (mapped node id, double) map with open addressing, reusable between queries
+	/* A slot is live only if its stamp equals the current generation, so
+	 * clear() just starts a new generation instead of wiping the arrays.
+	 * Live slots are also listed in insertion order, which gives O(size)
+	 * iteration over the entries.
+	 */
+
+	private int keys[];
+	private double values[];
+	private int stamps[]; // generation in which each slot was written
+	private int slots[]; // live slots in insertion order
+	private int size; // the number of live entries
+	private int mask; // capacity - 1; capacity is a power of 2
+	private int generation;
+
+	public Sparse_Vector(int expected_size) {
+		int capacity = 16;
+		while (capacity < expected_size * 2 && capacity < (1 << 30))
+			capacity <<= 1;
+		allocate(capacity);
+		generation = 1;
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new double[capacity];
+		stamps = new int[capacity];
+		slots = new int[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	public void clear() { // O(1): entries of older generations are treated as empty slots
+		size = 0;
+		if (++generation == 0) { // stamps wrapped around, so really wipe them once
+			Arrays.fill(stamps, 0);
+			generation = 1;
+		}
+	}
+
+	private int findSlot(int key) { // return the slot holding key, or the empty slot where it would go
+		int hash = key * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (stamps[slot] == generation && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	public double get(int key) { // return 0.0 if key is absent
+		int slot = findSlot(key);
+		return stamps[slot] == generation ? values[slot] : 0.0;
+	}
+
+	public boolean containsKey(int key) {
+		return stamps[findSlot(key)] == generation;
+	}
+
+	public void put(int key, double value) {
+		int slot = findSlot(key);
+		if (stamps[slot] == generation) {
+			values[slot] = value;
+			return;
+		}
+		insert(slot, key, value);
+	}
+
+	public double add(int key, double delta) { // value(key) += delta; return the new value
+		int slot = findSlot(key);
+		if (stamps[slot] == generation)
+			return values[slot] += delta;
+		insert(slot, key, delta);
+		return delta;
+	}
+
+	private void insert(int slot, int key, double value) {
+		if ((size + 1) * 2 > mask + 1) { // keep the load factor under 1/2
+			grow();
+			slot = findSlot(key);
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		stamps[slot] = generation;
+		slots[size++] = slot;
+	}
+
+	private void grow() { // double the capacity and re-insert the live entries in their insertion order
+		int old_keys[] = keys, old_stamps[] = stamps, old_slots[] = slots, old_size = size;
+		double old_values[] = values;
+		int old_generation = generation;
+		allocate((mask + 1) << 1);
+		generation = 1;
+		for (int i = 0; i < old_size; i++) {
+			int old_slot = old_slots[i];
+			if (old_stamps[old_slot] != old_generation)
+				continue;
+			int slot = findSlot(old_keys[old_slot]);
+			keys[slot] = old_keys[old_slot];
+			values[slot] = old_values[old_slot];
+			stamps[slot] = generation;
+			slots[size++] = slot;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int keyAt(int i) { // key of the ith entry in insertion order
+		return keys[slots[i]];
+	}
+
+	public double valueAt(int i) { // value of the ith entry in insertion order
+		return values[slots[i]];
+	}
+
+	public void setValueAt(int i, double value) {
+		values[slots[i]] = value;
+	}
+
+	public void copyFrom(Sparse_Vector other) { // replace the entries with the ones of other
+		clear();
+		for (int i = 0; i < other.size; i++)
+			put(other.keyAt(i), other.valueAt(i));
+	}
+}
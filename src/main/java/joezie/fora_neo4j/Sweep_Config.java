@@ -0,0 +1,175 @@
+package joezie.fora_neo4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Sweep_Config { // the matrix of a parameter sweep of algo_perf_test, read from a config file
+	/* Lines are "key = value", with empty lines and lines starting with '#'
+	 * skipped, and lists are comma separated:
+	 *   graphs = got.db, ...        database directory names the sweep covers; the cells of
+	 *                               other graphs are skipped, so the sweep runs once per graph
+	 *   queries = 50                queries per cell
+	 *   k = 10, 100                 k of the top-k cells
+	 *   concurrency = 2             cells running at once on the loaded graph
+	 *   threads = 4                 threads of each cell for Monte-Carlo walks, preprocessing & Power Method
+	 *   <test>.<ALGO> = p1, p2      params of the AlgoType ALGO in test: whole_graph, topk or
+	 *                               preprocessing; the params of BASE_WHOLE_GRAPH are thresholds
+	 *   <test>.<ALGO>.threads = 8   threads of those cells instead
+	 * There is a cell per (test, algo, param, k), in the order of the lines.
+	 * The config is a file, or a resource on the class path (e.g.
+	 * "sweeps/got.properties") if there's no such file.
+	 */
+
+	public static final String TESTS[] = {"whole_graph", "topk", "preprocessing"};
+
+	public static class Cell { // one call of algo_perf_test
+		public final String graph;
+		public final String test;
+		public final Gen_Util.AlgoType algo;
+		public final Object param; // -1 for BASE
+		public final Double threshold; // threshold of BASE; -1.0 for other algos
+		public final int k; // -1 for whole-graph tests
+		public final int queries;
+		public final int threads;
+
+		Cell(String graph, String test, Gen_Util.AlgoType algo, Object param, Double threshold, int k, int queries,
+				int threads) {
+			this.graph = graph;
+			this.test = test;
+			this.algo = algo;
+			this.param = param;
+			this.threshold = threshold;
+			this.k = k;
+			this.queries = queries;
+			this.threads = threads;
+		}
+
+		public String getKey() { // identifies the cell in a checkpoint, along with the run-wide settings
+			return graph + "\t" + test + "\t" + algo + "\t" + param + "\t" + threshold + "\t" + k + "\t" + queries 
+					+ "\t" + threads;
+		}
+
+		public String getPrepDirKey() {
+			// identifies the preprocessing directory the cell writes, so cells sharing one don't run at once; null if none
+
+			if (algo == Gen_Util.AlgoType.BASE_WHOLE_GRAPH)
+				return algo + "\t" + threshold + "\t" + k;
+			return test.equals("preprocessing") ? algo + "\t" + param : null;
+		}
+
+		@Override
+		public String toString() {
+			return test + " " + algo + ((algo == Gen_Util.AlgoType.BASE_WHOLE_GRAPH) ? " threshold " + threshold : " param " + param)
+					+ ((k < 0) ? "" : " k " + k) + " on " + graph;
+		}
+	}
+
+	private LinkedHashMap<String, String> values; // (key, value) in the order of the lines
+
+	private Sweep_Config(LinkedHashMap<String, String> values) {
+		this.values = values;
+	}
+
+	public static Sweep_Config load(String name) throws IOException {
+		File file = new File(name);
+		InputStream in = file.exists() ? Files.newInputStream(file.toPath())
+				: Sweep_Config.class.getClassLoader().getResourceAsStream(name);
+		if (in == null)
+			throw new FileNotFoundException("Sweep config " + name + " is neither a file nor a resource");
+
+		LinkedHashMap<String, String> values = new LinkedHashMap<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			String line;
+			int line_num = 0;
+			while ((line = reader.readLine()) != null) {
+				line_num++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				int eq = line.indexOf('=');
+				if (eq < 0)
+					throw new IOException(name + ":" + line_num + ": expected \"key = value\"");
+				values.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+			}
+		}
+		return new Sweep_Config(values);
+	}
+
+	private static List<String> split(String value) {
+		List<String> items = new ArrayList<>();
+		for (String item : value.split(","))
+			if (!item.trim().isEmpty())
+				items.add(item.trim());
+		return items;
+	}
+
+	private int getInt(String key, int default_value) {
+		return values.containsKey(key) ? Integer.parseInt(values.get(key)) : default_value;
+	}
+
+	public List<String> getGraphs() { // empty if the sweep covers any graph
+		return values.containsKey("graphs") ? split(values.get("graphs")) : new ArrayList<>();
+	}
+
+	public int getConcurrency() {
+		return getInt("concurrency", 1);
+	}
+
+	public List<Cell> getCells(String graph, int default_queries, int default_k, int default_threads) {
+		// the cells on graph; empty if the sweep doesn't cover it
+
+		List<String> graphs = getGraphs();
+		List<Cell> cells = new ArrayList<>();
+		if (!graphs.isEmpty() && !graphs.contains(graph))
+			return cells;
+		int queries = getInt("queries", default_queries);
+		int threads = getInt("threads", default_threads);
+		List<Integer> k_list = new ArrayList<>();
+		for (String k : split(values.getOrDefault("k", String.valueOf(default_k))))
+			k_list.add(Integer.parseInt(k));
+
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String key = entry.getKey();
+			int dot = key.indexOf('.');
+			if (dot < 0) {
+				if (!key.equals("graphs") && !key.equals("queries") && !key.equals("k") && !key.equals("concurrency")
+						&& !key.equals("threads"))
+					throw new IllegalArgumentException("Unknown sweep config key " + key);
+				continue;
+			}
+			if (key.endsWith(".threads")) // read with the params of the algo
+				continue;
+			String test = key.substring(0, dot);
+			if (!test.equals(TESTS[0]) && !test.equals(TESTS[1]) && !test.equals(TESTS[2]))
+				throw new IllegalArgumentException("Unknown test " + test + " in sweep config key " + key);
+			Gen_Util.AlgoType algo = Gen_Util.AlgoType.valueOf(key.substring(dot + 1));
+			if ((test.equals("topk") && algo == Gen_Util.AlgoType.FORA_WHOLE_GRAPH) 
+					|| (!test.equals("topk") && algo == Gen_Util.AlgoType.FORA_TOPK)
+					|| (test.equals("preprocessing") && algo == Gen_Util.AlgoType.POWER_METHOD))
+				throw new IllegalArgumentException(algo + " can't run the " + test + " test");
+			int threads_t = getInt(key + ".threads", threads);
+			boolean isBase = (algo == Gen_Util.AlgoType.BASE_WHOLE_GRAPH);
+
+			for (String value : split(entry.getValue())) {
+				Object param = isBase ? (Object)(-1) : Gen_Util.parseParam(algo, value);
+				Double threshold = isBase ? Double.valueOf(value) : -1.0;
+				if (test.equals("topk"))
+					for (int k : k_list)
+						cells.add(new Cell(graph, test, algo, param, threshold, k, queries, threads_t));
+				else
+					cells.add(new Cell(graph, test, algo, param, threshold, -1, queries, threads_t));
+			}
+		}
+		return cells;
+	}
+}
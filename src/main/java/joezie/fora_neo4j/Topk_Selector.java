@@ -0,0 +1,333 @@
+package joezie.fora_neo4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntToLongFunction;
+
+public class Topk_Selector { // top-k (node id, ppr) pairs selected on primitive arrays, reusable between queries
+	/* Every pair whose ppr is not smaller than the kth largest one is selected, so
+	 * there might be more than k results when pprs tie; if there are less than k
+	 * pairs, all of them are selected. Results are sorted in descending order of
+	 * ppr, and pairs with the same ppr in ascending order of node id.
+	 *
+	 * Pairs offered one by one go through a bounded min-heap holding the k best,
+	 * while pairs tying with the minimum of a full heap are kept aside until a
+	 * larger ppr pushes that minimum out. When k is a large part of the input,
+	 * select() finds the kth ppr by a quickselect over a double[] instead.
+	 * select() takes pairs keyed by mapped node ids, in the arrays the algos
+	 * hold them in, and reports the ids given by toOriginal.
+	 */
+
+	private static final int QUICKSELECT_RATIO = 8; // quickselect when k * QUICKSELECT_RATIO >= input size
+
+	private int k;
+	private long ids[]; // [0, heap_size) is the heap while offering, [0, size) the sorted results after finish()
+	private double pprs[];
+	private int heap_size;
+	private long tie_ids[]; // pairs tying with the minimum of the full heap
+	private double tie_pprs[];
+	private int tie_size;
+	private int size; // the number of selected pairs
+	private double scratch[]; // pprs copied for quickselect
+
+	public Topk_Selector() {
+		ids = new long[16];
+		pprs = new double[16];
+		tie_ids = new long[16];
+		tie_pprs = new double[16];
+		scratch = new double[16];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long idAt(int i) { // node id of the ith best pair
+		return ids[i];
+	}
+
+	public double pprAt(int i) { // ppr of the ith best pair
+		return pprs[i];
+	}
+
+	public void clear() { // drop the selected pairs
+		heap_size = 0;
+		tie_size = 0;
+		size = 0;
+	}
+
+	public void begin(int k) { // start a new selection; the pairs are then given to offer()
+		this.k = k;
+		clear();
+		ensureCapacity(k);
+	}
+
+	public void offer(long id, double ppr) {
+		if (heap_size < k) {
+			ids[heap_size] = id;
+			pprs[heap_size] = ppr;
+			siftUp(heap_size++);
+			return;
+		}
+		if (k <= 0 || ppr < pprs[0])
+			return;
+		if (ppr == pprs[0]) {
+			addTie(id, ppr);
+			return;
+		}
+
+		// ppr beats the minimum: replace it, and keep it as a tie if the new minimum equals it
+		long min_id = ids[0];
+		double min_ppr = pprs[0];
+		ids[0] = id;
+		pprs[0] = ppr;
+		siftDown(0, heap_size);
+		if (pprs[0] == min_ppr)
+			addTie(min_id, min_ppr);
+		else
+			tie_size = 0; // the ties were equal to min_ppr, which is no longer the kth largest
+	}
+
+	public void finish() { // sort the heap and the ties into the results
+		ensureCapacity(heap_size + tie_size);
+		System.arraycopy(tie_ids, 0, ids, heap_size, tie_size);
+		System.arraycopy(tie_pprs, 0, pprs, heap_size, tie_size);
+		size = heap_size + tie_size;
+		heap_size = 0;
+		tie_size = 0;
+		sort();
+	}
+
+	public void select(Sparse_Vector ppr, IntToLongFunction toOriginal, int k) {
+		// select from (mapped node id, ppr) pairs, reporting the ids given by toOriginal
+
+		int input_size = ppr.size();
+		if (isHeapSelection(k, input_size)) {
+			begin(k);
+			for (int i = 0; i < input_size; i++)
+				offer(ppr.keyAt(i), ppr.valueAt(i));
+		}
+		else {
+			ensureScratch(input_size);
+			for (int i = 0; i < input_size; i++)
+				scratch[i] = ppr.valueAt(i);
+			double kth = kthOfScratch(input_size, k);
+			begin(0);
+			for (int i = 0; i < input_size; i++)
+				if (ppr.valueAt(i) >= kth)
+					append(ppr.keyAt(i), ppr.valueAt(i));
+		}
+		finish(toOriginal);
+	}
+
+	public void select(int nodes[], double pprs[], int size, IntToLongFunction toOriginal, int k) {
+		// select from the pairs (nodes[i], pprs[i]) of mapped node ids, i < size
+
+		if (isHeapSelection(k, size)) {
+			begin(k);
+			for (int i = 0; i < size; i++)
+				offer(nodes[i], pprs[i]);
+		}
+		else {
+			ensureScratch(size);
+			System.arraycopy(pprs, 0, scratch, 0, size);
+			double kth = kthOfScratch(size, k);
+			begin(0);
+			for (int i = 0; i < size; i++)
+				if (pprs[i] >= kth)
+					append(nodes[i], pprs[i]);
+		}
+		finish(toOriginal);
+	}
+
+	public void selectDense(int nodes[], int size, double ppr[], IntToLongFunction toOriginal, int k) {
+		// select from the mapped node ids nodes[0, size) whose ppr[node] is positive, e.g. the touched nodes of a push
+
+		if (isHeapSelection(k, size)) {
+			begin(k);
+			for (int i = 0; i < size; i++) {
+				double ppr_i = ppr[nodes[i]];
+				if (ppr_i > 0.0)
+					offer(nodes[i], ppr_i);
+			}
+		}
+		else {
+			ensureScratch(size);
+			int input_size = 0;
+			for (int i = 0; i < size; i++)
+				if (ppr[nodes[i]] > 0.0)
+					scratch[input_size++] = ppr[nodes[i]];
+			double kth = kthOfScratch(input_size, k);
+			begin(0);
+			for (int i = 0; i < size; i++) {
+				double ppr_i = ppr[nodes[i]];
+				if (ppr_i > 0.0 && ppr_i >= kth)
+					append(nodes[i], ppr_i);
+			}
+		}
+		finish(toOriginal);
+	}
+
+	public void select(PPR_Records records, IntToLongFunction toOriginal, int k) { // select from the records of a source
+		int input_size = records.size();
+		if (isHeapSelection(k, input_size)) {
+			begin(k);
+			for (int i = 0; i < input_size; i++)
+				offer(records.nodeAt(i), records.pprAt(i));
+		}
+		else {
+			ensureScratch(input_size);
+			for (int i = 0; i < input_size; i++)
+				scratch[i] = records.pprAt(i);
+			double kth = kthOfScratch(input_size, k);
+			begin(0);
+			for (int i = 0; i < input_size; i++)
+				if (records.pprAt(i) >= kth)
+					append(records.nodeAt(i), records.pprAt(i));
+		}
+		finish(toOriginal);
+	}
+
+	private static boolean isHeapSelection(int k, int input_size) { // otherwise quickselect over scratch
+		return (long)k * QUICKSELECT_RATIO < input_size;
+	}
+
+	private double kthOfScratch(int input_size, int k) { // -infinity to select all pairs
+		return (k > 0 && k <= input_size) ? kthLargest(scratch, input_size, k) : Double.NEGATIVE_INFINITY;
+	}
+
+	private void finish(IntToLongFunction toOriginal) {
+		// convert the selected mapped node ids, then sort, so that ties are ordered by the reported ids
+
+		ensureCapacity(heap_size + tie_size);
+		System.arraycopy(tie_ids, 0, ids, heap_size, tie_size);
+		System.arraycopy(tie_pprs, 0, pprs, heap_size, tie_size);
+		size += heap_size + tie_size; // either the pairs were offered or they were appended
+		heap_size = 0;
+		tie_size = 0;
+		for (int i = 0; i < size; i++)
+			ids[i] = toOriginal.applyAsLong((int)ids[i]);
+		sort();
+	}
+
+	private void append(long id, double ppr) { // add a pair to the results without selection
+		ensureCapacity(size + 1);
+		ids[size] = id;
+		pprs[size] = ppr;
+		size++;
+	}
+
+	private void addTie(long id, double ppr) {
+		if (tie_size == tie_ids.length) {
+			tie_ids = Arrays.copyOf(tie_ids, tie_size * 2);
+			tie_pprs = Arrays.copyOf(tie_pprs, tie_size * 2);
+		}
+		tie_ids[tie_size] = id;
+		tie_pprs[tie_size] = ppr;
+		tie_size++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (ids.length < capacity) {
+			int new_capacity = Math.max(capacity, ids.length * 2);
+			ids = Arrays.copyOf(ids, new_capacity);
+			pprs = Arrays.copyOf(pprs, new_capacity);
+		}
+	}
+
+	private void ensureScratch(int capacity) {
+		if (scratch.length < capacity)
+			scratch = new double[Math.max(capacity, scratch.length * 2)];
+	}
+
+	private boolean isWorse(int i, int j) { // whether pair i ranks after pair j
+		return pprs[i] < pprs[j] || (pprs[i] == pprs[j] && ids[i] > ids[j]);
+	}
+
+	private void swap(int i, int j) {
+		long id_t = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id_t;
+		double ppr_t = pprs[i];
+		pprs[i] = pprs[j];
+		pprs[j] = ppr_t;
+	}
+
+	private void siftUp(int i) { // the worst pair is kept at the root
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!isWorse(i, parent))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int heap_end) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= heap_end)
+				break;
+			if (child + 1 < heap_end && isWorse(child + 1, child))
+				child++;
+			if (!isWorse(child, i))
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void sort() { // heapsort [0, size) so that the best pair comes first
+		for (int i = size / 2 - 1; i >= 0; i--)
+			siftDown(i, size);
+		for (int end = size - 1; end > 0; end--) { // move the worst remaining pair to the back
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	public static double kthLargest(double arr[], int size, int k) {
+		/* Return the kth largest element in arr[0, size) by an iterative
+		 * quickselect, which reorders arr; k must be in [1, size].
+		 */
+
+		int left = 0, right = size - 1;
+		while (true) {
+			int pos = random_partition(arr, left, right), offset = pos - left;
+			if (offset == k - 1)
+				return arr[pos];
+			else if (offset > k - 1)
+				right = pos - 1;
+			else {
+				k -= offset + 1;
+				left = pos + 1;
+			}
+		}
+	}
+
+	private static int random_partition(double arr[], int left, int right) {
+		/* Return the index of the randomly selected pivot after partition.
+		 * After partition, the elements before pivot would be greater,
+		 * while the element after it would be smaller.
+		 */
+
+		int n = right - left + 1, i = left;
+		int pivot_index = ThreadLocalRandom.current().nextInt(n);
+		swap(arr, left + pivot_index, right); // randomly select a pivot and exchange it with the rightmost element
+		double pivot = arr[right];
+		for (int j = left; j <= right - 1; j++) {
+			if (arr[j] > pivot) {
+				swap(arr, i, j);
+				i++;
+			}
+		}
+		swap(arr, i, right);
+		return i;
+	}
+
+	private static void swap(double arr[], int i1, int i2) {
+		double tmp = arr[i1];
+		arr[i1] = arr[i2];
+		arr[i2] = tmp;
+	}
+}
@@ -12,4 +12,8 @@ public interface Topk_Util_Interface {
 	
 	public Vector<Long> getTopKNodeIds(int k); 
 	// return the top-k node ids sorted by ppr
+	
+	public Topk_Util_Interface newWorker();
+	// return a new object with the same configuration but its own query state, so that
+	// it can run queries concurrently with this one (see Batch_Query)
 }
@@ -0,0 +1,168 @@
+package joezie.fora_neo4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+public class Trace_Replay { // replays a query log against one graph, at the recorded rate or a multiple of it
+	/* Each line of a trace is "timestamp, node, algo, k, param", comma or tab
+	 * separated: the time the query was received in ms, the node_property
+	 * value of its source node, its AlgoType, k (-1 or empty for a
+	 * whole-graph query) and the parameter of the algo (epsilon, rmax,
+	 * iterations, or the threshold of BASE). Empty lines and lines starting
+	 * with '#' are skipped. The queries with the same algo, k and param form
+	 * a request class. Queries are due at their recorded time relative to the
+	 * first one, divided by the speed, and served in order by the clients; as
+	 * in an open-loop Load_Test, a query's latency is counted from its due
+	 * time. With speed 0 each query is due when a client picks it up.
+	 */
+
+	public static class Request {
+		public final double time_ms; // recorded time
+		public final String node_value; // node_property value of the source node
+		public final String algo; // name of the AlgoType
+		public final int k; // -1 for a whole-graph query
+		public final String param;
+
+		public Request(double time_ms, String node_value, String algo, int k, String param) {
+			this.time_ms = time_ms;
+			this.node_value = node_value;
+			this.algo = algo;
+			this.k = k;
+			this.param = param;
+		}
+
+		public String getClassName() {
+			return algo + ((k < 0) ? " whole-graph" : " top-" + k) + " param " + param;
+		}
+	}
+
+	public static class Class_Report { // results of a request class
+		public Log_Histogram latency_ns = new Log_Histogram(); // of the queries that didn't fail
+		public LongAdder errors = new LongAdder();
+		public long recorded_span_ms; // between the first & last queries of the class in the trace
+	}
+
+	public static class Report {
+		public int clients;
+		public double speed;
+		public long duration_ns; // from the start to the last query completed
+		public Log_Histogram latency_ns; // of all queries that didn't fail
+		public LinkedHashMap<String, Class_Report> classes; // (class name, its results) in order of first query
+	}
+
+	private List<Request> requests; // sorted by time
+	private long nodeIds_start[]; // source node of each request
+	private LongConsumer queries[]; // runs the query of each request on the calling thread, given the source node
+
+	public static List<Request> read(File file) throws IOException { // the requests of a trace sorted by time
+		List<Request> requests = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int line_num = 0;
+			while ((line = reader.readLine()) != null) {
+				line_num++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String fields[] = line.split((line.indexOf('\t') >= 0) ? "\t" : ",", -1);
+				if (fields.length != 5)
+					throw new IOException(file.getPath() + ":" + line_num + ": expected 5 fields but found " + fields.length);
+				try {
+					String k_t = fields[3].trim();
+					requests.add(new Request(Double.parseDouble(fields[0].trim()), fields[1].trim(),
+							fields[2].trim().toUpperCase(), k_t.isEmpty() ? -1 : Integer.parseInt(k_t), fields[4].trim()));
+				}
+				catch (NumberFormatException e) {
+					throw new IOException(file.getPath() + ":" + line_num + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		requests.sort((r1, r2) -> Double.compare(r1.time_ms, r2.time_ms)); // stable, so ties keep their order
+		return requests;
+	}
+
+	public Trace_Replay(List<Request> requests, long nodeIds_start[], LongConsumer queries[]) {
+		this.requests = requests;
+		this.nodeIds_start = nodeIds_start;
+		this.queries = queries;
+	}
+
+	public Report run(int clients, double speed) throws InterruptedException {
+		// replay the requests from clients threads; speed 0 to send them as fast as the clients serve them
+
+		Report report = new Report();
+		report.clients = clients;
+		report.speed = speed;
+		report.latency_ns = new Log_Histogram();
+		report.classes = new LinkedHashMap<>();
+		Class_Report class_reports[] = new Class_Report[requests.size()];
+		Map<String, Double> class_start_ms = new LinkedHashMap<>();
+		for (int i = 0; i < requests.size(); i++) {
+			String name = requests.get(i).getClassName();
+			class_reports[i] = report.classes.computeIfAbsent(name, name_t -> new Class_Report());
+			class_start_ms.putIfAbsent(name, requests.get(i).time_ms);
+			class_reports[i].recorded_span_ms = (long)(requests.get(i).time_ms - class_start_ms.get(name));
+		}
+		if (requests.isEmpty())
+			return report;
+
+		AtomicInteger next_request = new AtomicInteger();
+		AtomicReference<RuntimeException> first_error = new AtomicReference<>();
+		long last_done[] = new long[clients]; // when each client completed its last query
+		double time_start_ms = requests.get(0).time_ms;
+		long start = System.nanoTime();
+		Thread threads[] = new Thread[clients];
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			threads[c] = new Thread(() -> {
+				int i;
+				while ((i = next_request.getAndIncrement()) < requests.size()) {
+					long due;
+					if (speed > 0) { // wait for the query to arrive
+						due = start + (long)((requests.get(i).time_ms - time_start_ms) * 1.0e6 / speed);
+						Load_Test.sleepUntil(due);
+					}
+					else
+						due = System.nanoTime();
+
+					try {
+						queries[i].accept(nodeIds_start[i]);
+					}
+					catch (RuntimeException e) { // counted as an error only, as in Load_Test
+						class_reports[i].errors.increment();
+						first_error.compareAndSet(null, e);
+						last_done[client] = System.nanoTime();
+						continue;
+					}
+					long done = System.nanoTime();
+					class_reports[i].latency_ns.record(done - due);
+					report.latency_ns.record(done - due);
+					last_done[client] = done;
+				}
+			}, "Trace_Replay client " + c);
+			threads[c].setDaemon(true);
+			threads[c].start();
+		}
+		for (Thread thread : threads)
+			thread.join(); // also makes last_done visible
+
+		if (first_error.get() != null) {
+			System.out.println("Queries of the trace replay failed, the first with:");
+			first_error.get().printStackTrace();
+		}
+		for (long done : last_done)
+			report.duration_ns = Math.max(report.duration_ns, done - start);
+		return report;
+	}
+}
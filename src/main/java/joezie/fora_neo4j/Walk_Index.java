@@ -0,0 +1,217 @@
+package joezie.fora_neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+public class Walk_Index { // precomputed destinations of random walks without zero hop (FORA+), memory-mapped
+	/* Node v owns walkCount(v) = ceil((1 - alpha) * rmax * max(|N_out(v)|, 1) * omega) walks,
+	 * which is the most FORA can ask for after a forward push with rmax, since then
+	 * r(s,v) < rmax * |N_out(v)|. A query may take the first walks of each node in
+	 * any order it likes; walks beyond walkCount(v) have to be simulated online.
+	 *
+	 * File layout (little-endian): header (HEADER_SIZE bytes): magic, version,
+	 * node_amount, edge_amount, walk_amount, alpha, rmax, omega, epsilon; then
+	 * offsets long[n + 1] and destinations int[walk_amount]. The destinations
+	 * are mapped in segments of SEGMENT_SIZE walks since a mapping can't exceed 2GB.
+	 * The walk counts depend on the settings in the header, so an index is
+	 * only used for the settings it's sized for (isSizedFor).
+	 */
+
+	private static final long MAGIC = 0x31584449574B4C57L; // bytes "WLKWIDX1" read as a little-endian long
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 64;
+	private static final int SEGMENT_SHIFT = 28; // 2^28 walks (1GB) per segment
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int NODES_PER_TASK = 4096; // granularity of the parallel build
+
+	private int node_amount;
+	private long walk_amount; // the total number of walks in the index
+	private double alpha;
+	private double rmax; // the forward push threshold the index is sized for
+	private double omega; // the random walk amount per unit of residue the index is sized for
+	private double epsilon; // the epsilon rmax & omega are computed from
+	private LongBuffer offsets; // walks of mapped node v are [offsets[v], offsets[v + 1])
+	private IntBuffer segments[]; // destination of walk i is segments[i >> SEGMENT_SHIFT][i & (SEGMENT_SIZE - 1)]
+
+	private Walk_Index(int node_amount, long walk_amount, double alpha, double rmax, double omega, double epsilon,
+			LongBuffer offsets, IntBuffer segments[]) {
+		this.node_amount = node_amount;
+		this.walk_amount = walk_amount;
+		this.alpha = alpha;
+		this.rmax = rmax;
+		this.omega = omega;
+		this.epsilon = epsilon;
+		this.offsets = offsets;
+		this.segments = segments;
+	}
+
+	public static double computeRmax(double alpha, double epsilon, double pfail, double delta, int rel_amount) {
+		// the initial rmax of Fora_Whole_Graph
+		return epsilon * Math.sqrt(delta / 3.0 / (double)rel_amount / Math.log(2.0 / pfail)) / (1.0 - alpha);
+	}
+
+	public static double computeOmega(double epsilon, double pfail, double delta) { // omega of Fora_Whole_Graph
+		return (epsilon + 2.0) * Math.log(2.0 / pfail) / epsilon / epsilon / delta;
+	}
+
+	private static long computeWalkCount(CSR_Graph csr, int nodeIdM, double alpha, double rmax, double omega) {
+		return (long)Math.ceil((1.0 - alpha) * rmax * Math.max(csr.outDegree(nodeIdM), 1) * omega);
+	}
+
+	public int walkCount(int nodeIdM) { // the number of precomputed walks from the node
+		return (int)(offsets.get(nodeIdM + 1) - offsets.get(nodeIdM));
+	}
+
+	public int destination(int nodeIdM, int j) { // final node of the jth precomputed walk from the node
+		long idx = offsets.get(nodeIdM) + j;
+		return segments[(int)(idx >>> SEGMENT_SHIFT)].get((int)(idx & (SEGMENT_SIZE - 1)));
+	}
+
+	public long getWalkAmount() {
+		return walk_amount;
+	}
+
+	public double getRmax() {
+		return rmax;
+	}
+
+	public double getOmega() {
+		return omega;
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public boolean isSizedFor(double alpha, double rmax, double omega) {
+		// whether the index holds the walk counts of a query with alpha & the initial rmax & omega, up to rounding
+
+		return alpha == this.alpha && Math.abs(rmax - this.rmax) <= 1e-9 * this.rmax
+				&& Math.abs(omega - this.omega) <= 1e-9 * this.omega;
+	}
+
+	public static Walk_Index build(CSR_Graph csr, Monte_Carlo mc, double alpha, double epsilon, double pfail,
+			double delta, int rel_amount, ForkJoinPool pool, File file) throws IOException {
+		/* Simulate the walks of every node in parallel in pool (the common pool
+		 * if it's null), write them into file and return the mapped index.
+		 */
+
+		int node_amount = csr.nodeCount();
+		double rmax = computeRmax(alpha, epsilon, pfail, delta, rel_amount);
+		double omega = computeOmega(epsilon, pfail, delta);
+		if (pool == null)
+			pool = ForkJoinPool.commonPool();
+
+		long offsets_local[] = new long[node_amount + 1];
+		for (int nodeIdM = 0; nodeIdM < node_amount; nodeIdM++)
+			offsets_local[nodeIdM + 1] = offsets_local[nodeIdM] + computeWalkCount(csr, nodeIdM, alpha, rmax, omega);
+		long walk_amount = offsets_local[node_amount];
+		long offsets_size = (long)(node_amount + 1) * 8;
+		if (offsets_size > Integer.MAX_VALUE)
+			throw new IOException("Too many nodes for a walk index");
+		long destinations_pos = HEADER_SIZE + offsets_size;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			raf.setLength(destinations_pos + walk_amount * 4);
+			FileChannel channel = raf.getChannel();
+
+			ByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.putLong(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(node_amount);
+			header.putInt(csr.relCount());
+			header.putLong(walk_amount);
+			header.putDouble(alpha);
+			header.putDouble(rmax);
+			header.putDouble(omega);
+			header.putDouble(epsilon);
+
+			LongBuffer offsets = map(channel, FileChannel.MapMode.READ_WRITE, HEADER_SIZE, offsets_size).asLongBuffer();
+			offsets.put(offsets_local);
+			IntBuffer segments[] = mapSegments(channel, FileChannel.MapMode.READ_WRITE, destinations_pos, walk_amount);
+			Walk_Index index = new Walk_Index(node_amount, walk_amount, alpha, rmax, omega, epsilon, offsets, segments);
+
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int begin = 0; begin < node_amount; begin += NODES_PER_TASK) {
+				final int begin_t = begin, end_t = Math.min(begin + NODES_PER_TASK, node_amount);
+				tasks.add(pool.submit(() -> {
+					for (int nodeIdM = begin_t; nodeIdM < end_t; nodeIdM++) {
+						long idx = offsets_local[nodeIdM];
+						for (; idx < offsets_local[nodeIdM + 1]; idx++) // disjoint ranges, so no synchronization
+							segments[(int)(idx >>> SEGMENT_SHIFT)].put((int)(idx & (SEGMENT_SIZE - 1)),
+									mc.random_walk_no_zero_hop_mapped(nodeIdM));
+					}
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks)
+				task.join();
+
+			channel.force(true);
+			return index;
+		}
+	}
+
+	public static Walk_Index load(File file, CSR_Graph csr) throws IOException {
+		// map an index written by build; it must be built from the same graph as csr, and its settings are
+		// checked by the caller with isSizedFor
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException("Walk index " + file.getPath() + " is truncated");
+			ByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getLong() != MAGIC)
+				throw new IOException(file.getPath() + " is not a walk index");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported walk index version " + version + " (expected " + VERSION + ")");
+			int node_amount = header.getInt();
+			int edge_amount = header.getInt();
+			long walk_amount = header.getLong();
+			double alpha = header.getDouble();
+			double rmax = header.getDouble();
+			double omega = header.getDouble();
+			double epsilon = header.getDouble();
+			if (node_amount != csr.nodeCount() || edge_amount != csr.relCount())
+				throw new IOException("Walk index " + file.getPath() + " is built from another graph");
+
+			long offsets_size = (long)(node_amount + 1) * 8;
+			long destinations_pos = HEADER_SIZE + offsets_size;
+			if (channel.size() != destinations_pos + walk_amount * 4)
+				throw new IOException("Walk index " + file.getPath() + " is corrupted or truncated");
+			LongBuffer offsets = map(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE, offsets_size).asLongBuffer();
+			IntBuffer segments[] = mapSegments(channel, FileChannel.MapMode.READ_ONLY, destinations_pos, walk_amount);
+			return new Walk_Index(node_amount, walk_amount, alpha, rmax, omega, epsilon, offsets, segments);
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size)
+			throws IOException {
+		return channel.map(mode, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static IntBuffer[] mapSegments(FileChannel channel, FileChannel.MapMode mode, long position,
+			long walk_amount) throws IOException {
+		int segment_amount = (int)((walk_amount + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+		IntBuffer segments[] = new IntBuffer[segment_amount];
+		for (int i = 0; i < segment_amount; i++) {
+			long walks = Math.min(SEGMENT_SIZE, walk_amount - ((long)i << SEGMENT_SHIFT));
+			segments[i] = map(channel, mode, position + ((long)i << SEGMENT_SHIFT) * 4, walks * 4).asIntBuffer();
+		}
+		return segments;
+	}
+}
@@ -9,4 +9,8 @@ public interface Whole_Graph_Util_Interface {
 
 	public void computeWholeGraphPPR(Long nodeId_start, Object param); 
 	// compute estimated ppr; param is the parameter used to adjust accuracy of PPR algo;
+	
+	public Whole_Graph_Util_Interface newWorker();
+	// return a new object with the same configuration but its own query state, so that
+	// it can run queries concurrently with this one (see Batch_Query)
 }
@@ -0,0 +1,223 @@
+package joezie.fora_neo4j;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import junit.framework.TestCase;
+
+public class Dynamic_Forward_Push_Test extends TestCase { // repairs of Dynamic_Forward_Push against the push invariant
+	/* After every update, each tracked source s must satisfy
+	 *   p(v) + alpha * r(v) = alpha * [v = s] + (1 - alpha) * sum_{u -> v} p(u) / |N_out(u)|
+	 * for every node v, with s as the only out-neighbor of a dangling node, and
+	 * its pprs must agree with a fresh push on the graph as it is now. Node v
+	 * has id v * 10 + 3 in graphDb, so mapped and original ids never coincide.
+	 */
+
+	private static final double ALPHA = 0.15;
+	private static final double RMAX = 1e-12; // small enough for both pushes to converge to the exact pprs
+
+	private List<int[]> edges; // (from, to) of the current graph, parallel edges included
+	private int node_amount; // nodes are [0, node_amount), some of them added by updates
+
+	private static long toOriginal(int v) {
+		return v * 10L + 3;
+	}
+
+	private CSR_Graph snapshot() { // the current graph as a CSR snapshot
+		long original_ids[] = new long[node_amount];
+		for (int v = 0; v < node_amount; v++)
+			original_ids[v] = toOriginal(v);
+		int sources[] = new int[edges.size()], targets[] = new int[edges.size()];
+		for (int i = 0; i < edges.size(); i++) {
+			sources[i] = edges.get(i)[0];
+			targets[i] = edges.get(i)[1];
+		}
+		return CSR_Graph.fromEdges(original_ids, sources, targets);
+	}
+
+	private Dynamic_Forward_Push randomGraph(Random random, int nodes, int edge_amount, int max_sources) {
+		// a random graph whose last node has no out-edge, with node 0 dangling too
+
+		edges = new ArrayList<>();
+		node_amount = nodes;
+		for (int i = 0; i < edge_amount; i++) {
+			int from = 1 + random.nextInt(nodes - 2);
+			edges.add(new int[] {from, random.nextInt(nodes)});
+		}
+		return new Dynamic_Forward_Push(snapshot(), ALPHA, RMAX, max_sources);
+	}
+
+	private void insert(Dynamic_Forward_Push dynamic, int from, int to) {
+		edges.add(new int[] {from, to});
+		node_amount = Math.max(node_amount, Math.max(from, to) + 1);
+		dynamic.insertEdge(toOriginal(from), toOriginal(to));
+	}
+
+	private void delete(Dynamic_Forward_Push dynamic, int edge) {
+		int removed[] = edges.remove(edge);
+		dynamic.deleteEdge(toOriginal(removed[0]), toOriginal(removed[1]));
+	}
+
+	private int outDegree(int v) {
+		int degree = 0;
+		for (int edge[] : edges)
+			if (edge[0] == v)
+				degree++;
+		return degree;
+	}
+
+	private void checkInvariant(String msg, Dynamic_Forward_Push dynamic, int source) {
+		HashMap<Long, Double> reserve = new HashMap<>(), residue = new HashMap<>();
+		dynamic.readState(toOriginal(source), reserve, residue);
+
+		double expected[] = new double[node_amount]; // the right side of the invariant
+		expected[source] = ALPHA;
+		for (int v = 0; v < node_amount; v++) {
+			double p = reserve.getOrDefault(toOriginal(v), 0.0);
+			if (p != 0.0 && outDegree(v) == 0) // the walks go back to the source
+				expected[source] += (1.0 - ALPHA) * p;
+		}
+		for (int edge[] : edges)
+			expected[edge[1]] += (1.0 - ALPHA) * reserve.getOrDefault(toOriginal(edge[0]), 0.0) / outDegree(edge[0]);
+
+		for (int v = 0; v < node_amount; v++) {
+			double actual = reserve.getOrDefault(toOriginal(v), 0.0) + ALPHA * residue.getOrDefault(toOriginal(v), 0.0);
+			assertEquals(msg + " source " + source + " node " + v, expected[v], actual, 1e-12);
+		}
+	}
+
+	private void checkFreshPush(String msg, Dynamic_Forward_Push dynamic, int source) {
+		CSR_Graph csr = snapshot();
+		Push_Engine engine = new Push_Engine(csr, node_amount, ALPHA);
+		engine.push_whole_graph(csr.requireMappedNodeId(toOriginal(source)), RMAX);
+		HashMap<Long, Double> pprs = new HashMap<>();
+		dynamic.readPPR(toOriginal(source), pprs);
+		for (int v = 0; v < node_amount; v++) {
+			double fresh = engine.getReserve(csr.requireMappedNodeId(toOriginal(v)));
+			assertEquals(msg + " source " + source + " node " + v, fresh, pprs.getOrDefault(toOriginal(v), 0.0), 1e-9);
+		}
+	}
+
+	private void checkSources(String msg, Dynamic_Forward_Push dynamic, int sources[]) {
+		for (int source : sources) {
+			checkInvariant(msg, dynamic, source);
+			checkFreshPush(msg, dynamic, source);
+		}
+	}
+
+	public void testRandomUpdatesKeepTheInvariant() {
+		Random random = new Random(1);
+		Dynamic_Forward_Push dynamic = randomGraph(random, 30, 70, Dynamic_Forward_Push.DEFAULT_MAX_SOURCES);
+		int sources[] = {1, 7, 29, 0}; // 29 & 0 are dangling at first
+		checkSources("initial", dynamic, sources);
+
+		for (int update = 0; update < 120; update++) {
+			if (random.nextInt(3) == 0 && !edges.isEmpty())
+				delete(dynamic, random.nextInt(edges.size()));
+			else // sometimes from or to a new node
+				insert(dynamic, random.nextInt(node_amount + 1), random.nextInt(node_amount + 1));
+			checkSources("update " + update, dynamic, sources);
+		}
+		assertEquals(sources.length, dynamic.getSourceAmount());
+	}
+
+	public void testEdgesOfDanglingNodes() {
+		Random random = new Random(2);
+		Dynamic_Forward_Push dynamic = randomGraph(random, 12, 25, Dynamic_Forward_Push.DEFAULT_MAX_SOURCES);
+		int sources[] = {3, 11};
+		checkSources("initial", dynamic, sources);
+
+		insert(dynamic, 11, 4); // out of a dangling node, which is also a source
+		checkSources("out of dangling source", dynamic, sources);
+		insert(dynamic, 0, 3); // out of a dangling node
+		checkSources("out of dangling", dynamic, sources);
+		insert(dynamic, 5, 12); // into a new, dangling node
+		checkSources("into new dangling", dynamic, sources);
+		insert(dynamic, 2, 12);
+		checkSources("into dangling", dynamic, sources);
+
+		for (int v : new int[] {3, 4, 2}) { // delete every out-edge, so the node ends up dangling
+			for (int i = edges.size() - 1; i >= 0; i--) {
+				if (edges.get(i)[0] == v) {
+					delete(dynamic, i);
+					checkSources("out of " + v + " with " + outDegree(v) + " left", dynamic, sources);
+				}
+			}
+		}
+		assertEquals(0, outDegree(3));
+		insert(dynamic, 3, 3); // a self-loop out of a dangling source
+		checkSources("self-loop", dynamic, sources);
+	}
+
+	public void testLeastRecentlyReadSourceIsDropped() {
+		Random random = new Random(3);
+		Dynamic_Forward_Push dynamic = randomGraph(random, 20, 50, 2);
+		Sparse_Vector pprs = new Sparse_Vector(16);
+		dynamic.readPPR(toOriginal(1), pprs);
+		dynamic.readPPR(toOriginal(2), pprs);
+		dynamic.readPPR(toOriginal(1), pprs); // 2 is now the least recently read
+		dynamic.readPPR(toOriginal(3), pprs);
+		assertEquals(2, dynamic.getSourceAmount());
+
+		insert(dynamic, 1, 2);
+		insert(dynamic, 2, 5);
+		checkSources("after eviction", dynamic, new int[] {1, 3, 2}); // 2 is pushed again from scratch
+		assertEquals(2, dynamic.getSourceAmount());
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testCommittedUpdatesAreAppliedByTheUpdater() throws Exception {
+		Random random = new Random(4);
+		Dynamic_Forward_Push dynamic = randomGraph(random, 15, 30, Dynamic_Forward_Push.DEFAULT_MAX_SOURCES);
+		List<TransactionEventHandler<Object>> handlers = new ArrayList<>();
+		GraphDatabaseService graphDb = (GraphDatabaseService)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {GraphDatabaseService.class}, (proxy, method, args) -> {
+					if (method.getName().equals("registerTransactionEventHandler"))
+						handlers.add((TransactionEventHandler<Object>)args[0]);
+					else if (method.getName().equals("unregisterTransactionEventHandler"))
+						handlers.remove(args[0]);
+					return null;
+				});
+		dynamic.register(graphDb);
+		checkSources("registered", dynamic, new int[] {4});
+
+		Relationship rel = (Relationship)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {Relationship.class}, (proxy, method, args) ->
+					method.getName().equals("getStartNodeId") ? toOriginal(14)
+					: method.getName().equals("getEndNodeId") ? (Object)toOriginal(4) : null);
+		TransactionData data = (TransactionData)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {TransactionData.class}, (proxy, method, args) ->
+					method.getName().equals("createdRelationships") ? Collections.singletonList(rel)
+					: method.getName().startsWith("created") || method.getName().startsWith("deleted")
+					? Collections.emptyList() : null);
+		long version = dynamic.getGraphVersion();
+		for (int i = 0; i < 3; i++) { // commit the same created relationship 3 times
+			Object state = handlers.get(0).beforeCommit(data);
+			handlers.get(0).afterCommit(data, state);
+			edges.add(new int[] {14, 4});
+		}
+		dynamic.awaitUpdates();
+		assertEquals(version + 3, dynamic.getGraphVersion());
+		assertEquals(3, dynamic.getUpdateAmount());
+		checkSources("committed", dynamic, new int[] {4});
+
+		dynamic.unregister();
+		assertTrue(handlers.isEmpty());
+		dynamic.register(graphDb); // a new updater after the old one has stopped
+		Object state = handlers.get(0).beforeCommit(data);
+		handlers.get(0).afterCommit(data, state);
+		edges.add(new int[] {14, 4});
+		dynamic.awaitUpdates();
+		checkSources("registered again", dynamic, new int[] {4});
+		dynamic.unregister();
+	}
+}
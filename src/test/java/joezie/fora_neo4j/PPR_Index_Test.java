@@ -0,0 +1,178 @@
+package joezie.fora_neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class PPR_Index_Test extends TestCase { // round trips of PPR_Index_Writer & PPR_Index, exact and quantized
+	private static final int NODE_AMOUNT = 5000;
+
+	private File dir; // a fresh directory for each test
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("ppr_index_test", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() {
+		File files[] = dir.listFiles();
+		for (File file : (files == null) ? new File[0] : files)
+			file.delete();
+		dir.delete();
+	}
+
+	private static int[][] randomTargets(Random random) {
+		// distinct targets of each source, with gaps from 1 to the whole id range so varints take 1 to 3 bytes
+
+		int targets[][] = new int[NODE_AMOUNT][];
+		for (int source = 0; source < NODE_AMOUNT; source++) {
+			int size = (source % 7 == 0) ? 0 : 1 + random.nextInt((source % 5 == 0) ? 200 : 10);
+			TreeSet<Integer> set = new TreeSet<>();
+			while (set.size() < size)
+				set.add((random.nextInt(4) == 0) ? random.nextInt(NODE_AMOUNT) : random.nextInt(64));
+			targets[source] = new int[size];
+			int i = 0;
+			for (int target : set)
+				targets[source][i++] = target;
+			for (i = size - 1; i > 0; i--) { // added in any order
+				int j = random.nextInt(i + 1), target_t = targets[source][i];
+				targets[source][i] = targets[source][j];
+				targets[source][j] = target_t;
+			}
+		}
+		return targets;
+	}
+
+	private static double[][] randomPprs(int targets[][], Random random) { // from tiny to 1, with negatives & zeros
+		double pprs[][] = new double[NODE_AMOUNT][];
+		for (int source = 0; source < NODE_AMOUNT; source++) {
+			pprs[source] = new double[targets[source].length];
+			for (int i = 0; i < pprs[source].length; i++) {
+				int kind = random.nextInt(20);
+				pprs[source][i] = (kind == 0) ? -1e-9 : (kind == 1) ? 0.0
+						: random.nextDouble() * Math.pow(10.0, -random.nextInt(8));
+			}
+		}
+		return pprs;
+	}
+
+	private PPR_Index writeAndLoad(int targets[][], double pprs[][], int score_bits) throws IOException {
+		File file = new File(dir, "bits_" + score_bits + ".idx");
+		try (PPR_Index_Writer writer = new PPR_Index_Writer(file, NODE_AMOUNT, score_bits)) {
+			for (int source = NODE_AMOUNT - 1; source >= 0; source--) { // sources may be finished in any order
+				for (int i = 0; i < targets[source].length; i++)
+					writer.add(targets[source][i], pprs[source][i]);
+				writer.finishSource(source);
+			}
+			writer.finish();
+		}
+		return PPR_Index.load(file, NODE_AMOUNT);
+	}
+
+	private void checkRoundTrip(int score_bits) throws IOException {
+		Random random = new Random(score_bits);
+		int targets[][] = randomTargets(random);
+		double pprs[][] = randomPprs(targets, random);
+		PPR_Index index = writeAndLoad(targets, pprs, score_bits);
+		assertEquals(score_bits, index.getScoreBits());
+
+		PPR_Records records = new PPR_Records();
+		double max_error = 0.0;
+		for (int source = 0; source < NODE_AMOUNT; source++) {
+			index.read(source, records);
+			assertEquals("records of " + source, targets[source].length, records.size());
+			assertEquals(targets[source].length, index.recordCount(source));
+
+			double scale = 0.0;
+			for (double ppr : pprs[source])
+				scale = Math.max(scale, ppr);
+			// the documented bound, with room for the rounding of the doubles themselves
+			double bound = (score_bits == 0) ? 0.0 : scale / (2.0 * ((1L << score_bits) - 1));
+			if (targets[source].length > 0 && score_bits > 0)
+				max_error = Math.max(max_error, bound);
+
+			HashMap<Integer, Double> expected = new HashMap<>();
+			for (int i = 0; i < targets[source].length; i++)
+				expected.put(targets[source][i], pprs[source][i]);
+			int last_target = -1;
+			for (int i = 0; i < records.size(); i++) {
+				Double ppr = expected.remove(records.nodeAt(i));
+				assertNotNull("unexpected target " + records.nodeAt(i) + " of " + source, ppr);
+				if (score_bits == 0)
+					assertEquals("exact ppr of " + source, ppr, records.pprAt(i), 0.0);
+				else {
+					assertTrue("targets sorted", records.nodeAt(i) > last_target);
+					double stored = Math.max(ppr, 0.0); // negative pprs are stored as 0
+					assertEquals("bits " + score_bits + " ppr of " + source, stored, records.pprAt(i),
+							bound * (1.0 + 1e-9) + Math.ulp(scale) * 4);
+					assertTrue(records.pprAt(i) >= 0.0);
+				}
+				last_target = records.nodeAt(i);
+			}
+			assertTrue(expected.isEmpty());
+		}
+		assertEquals("max_error", max_error, index.getMaxError(), max_error * 1e-12);
+	}
+
+	public void testExactRoundTrip() throws IOException {
+		checkRoundTrip(0);
+	}
+
+	public void testQuantizedRoundTripWithinBound() throws IOException {
+		for (int score_bits : new int[] {1, 2, 3, 7, 8, 9, 12, 16, 20, 24, 31, PPR_Index.MAX_SCORE_BITS})
+			checkRoundTrip(score_bits);
+	}
+
+	public void testScaleIsStoredExactly() throws IOException {
+		// the largest ppr of a source is the scale, so it's decoded exactly whatever the bits
+
+		int targets[][] = new int[NODE_AMOUNT][0];
+		double pprs[][] = new double[NODE_AMOUNT][0];
+		targets[3] = new int[] {2, 900, 4000};
+		pprs[3] = new double[] {0.1, 0.3, 0.2};
+		for (int score_bits : new int[] {1, 8, 32}) {
+			PPR_Index index = writeAndLoad(targets, pprs, score_bits);
+			PPR_Records records = new PPR_Records();
+			index.read(3, records);
+			assertEquals(900, records.nodeAt(1));
+			assertEquals(0.3, records.pprAt(1), 0.0);
+			index.read(4, records);
+			assertEquals(0, records.size());
+		}
+	}
+
+	public void testStartingOverClearsTheManifest() throws IOException {
+		// checkpoints of an index written aside that is gone must not be replayed by a later resume
+
+		File file = new File(dir, PPR_Index.FILE_NAME);
+		File manifestFile = new File(dir, Prep_Manifest.FILE_NAME);
+		try (Prep_Manifest manifest = Prep_Manifest.open(manifestFile, "test");
+				PPR_Index_Writer writer = new PPR_Index_Writer(file, NODE_AMOUNT, 8, manifest)) {
+			writer.add(1, 0.5);
+			writer.finishSource(0);
+			writer.checkpoint();
+		}
+		try (Prep_Manifest manifest = Prep_Manifest.open(manifestFile, "test");
+				PPR_Index_Writer writer = new PPR_Index_Writer(file, NODE_AMOUNT, 8, manifest)) {
+			assertEquals(1, manifest.getBlocks().size());
+			assertTrue("resumed", writer.isFinished(0));
+		}
+
+		assertTrue(new File(file.getPath() + ".tmp").delete()); // the index written aside is lost
+		try (Prep_Manifest manifest = Prep_Manifest.open(manifestFile, "test");
+				PPR_Index_Writer writer = new PPR_Index_Writer(file, NODE_AMOUNT, 8, manifest)) {
+			assertFalse("started over", writer.isFinished(0));
+			assertEquals(0, writer.getFinishedAmount());
+		}
+		try (Prep_Manifest manifest = Prep_Manifest.open(manifestFile, "test")) {
+			assertEquals("checkpoints of the lost index", 0, manifest.getBlocks().size());
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package joezie.fora_neo4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntToLongFunction;
+
+import junit.framework.TestCase;
+
+public class Topk_Selector_Test extends TestCase { // every selection path against a full sort of the pairs
+	/* The pprs are drawn from a few values so that most inputs tie around the
+	 * kth ppr, and toOriginal reverses the order of the ids so that ties have
+	 * to be ordered by the reported ids rather than the mapped ones.
+	 */
+
+	private static final IntToLongFunction TO_ORIGINAL = nodeIdM -> 1000000L - nodeIdM;
+
+	private static long[][] expected(int nodes[], double pprs[], int size, int k) {
+		// (reported ids, pprs) of the pairs a selection of k must return, by a full sort
+
+		Integer order[] = new Integer[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		Arrays.sort(order, (i1, i2) -> (pprs[i1] != pprs[i2]) ? Double.compare(pprs[i2], pprs[i1])
+				: Long.compare(TO_ORIGINAL.applyAsLong(nodes[i1]), TO_ORIGINAL.applyAsLong(nodes[i2])));
+		int amount = 0;
+		if (k >= size)
+			amount = size;
+		else if (k > 0) // all the pairs tying with the kth one
+			for (amount = k; amount < size && pprs[order[amount]] == pprs[order[k - 1]]; amount++);
+
+		long result[][] = new long[2][amount];
+		for (int i = 0; i < amount; i++) {
+			result[0][i] = TO_ORIGINAL.applyAsLong(nodes[order[i]]);
+			result[1][i] = Double.doubleToLongBits(pprs[order[i]]);
+		}
+		return result;
+	}
+
+	private static void assertSelected(String msg, long expected[][], Topk_Selector selector) {
+		assertEquals(msg + " size", expected[0].length, selector.size());
+		for (int i = 0; i < selector.size(); i++) {
+			assertEquals(msg + " id " + i, expected[0][i], selector.idAt(i));
+			assertEquals(msg + " ppr " + i, Double.longBitsToDouble(expected[1][i]), selector.pprAt(i), 0.0);
+		}
+	}
+
+	private static void checkAllPaths(int nodes[], double pprs[], int size, int k, Topk_Selector selector) {
+		// select k of the pairs through every entry point, comparing each against the full sort
+
+		String msg = "n " + size + " k " + k;
+		long expected[][] = expected(nodes, pprs, size, k);
+
+		selector.select(nodes, pprs, size, TO_ORIGINAL, k);
+		assertSelected(msg + " arrays", expected, selector);
+
+		Sparse_Vector vector = new Sparse_Vector(16);
+		for (int i = 0; i < size; i++)
+			vector.put(nodes[i], pprs[i]);
+		selector.select(vector, TO_ORIGINAL, k);
+		assertSelected(msg + " sparse vector", expected, selector);
+
+		ByteBuffer raw = ByteBuffer.allocate(Math.max(size, 1) * PPR_Index.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < size; i++)
+			raw.putInt(nodes[i]).putDouble(pprs[i]);
+		PPR_Records records = new PPR_Records();
+		records.setRaw(raw, size);
+		selector.select(records, TO_ORIGINAL, k);
+		assertSelected(msg + " records", expected, selector);
+
+		double dense[] = new double[size + 1]; // nodes are a permutation of [0, size), plus a node with no ppr
+		int touched[] = Arrays.copyOf(nodes, size + 1);
+		touched[size] = size;
+		for (int i = 0; i < size; i++)
+			dense[nodes[i]] = pprs[i];
+		selector.selectDense(touched, size + 1, dense, TO_ORIGINAL, k);
+		assertSelected(msg + " dense", expected, selector);
+
+		selector.begin(k); // offered one by one, reporting the ids as given
+		for (int i = 0; i < size; i++)
+			selector.offer(TO_ORIGINAL.applyAsLong(nodes[i]), pprs[i]);
+		selector.finish();
+		assertSelected(msg + " offered", expected, selector);
+	}
+
+	private static int[] shuffledNodes(int size, Random random) {
+		int nodes[] = new int[size];
+		for (int i = 0; i < size; i++)
+			nodes[i] = i;
+		for (int i = size - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1), node_t = nodes[i];
+			nodes[i] = nodes[j];
+			nodes[j] = node_t;
+		}
+		return nodes;
+	}
+
+	private static double[] tiedPprs(int size, int distinct, Random random) { // pprs in (0, 1] with distinct values
+		double pprs[] = new double[size];
+		for (int i = 0; i < size; i++)
+			pprs[i] = (1 + random.nextInt(distinct)) / (double)distinct;
+		return pprs;
+	}
+
+	public void testRandomInputsMatchFullSort() {
+		Random random = new Random(1);
+		Topk_Selector selector = new Topk_Selector(); // reused, as the algos do
+		for (int size : new int[] {0, 1, 2, 7, 63, 64, 65, 300, 1000}) {
+			for (int distinct : new int[] {1, 3, 50, 1000000}) {
+				int nodes[] = shuffledNodes(size, random);
+				double pprs[] = tiedPprs(size, distinct, random);
+				for (int k : new int[] {0, 1, 2, 5, size / 8 - 1, size / 8, size / 8 + 1, size / 2, size - 1, size,
+						size + 1, 2 * size + 3})
+					if (k >= 0)
+						checkAllPaths(nodes, pprs, size, k, selector);
+			}
+		}
+	}
+
+	public void testSwitchPointBetweenHeapAndQuickselect() {
+		// k * 8 < n goes through the heap, k * 8 >= n through quickselect; both sides must agree with the sort
+
+		Random random = new Random(2);
+		Topk_Selector selector = new Topk_Selector();
+		for (int k = 1; k <= 16; k++) {
+			for (int size : new int[] {k * 8 - 1, k * 8, k * 8 + 1}) {
+				int nodes[] = shuffledNodes(size, random);
+				checkAllPaths(nodes, tiedPprs(size, 4, random), size, k, selector);
+				checkAllPaths(nodes, tiedPprs(size, 1000000, random), size, k, selector);
+			}
+		}
+	}
+
+	public void testAllTiedSelectsEveryPair() {
+		Topk_Selector selector = new Topk_Selector();
+		int nodes[] = shuffledNodes(40, new Random(3));
+		double pprs[] = new double[40];
+		Arrays.fill(pprs, 0.25);
+		for (int k : new int[] {1, 4, 5, 39, 40}) {
+			selector.select(nodes, pprs, 40, TO_ORIGINAL, k);
+			assertEquals("k " + k, 40, selector.size());
+			for (int i = 1; i < 40; i++) // ties in ascending order of the reported ids
+				assertTrue(selector.idAt(i - 1) < selector.idAt(i));
+		}
+	}
+
+	public void testZeroKSelectsNothing() {
+		Topk_Selector selector = new Topk_Selector();
+		int nodes[] = {3, 1, 2};
+		double pprs[] = {0.5, 0.2, 0.3};
+		selector.select(nodes, pprs, 3, TO_ORIGINAL, 0);
+		assertEquals(0, selector.size());
+		selector.select(nodes, pprs, 0, TO_ORIGINAL, 0);
+		assertEquals(0, selector.size());
+	}
+
+	public void testKAtLeastSizeSelectsAllSorted() {
+		Topk_Selector selector = new Topk_Selector();
+		int nodes[] = {3, 1, 2, 0};
+		double pprs[] = {0.1, 0.4, 0.3, 0.2};
+		for (int k : new int[] {4, 5, 100}) {
+			selector.select(nodes, pprs, 4, nodeIdM -> nodeIdM, k);
+			assertEquals(4, selector.size());
+			long ids[] = new long[4];
+			for (int i = 0; i < 4; i++)
+				ids[i] = selector.idAt(i);
+			assertTrue(Arrays.equals(new long[] {1, 2, 0, 3}, ids));
+		}
+	}
+
+	public void testKthLargest() {
+		Random random = new Random(4);
+		for (int trial = 0; trial < 200; trial++) {
+			int size = 1 + random.nextInt(100);
+			double values[] = tiedPprs(size, 1 + random.nextInt(20), random);
+			double sorted[] = values.clone();
+			Arrays.sort(sorted);
+			int k = 1 + random.nextInt(size);
+			assertEquals(sorted[size - k], Topk_Selector.kthLargest(values.clone(), size, k), 0.0);
+		}
+	}
+}